@@ -15,11 +15,13 @@ import com.safenetinc.jcprov.constants.*;
 * a shared login.
 *</p>
 *Usage: java ...ApplicationID -slot &lt;slotID&rt; -major &lt;majorID&rt; -minor &lt;minorID&rt;
-*       -password &lt;password&rt;
+*       -password &lt;password&rt; [-workers &lt;workers&rt; [-jobs &lt;jobs&rt;]]
 *<li><i>slotID</i>   slot to perform login sharing on - default (1)
 *<li><i>majorID</i>  application ID major value - default (1)
 *<li><i>minorID</i>  application ID minor value - default (1)
 *<li><i>password</i> user password for the slot
+*<li><i>workers</i>  run the jobs in a pool of this many long lived child processes, instead of a new child per job
+*<li><i>jobs</i>     number of jobs to give the pool - default (10)
 */
 public class ApplicationID {
 
@@ -27,10 +29,13 @@ public class ApplicationID {
     public static void usage() {
        System.out.println("");
        System.out.println("java ...ApplicationID -slot <slotID> -major <majorID> -minor <minorID> -password <password>");
+       System.out.println("                      [-workers <workers> [-jobs <jobs>]]");
        System.out.println("<slotID>   slot to perform login sharing on - default (1)");
        System.out.println("<majorID>  application ID major value - default (1)");
        System.out.println("<minorID>  application ID minor value - default (1)");
        System.out.println("<password> user password for the slot");
+       System.out.println("<workers>  run the jobs in a pool of this many long lived child processes, instead of a new child per job");
+       System.out.println("<jobs>     number of jobs to give the pool - default (10)");
        System.out.println("");
        System.exit(1);
     }
@@ -67,6 +72,51 @@ public class ApplicationID {
         System.out.println("");
     }
 
+    /**
+     * Start a pool of child processes sharing the login, and give them jobs.
+     *
+     * @param slot
+     * 	slot to log in to
+     *
+     * @param major
+     *  major application ID value
+     *
+     * @param minor
+     *  minor application ID value
+     *
+     * @param workers
+     *  number of child processes
+     *
+     * @param jobs
+     *  number of jobs
+     */
+    public static void callWorkers(long slot, long major, long minor, int workers, int jobs) throws Exception {
+        System.out.println("");
+
+        long start = System.nanoTime();
+        WorkerPool pool = WorkerPool.forApplicationID(slot, major, minor, workers);
+        System.out.println("Parent:: " + workers + " workers ready in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        try {
+            System.out.println("Workers:: " + pool.call("STATE", 10000));
+
+            start = System.nanoTime();
+            for (int i = 0; i < jobs; ++i) {
+                pool.call("RANDOM 16", 10000);
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+
+            System.out.println("Parent:: " + jobs + " jobs in " + micros / 1000 + " ms, " + micros / Math.max(1, jobs) + " us per job");
+            System.out.println("Parent:: " + pool);
+            if (pool.getLastStartFailure() != null)
+                System.out.println("Parent:: last worker start failure : " + pool.getLastStartFailure().getMessage());
+        }
+        finally {
+            pool.close();
+        }
+        System.out.println("");
+    }
+
     /** main execution method */
     public static void main(String[] args){
         CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
@@ -75,6 +125,8 @@ public class ApplicationID {
         long majorID = 1;
         long minorID = 1;
         String password = "";
+        int workers = 0;
+        int jobs = 10;
 
         for(int i = 0; i < args.length; ++i)
         {
@@ -110,6 +162,22 @@ public class ApplicationID {
                 }
                 password = args[i];
             }
+            else if(args[i].equalsIgnoreCase("-workers"))
+            {
+                if(++i >= args.length)
+                {
+                    usage();
+                }
+                workers = Integer.parseInt(args[i]);
+            }
+            else if(args[i].equalsIgnoreCase("-jobs"))
+            {
+                if(++i >= args.length)
+                {
+                    usage();
+                }
+                jobs = Integer.parseInt(args[i]);
+            }
             else
             {
                 usage();
@@ -149,7 +217,14 @@ public class ApplicationID {
                 
             System.out.println("Parent:: Logged out (application ID session open)");
 
-            callChild(slotID, majorID, minorID);
+            if(workers > 0)
+            {
+                callWorkers(slotID, majorID, minorID, workers, jobs);
+            }
+            else
+            {
+                callChild(slotID, majorID, minorID);
+            }
 
             // Cleanup by closing application id
             CryptokiEx.C_Initialize(new CK_C_INITIALIZE_ARGS(CKF.OS_LOCKING_OK));
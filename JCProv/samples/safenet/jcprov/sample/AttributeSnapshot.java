@@ -0,0 +1,344 @@
+package com.safenetinc.jcprov.sample;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * An immutable copy of several attributes of an object, read with a single
+ * C_GetAttributeValue call.
+ * <p>
+ * Reading attributes one at a time costs a round trip to the HSM for each, which adds up
+ * for inventory and policy checks looking at ten or more attributes of every object.
+ * {@link #read} puts every requested attribute in one template, each with a buffer large
+ * enough for most values. Only when some values are not returned are their lengths
+ * asked for, and those which turn out to be too large read again.
+ * <p>
+ * Attributes which the object does not have, or which are sensitive, are left out of
+ * the snapshot rather than failing the whole read; {@link #has} tells them apart. The
+ * values are decoded on request, as CK_BBOOL, CK_ULONG, byte array or string.
+ * <p>
+ * {@link Update} collects new values for several attributes, and sets them all with a
+ * single C_SetAttributeValue call.
+ * <p>
+ * Usage :
+ * <pre>
+ *     AttributeSnapshot a = AttributeSnapshot.read(session, hKey, CKA.CLASS, CKA.KEY_TYPE, CKA.LABEL,
+ *                                                  CKA.EXTRACTABLE, CKA.SENSITIVE, CKA.WRAP, CKA.ID);
+ *
+ *     if (a.getBoolean(CKA.EXTRACTABLE))
+ *     {
+ *         new AttributeSnapshot.Update().set(CKA.EXTRACTABLE, false).set(CKA.ID, newId).apply(session, hKey);
+ *     }
+ * </pre>
+ */
+public final class AttributeSnapshot
+{
+    /** buffer size tried first for each value, enough for flags, numbers, labels and IDs */
+    static final int VALUE_SIZE = 64;
+
+    /** the values read, by attribute type, in the order they were asked for */
+    private final Map<Long, byte[]> values;
+
+    private AttributeSnapshot(Map<Long, byte[]> values)
+    {
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Read attributes of an object.
+     *
+     * @param session
+     *  session to read in
+     *
+     * @param hObject
+     *  the object
+     *
+     * @param types
+     *  the attributes to read
+     *
+     * @return the attributes the object has and may be read
+     */
+    public static AttributeSnapshot read(CK_SESSION_HANDLE session, CK_OBJECT_HANDLE hObject,
+                                         CK_ATTRIBUTE_TYPE... types)
+    {
+        CK_ATTRIBUTE[] template = new CK_ATTRIBUTE[types.length];
+
+        for (int i = 0; i < types.length; ++i)
+        {
+            template[i] = new CK_ATTRIBUTE(types[i], new byte[VALUE_SIZE], VALUE_SIZE);
+        }
+
+        /*
+         * Note that we are not using CryptokiBinding.ex() - a missing or sensitive
+         * attribute, or a value which does not fit, is not an error for the snapshot.
+         */
+        CK_RV rv = CryptokiBinding.get().C_GetAttributeValue(session, hObject, template, template.length);
+
+        if (!CKR.OK.equals(rv) && !CKR.BUFFER_TOO_SMALL.equals(rv) && !CKR.ATTRIBUTE_SENSITIVE.equals(rv)
+            && !CKR.ATTRIBUTE_TYPE_INVALID.equals(rv))
+        {
+            throw CheckedCryptoki.exception("C_GetAttributeValue", rv);
+        }
+
+        Map<Long, byte[]> values = new LinkedHashMap<Long, byte[]>();
+        List<CK_ATTRIBUTE> retry = new ArrayList<CK_ATTRIBUTE>();
+
+        for (CK_ATTRIBUTE a : template)
+        {
+            if (available(a))
+            {
+                values.put(Long.valueOf(a.type.longValue()), Arrays.copyOf((byte[])a.pValue, (int)a.valueLen));
+            }
+            else
+            {
+                /*
+                 * It may not have fitted, or may not be available at all - only one of
+                 * the reasons is returned when several attributes fail.
+                 */
+                retry.add(new CK_ATTRIBUTE(a.type, null, 0));
+            }
+        }
+
+        if (!retry.isEmpty())
+        {
+            readLarge(session, hObject, retry.toArray(new CK_ATTRIBUTE[retry.size()]), values);
+
+            /* keep the order of the request */
+            Map<Long, byte[]> ordered = new LinkedHashMap<Long, byte[]>();
+
+            for (CK_ATTRIBUTE_TYPE type : types)
+            {
+                Long key = Long.valueOf(type.longValue());
+
+                if (values.containsKey(key))
+                    ordered.put(key, values.get(key));
+            }
+
+            values = ordered;
+        }
+
+        return new AttributeSnapshot(values);
+    }
+
+    /**
+     * Read the values which did not fit the first buffers, asking for their lengths first.
+     */
+    private static void readLarge(CK_SESSION_HANDLE session, CK_OBJECT_HANDLE hObject,
+                                  CK_ATTRIBUTE[] template, Map<Long, byte[]> values)
+    {
+        CK_RV rv = CryptokiBinding.get().C_GetAttributeValue(session, hObject, template, template.length);
+
+        if (!CKR.OK.equals(rv) && !CKR.ATTRIBUTE_SENSITIVE.equals(rv) && !CKR.ATTRIBUTE_TYPE_INVALID.equals(rv))
+        {
+            throw CheckedCryptoki.exception("C_GetAttributeValue", rv);
+        }
+
+        List<CK_ATTRIBUTE> large = new ArrayList<CK_ATTRIBUTE>();
+
+        for (CK_ATTRIBUTE a : template)
+        {
+            if (a.valueLen >= 0 && a.valueLen <= Integer.MAX_VALUE)
+            {
+                large.add(new CK_ATTRIBUTE(a.type, new byte[(int)a.valueLen], a.valueLen));
+            }
+        }
+
+        if (large.isEmpty())
+            return;
+
+        CK_ATTRIBUTE[] larger = large.toArray(new CK_ATTRIBUTE[large.size()]);
+
+        CryptokiBinding.ex().C_GetAttributeValue(session, hObject, larger, larger.length);
+
+        for (CK_ATTRIBUTE a : larger)
+        {
+            values.put(Long.valueOf(a.type.longValue()), Arrays.copyOf((byte[])a.pValue, (int)a.valueLen));
+        }
+    }
+
+    /** true if the value of an attribute was returned */
+    private static boolean available(CK_ATTRIBUTE a)
+    {
+        /* an unavailable value has length CK_UNAVAILABLE_INFORMATION, ~0 */
+        return a.valueLen >= 0 && a.valueLen <= ((byte[])a.pValue).length;
+    }
+
+    /**
+     * @return true if the attribute was read
+     */
+    public boolean has(CK_ATTRIBUTE_TYPE type)
+    {
+        return values.containsKey(Long.valueOf(type.longValue()));
+    }
+
+    /**
+     * @return the types of the attributes which were read
+     */
+    public Set<Long> getTypes()
+    {
+        return values.keySet();
+    }
+
+    /**
+     * @return the value of a CK_BBOOL attribute
+     *
+     * @throws IllegalArgumentException
+     *  if the attribute was not read
+     */
+    public boolean getBoolean(CK_ATTRIBUTE_TYPE type)
+    {
+        byte[] value = value(type);
+
+        return value.length > 0 && value[0] != 0;
+    }
+
+    /**
+     * @return the value of a CK_ULONG attribute, such as CKA.CLASS or CKA.MODULUS_BITS
+     *
+     * @throws IllegalArgumentException
+     *  if the attribute was not read
+     */
+    public long getLong(CK_ATTRIBUTE_TYPE type)
+    {
+        byte[] value = value(type);
+
+        /* a CK_ULONG is returned in the byte order and size of the host */
+        ByteBuffer buffer = ByteBuffer.wrap(value).order(ByteOrder.nativeOrder());
+
+        switch (value.length)
+        {
+            case 8:
+                return buffer.getLong();
+            case 4:
+                return buffer.getInt() & 0xFFFFFFFFL;
+            default:
+                throw new IllegalArgumentException("attribute " + type.longValue() + " is not a CK_ULONG");
+        }
+    }
+
+    /**
+     * @return the value of an attribute, such as CKA.ID
+     *
+     * @throws IllegalArgumentException
+     *  if the attribute was not read
+     */
+    public byte[] getBytes(CK_ATTRIBUTE_TYPE type)
+    {
+        return value(type).clone();
+    }
+
+    /**
+     * @return the value of a text attribute, such as CKA.LABEL
+     *
+     * @throws IllegalArgumentException
+     *  if the attribute was not read
+     */
+    public String getString(CK_ATTRIBUTE_TYPE type)
+    {
+        return new String(value(type));
+    }
+
+    private byte[] value(CK_ATTRIBUTE_TYPE type)
+    {
+        byte[] value = values.get(Long.valueOf(type.longValue()));
+
+        if (value == null)
+        {
+            throw new IllegalArgumentException("attribute " + type.longValue() + " was not read");
+        }
+
+        return value;
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<Long, byte[]> e : values.entrySet())
+        {
+            if (sb.length() > 0)
+                sb.append(", ");
+
+            sb.append("0x").append(Long.toHexString(e.getKey().longValue())).append('=');
+
+            for (byte b : e.getValue())
+            {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * New values for several attributes of an object, set together.
+     */
+    public static class Update
+    {
+        /** the values, by attribute type, the last value set for a type winning */
+        private final Map<Long, CK_ATTRIBUTE> attributes = new LinkedHashMap<Long, CK_ATTRIBUTE>();
+
+        public Update set(CK_ATTRIBUTE_TYPE type, boolean value)
+        {
+            return put(new CK_ATTRIBUTE(type, new CK_BBOOL(value)));
+        }
+
+        public Update set(CK_ATTRIBUTE_TYPE type, long value)
+        {
+            return put(new CK_ATTRIBUTE(type, value));
+        }
+
+        public Update set(CK_ATTRIBUTE_TYPE type, byte[] value)
+        {
+            return put(new CK_ATTRIBUTE(type, value.clone()));
+        }
+
+        public Update set(CK_ATTRIBUTE_TYPE type, String value)
+        {
+            return put(new CK_ATTRIBUTE(type, value.getBytes()));
+        }
+
+        private Update put(CK_ATTRIBUTE a)
+        {
+            attributes.put(Long.valueOf(a.type.longValue()), a);
+
+            return this;
+        }
+
+        /** number of attributes to set */
+        public int size()
+        {
+            return attributes.size();
+        }
+
+        /**
+         * Set every value with one C_SetAttributeValue call. As PKCS#11 requires, either
+         * all of them are set, or none is.
+         *
+         * @param session
+         *  read/write session, for a token object
+         *
+         * @param hObject
+         *  the object
+         */
+        public void apply(CK_SESSION_HANDLE session, CK_OBJECT_HANDLE hObject)
+        {
+            if (attributes.isEmpty())
+                return;
+
+            CK_ATTRIBUTE[] template = attributes.values().toArray(new CK_ATTRIBUTE[attributes.size()]);
+
+            CryptokiBinding.ex().C_SetAttributeValue(session, hObject, template, template.length);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package com.safenetinc.jcprov.sample;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of a single benchmark run.
+ * <p>
+ * The report collects the operation count and latency histogram of each worker
+ * thread, merges them, and writes the result as a human readable summary, as
+ * JSON or as CSV. Latencies are reported in microseconds.
+ * <p>
+ * When the workload is a mix of operations, the results of each operation are
+ * also merged and reported separately.
+ */
+public class BenchmarkReport
+{
+    /** percentiles included in every report */
+    static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+    /** name of the benchmark */
+    private final String name;
+
+    /** run parameters, in the order they were added */
+    private final Map<String, String> parameters = new LinkedHashMap<String, String>();
+
+    /** operations completed by each thread within the measurement period */
+    private final List<Long> threadOps = new ArrayList<Long>();
+
+    /** latency of all operations completed within the measurement period */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** results of each operation of the workload, by name */
+    private final Map<String, OperationResult> operations = new LinkedHashMap<String, OperationResult>();
+
+    /** number of threads which terminated because of an error */
+    private int failedThreads;
+
+    /** length of the measurement period */
+    private long measuredNanos;
+
+    /**
+     * Merged results of a single operation of the workload.
+     */
+    static class OperationResult
+    {
+        /** number of completed operations */
+        long count;
+
+        /** latency of the completed operations */
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *  name of the benchmark, included in the report
+     */
+    public BenchmarkReport(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Record a run parameter, such as the number of threads.
+     *
+     * @param key
+     *  name of the parameter
+     *
+     * @param value
+     *  value of the parameter
+     */
+    public void setParameter(String key, Object value)
+    {
+        parameters.put(key, String.valueOf(value));
+    }
+
+    /**
+     * Get a run parameter.
+     *
+     * @param key
+     *  name of the parameter
+     *
+     * @return the value of the parameter, or an empty string if it was not set
+     */
+    public String getParameter(String key)
+    {
+        String value = parameters.get(key);
+
+        return (value == null) ? "" : value;
+    }
+
+    /**
+     * Add the results of one worker thread.
+     *
+     * @param opCount
+     *  operations completed within the measurement period
+     *
+     * @param histogram
+     *  latency of those operations
+     *
+     * @param failed
+     *  true if the thread terminated because of an error
+     */
+    public void addThread(long opCount, LatencyHistogram histogram, boolean failed)
+    {
+        threadOps.add(Long.valueOf(opCount));
+        latency.add(histogram);
+
+        if (failed)
+        {
+            ++failedThreads;
+        }
+    }
+
+    /**
+     * Add the results of one operation of the workload, as recorded by one thread.
+     *
+     * @param opName
+     *  name of the operation
+     *
+     * @param opCount
+     *  number of times the operation completed within the measurement period
+     *
+     * @param histogram
+     *  latency of the operation
+     */
+    public void addOperation(String opName, long opCount, LatencyHistogram histogram)
+    {
+        OperationResult result = operations.get(opName);
+
+        if (result == null)
+        {
+            result = new OperationResult();
+            operations.put(opName, result);
+        }
+
+        result.count += opCount;
+        result.latency.add(histogram);
+    }
+
+    /**
+     * Set the length of the measurement period, excluding any warm-up.
+     *
+     * @param nanos
+     *  length of the period in nanoseconds
+     */
+    public void setMeasuredNanos(long nanos)
+    {
+        measuredNanos = nanos;
+    }
+
+    /** total operations completed within the measurement period */
+    public long getTotalOps()
+    {
+        long total = 0;
+
+        for (Long ops : threadOps)
+        {
+            total += ops.longValue();
+        }
+
+        return total;
+    }
+
+    /** operations per second over the measurement period */
+    public double getThroughput()
+    {
+        if (measuredNanos <= 0)
+        {
+            return 0;
+        }
+
+        return getTotalOps() * 1e9 / measuredNanos;
+    }
+
+    /** merged latency histogram of all threads */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    /** number of threads which terminated because of an error */
+    public int getFailedThreads()
+    {
+        return failedThreads;
+    }
+
+    /**
+     * Write a short human readable summary.
+     *
+     * @param out
+     *  stream to write to
+     */
+    public void printSummary(PrintStream out)
+    {
+        out.println("Measured " + formatDouble(measuredNanos / 1e9) + " seconds, "
+                + getTotalOps() + " operations, "
+                + formatDouble(getThroughput()) + " ops/s");
+
+        out.print("Latency (us) min " + micros(latency.getMinValue())
+                + ", mean " + formatDouble(latency.getMean() / 1e3));
+
+        for (int i = 0; i < PERCENTILES.length; ++i)
+        {
+            out.print(", p" + percentileName(PERCENTILES[i]) + " "
+                    + micros(latency.getValueAtPercentile(PERCENTILES[i])));
+        }
+
+        out.println(", max " + micros(latency.getMaxValue()));
+
+        /* a single operation has already been described by the totals */
+        if (operations.size() > 1)
+        {
+            for (Map.Entry<String, OperationResult> e : operations.entrySet())
+            {
+                LatencyHistogram h = e.getValue().latency;
+
+                out.println("  " + e.getKey() + ": " + e.getValue().count + " operations"
+                        + ", p50 " + micros(h.getValueAtPercentile(50.0))
+                        + ", p99 " + micros(h.getValueAtPercentile(99.0))
+                        + ", max " + micros(h.getMaxValue()));
+            }
+        }
+
+        if (failedThreads > 0)
+        {
+            out.println(failedThreads + " thread(s) terminated with an error");
+        }
+    }
+
+    /**
+     * Write the report as a JSON object.
+     *
+     * @param out
+     *  stream to write to
+     */
+    public void writeJson(PrintStream out)
+    {
+        writeJsonObject(out, "");
+    }
+
+    /**
+     * Write several reports, for example the stages of a stepped run, as a JSON array.
+     *
+     * @param out
+     *  stream to write to
+     *
+     * @param reports
+     *  the reports to write
+     */
+    public static void writeJson(PrintStream out, List<BenchmarkReport> reports)
+    {
+        out.println("[");
+
+        for (int i = 0; i < reports.size(); ++i)
+        {
+            reports.get(i).writeJsonObject(out, (i + 1 < reports.size()) ? "," : "");
+        }
+
+        out.println("]");
+    }
+
+    /** write the report as a JSON object, followed by the given terminator */
+    private void writeJsonObject(PrintStream out, String terminator)
+    {
+        out.println("{");
+        out.println("  \"benchmark\": " + quote(name) + ",");
+        out.println("  \"parameters\": {");
+
+        Iterator<Map.Entry<String, String>> it = parameters.entrySet().iterator();
+
+        while (it.hasNext())
+        {
+            Map.Entry<String, String> e = it.next();
+
+            out.println("    " + quote(e.getKey()) + ": " + quote(e.getValue())
+                    + (it.hasNext() ? "," : ""));
+        }
+
+        out.println("  },");
+        out.println("  \"measuredSeconds\": " + formatDouble(measuredNanos / 1e9) + ",");
+        out.println("  \"totalOps\": " + getTotalOps() + ",");
+        out.println("  \"throughput\": " + formatDouble(getThroughput()) + ",");
+        out.println("  \"failedThreads\": " + failedThreads + ",");
+        out.println("  \"latencyMicros\": {");
+        writeJsonLatency(out, latency, "    ");
+        out.println("  },");
+        out.println("  \"operations\": [");
+
+        Iterator<Map.Entry<String, OperationResult>> ops = operations.entrySet().iterator();
+
+        while (ops.hasNext())
+        {
+            Map.Entry<String, OperationResult> e = ops.next();
+
+            out.println("    {");
+            out.println("      \"name\": " + quote(e.getKey()) + ",");
+            out.println("      \"count\": " + e.getValue().count + ",");
+            out.println("      \"latencyMicros\": {");
+            writeJsonLatency(out, e.getValue().latency, "        ");
+            out.println("      }");
+            out.println("    }" + (ops.hasNext() ? "," : ""));
+        }
+
+        out.println("  ],");
+
+        StringBuilder perThread = new StringBuilder();
+
+        for (int i = 0; i < threadOps.size(); ++i)
+        {
+            if (i > 0)
+                perThread.append(", ");
+
+            perThread.append(threadOps.get(i));
+        }
+
+        out.println("  \"threadOps\": [" + perThread + "]");
+        out.println("}" + terminator);
+    }
+
+    /** write the members of a JSON latency object */
+    static void writeJsonLatency(PrintStream out, LatencyHistogram h, String indent)
+    {
+        out.println(indent + "\"min\": " + micros(h.getMinValue()) + ",");
+        out.println(indent + "\"mean\": " + formatDouble(h.getMean() / 1e3) + ",");
+
+        for (int i = 0; i < PERCENTILES.length; ++i)
+        {
+            out.println(indent + "\"p" + percentileName(PERCENTILES[i]) + "\": "
+                    + micros(h.getValueAtPercentile(PERCENTILES[i])) + ",");
+        }
+
+        out.println(indent + "\"max\": " + micros(h.getMaxValue()));
+    }
+
+    /**
+     * Write the report as CSV, a header line followed by a single data line.
+     *
+     * @param out
+     *  stream to write to
+     */
+    public void writeCsv(PrintStream out)
+    {
+        List<BenchmarkReport> reports = new ArrayList<BenchmarkReport>();
+
+        reports.add(this);
+        writeCsv(out, reports);
+    }
+
+    /**
+     * Write several reports as CSV, a header line followed by one data line per
+     * report. The reports must have the same parameters.
+     *
+     * @param out
+     *  stream to write to
+     *
+     * @param reports
+     *  the reports to write
+     */
+    public static void writeCsv(PrintStream out, List<BenchmarkReport> reports)
+    {
+        for (int i = 0; i < reports.size(); ++i)
+        {
+            reports.get(i).writeCsvLines(out, i == 0);
+        }
+    }
+
+    /** write the data line of the report, preceded by the header line if required */
+    private void writeCsvLines(PrintStream out, boolean withHeader)
+    {
+        StringBuilder header = new StringBuilder("benchmark");
+        StringBuilder row = new StringBuilder(csv(name));
+
+        for (Map.Entry<String, String> e : parameters.entrySet())
+        {
+            header.append(',').append(csv(e.getKey()));
+            row.append(',').append(csv(e.getValue()));
+        }
+
+        header.append(",measuredSeconds,totalOps,throughput,failedThreads,minMicros,meanMicros");
+        row.append(',').append(formatDouble(measuredNanos / 1e9))
+           .append(',').append(getTotalOps())
+           .append(',').append(formatDouble(getThroughput()))
+           .append(',').append(failedThreads)
+           .append(',').append(micros(latency.getMinValue()))
+           .append(',').append(formatDouble(latency.getMean() / 1e3));
+
+        for (int i = 0; i < PERCENTILES.length; ++i)
+        {
+            header.append(",p").append(percentileName(PERCENTILES[i])).append("Micros");
+            row.append(',').append(micros(latency.getValueAtPercentile(PERCENTILES[i])));
+        }
+
+        header.append(",maxMicros");
+        row.append(',').append(micros(latency.getMaxValue()));
+
+        if (withHeader)
+            out.println(header);
+
+        out.println(row);
+    }
+
+    /** convert nanoseconds to a microsecond string */
+    static String micros(long nanos)
+    {
+        return formatDouble(nanos / 1e3);
+    }
+
+    /** format a value with (at most) three decimal places */
+    static String formatDouble(double value)
+    {
+        return String.valueOf(Math.round(value * 1000.0) / 1000.0);
+    }
+
+    /** name of a percentile, for example 99.9 becomes "999" */
+    static String percentileName(double percentile)
+    {
+        String s = String.valueOf(percentile);
+
+        if (s.endsWith(".0"))
+            s = s.substring(0, s.length() - 2);
+
+        return s.replace(".", "");
+    }
+
+    /** quote a JSON string */
+    static String quote(String s)
+    {
+        StringBuilder sb = new StringBuilder("\"");
+
+        for (int i = 0; i < s.length(); ++i)
+        {
+            char c = s.charAt(i);
+
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+            else
+                sb.append(c);
+        }
+
+        return sb.append('"').toString();
+    }
+
+    /** quote a CSV field, if required */
+    static String csv(String s)
+    {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0)
+        {
+            return s;
+        }
+
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
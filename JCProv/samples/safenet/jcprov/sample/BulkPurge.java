@@ -0,0 +1,559 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Destroys every token object which matches a filter, for example the thousands of keys
+ * which have expired.
+ * <p>
+ * The objects may be selected by class and key type, which the token matches itself,
+ * and by label prefix and end date, which are read together in an
+ * {@link AttributeSnapshot} of each object the token returns. The matching handles are streamed from an
+ * {@link ObjectEnumerator} and grouped into batches. Destroyer threads, each with a
+ * session of its own, destroy a batch with a single call to the SafeNet extension
+ * CA_DestroyMultipleObjects, or with C_DestroyObject for each object of the batch when
+ * the extension is not available. Only a few batches are queued for the destroyers, so
+ * the search waits when they fall behind and memory use does not grow with the number of
+ * objects.
+ * <p>
+ * In a dry run the matching objects are counted but not destroyed. The
+ * {@link Progress} listener is told after each batch.
+ * <p>
+ * Private objects are only found when the application is logged in.
+ * <p>
+ * Usage :
+ * <pre>
+ *     BulkPurge purge = new BulkPurge(slotId);
+ *
+ *     purge.setLabelPrefix("customer-");
+ *     purge.setEndDateBefore("20160101");
+ *     purge.setThreads(4);
+ *     purge.run();
+ * </pre>
+ */
+public class BulkPurge
+{
+    /** number of objects destroyed by each call, by default */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** tells the destroyers that the search is finished */
+    private static final CK_OBJECT_HANDLE[] END = new CK_OBJECT_HANDLE[0];
+
+    /** slot of the objects */
+    private final long slotId;
+
+    /** class of the objects to destroy, or null for any class */
+    private CK_OBJECT_CLASS keyClass;
+
+    /** key type of the objects to destroy, or null for any type */
+    private CK_KEY_TYPE keyType;
+
+    /** label prefix of the objects to destroy, or null for any label */
+    private byte[] labelPrefix;
+
+    /** the objects to destroy end before this date (YYYYMMDD), or null for any date */
+    private String endDateBefore;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** number of destroyer threads */
+    private int numThreads = 1;
+
+    /** flag to count the matching objects rather than destroy them */
+    private boolean bDryRun;
+
+    /** told after each batch, or null */
+    private Progress progress;
+
+    /** flag to indicate that CA_DestroyMultipleObjects is available, until a call shows it is not */
+    private volatile boolean multipleSupported = true;
+
+    /** the last error of a destroy, or null */
+    private volatile CK_RV lastError;
+
+    /** number of objects which matched the filter */
+    private final AtomicLong matched = new AtomicLong();
+
+    /** number of objects destroyed */
+    private final AtomicLong destroyed = new AtomicLong();
+
+    /** number of objects which could not be destroyed */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** number of CA_DestroyMultipleObjects and C_DestroyObject calls */
+    private final AtomicLong calls = new AtomicLong();
+
+    /** attributes the filter reads from each object, set when the search starts */
+    private CK_ATTRIBUTE_TYPE[] filterTypes;
+
+    /**
+     * Told of the progress of a purge. It is called from the destroyer threads, so may be
+     * called by several threads at once.
+     */
+    public interface Progress
+    {
+        void progress(BulkPurge purge);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param slotId
+     *  slot of the objects to destroy
+     */
+    public BulkPurge(long slotId)
+    {
+        this.slotId = slotId;
+    }
+
+    /** destroy only objects of a class, null for any class */
+    public void setClass(CK_OBJECT_CLASS keyClass)
+    {
+        this.keyClass = keyClass;
+    }
+
+    /** destroy only keys of a type, null for any type */
+    public void setKeyType(CK_KEY_TYPE keyType)
+    {
+        this.keyType = keyType;
+    }
+
+    /** destroy only objects whose label starts with a prefix, null for any label */
+    public void setLabelPrefix(String prefix)
+    {
+        this.labelPrefix = (prefix == null) ? null : prefix.getBytes();
+    }
+
+    /**
+     * Destroy only objects whose CKA_END_DATE is before a date. Objects without an end
+     * date are not destroyed.
+     *
+     * @param date
+     *  the date as YYYYMMDD, null for any date
+     */
+    public void setEndDateBefore(String date)
+    {
+        if (date != null && !date.matches("[0-9]{8}"))
+        {
+            throw new IllegalArgumentException("date must be YYYYMMDD : " + date);
+        }
+
+        this.endDateBefore = date;
+    }
+
+    /** number of objects destroyed by each call */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize <= 0)
+        {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    /** number of destroyer threads, each with a session of its own */
+    public void setThreads(int numThreads)
+    {
+        if (numThreads <= 0)
+        {
+            throw new IllegalArgumentException("number of threads must be positive");
+        }
+
+        this.numThreads = numThreads;
+    }
+
+    /** true to count the matching objects rather than destroy them */
+    public void setDryRun(boolean bDryRun)
+    {
+        this.bDryRun = bDryRun;
+    }
+
+    /** false to destroy one object per call, even if CA_DestroyMultipleObjects is available */
+    public void setUseMultiple(boolean bUseMultiple)
+    {
+        this.multipleSupported = bUseMultiple;
+    }
+
+    /** the listener to tell of progress, or null */
+    public void setProgress(Progress progress)
+    {
+        this.progress = progress;
+    }
+
+    /** number of objects which matched the filter */
+    public long getMatchedCount()
+    {
+        return matched.get();
+    }
+
+    /** number of objects destroyed */
+    public long getDestroyedCount()
+    {
+        return destroyed.get();
+    }
+
+    /** number of objects which could not be destroyed */
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /** number of calls made to destroy the objects */
+    public long getCallCount()
+    {
+        return calls.get();
+    }
+
+    /** true unless CA_DestroyMultipleObjects is not available, or not to be used */
+    public boolean isMultipleSupported()
+    {
+        return multipleSupported;
+    }
+
+    /** the last error of a destroy, or null if every destroy succeeded */
+    public CK_RV getLastError()
+    {
+        return lastError;
+    }
+
+    public String toString()
+    {
+        return matched.get() + " matched, " + destroyed.get() + " destroyed, " + failed.get()
+                + " failed, in " + calls.get() + " calls"
+                + (multipleSupported ? "" : " of C_DestroyObject");
+    }
+
+    /**
+     * Find and destroy the objects. The filter may not be changed while it runs.
+     */
+    public void run() throws InterruptedException
+    {
+        List<CK_ATTRIBUTE> attributes = new ArrayList<CK_ATTRIBUTE>();
+
+        attributes.add(new CK_ATTRIBUTE(CKA.TOKEN, CK_BBOOL.TRUE));
+
+        if (keyClass != null)
+            attributes.add(new CK_ATTRIBUTE(CKA.CLASS, keyClass));
+
+        if (keyType != null)
+            attributes.add(new CK_ATTRIBUTE(CKA.KEY_TYPE, keyType));
+
+        CK_ATTRIBUTE[] template = attributes.toArray(new CK_ATTRIBUTE[attributes.size()]);
+
+        /* a couple of batches each, so that a destroyer need not wait for the search */
+        BlockingQueue<CK_OBJECT_HANDLE[]> queue = new ArrayBlockingQueue<CK_OBJECT_HANDLE[]>(numThreads * 2);
+        Thread[] destroyers = new Thread[bDryRun ? 0 : numThreads];
+        CK_SESSION_HANDLE[] sessions = new CK_SESSION_HANDLE[destroyers.length];
+
+        try
+        {
+            for (int i = 0; i < sessions.length; ++i)
+            {
+                sessions[i] = new CK_SESSION_HANDLE();
+
+                CryptokiBinding.ex().C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, sessions[i]);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            for (int i = 0; i < sessions.length && sessions[i] != null; ++i)
+            {
+                CryptokiBinding.get().C_CloseSession(sessions[i]);
+            }
+
+            throw ex;
+        }
+
+        for (int i = 0; i < destroyers.length; ++i)
+        {
+            destroyers[i] = new Thread(new Destroyer(sessions[i], queue), "BulkPurge-" + i);
+            destroyers[i].start();
+        }
+
+        CK_SESSION_HANDLE search = new CK_SESSION_HANDLE();
+
+        try
+        {
+            CryptokiBinding.ex().C_OpenSession(slotId, CKF.SERIAL_SESSION, null, null, search);
+
+            ObjectEnumerator objects = new ObjectEnumerator(search, template, ObjectEnumerator.DEFAULT_PAGE_SIZE);
+
+            filterTypes = filterTypes();
+
+            try
+            {
+                CK_OBJECT_HANDLE[] batch = new CK_OBJECT_HANDLE[batchSize];
+                int count = 0;
+
+                while (objects.hasNext())
+                {
+                    CK_OBJECT_HANDLE hObject = objects.next();
+
+                    if (!matches(search, hObject))
+                        continue;
+
+                    matched.incrementAndGet();
+                    batch[count++] = hObject;
+
+                    if (count == batchSize)
+                    {
+                        submit(queue, batch);
+
+                        batch = new CK_OBJECT_HANDLE[batchSize];
+                        count = 0;
+                    }
+                }
+
+                if (count > 0)
+                {
+                    submit(queue, Arrays.copyOf(batch, count));
+                }
+            }
+            finally
+            {
+                objects.close();
+            }
+        }
+        finally
+        {
+            /*
+             * Note that we are not using CryptokiBinding.ex().
+             */
+            CryptokiBinding.get().C_CloseSession(search);
+
+            /* let the destroyers finish the queued batches, even if the search failed */
+            for (int i = 0; i < destroyers.length; ++i)
+            {
+                queue.put(END);
+            }
+
+            for (int i = 0; i < destroyers.length; ++i)
+            {
+                destroyers[i].join();
+            }
+        }
+    }
+
+    /** hand a batch to the destroyers, or just report it in a dry run */
+    private void submit(BlockingQueue<CK_OBJECT_HANDLE[]> queue, CK_OBJECT_HANDLE[] batch)
+        throws InterruptedException
+    {
+        if (bDryRun)
+        {
+            report();
+        }
+        else
+        {
+            /* waits while the destroyers are behind */
+            queue.put(batch);
+        }
+    }
+
+    private void report()
+    {
+        Progress p = progress;
+
+        if (p != null)
+        {
+            p.progress(this);
+        }
+    }
+
+    /** the attributes read to match the label prefix and end date of the filter */
+    private CK_ATTRIBUTE_TYPE[] filterTypes()
+    {
+        List<CK_ATTRIBUTE_TYPE> types = new ArrayList<CK_ATTRIBUTE_TYPE>();
+
+        if (labelPrefix != null)
+            types.add(CKA.LABEL);
+
+        if (endDateBefore != null)
+            types.add(CKA.END_DATE);
+
+        return types.toArray(new CK_ATTRIBUTE_TYPE[types.size()]);
+    }
+
+    /**
+     * Determine whether an object matches the label prefix and end date of the filter,
+     * reading both with one call.
+     */
+    private boolean matches(CK_SESSION_HANDLE session, CK_OBJECT_HANDLE hObject)
+    {
+        if (filterTypes.length == 0)
+            return true;
+
+        AttributeSnapshot a;
+
+        try
+        {
+            a = AttributeSnapshot.read(session, hObject, filterTypes);
+        }
+        catch (RuntimeException ex)
+        {
+            if (CheckedCryptoki.rv(ex) == null)
+                throw ex;
+
+            /* the object may have been destroyed since it was found, it just does not match */
+            return false;
+        }
+
+        if (labelPrefix != null)
+        {
+            if (!a.has(CKA.LABEL))
+                return false;
+
+            byte[] label = a.getBytes(CKA.LABEL);
+
+            if (label.length < labelPrefix.length)
+                return false;
+
+            for (int i = 0; i < labelPrefix.length; ++i)
+            {
+                if (label[i] != labelPrefix[i])
+                    return false;
+            }
+        }
+
+        if (endDateBefore != null)
+        {
+            /* an object without an end date, or with an empty one, does not expire */
+            if (!a.has(CKA.END_DATE))
+                return false;
+
+            byte[] date = a.getBytes(CKA.END_DATE);
+
+            if (date.length != 8)
+                return false;
+
+            String endDate = new String(date, 0, 8);
+
+            if (endDate.compareTo(endDateBefore) >= 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A destroyer, destroying the queued batches from its own session.
+     */
+    class Destroyer implements Runnable
+    {
+        private final CK_SESSION_HANDLE session;
+        private final BlockingQueue<CK_OBJECT_HANDLE[]> queue;
+
+        /** to receive the index of the object CA_DestroyMultipleObjects could not destroy */
+        private final LongRef index = new LongRef();
+
+        Destroyer(CK_SESSION_HANDLE session, BlockingQueue<CK_OBJECT_HANDLE[]> queue)
+        {
+            this.session = session;
+            this.queue = queue;
+        }
+
+        public void run()
+        {
+            try
+            {
+                CK_OBJECT_HANDLE[] batch;
+
+                while ((batch = queue.take()) != END)
+                {
+                    destroy(batch);
+                    report();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                /* stopped */
+            }
+            finally
+            {
+                CryptokiBinding.get().C_CloseSession(session);
+            }
+        }
+
+        /**
+         * Destroy a batch with CA_DestroyMultipleObjects, continuing after any object it
+         * can not destroy, or one object at a time if the extension is not available.
+         */
+        private void destroy(CK_OBJECT_HANDLE[] batch)
+        {
+            int start = 0;
+
+            while (multipleSupported && start < batch.length)
+            {
+                CK_OBJECT_HANDLE[] rest = (start == 0) ? batch : Arrays.copyOfRange(batch, start, batch.length);
+
+                index.value = 0;
+
+                CK_RV rv = CryptokiBinding.get().CA_DestroyMultipleObjects(session, rest.length, rest, index);
+
+                if (CKR.FUNCTION_NOT_SUPPORTED.equals(rv))
+                {
+                    multipleSupported = false;
+                    break;
+                }
+
+                calls.incrementAndGet();
+
+                if (CKR.OK.equals(rv))
+                {
+                    destroyed(batch, start, batch.length);
+                    return;
+                }
+
+                /* the objects before the index were destroyed, the one at the index was not */
+                int done = (int)Math.min(Math.max(index.value, 0), rest.length - 1);
+
+                destroyed(batch, start, start + done);
+                failed.incrementAndGet();
+                lastError = rv;
+
+                start += done + 1;
+            }
+
+            for (int i = start; i < batch.length; ++i)
+            {
+                /*
+                 * Note that we are not using CryptokiBinding.ex() - an object which can
+                 * not be destroyed should not stop the others being destroyed.
+                 */
+                CK_RV rv = CryptokiBinding.get().C_DestroyObject(session, batch[i]);
+
+                calls.incrementAndGet();
+
+                if (CKR.OK.equals(rv))
+                {
+                    destroyed(batch, i, i + 1);
+                }
+                else
+                {
+                    failed.incrementAndGet();
+                    lastError = rv;
+                }
+            }
+        }
+
+        /** count the objects of a batch from index from up to index to as destroyed */
+        private void destroyed(CK_OBJECT_HANDLE[] batch, int from, int to)
+        {
+            for (int i = from; i < to; ++i)
+            {
+                /* a cached search may have found the object */
+                KeyCache.getInstance().invalidateHandle(batch[i]);
+            }
+
+            destroyed.addAndGet(to - from);
+        }
+    }
+}
@@ -0,0 +1,690 @@
+package com.safenetinc.jcprov.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * The slots, tokens and mechanisms of the HSM, gathered once and kept in a local file, so
+ * that an application can start without waiting for them to be read again.
+ * <p>
+ * Reading the capabilities one call at a time - the slot list, the slot and token
+ * information of each slot, the mechanism list of each token and then the information of
+ * each mechanism - takes hundreds of round trips, which is seconds with a networked HSM.
+ * {@link #gather} takes one call for the slot list, then reads the slots and the
+ * mechanisms from several threads at once. Buffers are sized generously, so that the
+ * count-then-fill double call is only needed when they turn out to be too small.
+ * <p>
+ * {@link #open} loads the snapshot saved by the last run, and gathers a fresh one in the
+ * background, saving it if the capabilities have changed. Only the first run, with no
+ * file, waits for the capabilities to be gathered.
+ * <p>
+ * Only the capabilities are kept : the session counts, free memory and clock of the token
+ * information, which change from one call to the next, are left as 0.
+ * <p>
+ * Usage :
+ * <pre>
+ *     CapabilitySnapshot caps = CapabilitySnapshot.open(new File("hsm.caps"), 8);
+ *
+ *     if (caps.supports(slotId, CKM.SHA256_RSA_PKCS, CKF.SIGN))
+ *     ...
+ * </pre>
+ */
+public class CapabilitySnapshot
+{
+    /** start of the file, "CAPS" */
+    static final int MAGIC = 0x43415053;
+
+    /** version of the file format */
+    static final int VERSION = 1;
+
+    /** number of slots asked for by the first call of C_GetSlotList */
+    static final int SLOT_LIST_SIZE = 16;
+
+    /** number of mechanisms asked for by the first call of C_GetMechanismList */
+    static final int MECHANISM_LIST_SIZE = 256;
+
+    /** when the capabilities were gathered */
+    private final long gatheredMillis;
+
+    /** the slots, in the order of the slot list */
+    private final List<Slot> slots;
+
+    /** the fresh snapshot being gathered after this one was loaded, or null */
+    private volatile Future<CapabilitySnapshot> revalidation;
+
+    /**
+     * The capabilities of one slot and its token.
+     */
+    static class Slot
+    {
+        final long slotId;
+
+        CK_SLOT_INFO slotInfo;
+        CK_TOKEN_INFO tokenInfo;
+
+        /** the mechanisms of the token, in the order of the mechanism list */
+        long[] mechanisms;
+
+        /** the information of each mechanism */
+        CK_MECHANISM_INFO[] mechanismInfo;
+
+        Slot(long slotId)
+        {
+            this.slotId = slotId;
+        }
+
+        /** the information of a mechanism, or null if it is not supported */
+        CK_MECHANISM_INFO find(long mechanism)
+        {
+            for (int i = 0; i < mechanisms.length; ++i)
+            {
+                if (mechanisms[i] == mechanism)
+                    return mechanismInfo[i];
+            }
+
+            return null;
+        }
+    }
+
+    private CapabilitySnapshot(long gatheredMillis, List<Slot> slots)
+    {
+        this.gatheredMillis = gatheredMillis;
+        this.slots = slots;
+    }
+
+    /**
+     * Load the snapshot saved in a file, gathering and saving one if there is none.
+     * <p>
+     * If the snapshot was loaded, a fresh one is gathered in a background thread, and
+     * saved in place of the file if the capabilities have changed. The fresh snapshot is
+     * given by {@link #getRevalidation()}.
+     *
+     * @param file
+     *  the file of the snapshot
+     *
+     * @param numThreads
+     *  number of threads reading the capabilities
+     */
+    public static CapabilitySnapshot open(final File file, final int numThreads) throws IOException, InterruptedException
+    {
+        final CapabilitySnapshot loaded = load(file);
+
+        if (loaded == null)
+        {
+            CapabilitySnapshot fresh = gather(numThreads);
+
+            fresh.save(file);
+
+            return fresh;
+        }
+
+        FutureTask<CapabilitySnapshot> task = new FutureTask<CapabilitySnapshot>(new Callable<CapabilitySnapshot>()
+        {
+            public CapabilitySnapshot call() throws Exception
+            {
+                CapabilitySnapshot fresh = gather(numThreads);
+
+                if (!fresh.sameAs(loaded))
+                    fresh.save(file);
+
+                return fresh;
+            }
+        });
+
+        Thread t = new Thread(task, "CapabilitySnapshot");
+
+        t.setDaemon(true);
+        t.start();
+
+        loaded.revalidation = task;
+
+        return loaded;
+    }
+
+    /**
+     * Read the capabilities of every slot with a token.
+     *
+     * @param numThreads
+     *  number of threads reading the slots and the mechanisms
+     */
+    public static CapabilitySnapshot gather(int numThreads) throws InterruptedException
+    {
+        long now = System.currentTimeMillis();
+        LongRef lRef = new LongRef();
+        long[] slotList = new long[SLOT_LIST_SIZE];
+
+        /*
+         * Note that we are not using CryptokiBinding.ex() for the first call - a list
+         * which is too small is asked for again, at the size it needs to be.
+         */
+        lRef.value = slotList.length;
+
+        CK_RV rv = CryptokiBinding.get().C_GetSlotList(CK_BBOOL.TRUE, slotList, lRef);
+
+        if (CKR.BUFFER_TOO_SMALL.equals(rv))
+        {
+            slotList = new long[(int)lRef.value];
+            CryptokiBinding.ex().C_GetSlotList(CK_BBOOL.TRUE, slotList, lRef);
+        }
+        else if (!CKR.OK.equals(rv))
+        {
+            throw CheckedCryptoki.exception("C_GetSlotList", rv);
+        }
+
+        final List<Slot> slots = new ArrayList<Slot>();
+
+        for (int i = 0; i < (int)lRef.value; ++i)
+        {
+            slots.add(new Slot(slotList[i]));
+        }
+
+        /* the slot, token and mechanism lists of each slot */
+        List<Runnable> tasks = new ArrayList<Runnable>();
+
+        for (final Slot slot : slots)
+        {
+            tasks.add(new Runnable()
+            {
+                public void run()
+                {
+                    readSlot(slot);
+                }
+            });
+        }
+
+        runAll(tasks, numThreads);
+
+        /* then the information of every mechanism of every slot */
+        tasks.clear();
+
+        for (final Slot slot : slots)
+        {
+            slot.mechanismInfo = new CK_MECHANISM_INFO[slot.mechanisms.length];
+
+            for (int i = 0; i < slot.mechanisms.length; ++i)
+            {
+                final int index = i;
+
+                tasks.add(new Runnable()
+                {
+                    public void run()
+                    {
+                        CK_MECHANISM_INFO info = new CK_MECHANISM_INFO();
+
+                        CryptokiBinding.ex().C_GetMechanismInfo(slot.slotId,
+                                                                new CK_MECHANISM_TYPE(slot.mechanisms[index]),
+                                                                info);
+
+                        slot.mechanismInfo[index] = info;
+                    }
+                });
+            }
+        }
+
+        runAll(tasks, numThreads);
+
+        return new CapabilitySnapshot(now, slots);
+    }
+
+    /** read the slot, token and mechanism lists of a slot */
+    static void readSlot(Slot slot)
+    {
+        slot.slotInfo = new CK_SLOT_INFO();
+        CryptokiBinding.ex().C_GetSlotInfo(slot.slotId, slot.slotInfo);
+
+        CK_TOKEN_INFO info = new CK_TOKEN_INFO();
+        CryptokiBinding.ex().C_GetTokenInfo(slot.slotId, info);
+
+        /* keep only what does not change from one call to the next */
+        info.sessionCount = 0;
+        info.rwSessionCount = 0;
+        info.freePublicMemory = 0;
+        info.freePrivateMemory = 0;
+        info.utcTime = new byte[0];
+        slot.tokenInfo = info;
+
+        LongRef lRef = new LongRef();
+        CK_MECHANISM_TYPE[] list = newMechanismList(MECHANISM_LIST_SIZE);
+
+        lRef.value = list.length;
+
+        /* Note that we are not using CryptokiBinding.ex(), as for the slot list */
+        CK_RV rv = CryptokiBinding.get().C_GetMechanismList(slot.slotId, list, lRef);
+
+        if (CKR.BUFFER_TOO_SMALL.equals(rv))
+        {
+            list = newMechanismList((int)lRef.value);
+            CryptokiBinding.ex().C_GetMechanismList(slot.slotId, list, lRef);
+        }
+        else if (!CKR.OK.equals(rv))
+        {
+            throw CheckedCryptoki.exception("C_GetMechanismList", rv);
+        }
+
+        slot.mechanisms = new long[(int)lRef.value];
+
+        for (int i = 0; i < slot.mechanisms.length; ++i)
+        {
+            slot.mechanisms[i] = list[i].longValue();
+        }
+    }
+
+    private static CK_MECHANISM_TYPE[] newMechanismList(int size)
+    {
+        CK_MECHANISM_TYPE[] list = new CK_MECHANISM_TYPE[size];
+
+        for (int i = 0; i < size; ++i)
+        {
+            list[i] = new CK_MECHANISM_TYPE();
+        }
+
+        return list;
+    }
+
+    /**
+     * Run tasks from several threads, each thread taking the next task until there are
+     * none left. The first failure is thrown once every thread has finished.
+     */
+    static void runAll(final List<Runnable> tasks, int numThreads) throws InterruptedException
+    {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        Thread[] threads = new Thread[Math.max(1, Math.min(numThreads, tasks.size()))];
+
+        for (int t = 0; t < threads.length; ++t)
+        {
+            threads[t] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    int i;
+
+                    while (error.get() == null && (i = next.getAndIncrement()) < tasks.size())
+                    {
+                        try
+                        {
+                            tasks.get(i).run();
+                        }
+                        catch (RuntimeException ex)
+                        {
+                            error.compareAndSet(null, ex);
+                        }
+                    }
+                }
+            }, "CapabilitySnapshot-" + t);
+
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; ++t)
+        {
+            threads[t].join();
+        }
+
+        if (error.get() != null)
+            throw error.get();
+    }
+
+    /**
+     * Load a snapshot from a file.
+     *
+     * @return the snapshot, or null if the file does not exist, is damaged, or was
+     *  written by another version
+     */
+    public static CapabilitySnapshot load(File file) throws IOException
+    {
+        if (!file.isFile())
+            return null;
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        if (bytes.length < 8)
+            return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        try
+        {
+            in.skipBytes(bytes.length - 8);
+
+            if (in.readLong() != crc.getValue())
+                return null;
+
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+
+            long gatheredMillis = in.readLong();
+            int count = in.readInt();
+            List<Slot> slots = new ArrayList<Slot>(count);
+
+            for (int i = 0; i < count; ++i)
+            {
+                slots.add(decodeSlot(in));
+            }
+
+            return new CapabilitySnapshot(gatheredMillis, slots);
+        }
+        catch (IOException ex)
+        {
+            /* truncated, treat it as damaged */
+            return null;
+        }
+    }
+
+    /**
+     * Save the snapshot to a file. It is written to a temporary file which then replaces
+     * the file, so that a process starting at the same time never reads half a snapshot.
+     */
+    public void save(File file) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(gatheredMillis);
+        out.write(encodeSlots());
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+
+        try
+        {
+            FileOutputStream fos = new FileOutputStream(tmp);
+
+            try
+            {
+                fos.write(bytes.toByteArray());
+            }
+            finally
+            {
+                fos.close();
+            }
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /** the slots in the form they are saved, without the time they were gathered */
+    private byte[] encodeSlots() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(slots.size());
+
+        for (Slot slot : slots)
+        {
+            CK_SLOT_INFO s = slot.slotInfo;
+            CK_TOKEN_INFO t = slot.tokenInfo;
+
+            out.writeLong(slot.slotId);
+
+            writeBytes(out, s.slotDescription);
+            writeBytes(out, s.manufacturerID);
+            out.writeLong(s.flags);
+            writeVersion(out, s.hardwareVersion);
+            writeVersion(out, s.firmwareVersion);
+
+            writeBytes(out, t.label);
+            writeBytes(out, t.manufacturerID);
+            writeBytes(out, t.model);
+            writeBytes(out, t.serialNumber);
+            out.writeLong(t.flags);
+            out.writeLong(t.maxSessionCount);
+            out.writeLong(t.maxRwSessionCount);
+            out.writeLong(t.maxPinLen);
+            out.writeLong(t.minPinLen);
+            out.writeLong(t.totalPublicMemory);
+            out.writeLong(t.totalPrivateMemory);
+            writeVersion(out, t.hardwareVersion);
+            writeVersion(out, t.firmwareVersion);
+
+            out.writeInt(slot.mechanisms.length);
+
+            for (int i = 0; i < slot.mechanisms.length; ++i)
+            {
+                out.writeLong(slot.mechanisms[i]);
+                out.writeLong(slot.mechanismInfo[i].minKeySize);
+                out.writeLong(slot.mechanismInfo[i].maxKeySize);
+                out.writeLong(slot.mechanismInfo[i].flags);
+            }
+        }
+
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static Slot decodeSlot(DataInputStream in) throws IOException
+    {
+        Slot slot = new Slot(in.readLong());
+        CK_SLOT_INFO s = new CK_SLOT_INFO();
+        CK_TOKEN_INFO t = new CK_TOKEN_INFO();
+
+        s.slotDescription = readBytes(in);
+        s.manufacturerID = readBytes(in);
+        s.flags = in.readLong();
+        s.hardwareVersion = readVersion(in);
+        s.firmwareVersion = readVersion(in);
+
+        t.label = readBytes(in);
+        t.manufacturerID = readBytes(in);
+        t.model = readBytes(in);
+        t.serialNumber = readBytes(in);
+        t.flags = in.readLong();
+        t.maxSessionCount = in.readLong();
+        t.maxRwSessionCount = in.readLong();
+        t.maxPinLen = in.readLong();
+        t.minPinLen = in.readLong();
+        t.totalPublicMemory = in.readLong();
+        t.totalPrivateMemory = in.readLong();
+        t.hardwareVersion = readVersion(in);
+        t.firmwareVersion = readVersion(in);
+        t.utcTime = new byte[0];
+
+        int count = in.readInt();
+
+        slot.slotInfo = s;
+        slot.tokenInfo = t;
+        slot.mechanisms = new long[count];
+        slot.mechanismInfo = new CK_MECHANISM_INFO[count];
+
+        for (int i = 0; i < count; ++i)
+        {
+            CK_MECHANISM_INFO info = new CK_MECHANISM_INFO();
+
+            slot.mechanisms[i] = in.readLong();
+            info.minKeySize = in.readLong();
+            info.maxKeySize = in.readLong();
+            info.flags = in.readLong();
+            slot.mechanismInfo[i] = info;
+        }
+
+        return slot;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException
+    {
+        if (value == null)
+            value = new byte[0];
+
+        out.writeShort(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException
+    {
+        byte[] value = new byte[in.readUnsignedShort()];
+
+        in.readFully(value);
+
+        return value;
+    }
+
+    private static void writeVersion(DataOutputStream out, CK_VERSION version) throws IOException
+    {
+        out.writeByte((version == null) ? 0 : version.major);
+        out.writeByte((version == null) ? 0 : version.minor);
+    }
+
+    private static CK_VERSION readVersion(DataInputStream in) throws IOException
+    {
+        CK_VERSION version = new CK_VERSION();
+
+        version.major = in.readByte();
+        version.minor = in.readByte();
+
+        return version;
+    }
+
+    /**
+     * Determine whether another snapshot has the same capabilities, whenever it was
+     * gathered.
+     */
+    public boolean sameAs(CapabilitySnapshot other)
+    {
+        try
+        {
+            return Arrays.equals(encodeSlots(), other.encodeSlots());
+        }
+        catch (IOException ex)
+        {
+            /* not possible, the bytes are written to memory */
+            return false;
+        }
+    }
+
+    /**
+     * The fresh snapshot being gathered in the background, if this one was loaded from
+     * a file by {@link #open}, or null.
+     */
+    public Future<CapabilitySnapshot> getRevalidation()
+    {
+        return revalidation;
+    }
+
+    /** when the capabilities were gathered */
+    public long getGatheredMillis()
+    {
+        return gatheredMillis;
+    }
+
+    /** the slot ids, in the order of the slot list */
+    public long[] getSlots()
+    {
+        long[] ids = new long[slots.size()];
+
+        for (int i = 0; i < ids.length; ++i)
+        {
+            ids[i] = slots.get(i).slotId;
+        }
+
+        return ids;
+    }
+
+    private Slot slot(long slotId)
+    {
+        for (Slot slot : slots)
+        {
+            if (slot.slotId == slotId)
+                return slot;
+        }
+
+        throw new IllegalArgumentException("no slot " + slotId);
+    }
+
+    /** the slot information of a slot, which must not be modified */
+    public CK_SLOT_INFO getSlotInfo(long slotId)
+    {
+        return slot(slotId).slotInfo;
+    }
+
+    /** the token information of a slot, without the fields which change, which must not be modified */
+    public CK_TOKEN_INFO getTokenInfo(long slotId)
+    {
+        return slot(slotId).tokenInfo;
+    }
+
+    /** the mechanisms of the token in a slot */
+    public long[] getMechanisms(long slotId)
+    {
+        return slot(slotId).mechanisms.clone();
+    }
+
+    /**
+     * The information of a mechanism of the token in a slot, which must not be modified.
+     *
+     * @return the information, or null if the token does not support the mechanism
+     */
+    public CK_MECHANISM_INFO getMechanismInfo(long slotId, CK_MECHANISM_TYPE mechanism)
+    {
+        return slot(slotId).find(mechanism.longValue());
+    }
+
+    /**
+     * Determine whether the token in a slot supports a mechanism for a use.
+     *
+     * @param slotId
+     *  the slot
+     *
+     * @param mechanism
+     *  the mechanism
+     *
+     * @param flags
+     *  the uses, for example CKF.ENCRYPT | CKF.DECRYPT, or 0 for any
+     */
+    public boolean supports(long slotId, CK_MECHANISM_TYPE mechanism, long flags)
+    {
+        CK_MECHANISM_INFO info = getMechanismInfo(slotId, mechanism);
+
+        return info != null && (info.flags & flags) == flags;
+    }
+
+    public String toString()
+    {
+        int mechanisms = 0;
+
+        for (Slot slot : slots)
+        {
+            mechanisms += slot.mechanisms.length;
+        }
+
+        return slots.size() + " slots, " + mechanisms + " mechanisms, gathered "
+                + new java.util.Date(gatheredMillis);
+    }
+}
@@ -0,0 +1,260 @@
+package com.safenetinc.jcprov.sample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Multi-part encryption and decryption of a stream of data, read from one channel and
+ * written to another.
+ * <p>
+ * The input is read in chunks, and each chunk is passed to C_EncryptUpdate (or
+ * C_DecryptUpdate), followed by a single C_EncryptFinal (or C_DecryptFinal). Only one
+ * input buffer and one output buffer are used, whatever the size of the data, so memory
+ * use depends on the chunk size only.
+ * <p>
+ * The output of an update is never more than its input plus one block held back from
+ * an earlier update, and the final output is at most one block, so the output buffer is
+ * allocated large enough up front and no call is made just to learn the output length.
+ * Should a mechanism need more, the CKR_BUFFER_TOO_SMALL error reports the length needed,
+ * and the buffer is grown for the remainder of the stream.
+ * <p>
+ * If reading, writing or a Cryptoki call fails part way, the operation is finalised and
+ * its output discarded, so that the session may be used again.
+ */
+public class ChannelCipher
+{
+    /** size of the chunks read from the input channel, by default */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** room for the largest block of the supported ciphers, held back by an update or added by padding */
+    static final int BLOCK_ALLOWANCE = 2 * 16;
+
+    /** session in which the operations are done */
+    private final CK_SESSION_HANDLE session;
+
+    /** input chunk */
+    private final byte[] input;
+
+    /** output of an update or final call */
+    private byte[] output;
+
+    /** to receive the output length */
+    private final LongRef lRef = new LongRef();
+
+    /**
+     * Constructor.
+     *
+     * @param session
+     *  handle to an open session, which must have no operation active
+     *
+     * @param chunkSize
+     *  number of bytes to read and process at a time
+     */
+    public ChannelCipher(CK_SESSION_HANDLE session, int chunkSize)
+    {
+        if (chunkSize <= 0)
+        {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+
+        this.session = session;
+        this.input = new byte[chunkSize];
+        this.output = new byte[chunkSize + BLOCK_ALLOWANCE];
+    }
+
+    /**
+     * Encrypt everything read from a channel.
+     *
+     * @param mechanism
+     *  encryption mechanism, for example CKM.DES3_CBC_PAD with its IV
+     *
+     * @param hKey
+     *  handle of the key
+     *
+     * @param in
+     *  channel to read the plain text from, until end of stream
+     *
+     * @param out
+     *  channel to write the cipher text to
+     *
+     * @return number of bytes written
+     */
+    public long encrypt(CK_MECHANISM mechanism, CK_OBJECT_HANDLE hKey,
+                        ReadableByteChannel in, WritableByteChannel out) throws IOException
+    {
+        CryptokiBinding.ex().C_EncryptInit(session, mechanism, hKey);
+
+        return process(true, in, out);
+    }
+
+    /**
+     * Decrypt everything read from a channel.
+     *
+     * @param mechanism
+     *  decryption mechanism, the same as was used to encrypt
+     *
+     * @param hKey
+     *  handle of the key
+     *
+     * @param in
+     *  channel to read the cipher text from, until end of stream
+     *
+     * @param out
+     *  channel to write the plain text to
+     *
+     * @return number of bytes written
+     */
+    public long decrypt(CK_MECHANISM mechanism, CK_OBJECT_HANDLE hKey,
+                        ReadableByteChannel in, WritableByteChannel out) throws IOException
+    {
+        CryptokiBinding.ex().C_DecryptInit(session, mechanism, hKey);
+
+        return process(false, in, out);
+    }
+
+    /** run the initialised operation over the input stream */
+    private long process(boolean bEncrypt, ReadableByteChannel in, WritableByteChannel out) throws IOException
+    {
+        long written = 0;
+        boolean finished = false;
+
+        try
+        {
+            int len;
+
+            while ((len = fill(in)) > 0)
+            {
+                update(bEncrypt, len);
+                written += write(out);
+            }
+
+            finish(bEncrypt);
+            finished = true;
+
+            written += write(out);
+        }
+        finally
+        {
+            if (!finished)
+            {
+                abandon(bEncrypt);
+            }
+        }
+
+        return written;
+    }
+
+    /** read until the input chunk is full or the stream ends, return the number of bytes read */
+    private int fill(ReadableByteChannel in) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(input);
+
+        while (bb.hasRemaining())
+        {
+            if (in.read(bb) < 0)
+                break;
+        }
+
+        return bb.position();
+    }
+
+    /** write the output of the last call */
+    private int write(WritableByteChannel out) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(output, 0, (int)lRef.value);
+
+        while (bb.hasRemaining())
+        {
+            out.write(bb);
+        }
+
+        return (int)lRef.value;
+    }
+
+    /** pass a chunk to the operation */
+    private void update(boolean bEncrypt, int len)
+    {
+        for (;;)
+        {
+            lRef.value = output.length;
+
+            try
+            {
+                if (bEncrypt)
+                    CryptokiBinding.ex().C_EncryptUpdate(session, input, len, output, lRef);
+                else
+                    CryptokiBinding.ex().C_DecryptUpdate(session, input, len, output, lRef);
+
+                return;
+            }
+            catch (RuntimeException ex)
+            {
+                /* the operation remains active, grow the buffer and try again */
+                if (!grow(ex))
+                    throw ex;
+            }
+        }
+    }
+
+    /** complete the operation */
+    private void finish(boolean bEncrypt)
+    {
+        for (;;)
+        {
+            lRef.value = output.length;
+
+            try
+            {
+                if (bEncrypt)
+                    CryptokiBinding.ex().C_EncryptFinal(session, output, lRef);
+                else
+                    CryptokiBinding.ex().C_DecryptFinal(session, output, lRef);
+
+                return;
+            }
+            catch (RuntimeException ex)
+            {
+                if (!grow(ex))
+                    throw ex;
+            }
+        }
+    }
+
+    /**
+     * Grow the output buffer after a CKR_BUFFER_TOO_SMALL error.
+     *
+     * @return false if the error was some other error
+     */
+    private boolean grow(RuntimeException ex)
+    {
+        if (!CKR.BUFFER_TOO_SMALL.equals(CheckedCryptoki.rv(ex)) || lRef.value <= output.length)
+        {
+            return false;
+        }
+
+        output = new byte[(int)lRef.value];
+
+        return true;
+    }
+
+    /**
+     * Terminate an operation which failed part way, by finalising it and discarding the
+     * output. The result is not checked, as the operation may already have ended.
+     */
+    private void abandon(boolean bEncrypt)
+    {
+        lRef.value = output.length;
+
+        if (bEncrypt)
+            CryptokiBinding.get().C_EncryptFinal(session, output, lRef);
+        else
+            CryptokiBinding.get().C_DecryptFinal(session, output, lRef);
+
+        lRef.value = 0;
+    }
+}
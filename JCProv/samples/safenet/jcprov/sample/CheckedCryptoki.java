@@ -0,0 +1,327 @@
+package com.safenetinc.jcprov.sample;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Throws a CKR_Exception when a Cryptoki function of the wrapped implementation fails,
+ * as {@link CryptokiEx} does for {@link Cryptoki}, or a {@link CryptokiException} when
+ * the implementation is not the HSM.
+ */
+public class CheckedCryptoki implements CryptokiApi
+{
+    /** the implementation to check */
+    private final CryptokiApi api;
+
+    /**
+     * Constructor.
+     *
+     * @param api
+     *  the implementation whose failures are to be thrown
+     */
+    public CheckedCryptoki(CryptokiApi api)
+    {
+        this.api = api;
+    }
+
+    /** the implementation which is checked */
+    public CryptokiApi getApi()
+    {
+        return api;
+    }
+
+    /** throw an exception if a function failed, otherwise return its result */
+    private static CK_RV check(String methodName, CK_RV rv)
+    {
+        if (!CKR.OK.equals(rv))
+        {
+            throw exception(methodName, rv);
+        }
+
+        return rv;
+    }
+
+    /**
+     * Create the exception for a failed function : a CKR_Exception when the implementation
+     * is the HSM, otherwise a {@link CryptokiException}, as the constructor of
+     * CKR_Exception needs the jcprov native library.
+     *
+     * @param methodName
+     *  name of the function which failed
+     *
+     * @param rv
+     *  the error
+     */
+    public static RuntimeException exception(String methodName, CK_RV rv)
+    {
+        if (CryptokiBinding.get() instanceof NativeCryptoki)
+        {
+            return new CKR_Exception(methodName, rv);
+        }
+
+        return new CryptokiException(methodName, rv);
+    }
+
+    /**
+     * Get the error of a failed function.
+     *
+     * @param ex
+     *  exception thrown by a function
+     *
+     * @return the error, or null if the exception is not a CKR_Exception or
+     *  CryptokiException
+     */
+    public static CK_RV rv(RuntimeException ex)
+    {
+        if (ex instanceof CKR_Exception)
+            return ((CKR_Exception)ex).ckrv;
+
+        if (ex instanceof CryptokiException)
+            return ((CryptokiException)ex).ckrv;
+
+        return null;
+    }
+
+    public CK_RV C_Initialize(CK_C_INITIALIZE_ARGS pInitArgs)
+    {
+        return check("C_Initialize", api.C_Initialize(pInitArgs));
+    }
+
+    public CK_RV C_Finalize(Object pReserved)
+    {
+        return check("C_Finalize", api.C_Finalize(pReserved));
+    }
+
+    public CK_RV C_GetSlotList(CK_BBOOL tokenPresent, long[] pSlotList, LongRef pulCount)
+    {
+        return check("C_GetSlotList", api.C_GetSlotList(tokenPresent, pSlotList, pulCount));
+    }
+
+    public CK_RV C_GetSlotInfo(long slotID, CK_SLOT_INFO pInfo)
+    {
+        return check("C_GetSlotInfo", api.C_GetSlotInfo(slotID, pInfo));
+    }
+
+    public CK_RV C_GetTokenInfo(long slotID, CK_TOKEN_INFO pInfo)
+    {
+        return check("C_GetTokenInfo", api.C_GetTokenInfo(slotID, pInfo));
+    }
+
+    public CK_RV C_GetMechanismList(long slotID, CK_MECHANISM_TYPE[] pMechanismList, LongRef pulCount)
+    {
+        return check("C_GetMechanismList", api.C_GetMechanismList(slotID, pMechanismList, pulCount));
+    }
+
+    public CK_RV C_GetMechanismInfo(long slotID, CK_MECHANISM_TYPE type, CK_MECHANISM_INFO pInfo)
+    {
+        return check("C_GetMechanismInfo", api.C_GetMechanismInfo(slotID, type, pInfo));
+    }
+
+    public CK_RV C_OpenSession(long slotID, long flags, Object pApplication, Object notify,
+                               CK_SESSION_HANDLE phSession)
+    {
+        return check("C_OpenSession", api.C_OpenSession(slotID, flags, pApplication, notify,
+                                                        phSession));
+    }
+
+    public CK_RV C_CloseSession(CK_SESSION_HANDLE hSession)
+    {
+        return check("C_CloseSession", api.C_CloseSession(hSession));
+    }
+
+    public CK_RV C_GetSessionInfo(CK_SESSION_HANDLE hSession, CK_SESSION_INFO pInfo)
+    {
+        return check("C_GetSessionInfo", api.C_GetSessionInfo(hSession, pInfo));
+    }
+
+    public CK_RV C_Login(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType, byte[] pPin, long ulPinLen)
+    {
+        return check("C_Login", api.C_Login(hSession, userType, pPin, ulPinLen));
+    }
+
+    public CK_RV C_Logout(CK_SESSION_HANDLE hSession)
+    {
+        return check("C_Logout", api.C_Logout(hSession));
+    }
+
+    public CK_RV C_DestroyObject(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject)
+    {
+        return check("C_DestroyObject", api.C_DestroyObject(hSession, hObject));
+    }
+
+    public CK_RV C_GetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                                     CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        return check("C_GetAttributeValue", api.C_GetAttributeValue(hSession, hObject, pTemplate, ulCount));
+    }
+
+    public CK_RV C_SetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                                     CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        return check("C_SetAttributeValue", api.C_SetAttributeValue(hSession, hObject, pTemplate, ulCount));
+    }
+
+    public CK_RV C_FindObjectsInit(CK_SESSION_HANDLE hSession, CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        return check("C_FindObjectsInit", api.C_FindObjectsInit(hSession, pTemplate, ulCount));
+    }
+
+    public CK_RV C_FindObjects(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE[] phObject,
+                               long ulMaxObjectCount, LongRef pulObjectCount)
+    {
+        return check("C_FindObjects", api.C_FindObjects(hSession, phObject, ulMaxObjectCount,
+                                                        pulObjectCount));
+    }
+
+    public CK_RV C_FindObjectsFinal(CK_SESSION_HANDLE hSession)
+    {
+        return check("C_FindObjectsFinal", api.C_FindObjectsFinal(hSession));
+    }
+
+    public CK_RV C_EncryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return check("C_EncryptInit", api.C_EncryptInit(hSession, pMechanism, hKey));
+    }
+
+    public CK_RV C_Encrypt(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                           byte[] pEncryptedData, LongRef pulEncryptedDataLen)
+    {
+        return check("C_Encrypt", api.C_Encrypt(hSession, pData, ulDataLen, pEncryptedData,
+                                                pulEncryptedDataLen));
+    }
+
+    public CK_RV C_EncryptUpdate(CK_SESSION_HANDLE hSession, byte[] pPart, long ulPartLen,
+                                 byte[] pEncryptedPart, LongRef pulEncryptedPartLen)
+    {
+        return check("C_EncryptUpdate", api.C_EncryptUpdate(hSession, pPart, ulPartLen,
+                                                            pEncryptedPart, pulEncryptedPartLen));
+    }
+
+    public CK_RV C_EncryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastEncryptedPart,
+                                LongRef pulLastEncryptedPartLen)
+    {
+        return check("C_EncryptFinal", api.C_EncryptFinal(hSession, pLastEncryptedPart,
+                                                          pulLastEncryptedPartLen));
+    }
+
+    public CK_RV C_DecryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return check("C_DecryptInit", api.C_DecryptInit(hSession, pMechanism, hKey));
+    }
+
+    public CK_RV C_Decrypt(CK_SESSION_HANDLE hSession, byte[] pEncryptedData, long ulEncryptedDataLen,
+                           byte[] pData, LongRef pulDataLen)
+    {
+        return check("C_Decrypt", api.C_Decrypt(hSession, pEncryptedData, ulEncryptedDataLen,
+                                                pData, pulDataLen));
+    }
+
+    public CK_RV C_DecryptUpdate(CK_SESSION_HANDLE hSession, byte[] pEncryptedPart, long ulEncryptedPartLen,
+                                 byte[] pPart, LongRef pulPartLen)
+    {
+        return check("C_DecryptUpdate", api.C_DecryptUpdate(hSession, pEncryptedPart,
+                                                            ulEncryptedPartLen, pPart,
+                                                            pulPartLen));
+    }
+
+    public CK_RV C_DecryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastPart, LongRef pulLastPartLen)
+    {
+        return check("C_DecryptFinal", api.C_DecryptFinal(hSession, pLastPart, pulLastPartLen));
+    }
+
+    public CK_RV C_DigestInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism)
+    {
+        return check("C_DigestInit", api.C_DigestInit(hSession, pMechanism));
+    }
+
+    public CK_RV C_Digest(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                          byte[] pDigest, LongRef pulDigestLen)
+    {
+        return check("C_Digest", api.C_Digest(hSession, pData, ulDataLen, pDigest, pulDigestLen));
+    }
+
+    public CK_RV C_SignInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return check("C_SignInit", api.C_SignInit(hSession, pMechanism, hKey));
+    }
+
+    public CK_RV C_Sign(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                        byte[] pSignature, LongRef pulSignatureLen)
+    {
+        return check("C_Sign", api.C_Sign(hSession, pData, ulDataLen, pSignature, pulSignatureLen));
+    }
+
+    public CK_RV C_VerifyInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return check("C_VerifyInit", api.C_VerifyInit(hSession, pMechanism, hKey));
+    }
+
+    public CK_RV C_Verify(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                          byte[] pSignature, long ulSignatureLen)
+    {
+        return check("C_Verify", api.C_Verify(hSession, pData, ulDataLen, pSignature,
+                                              ulSignatureLen));
+    }
+
+    public CK_RV C_GenerateKey(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                               CK_ATTRIBUTE[] pTemplate, long ulCount, CK_OBJECT_HANDLE phKey)
+    {
+        return check("C_GenerateKey", api.C_GenerateKey(hSession, pMechanism, pTemplate,
+                                                        ulCount, phKey));
+    }
+
+    public CK_RV C_GenerateKeyPair(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                                   CK_ATTRIBUTE[] pPublicKeyTemplate, long ulPublicKeyAttributeCount,
+                                   CK_ATTRIBUTE[] pPrivateKeyTemplate, long ulPrivateKeyAttributeCount,
+                                   CK_OBJECT_HANDLE phPublicKey, CK_OBJECT_HANDLE phPrivateKey)
+    {
+        return check("C_GenerateKeyPair", api.C_GenerateKeyPair(hSession, pMechanism,
+                                                                pPublicKeyTemplate,
+                                                                ulPublicKeyAttributeCount,
+                                                                pPrivateKeyTemplate,
+                                                                ulPrivateKeyAttributeCount,
+                                                                phPublicKey, phPrivateKey));
+    }
+
+    public CK_RV C_GenerateRandom(CK_SESSION_HANDLE hSession, byte[] pRandomData, long ulRandomLen)
+    {
+        return check("C_GenerateRandom", api.C_GenerateRandom(hSession, pRandomData, ulRandomLen));
+    }
+
+    public CK_RV CA_DestroyMultipleObjects(CK_SESSION_HANDLE hSession, long ulHandleCount,
+                                           CK_OBJECT_HANDLE[] phHandleList, LongRef pulIndex)
+    {
+        return check("CA_DestroyMultipleObjects",
+                     api.CA_DestroyMultipleObjects(hSession, ulHandleCount, phHandleList, pulIndex));
+    }
+
+    public CK_RV CA_HAGetMasterPublic(long slotId, byte[] pCertificate, LongRef pulCertificateLen)
+    {
+        return check("CA_HAGetMasterPublic", api.CA_HAGetMasterPublic(slotId, pCertificate, pulCertificateLen));
+    }
+
+    public CK_RV CA_HAGetLoginChallenge(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType,
+                                        byte[] pCertificate, long ulCertificateLen,
+                                        byte[] pChallengeBlob, LongRef pulChallengeBlobLen)
+    {
+        return check("CA_HAGetLoginChallenge",
+                     api.CA_HAGetLoginChallenge(hSession, userType, pCertificate, ulCertificateLen,
+                                                pChallengeBlob, pulChallengeBlobLen));
+    }
+
+    public CK_RV CA_HAAnswerLoginChallenge(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hPrivateKey,
+                                           byte[] pChallengeBlob, long ulChallengeBlobLen,
+                                           byte[] pEncryptedPin, LongRef pulEncryptedPinLen)
+    {
+        return check("CA_HAAnswerLoginChallenge",
+                     api.CA_HAAnswerLoginChallenge(hSession, hPrivateKey, pChallengeBlob, ulChallengeBlobLen,
+                                                   pEncryptedPin, pulEncryptedPinLen));
+    }
+
+    public CK_RV CA_HALogin(CK_SESSION_HANDLE hSession, byte[] pEncryptedPin, long ulEncryptedPinLen,
+                            byte[] pMofNBlob, LongRef pulMofNBlobLen)
+    {
+        return check("CA_HALogin", api.CA_HALogin(hSession, pEncryptedPin, ulEncryptedPinLen,
+                                                  pMofNBlob, pulMofNBlobLen));
+    }
+}
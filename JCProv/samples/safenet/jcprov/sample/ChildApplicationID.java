@@ -1,5 +1,9 @@
 package com.safenetinc.jcprov.sample;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
 import com.safenetinc.jcprov.*;
 import com.safenetinc.jcprov.constants.*;
 
@@ -7,21 +11,31 @@ import com.safenetinc.jcprov.constants.*;
  * This class demonstrates how a second process uses CA_SetApplicationID
  * to share a token login.
  *<p>
- *usage: java ...ChildApplicationID -slot &lt;slotID&rt; -major &lt;majorID&rt; -minor &lt;minorID&rt;
+ *<p>
+ * With -worker, the process stays up as a worker of a {@link WorkerPool}, keeping its
+ * session open and answering requests, one per line of its standard input :
+ *<li>PING        reply OK
+ *<li>STATE       reply OK with the state of the session
+ *<li>RANDOM n    reply OK with n random bytes from the token, in hex
+ *<li>QUIT        exit
+ *<p>
+ *usage: java ...ChildApplicationID -slot &lt;slotID&rt; -major &lt;majorID&rt; -minor &lt;minorID&rt; [-worker]
  *<li><i>slotID</i>  slot number for shared login
  *<li><i>majorID</i> the major application ID value
  *<li><i>minorID</i> the minor application ID value
+ *<li>-worker        answer requests on the standard input until told to QUIT
  */
 public class ChildApplicationID {
 
     /** display runtime usage of the class */
     public static void usage() {
         System.out.println("");
-        System.out.println("java ...ChildApplicationID -slot <slotID> -major <majorID> -minor <minorID>");
+        System.out.println("java ...ChildApplicationID -slot <slotID> -major <majorID> -minor <minorID> [-worker]");
         System.out.println("");
         System.out.println("<slotID>  slot number for shared login");
         System.out.println("<majorID> the major application ID value");
         System.out.println("<minorID> the minor application ID value");
+        System.out.println("-worker   answer requests on the standard input until told to QUIT");
         System.out.println("");
         System.exit(1);
     }
@@ -33,6 +47,7 @@ public class ChildApplicationID {
         long slotID  = 1;
         long majorID = 1;
         long minorID = 1;
+        boolean bWorker = false;
 
         for (int i = 0; i < args.length; ++i)
         {
@@ -60,6 +75,10 @@ public class ChildApplicationID {
                 }
                 slotID = Integer.parseInt(args[i]);
             }
+            else if(args[i].equalsIgnoreCase("-worker"))
+            {
+                bWorker = true;
+            }
             else 
             {
                 usage();
@@ -73,6 +92,14 @@ public class ChildApplicationID {
 
             CryptokiEx.C_OpenSession(slotID, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
 
+            if(bWorker)
+            {
+                work(session);
+                Cryptoki.C_CloseSession(session);
+                Cryptoki.C_Finalize(null);
+                return;
+            }
+
             CryptokiEx.C_GetSessionInfo(session, info);
             
             if(info.state.equals(CKS.RW_USER_FUNCTIONS))
@@ -91,4 +118,72 @@ public class ChildApplicationID {
             ex.printStackTrace();
         }
     }
+
+    /**
+     * Answer the requests of a {@link WorkerPool} until told to quit, or the pool goes.
+     *
+     * @param session
+     *  the session sharing the login
+     */
+    static void work(CK_SESSION_HANDLE session) throws java.io.IOException {
+        // Only replies go to the standard output, anything else would be taken for one
+        PrintStream replies = System.out;
+        System.setOut(System.err);
+
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in));
+        CK_SESSION_INFO info = new CK_SESSION_INFO();
+        String line;
+
+        replies.println("READY");
+        replies.flush();
+
+        while ((line = requests.readLine()) != null)
+        {
+            String[] request = line.trim().split("\\s+");
+            String reply;
+
+            try
+            {
+                if(request[0].equalsIgnoreCase("QUIT"))
+                {
+                    break;
+                }
+                else if(request[0].equalsIgnoreCase("PING"))
+                {
+                    reply = "OK";
+                }
+                else if(request[0].equalsIgnoreCase("STATE"))
+                {
+                    CryptokiEx.C_GetSessionInfo(session, info);
+                    reply = "OK " + (info.state.equals(CKS.RW_USER_FUNCTIONS) ? "logged in to slot " + info.slotID
+                                                                              : "user not logged in");
+                }
+                else if(request[0].equalsIgnoreCase("RANDOM") && request.length == 2)
+                {
+                    byte[] random = new byte[Integer.parseInt(request[1])];
+                    StringBuilder hex = new StringBuilder("OK ");
+
+                    CryptokiEx.C_GenerateRandom(session, random, random.length);
+
+                    for (int i = 0; i < random.length; ++i)
+                    {
+                        hex.append(String.format("%02x", random[i] & 0xff));
+                    }
+
+                    reply = hex.toString();
+                }
+                else
+                {
+                    reply = "ERR unknown request " + request[0];
+                }
+            }
+            catch (Exception ex)
+            {
+                reply = "ERR " + ex;
+            }
+
+            replies.println(reply);
+            replies.flush();
+        }
+    }
 }
@@ -0,0 +1,471 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Combines small, concurrent ECB encryption and decryption requests into fewer Cryptoki
+ * calls.
+ * <p>
+ * In ECB mode each block is processed independently, so the result of encrypting several
+ * inputs joined together is the results of encrypting each input, joined together. The
+ * dispatcher queues the requests of all callers. A worker thread takes the first request
+ * in the queue, then keeps taking requests until the batch is full or the batching window
+ * has passed. The requests of the batch which use the same key, mechanism and direction
+ * are then processed by a single C_EncryptInit / C_Encrypt (or decrypt) pair, and the
+ * output is split back into the future of each request.
+ * <p>
+ * A request waits at most the batching window before its batch is started, so the window
+ * is the latency added in return for fewer round trips to the HSM. The window only fills
+ * when many callers issue requests concurrently.
+ * <p>
+ * Each worker thread has a session of its own. The keys must be usable from those
+ * sessions, so private keys require the application to be logged in.
+ */
+public class CoalescingDispatcher
+{
+    /** the mechanisms which process each block independently, and their block size */
+    private static final Map<Long, Integer> ecbMechanisms = new LinkedHashMap<Long, Integer>();
+
+    static
+    {
+        ecbMechanisms.put(Long.valueOf(CKM.DES_ECB.longValue()), Integer.valueOf(8));
+        ecbMechanisms.put(Long.valueOf(CKM.DES3_ECB.longValue()), Integer.valueOf(8));
+        ecbMechanisms.put(Long.valueOf(CKM.AES_ECB.longValue()), Integer.valueOf(16));
+        ecbMechanisms.put(Long.valueOf(CKM.ARIA_ECB.longValue()), Integer.valueOf(16));
+        ecbMechanisms.put(Long.valueOf(CKM.SEED_ECB.longValue()), Integer.valueOf(16));
+    }
+
+    /** requests waiting for a worker */
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+    /** most requests in one batch */
+    private final int maxBatchRequests;
+
+    /** most bytes in one batch, a single larger request is processed on its own */
+    private final int maxBatchBytes;
+
+    /** how long a worker waits for further requests once it has the first of a batch */
+    private final long maxDelayNanos;
+
+    /** the worker threads */
+    private final Thread[] workers;
+
+    /** flag to indicate that the dispatcher has been closed */
+    private volatile boolean closed;
+
+    /** number of requests completed */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** number of C_Encrypt and C_Decrypt calls made */
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * A queued request.
+     */
+    static class Request
+    {
+        final CK_OBJECT_HANDLE hKey;
+        final CK_MECHANISM mechanism;
+        final boolean bEncrypt;
+        final byte[] data;
+        final int offset;
+        final int length;
+        final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+        Request(CK_OBJECT_HANDLE hKey, CK_MECHANISM mechanism, boolean bEncrypt,
+                byte[] data, int offset, int length)
+        {
+            this.hKey = hKey;
+            this.mechanism = mechanism;
+            this.bEncrypt = bEncrypt;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** requests with the same group may share a Cryptoki call */
+        String group()
+        {
+            return hKey.longValue() + "/" + mechanism.mechanism.longValue() + "/" + bEncrypt;
+        }
+    }
+
+    /**
+     * Constructor - opens a session for each worker, and starts the workers.
+     *
+     * @param slotId
+     *  slot of the keys
+     *
+     * @param numWorkers
+     *  number of worker threads, each issuing one Cryptoki call at a time
+     *
+     * @param maxBatchRequests
+     *  most requests in one batch
+     *
+     * @param maxBatchBytes
+     *  most bytes in one batch
+     *
+     * @param maxDelayMicros
+     *  batching window, the longest a request waits for others to join its batch
+     */
+    public CoalescingDispatcher(long slotId, int numWorkers, int maxBatchRequests,
+                                int maxBatchBytes, long maxDelayMicros)
+    {
+        this.maxBatchRequests = maxBatchRequests;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.workers = new Thread[numWorkers];
+
+        for (int i = 0; i < numWorkers; ++i)
+        {
+            CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
+
+            CryptokiBinding.ex().C_OpenSession(slotId, CKF.SERIAL_SESSION, null, null, session);
+
+            workers[i] = new Thread(new Worker(session), "CoalescingDispatcher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Determine whether a mechanism can be coalesced.
+     *
+     * @return the block size of the mechanism, or 0 if it can not be coalesced
+     */
+    public static int blockSize(CK_MECHANISM_TYPE type)
+    {
+        Integer size = ecbMechanisms.get(Long.valueOf(type.longValue()));
+
+        return (size == null) ? 0 : size.intValue();
+    }
+
+    /**
+     * Queue an encryption.
+     *
+     * @param hKey
+     *  handle of the key
+     *
+     * @param mechanism
+     *  an ECB mechanism
+     *
+     * @param data
+     *  the plain text, which must not be changed until the result is complete
+     *
+     * @param offset
+     *  offset of the plain text in data
+     *
+     * @param length
+     *  length of the plain text, a multiple of the block size
+     *
+     * @return the future cipher text
+     */
+    public CompletableFuture<byte[]> encrypt(CK_OBJECT_HANDLE hKey, CK_MECHANISM mechanism,
+                                             byte[] data, int offset, int length)
+    {
+        return submit(new Request(hKey, mechanism, true, data, offset, length));
+    }
+
+    /**
+     * Queue a decryption.
+     *
+     * @param hKey
+     *  handle of the key
+     *
+     * @param mechanism
+     *  an ECB mechanism
+     *
+     * @param data
+     *  the cipher text, which must not be changed until the result is complete
+     *
+     * @param offset
+     *  offset of the cipher text in data
+     *
+     * @param length
+     *  length of the cipher text, a multiple of the block size
+     *
+     * @return the future plain text
+     */
+    public CompletableFuture<byte[]> decrypt(CK_OBJECT_HANDLE hKey, CK_MECHANISM mechanism,
+                                             byte[] data, int offset, int length)
+    {
+        return submit(new Request(hKey, mechanism, false, data, offset, length));
+    }
+
+    /** number of requests completed */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /** number of Cryptoki calls made, excluding the Init calls */
+    public long getCallCount()
+    {
+        return calls.get();
+    }
+
+    public String toString()
+    {
+        return requests.get() + " requests in " + calls.get() + " calls";
+    }
+
+    /**
+     * Stop the workers and close their sessions. Requests still queued fail.
+     */
+    public void close() throws InterruptedException
+    {
+        closed = true;
+
+        for (int i = 0; i < workers.length; ++i)
+        {
+            workers[i].interrupt();
+        }
+
+        for (int i = 0; i < workers.length; ++i)
+        {
+            workers[i].join();
+        }
+
+        Request r;
+
+        while ((r = queue.poll()) != null)
+        {
+            r.result.completeExceptionally(new IllegalStateException("dispatcher is closed"));
+        }
+    }
+
+    /** check and queue a request */
+    private CompletableFuture<byte[]> submit(Request r)
+    {
+        int block = blockSize(r.mechanism.mechanism);
+
+        if (block == 0)
+        {
+            throw new IllegalArgumentException("only ECB mechanisms can be coalesced");
+        }
+
+        if (r.length <= 0 || r.length % block != 0)
+        {
+            throw new IllegalArgumentException("data length must be a multiple of " + block);
+        }
+
+        if (closed)
+        {
+            throw new IllegalStateException("dispatcher is closed");
+        }
+
+        queue.add(r);
+
+        /*
+         * close() may have drained the queue between the check and the add, in which case
+         * no worker is left to take the request : take it back, unless one already has.
+         */
+        if (closed && queue.remove(r))
+        {
+            throw new IllegalStateException("dispatcher is closed");
+        }
+
+        return r.result;
+    }
+
+    /**
+     * A worker, collecting batches and processing them in its own session.
+     */
+    class Worker implements Runnable
+    {
+        private final CK_SESSION_HANDLE session;
+
+        /** joined input and output of a group, grown if a single request needs more */
+        private byte[] input = new byte[maxBatchBytes];
+        private byte[] output = new byte[maxBatchBytes];
+
+        private final LongRef lRef = new LongRef();
+
+        /** a request taken from the queue which did not fit in the previous batch */
+        private Request carried;
+
+        Worker(CK_SESSION_HANDLE session)
+        {
+            this.session = session;
+        }
+
+        public void run()
+        {
+            List<Request> batch = new ArrayList<Request>();
+
+            try
+            {
+                while (!closed)
+                {
+                    if (!collect(batch))
+                        continue;
+
+                    /* group the requests which can share a call, in arrival order */
+                    Map<String, List<Request>> groups = new LinkedHashMap<String, List<Request>>();
+
+                    for (Request r : batch)
+                    {
+                        List<Request> group = groups.get(r.group());
+
+                        if (group == null)
+                        {
+                            group = new ArrayList<Request>();
+                            groups.put(r.group(), group);
+                        }
+
+                        group.add(r);
+                    }
+
+                    for (List<Request> group : groups.values())
+                    {
+                        process(group);
+                    }
+
+                    batch.clear();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                /* closed */
+            }
+            finally
+            {
+                for (Request r : batch)
+                {
+                    r.result.completeExceptionally(new IllegalStateException("dispatcher is closed"));
+                }
+
+                if (carried != null)
+                {
+                    carried.result.completeExceptionally(new IllegalStateException("dispatcher is closed"));
+                }
+
+                CryptokiBinding.get().C_CloseSession(session);
+            }
+        }
+
+        /**
+         * Collect the next batch.
+         *
+         * @return false if no request arrived
+         */
+        private boolean collect(List<Request> batch) throws InterruptedException
+        {
+            Request first = carried;
+
+            carried = null;
+
+            if (first == null)
+            {
+                /* wake up now and then to notice that the dispatcher was closed */
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null)
+                    return false;
+            }
+
+            batch.add(first);
+
+            int bytes = first.length;
+            long deadline = System.nanoTime() + maxDelayNanos;
+
+            while (batch.size() < maxBatchRequests && bytes < maxBatchBytes)
+            {
+                long remaining = deadline - System.nanoTime();
+                Request r = (remaining > 0) ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+
+                if (r == null)
+                    break;
+
+                if (bytes + r.length > maxBatchBytes)
+                {
+                    /* it starts the next batch instead */
+                    carried = r;
+                    break;
+                }
+
+                batch.add(r);
+                bytes += r.length;
+            }
+
+            return true;
+        }
+
+        /** process requests which use the same key, mechanism and direction in one call */
+        private void process(List<Request> group)
+        {
+            Request first = group.get(0);
+            int total = 0;
+
+            for (Request r : group)
+            {
+                total += r.length;
+            }
+
+            if (total > input.length)
+            {
+                input = new byte[total];
+                output = new byte[total];
+            }
+
+            int pos = 0;
+
+            for (Request r : group)
+            {
+                System.arraycopy(r.data, r.offset, input, pos, r.length);
+                pos += r.length;
+            }
+
+            try
+            {
+                /* in ECB mode the output is the same length as the input */
+                lRef.value = total;
+
+                if (first.bEncrypt)
+                {
+                    CryptokiBinding.ex().C_EncryptInit(session, first.mechanism, first.hKey);
+                    CryptokiBinding.ex().C_Encrypt(session, input, total, output, lRef);
+                }
+                else
+                {
+                    CryptokiBinding.ex().C_DecryptInit(session, first.mechanism, first.hKey);
+                    CryptokiBinding.ex().C_Decrypt(session, input, total, output, lRef);
+                }
+
+                calls.incrementAndGet();
+            }
+            catch (RuntimeException ex)
+            {
+                for (Request r : group)
+                {
+                    r.result.completeExceptionally(ex);
+                }
+
+                return;
+            }
+
+            pos = 0;
+
+            for (Request r : group)
+            {
+                byte[] result = new byte[r.length];
+
+                System.arraycopy(output, pos, result, 0, r.length);
+                pos += r.length;
+
+                requests.incrementAndGet();
+                r.result.complete(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.safenetinc.jcprov.sample;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * The Cryptoki functions used by the benchmark, session pool and key cache samples.
+ * <p>
+ * The functions have the signatures of the jcprov {@link Cryptoki} class. Like that class,
+ * an implementation reports failure through the returned CK_RV. Wrap it in a
+ * {@link CheckedCryptoki} to have failures thrown as an exception, as
+ * {@link CryptokiEx} does.
+ * <p>
+ * The samples obtain the implementation from {@link CryptokiBinding}. By default it
+ * is {@link NativeCryptoki}, which calls the HSM through jcprov. {@link SoftCryptoki}
+ * performs the same functions in software, for use without an HSM.
+ */
+public interface CryptokiApi
+{
+    CK_RV C_Initialize(CK_C_INITIALIZE_ARGS pInitArgs);
+
+    CK_RV C_Finalize(Object pReserved);
+
+    CK_RV C_GetSlotList(CK_BBOOL tokenPresent, long[] pSlotList, LongRef pulCount);
+
+    CK_RV C_GetSlotInfo(long slotID, CK_SLOT_INFO pInfo);
+
+    CK_RV C_GetTokenInfo(long slotID, CK_TOKEN_INFO pInfo);
+
+    CK_RV C_GetMechanismList(long slotID, CK_MECHANISM_TYPE[] pMechanismList, LongRef pulCount);
+
+    CK_RV C_GetMechanismInfo(long slotID, CK_MECHANISM_TYPE type, CK_MECHANISM_INFO pInfo);
+
+    CK_RV C_OpenSession(long slotID, long flags, Object pApplication, Object notify,
+                        CK_SESSION_HANDLE phSession);
+
+    CK_RV C_CloseSession(CK_SESSION_HANDLE hSession);
+
+    CK_RV C_GetSessionInfo(CK_SESSION_HANDLE hSession, CK_SESSION_INFO pInfo);
+
+    CK_RV C_Login(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType, byte[] pPin, long ulPinLen);
+
+    CK_RV C_Logout(CK_SESSION_HANDLE hSession);
+
+    CK_RV C_DestroyObject(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject);
+
+    CK_RV C_GetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                              CK_ATTRIBUTE[] pTemplate, long ulCount);
+
+    CK_RV C_SetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                              CK_ATTRIBUTE[] pTemplate, long ulCount);
+
+    CK_RV C_FindObjectsInit(CK_SESSION_HANDLE hSession, CK_ATTRIBUTE[] pTemplate, long ulCount);
+
+    CK_RV C_FindObjects(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE[] phObject,
+                        long ulMaxObjectCount, LongRef pulObjectCount);
+
+    CK_RV C_FindObjectsFinal(CK_SESSION_HANDLE hSession);
+
+    CK_RV C_EncryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey);
+
+    CK_RV C_Encrypt(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                    byte[] pEncryptedData, LongRef pulEncryptedDataLen);
+
+    CK_RV C_EncryptUpdate(CK_SESSION_HANDLE hSession, byte[] pPart, long ulPartLen,
+                          byte[] pEncryptedPart, LongRef pulEncryptedPartLen);
+
+    CK_RV C_EncryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastEncryptedPart,
+                         LongRef pulLastEncryptedPartLen);
+
+    CK_RV C_DecryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey);
+
+    CK_RV C_Decrypt(CK_SESSION_HANDLE hSession, byte[] pEncryptedData, long ulEncryptedDataLen,
+                    byte[] pData, LongRef pulDataLen);
+
+    CK_RV C_DecryptUpdate(CK_SESSION_HANDLE hSession, byte[] pEncryptedPart, long ulEncryptedPartLen,
+                          byte[] pPart, LongRef pulPartLen);
+
+    CK_RV C_DecryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastPart, LongRef pulLastPartLen);
+
+    CK_RV C_DigestInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism);
+
+    CK_RV C_Digest(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                   byte[] pDigest, LongRef pulDigestLen);
+
+    CK_RV C_SignInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey);
+
+    CK_RV C_Sign(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                 byte[] pSignature, LongRef pulSignatureLen);
+
+    CK_RV C_VerifyInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey);
+
+    CK_RV C_Verify(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                   byte[] pSignature, long ulSignatureLen);
+
+    CK_RV C_GenerateKey(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                        CK_ATTRIBUTE[] pTemplate, long ulCount, CK_OBJECT_HANDLE phKey);
+
+    CK_RV C_GenerateKeyPair(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                            CK_ATTRIBUTE[] pPublicKeyTemplate, long ulPublicKeyAttributeCount,
+                            CK_ATTRIBUTE[] pPrivateKeyTemplate, long ulPrivateKeyAttributeCount,
+                            CK_OBJECT_HANDLE phPublicKey, CK_OBJECT_HANDLE phPrivateKey);
+
+    CK_RV C_GenerateRandom(CK_SESSION_HANDLE hSession, byte[] pRandomData, long ulRandomLen);
+
+    /**
+     * SafeNet extension : destroy several objects in one call. If an object can not be
+     * destroyed, the objects before it have been, and its index is set in pulIndex.
+     * Implementations without the extension return CKR.FUNCTION_NOT_SUPPORTED.
+     */
+    CK_RV CA_DestroyMultipleObjects(CK_SESSION_HANDLE hSession, long ulHandleCount,
+                                    CK_OBJECT_HANDLE[] phHandleList, LongRef pulIndex);
+
+    CK_RV CA_HAGetMasterPublic(long slotId, byte[] pCertificate, LongRef pulCertificateLen);
+
+    CK_RV CA_HAGetLoginChallenge(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType,
+                                 byte[] pCertificate, long ulCertificateLen,
+                                 byte[] pChallengeBlob, LongRef pulChallengeBlobLen);
+
+    CK_RV CA_HAAnswerLoginChallenge(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hPrivateKey,
+                                    byte[] pChallengeBlob, long ulChallengeBlobLen,
+                                    byte[] pEncryptedPin, LongRef pulEncryptedPinLen);
+
+    CK_RV CA_HALogin(CK_SESSION_HANDLE hSession, byte[] pEncryptedPin, long ulEncryptedPinLen,
+                     byte[] pMofNBlob, LongRef pulMofNBlobLen);
+}
@@ -0,0 +1,46 @@
+package com.safenetinc.jcprov.sample;
+
+/**
+ * The Cryptoki implementation used by the benchmark, session pool and key cache samples.
+ * <p>
+ * {@link #get()} returns failures as a CK_RV, like {@link com.safenetinc.jcprov.Cryptoki},
+ * and is used where the result is deliberately not checked, such as when closing a
+ * session during clean up. {@link #ex()} throws failures as a CKR_Exception, like
+ * {@link com.safenetinc.jcprov.CryptokiEx}, or as a {@link CryptokiException} when the
+ * implementation is not the HSM.
+ * <p>
+ * The implementation is the HSM, through jcprov, unless another is selected with
+ * {@link #set} before Cryptoki is initialised.
+ */
+public class CryptokiBinding
+{
+    /** the implementation, not checked */
+    private static volatile CryptokiApi api = new NativeCryptoki();
+
+    /** the implementation, checked */
+    private static volatile CryptokiApi checked = new CheckedCryptoki(api);
+
+    /** the implementation, which returns failures as a CK_RV */
+    public static CryptokiApi get()
+    {
+        return api;
+    }
+
+    /** the implementation, which throws failures as a CKR_Exception or CryptokiException */
+    public static CryptokiApi ex()
+    {
+        return checked;
+    }
+
+    /**
+     * Select the implementation to use.
+     *
+     * @param impl
+     *  the implementation, for example a {@link SoftCryptoki}
+     */
+    public static void set(CryptokiApi impl)
+    {
+        api = impl;
+        checked = new CheckedCryptoki(impl);
+    }
+}
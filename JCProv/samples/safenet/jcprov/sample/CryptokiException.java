@@ -0,0 +1,38 @@
+package com.safenetinc.jcprov.sample;
+
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * A Cryptoki function failed, when the implementation is not the HSM.
+ * <p>
+ * The HSM's failures are thrown as a CKR_Exception, whose constructor asks the jcprov
+ * native library for the text of the error. That library is not loaded with a
+ * {@link SoftCryptoki}, so the failures of other implementations are thrown as this
+ * exception instead. {@link CheckedCryptoki#rv(RuntimeException)} gives the error of
+ * either.
+ */
+public class CryptokiException extends RuntimeException
+{
+    /** name of the function which failed */
+    public final String methodName;
+
+    /** the error */
+    public final CK_RV ckrv;
+
+    /**
+     * Constructor.
+     *
+     * @param methodName
+     *  name of the function which failed
+     *
+     * @param rv
+     *  the error
+     */
+    public CryptokiException(String methodName, CK_RV rv)
+    {
+        super(methodName + " failed, rv=0x" + Long.toHexString(rv.longValue()));
+
+        this.methodName = methodName;
+        this.ckrv = rv;
+    }
+}
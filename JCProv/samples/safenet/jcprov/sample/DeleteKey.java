@@ -18,6 +18,17 @@ import com.safenetinc.jcprov.constants.*;
  * <li><i>keyname</i>  name (label) of the key to delete
  * <li><i>slotId</i>   slot containing the token to delete the key from - default (1)
  * <li><i>password</i> user password of the slot. If specified, a private key is deleted
+ * <p>
+ * Keys can also be purged in bulk, by label prefix and/or end date, with a
+ * {@link BulkPurge}. The key type is then optional, and the key name is not used.
+ * <p>
+ * Usage : java ...DeleteKey [-keyType &lt;keytype&gt;] -prefix &lt;prefix&gt; [-before &lt;date&gt;] [-slot &lt;slotId&gt;] [-password &lt;password&gt;] [-threads &lt;threads&gt;] [-batch &lt;batch&gt;] [-single] [-dryRun]
+ * <li><i>prefix</i>   label prefix of the keys to delete
+ * <li><i>date</i>     delete only keys whose end date is before this date (YYYYMMDD)
+ * <li><i>threads</i>  number of threads deleting the keys, each with its own session - default (1)
+ * <li><i>batch</i>    number of keys deleted by each call - default (100)
+ * <li><i>-single</i>  delete one key per call, rather than with CA_DestroyMultipleObjects
+ * <li><i>-dryRun</i>  count the matching keys, without deleting them
  */
 public class DeleteKey
 {
@@ -39,6 +50,15 @@ public class DeleteKey
         println("<slotId>   slot containing the token to delete the key from - default (1)");
         println("<password> user password of the slot. If specified, a private key is deleted.");
         println("");
+        println("java ...DeleteKey [-keyType <keytype>] -prefix <prefix> [-before <date>] [-slot <slotId>] [-password <password>] [-threads <threads>] [-batch <batch>] [-single] [-dryRun]");
+        println("");
+        println("<prefix>   label prefix of the keys to delete");
+        println("<date>     delete only keys whose end date is before this date (YYYYMMDD)");
+        println("<threads>  number of threads deleting the keys, each with its own session - default (1)");
+        println("<batch>    number of keys deleted by each call - default (100)");
+        println("-single    delete one key per call, rather than with CA_DestroyMultipleObjects");
+        println("-dryRun    count the matching keys, without deleting them");
+        println("");
 
         System.exit(1);
     }
@@ -52,6 +72,12 @@ public class DeleteKey
         String keyName = "";
         String password = "";
         boolean bPrivate = false;
+        String prefix = null;
+        String before = null;
+        int numThreads = 1;
+        int batchSize = BulkPurge.DEFAULT_BATCH_SIZE;
+        boolean bSingle = false;
+        boolean bDryRun = false;
 
         /*
          * process command line arguments
@@ -87,12 +113,55 @@ public class DeleteKey
 
                 password = args[i];
             }
+            else if (args[i].equalsIgnoreCase("-prefix"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                prefix = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-before"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                before = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-threads"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                numThreads = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-batch"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                batchSize = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-single"))
+            {
+                bSingle = true;
+            }
+            else if (args[i].equalsIgnoreCase("-dryRun"))
+            {
+                bDryRun = true;
+            }
             else
             {
                 usage();
             }
         }
 
+        boolean bPurge = (prefix != null || before != null);
+
+        if (bPurge && (numThreads < 1 || batchSize < 1 || (before != null && !before.matches("[0-9]{8}"))))
+        {
+            usage();
+        }
+
         try
         {
             /*
@@ -120,11 +189,15 @@ public class DeleteKey
              * determine the key type to delete, and delete the key
              */
 
-            if (keyType.equalsIgnoreCase("des"))
+            if (bPurge)
+            {
+                purgeKeys(slotId, keyType, prefix, before, numThreads, batchSize, bSingle, bDryRun);
+            }
+            else if (keyType.equalsIgnoreCase("des"))
             {
                 CK_OBJECT_HANDLE hKey = null;
 
-                hKey = findKey(session, CKO.SECRET_KEY, CKK.DES, keyName, bPrivate);
+                hKey = findKey(session, slotId, CKO.SECRET_KEY, CKK.DES, keyName, bPrivate);
 
                 if (!hKey.isValidHandle())
                 {
@@ -132,7 +205,7 @@ public class DeleteKey
                 }
                 else
                 {
-                    CryptokiEx.C_DestroyObject(session, hKey);
+                    KeyCache.getInstance().destroyObject(session, hKey);
                     println("des key (" + keyName + ") deleted");
                 }
             }
@@ -140,7 +213,7 @@ public class DeleteKey
             {
                 CK_OBJECT_HANDLE hKey = null;
 
-                hKey = findKey(session, CKO.SECRET_KEY, CKK.DES2, keyName, bPrivate);
+                hKey = findKey(session, slotId, CKO.SECRET_KEY, CKK.DES2, keyName, bPrivate);
 
                 if (!hKey.isValidHandle())
                 {
@@ -148,7 +221,7 @@ public class DeleteKey
                 }
                 else
                 {
-                    CryptokiEx.C_DestroyObject(session, hKey);
+                    KeyCache.getInstance().destroyObject(session, hKey);
                     println("des2 key (" + keyName + ") deleted");
                 }
             }
@@ -156,7 +229,7 @@ public class DeleteKey
             {
                 CK_OBJECT_HANDLE hKey = null;
 
-                hKey = findKey(session, CKO.SECRET_KEY, CKK.DES3, keyName, bPrivate);
+                hKey = findKey(session, slotId, CKO.SECRET_KEY, CKK.DES3, keyName, bPrivate);
 
                 if (!hKey.isValidHandle())
                 {
@@ -164,7 +237,7 @@ public class DeleteKey
                 }
                 else
                 {
-                    CryptokiEx.C_DestroyObject(session, hKey);
+                    KeyCache.getInstance().destroyObject(session, hKey);
                     println("des3 key (" + keyName + ") deleted");
                 }
             }
@@ -173,7 +246,7 @@ public class DeleteKey
                 CK_OBJECT_HANDLE hPublicKey = null;
                 CK_OBJECT_HANDLE hPrivateKey = null;
 
-                hPublicKey = findKey(session, CKO.PUBLIC_KEY, CKK.RSA, keyName, false);
+                hPublicKey = findKey(session, slotId, CKO.PUBLIC_KEY, CKK.RSA, keyName, false);
 
                 if (!hPublicKey.isValidHandle())
                 {
@@ -181,11 +254,11 @@ public class DeleteKey
                 }
                 else
                 {
-                    CryptokiEx.C_DestroyObject(session, hPublicKey);
+                    KeyCache.getInstance().destroyObject(session, hPublicKey);
                     println("rsa public key (" + keyName + ") deleted");
                 }
 
-                hPrivateKey = findKey(session, CKO.PRIVATE_KEY, CKK.RSA, keyName, bPrivate);
+                hPrivateKey = findKey(session, slotId, CKO.PRIVATE_KEY, CKK.RSA, keyName, bPrivate);
 
                 if (!hPrivateKey.isValidHandle())
                 {
@@ -193,7 +266,7 @@ public class DeleteKey
                 }
                 else
                 {
-                    CryptokiEx.C_DestroyObject(session, hPrivateKey);
+                    KeyCache.getInstance().destroyObject(session, hPrivateKey);
                     println("rsa private key (" + keyName + ") deleted");
                 }
             }
@@ -241,11 +314,113 @@ public class DeleteKey
     }
 
     /**
-     * Locate the specified key.
+     * Delete every key which matches a label prefix and/or end date, reporting progress
+     * at most once a second.
+     *
+     * @param slotId
+     *  slot containing the keys
+     *
+     * @param keyType
+     *  one of (des, des2, des3, rsa), or empty for keys of any type
+     *
+     * @param prefix
+     *  label prefix of the keys to delete, or null for any label
+     *
+     * @param before
+     *  delete only keys whose end date is before this date (YYYYMMDD), or null for any date
+     *
+     * @param numThreads
+     *  number of threads deleting the keys
+     *
+     * @param batchSize
+     *  number of keys deleted by each call
+     *
+     * @param bSingle
+     *  true to delete one key per call
+     *
+     * @param bDryRun
+     *  true to count the matching keys, without deleting them
+     */
+    static void purgeKeys(long slotId,
+                          String keyType,
+                          String prefix,
+                          String before,
+                          int numThreads,
+                          int batchSize,
+                          boolean bSingle,
+                          final boolean bDryRun) throws InterruptedException
+    {
+        BulkPurge purge = new BulkPurge(slotId);
+
+        if (keyType.equalsIgnoreCase("des"))
+        {
+            purge.setClass(CKO.SECRET_KEY);
+            purge.setKeyType(CKK.DES);
+        }
+        else if (keyType.equalsIgnoreCase("des2"))
+        {
+            purge.setClass(CKO.SECRET_KEY);
+            purge.setKeyType(CKK.DES2);
+        }
+        else if (keyType.equalsIgnoreCase("des3"))
+        {
+            purge.setClass(CKO.SECRET_KEY);
+            purge.setKeyType(CKK.DES3);
+        }
+        else if (keyType.equalsIgnoreCase("rsa"))
+        {
+            /* both keys of the pairs */
+            purge.setKeyType(CKK.RSA);
+        }
+        else if (keyType.length() > 0)
+        {
+            usage();
+        }
+
+        purge.setLabelPrefix(prefix);
+        purge.setEndDateBefore(before);
+        purge.setThreads(numThreads);
+        purge.setBatchSize(batchSize);
+        purge.setUseMultiple(!bSingle);
+        purge.setDryRun(bDryRun);
+
+        purge.setProgress(new BulkPurge.Progress()
+        {
+            private long lastReport = System.currentTimeMillis();
+
+            public synchronized void progress(BulkPurge p)
+            {
+                long now = System.currentTimeMillis();
+
+                if (now - lastReport >= 1000)
+                {
+                    lastReport = now;
+                    println((bDryRun ? "dry run : " : "") + p);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+
+        purge.run();
+
+        println((bDryRun ? "dry run : " : "") + purge + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (purge.getLastError() != null)
+        {
+            println("last error 0x" + Long.toHexString(purge.getLastError().longValue()));
+        }
+    }
+
+    /**
+     * Locate the specified key, through the shared {@link KeyCache}.
      *
      * @param session
      *  handle to an open session
      *
+     * @param slotId
+     *  slot of the session
+     *
      * @param keyClass
      *  {@link com.safenetinc.jcprov.constants.CKO} class of the key to locate
      *
@@ -256,42 +431,13 @@ public class DeleteKey
      *  true if the key to locate is a private object
      */
     static CK_OBJECT_HANDLE findKey(CK_SESSION_HANDLE session,
+                                    long slotId,
                                     CK_OBJECT_CLASS keyClass,
                                     CK_KEY_TYPE keyType,
                                     String keyName,
                                     boolean bPrivate)
     {
-        /* array of one object handles */
-        CK_OBJECT_HANDLE[] hObjects = {new CK_OBJECT_HANDLE()};
-
-        /* to receive the number of objects located */
-        LongRef objectCount = new LongRef();
-
-        /* setup the template of the object to search for */
-        CK_ATTRIBUTE[] template =
-        {
-            new CK_ATTRIBUTE(CKA.CLASS,     keyClass),
-            new CK_ATTRIBUTE(CKA.KEY_TYPE,  keyType),
-            new CK_ATTRIBUTE(CKA.TOKEN,     CK_BBOOL.TRUE),
-            new CK_ATTRIBUTE(CKA.LABEL,     keyName.getBytes()),
-            new CK_ATTRIBUTE(CKA.PRIVATE,   new CK_BBOOL(bPrivate))
-        };
-
-        CryptokiEx.C_FindObjectsInit(session, template, template.length);
-
-        CryptokiEx.C_FindObjects(session, hObjects, hObjects.length, objectCount);
-
-        CryptokiEx.C_FindObjectsFinal(session);
-
-        if (objectCount.value == 1)
-        {
-            /* return the handle of the located object */
-            return hObjects[0];
-        }
-        else
-        {
-            /* return an object handle which is invalid */
-            return new CK_OBJECT_HANDLE();
-        }
+        return KeyCache.getInstance().findKey(session, slotId, keyClass, keyType,
+                                              keyName, Boolean.valueOf(bPrivate));
     }
 }
@@ -12,14 +12,22 @@ import com.safenetinc.jcprov.constants.*;
  * <li>des3         triple length Triple DES key
  * <li>rsa          RSA Key Pair
  * <p>
+ * With an input and output file, the input file is encrypted (or decrypted) a chunk at
+ * a time by a {@link ChannelCipher}, using CBC mode with padding. The random IV is
+ * written ahead of the cipher text. Only DES and Triple DES keys can be used this way.
+ * <p>
  * Usage : java ...EncDec -keyType &lt;keytype&gt; -keyName &lt;keyname&gt;
  *         [-slot &lt;slotId&gt;] [-password &lt;password&gt;]
+ *         [-in &lt;infile&gt; -out &lt;outfile&gt; [-decrypt] [-chunkSize &lt;chunksize&gt;]]
  * <li><i>keytype</i>  one of (des, des2, des3, rsa)
  * <li><i>keyname</i>  name (label) of the key to delete
  * <li><i>slotId</i>   slot containing the token to delete the key from -
  *                     default (1)
  * <li><i>password</i> user password of the slot. If specified, a private key
  *                     is used
+ * <li><i>infile</i>   file to encrypt, or to decrypt with -decrypt
+ * <li><i>outfile</i>  file to write the result to
+ * <li><i>chunksize</i> number of bytes processed per call - default (65536)
  */
 public class EncDec
 {
@@ -39,7 +47,8 @@ public class EncDec
     public static void usage()
     {
         println("java ...EncDec -keyType <keytype> -keyName <keyname> " +
-                "[-slot <slotId>] [-password <password>]");
+                "[-slot <slotId>] [-password <password>] " +
+                "[-in <infile> -out <outfile> [-decrypt] [-chunkSize <chunksize>]]");
         println("");
         println("<keytype>  one of (des, des2, des3, rsa)");
         println("<keyname>  name (label) of the generated key");
@@ -47,6 +56,10 @@ public class EncDec
                 "default (1)");
         println("<password> user password of the slot. If specified, a " +
                 "private key is used.");
+        println("<infile>   file to encrypt, or to decrypt with -decrypt");
+        println("<outfile>  file to write the result to");
+        println("<chunksize> number of bytes processed per call - " +
+                "default (65536)");
         println("");
 
         System.exit(1);
@@ -61,6 +74,10 @@ public class EncDec
         String keyName = "";
         String password = "";
         boolean bPrivate = false;
+        String inFile = null;
+        String outFile = null;
+        boolean bDecrypt = false;
+        int chunkSize = ChannelCipher.DEFAULT_CHUNK_SIZE;
 
         /*
          * process command line arguments
@@ -96,12 +113,44 @@ public class EncDec
 
                 password = args[i];
             }
+            else if (args[i].equalsIgnoreCase("-in"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                inFile = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-out"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                outFile = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-decrypt"))
+            {
+                bDecrypt = true;
+            }
+            else if (args[i].equalsIgnoreCase("-chunkSize"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                chunkSize = Integer.parseInt(args[i]);
+            }
             else
             {
                 usage();
             }
         }
 
+        /* file mode needs both files, and only symetric keys can stream */
+        if ((inFile == null) != (outFile == null) || chunkSize <= 0)
+            usage();
+
+        if (inFile != null && keyType.equalsIgnoreCase("rsa"))
+            usage();
+
         try
         {
             /*
@@ -136,7 +185,7 @@ public class EncDec
             {
                 CK_OBJECT_HANDLE hKey = null;
 
-                hKey = findKey(session, CKO.SECRET_KEY, CKK.DES, keyName,
+                hKey = findKey(session, slotId, CKO.SECRET_KEY, CKK.DES, keyName,
                         bPrivate);
 
                 if (!hKey.isValidHandle())
@@ -145,13 +194,16 @@ public class EncDec
                     return;
                 }
 
-                symetricEncDec(session, hKey, new CK_MECHANISM(CKM.DES_ECB));
+                if (inFile != null)
+                    streamEncDec(session, hKey, CKM.DES_CBC_PAD, inFile, outFile, bDecrypt, chunkSize);
+                else
+                    symetricEncDec(session, hKey, new CK_MECHANISM(CKM.DES_ECB));
             }
             else if (keyType.equalsIgnoreCase("des2"))
             {
                 CK_OBJECT_HANDLE hKey = null;
 
-                hKey = findKey(session, CKO.SECRET_KEY, CKK.DES2, keyName,
+                hKey = findKey(session, slotId, CKO.SECRET_KEY, CKK.DES2, keyName,
                         bPrivate);
 
                 if (!hKey.isValidHandle())
@@ -160,13 +212,16 @@ public class EncDec
                     return;
                 }
 
-                symetricEncDec(session, hKey, new CK_MECHANISM(CKM.DES3_ECB));
+                if (inFile != null)
+                    streamEncDec(session, hKey, CKM.DES3_CBC_PAD, inFile, outFile, bDecrypt, chunkSize);
+                else
+                    symetricEncDec(session, hKey, new CK_MECHANISM(CKM.DES3_ECB));
             }
             else if (keyType.equalsIgnoreCase("des3"))
             {
                 CK_OBJECT_HANDLE hKey = null;
 
-                hKey = findKey(session, CKO.SECRET_KEY, CKK.DES3, keyName,
+                hKey = findKey(session, slotId, CKO.SECRET_KEY, CKK.DES3, keyName,
                         bPrivate);
 
                 if (!hKey.isValidHandle())
@@ -175,14 +230,17 @@ public class EncDec
                     return;
                 }
 
-                symetricEncDec(session, hKey, new CK_MECHANISM(CKM.DES3_ECB));
+                if (inFile != null)
+                    streamEncDec(session, hKey, CKM.DES3_CBC_PAD, inFile, outFile, bDecrypt, chunkSize);
+                else
+                    symetricEncDec(session, hKey, new CK_MECHANISM(CKM.DES3_ECB));
             }
             else if (keyType.equalsIgnoreCase("rsa"))
             {
                 CK_OBJECT_HANDLE hPublicKey = null;
                 CK_OBJECT_HANDLE hPrivateKey = null;
 
-                hPublicKey = findKey(session, CKO.PUBLIC_KEY, CKK.RSA, keyName,
+                hPublicKey = findKey(session, slotId, CKO.PUBLIC_KEY, CKK.RSA, keyName,
                         false);
 
                 if (!hPublicKey.isValidHandle())
@@ -191,7 +249,7 @@ public class EncDec
                     return;
                 }
 
-                hPrivateKey = findKey(session, CKO.PRIVATE_KEY, CKK.RSA,
+                hPrivateKey = findKey(session, slotId, CKO.PRIVATE_KEY, CKK.RSA,
                         keyName, bPrivate);
 
                 if (!hPrivateKey.isValidHandle())
@@ -249,11 +307,14 @@ public class EncDec
 
 
     /**
-     * Locate the specified key. 
+     * Locate the specified key, through the shared {@link KeyCache}.
      *
      * @param session
      *  handle to an open session
      *
+     * @param slotId
+     *  slot of the session
+     *
      * @param keyClass
      *  {@link com.safenetinc.jcprov.constants.CKO} class of the key to locate
      *
@@ -264,44 +325,14 @@ public class EncDec
      *  true if the key to locate is a private object
      */
     static CK_OBJECT_HANDLE findKey(CK_SESSION_HANDLE session,
+                                    long slotId,
                                     CK_OBJECT_CLASS keyClass,
                                     CK_KEY_TYPE keyType,
                                     String keyName,
                                     boolean bPrivate)
     {
-        /* array of one object handles */
-        CK_OBJECT_HANDLE[] hObjects = {new CK_OBJECT_HANDLE()};
- 
-        /* to receive the number of objects located */
-        LongRef objectCount = new LongRef();
-
-        /* setup the template of the object to search for */
-        CK_ATTRIBUTE[] template =
-        {
-            new CK_ATTRIBUTE(CKA.CLASS,     keyClass),
-            new CK_ATTRIBUTE(CKA.KEY_TYPE,  keyType),
-            new CK_ATTRIBUTE(CKA.TOKEN,     CK_BBOOL.TRUE),
-            new CK_ATTRIBUTE(CKA.LABEL,     keyName.getBytes()),
-            new CK_ATTRIBUTE(CKA.PRIVATE,   new CK_BBOOL(bPrivate))
-        };
-
-        CryptokiEx.C_FindObjectsInit(session, template, template.length);
-
-        CryptokiEx.C_FindObjects(session, hObjects, hObjects.length,
-                objectCount);
-
-        CryptokiEx.C_FindObjectsFinal(session);
-
-        if (objectCount.value == 1)
-        {
-            /* return the handle of the located object */
-            return hObjects[0];
-        }
-        else
-        {
-            /* return an object handle which is invalid */
-            return new CK_OBJECT_HANDLE();
-        }
+        return KeyCache.getInstance().findKey(session, slotId, keyClass, keyType,
+                                              keyName, Boolean.valueOf(bPrivate));
     }
 
     /**
@@ -329,11 +360,17 @@ public class EncDec
         /* get ready to encrypt */
         CryptokiEx.C_EncryptInit(session, mechanism, hKey);
 
-        /* get the size of the cipher text (may be larger than actually
-         * required)
+        /* predict the size of the cipher text (may be larger than actually
+         * required), only asking Cryptoki if it can not be predicted
          */
-        CryptokiEx.C_Encrypt(session, plainText, plainText.length, null,
-                lRefEnc);
+        lRefEnc.value = OutputSizeOracle.encryptLength(mechanism.mechanism,
+                plainText.length, 0);
+
+        if (lRefEnc.value < 0)
+        {
+            CryptokiEx.C_Encrypt(session, plainText, plainText.length, null,
+                    lRefEnc);
+        }
 
         /* allocate space */
         cipherText = new byte[(int)lRefEnc.value];
@@ -351,8 +388,15 @@ public class EncDec
         /* get ready to decrypt */
         CryptokiEx.C_DecryptInit(session, mechanism, hKey);
 
-        /* get the size of the plain text */
-        CryptokiEx.C_Decrypt(session, cipherText, lRefEnc.value, null, lRefDec);
+        /* predict the size of the plain text, as above */
+        lRefDec.value = OutputSizeOracle.decryptLength(mechanism.mechanism,
+                (int)lRefEnc.value, 0);
+
+        if (lRefDec.value < 0)
+        {
+            CryptokiEx.C_Decrypt(session, cipherText, lRefEnc.value, null,
+                    lRefDec);
+        }
 
         /* allocate space */
         plainText = new byte[(int)lRefDec.value];
@@ -374,6 +418,92 @@ public class EncDec
         }
     }
 
+    /**
+     * Symetric key encryption/decryption of a file, a chunk at a time.
+     *
+     * @param session
+     *  handle to an open session
+     *
+     * @param hKey
+     *  handle to symetric key to use
+     *
+     * @param mechanismType
+     *  CBC mechanism, with padding, to use
+     *
+     * @param inFile
+     *  file to encrypt or decrypt
+     *
+     * @param outFile
+     *  file to write the result to, it is replaced if it exists
+     *
+     * @param bDecrypt
+     *  true to decrypt, false to encrypt
+     *
+     * @param chunkSize
+     *  number of bytes to process per call
+     */
+    static void streamEncDec(CK_SESSION_HANDLE session,
+                             CK_OBJECT_HANDLE hKey,
+                             CK_MECHANISM_TYPE mechanismType,
+                             String inFile,
+                             String outFile,
+                             boolean bDecrypt,
+                             int chunkSize) throws java.io.IOException
+    {
+        java.nio.channels.FileChannel in = new java.io.FileInputStream(inFile).getChannel();
+        java.nio.channels.FileChannel out = null;
+
+        try
+        {
+            out = new java.io.FileOutputStream(outFile).getChannel();
+
+            /* DES and Triple DES have an 8 byte block, and IV */
+            byte[] iv = new byte[8];
+            java.nio.ByteBuffer ivBuffer = java.nio.ByteBuffer.wrap(iv);
+
+            if (bDecrypt)
+            {
+                /* the IV was written ahead of the cipher text */
+                while (ivBuffer.hasRemaining())
+                {
+                    if (in.read(ivBuffer) < 0)
+                        throw new java.io.EOFException("input is too short to hold the IV");
+                }
+            }
+            else
+            {
+                CryptokiEx.C_GenerateRandom(session, iv, iv.length);
+
+                while (ivBuffer.hasRemaining())
+                {
+                    out.write(ivBuffer);
+                }
+            }
+
+            CK_MECHANISM mechanism = new CK_MECHANISM(mechanismType, iv, iv.length);
+            ChannelCipher cipher = new ChannelCipher(session, chunkSize);
+            long start = System.nanoTime();
+            long written;
+
+            if (bDecrypt)
+                written = cipher.decrypt(mechanism, hKey, in, out);
+            else
+                written = cipher.encrypt(mechanism, hKey, in, out);
+
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            println((bDecrypt ? "Decrypted " : "Encrypted ") + inFile + " to " + outFile
+                    + ", " + written + " bytes in " + millis + " ms\n");
+        }
+        finally
+        {
+            in.close();
+
+            if (out != null)
+                out.close();
+        }
+    }
+
     /**
      * Aymetric key encryption/decryption.
      *
@@ -405,9 +535,17 @@ public class EncDec
         /* get ready to encrypt */
         CryptokiEx.C_EncryptInit(session, mechanism, hPublicKey);
 
-        /* get the size of the cipher text */
-        CryptokiEx.C_Encrypt(session, plainText, plainText.length, null,
-                lRefEnc);
+        /* predict the size of the cipher text (may be larger than actually
+         * required), only asking Cryptoki if it can not be predicted
+         */
+        lRefEnc.value = OutputSizeOracle.encryptLength(mechanism.mechanism,
+                plainText.length, 0);
+
+        if (lRefEnc.value < 0)
+        {
+            CryptokiEx.C_Encrypt(session, plainText, plainText.length, null,
+                    lRefEnc);
+        }
 
         /* allocate space */
         cipherText = new byte[(int)lRefEnc.value];
@@ -419,8 +557,15 @@ public class EncDec
         /* get ready to decrypt */
         CryptokiEx.C_DecryptInit(session, mechanism, hPrivateKey);
 
-        /* get the size of the plain text */
-        CryptokiEx.C_Decrypt(session, cipherText, lRefEnc.value, null, lRefDec);
+        /* predict the size of the plain text, as above */
+        lRefDec.value = OutputSizeOracle.decryptLength(mechanism.mechanism,
+                (int)lRefEnc.value, 0);
+
+        if (lRefDec.value < 0)
+        {
+            CryptokiEx.C_Decrypt(session, cipherText, lRefEnc.value, null,
+                    lRefDec);
+        }
 
         /* allocate space */
         plainText = new byte[(int)lRefDec.value];
@@ -1,5 +1,8 @@
 package com.safenetinc.jcprov.sample;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.safenetinc.jcprov.*;
 import com.safenetinc.jcprov.constants.*;
 
@@ -12,11 +15,19 @@ import com.safenetinc.jcprov.constants.*;
  * <li>des3         triple length Triple DES key
  * <li>rsa          RSA Key Pair
  * <p>
- * Usage : java ...GenerateKey -keyType &lt;keytype&gt; -keyName &lt;keyname&gt; [-slot &lt;slotId&gt;] [-password &lt;password&gt;]
+ * RSA key pairs can also be generated in bulk, by several threads each with a session of
+ * its own, or claimed from a {@link KeyPairPool} of pairs generated in advance.
+ * <p>
+ * Usage : java ...GenerateKey -keyType &lt;keytype&gt; -keyName &lt;keyname&gt; [-slot &lt;slotId&gt;] [-password &lt;password&gt;] [-bits &lt;bits&gt;] [-count &lt;count&gt;] [-threads &lt;threads&gt;] [-pool &lt;poolsize&gt;] [-soft &lt;latency&gt;]
  * <li><i>keytype</i>  one of (des, des2, des3, rsa)
  * <li><i>keyname</i>  name (label) of the key to delete
  * <li><i>slotId</i>   slot containing the token to delete the key from - default (1)
  * <li><i>password</i> user password of the slot. If specified, a private key is created
+ * <li><i>bits</i>     size of an RSA key - default (1024)
+ * <li><i>count</i>    number of RSA key pairs to generate, labelled &lt;keyname&gt;-1 onwards - default (1)
+ * <li><i>threads</i>  number of threads generating the RSA key pairs - default (1)
+ * <li><i>poolsize</i> claim the RSA key pairs from a pool of this many pre-generated pairs
+ * <li><i>latency</i>  use a software token rather than the HSM, delaying each call by &lt;call&gt;[,&lt;crypto&gt;] microseconds
  */
 public class GenerateKey
 {
@@ -31,12 +42,17 @@ public class GenerateKey
     /** display runtime usage of the class */
     public static void usage()
     {
-        println("java ...GenerateKey -keyType <keytype> -keyName <keyname> [-slot <slotId>] [-password <password>]");
+        println("java ...GenerateKey -keyType <keytype> -keyName <keyname> [-slot <slotId>] [-password <password>] [-bits <bits>] [-count <count>] [-threads <threads>] [-pool <poolsize>] [-soft <latency>]");
         println("");
         println("<keytype>  one of (des, des2, des3, rsa)");
         println("<keyname>  name (label) of the generated key");
         println("<slotId>   slot containing the token to create the key on - default (1)");
         println("<password> user password of the slot. If specified, a private key is created.");
+        println("<bits>     size of an RSA key - default (1024)");
+        println("<count>    number of RSA key pairs to generate, labelled <keyname>-1 onwards - default (1)");
+        println("<threads>  number of threads generating the RSA key pairs - default (1)");
+        println("<poolsize> claim the RSA key pairs from a pool of this many pre-generated pairs");
+        println("<latency>  use a software token rather than the HSM, delaying each call by <call>[,<crypto>] microseconds");
         println("");
 
         System.exit(1);
@@ -51,6 +67,11 @@ public class GenerateKey
         String keyName = "";
         String password = "";
         boolean bPrivate = false;
+        int modulusBits = 1024;
+        int count = 1;
+        int numThreads = 1;
+        int poolSize = 0;
+        long[] softLatency = null;
 
         /*
          * process command line arguments
@@ -86,31 +107,85 @@ public class GenerateKey
 
                 password = args[i];
             }
+            else if (args[i].equalsIgnoreCase("-bits"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                modulusBits = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-count"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                count = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-threads"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                numThreads = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-pool"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                poolSize = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-soft"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                softLatency = Threading.parseLatency(args[i]);
+
+                if (softLatency == null)
+                    usage();
+            }
             else
             {
                 usage();
             }
         }
 
+        /* only RSA key pairs are generated in bulk */
+        boolean bBulk = (count > 1 || numThreads > 1 || poolSize > 0);
+
+        if (count < 1 || numThreads < 1 || poolSize < 0 || (bBulk && !keyType.equalsIgnoreCase("rsa")))
+        {
+            usage();
+        }
+
+        if (softLatency != null)
+        {
+            SoftCryptoki soft = new SoftCryptoki(slotId, password);
+
+            soft.setLatency(softLatency[0], softLatency[1]);
+            CryptokiBinding.set(soft);
+        }
+
         try
         {
             /*
              * Initialize Cryptoki so that the library takes care
              * of multithread locking
              */
-            CryptokiEx.C_Initialize(new CK_C_INITIALIZE_ARGS(CKF.OS_LOCKING_OK));
+            CryptokiBinding.ex().C_Initialize(new CK_C_INITIALIZE_ARGS(CKF.OS_LOCKING_OK));
 
             /*
              * Open a session
              */
-            CryptokiEx.C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+            CryptokiBinding.ex().C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
 
             /*
              * Login - if we have a password
              */
             if (password.length() > 0)
             {
-                CryptokiEx.C_Login(session, CKU.USER, password.getBytes(), password.length());
+                CryptokiBinding.ex().C_Login(session, CKU.USER, password.getBytes(), password.length());
 
                 bPrivate = true;
             }
@@ -143,6 +218,22 @@ public class GenerateKey
                 println("des3 key (" + keyName + ") generated");
                 println("handle (" + hKey.longValue() + ")");
             }
+            else if (keyType.equalsIgnoreCase("rsa") && poolSize > 0)
+            {
+                claimKeyPairs(session, slotId, keyName, count, numThreads, poolSize, modulusBits, bPrivate);
+            }
+            else if (keyType.equalsIgnoreCase("rsa") && bBulk)
+            {
+                long start = System.nanoTime();
+
+                generateKeyPairs(slotId, keyName, count, numThreads, modulusBits, bPrivate);
+
+                long millis = (System.nanoTime() - start) / 1000000;
+
+                println(count + " rsa key pairs (" + keyName + "-1 to " + keyName + "-" + count
+                        + ") generated by " + numThreads + " threads in " + millis + " ms ("
+                        + (count * 1000L / Math.max(1, millis)) + " pairs/s)");
+            }
             else if (keyType.equalsIgnoreCase("rsa"))
             {
                 CK_OBJECT_HANDLE hPublicKey = new CK_OBJECT_HANDLE();
@@ -152,6 +243,7 @@ public class GenerateKey
                                 CKM.RSA_PKCS_KEY_PAIR_GEN,
                                 keyName,
                                 bPrivate,
+                                modulusBits,
                                 hPublicKey,
                                 hPrivateKey);
 
@@ -180,25 +272,25 @@ public class GenerateKey
             /*
              * Logout in case we logged in.
              *
-             * Note that we are not using CryptokiEx and we are not checking the
+             * Note that we are not using CryptokiBinding.ex() and we are not checking the
              * return value. This is because if we did not log in then an error
              * will be reported - and we don't really care because we are shutting down.
              */
-            Cryptoki.C_Logout(session);
+            CryptokiBinding.get().C_Logout(session);
 
             /*
              * Close the session.
              *
-             * Note that we are not using CryptokiEx.
+             * Note that we are not using CryptokiBinding.ex().
              */
-            Cryptoki.C_CloseSession(session);
+            CryptokiBinding.get().C_CloseSession(session);
 
             /*
              * All done with Cryptoki
              *
-             * Note that we are not using CryptokiEx.
+             * Note that we are not using CryptokiBinding.ex().
              */
-             Cryptoki.C_Finalize(null);
+             CryptokiBinding.get().C_Finalize(null);
         }
     }
 
@@ -243,7 +335,10 @@ public class GenerateKey
             new CK_ATTRIBUTE(CKA.DERIVE, 	CK_BBOOL.TRUE),
         };
 
-        CryptokiEx.C_GenerateKey(session, keyGenMech, template, template.length, hKey);
+        CryptokiBinding.ex().C_GenerateKey(session, keyGenMech, template, template.length, hKey);
+
+        /* a search for the label may now find a different key */
+        KeyCache.getInstance().invalidateLabel(keyName);
     }
 
     /**
@@ -274,12 +369,47 @@ public class GenerateKey
                                        boolean bPrivate,
                                        CK_OBJECT_HANDLE hPublicKey,
                                        CK_OBJECT_HANDLE hPrivateKey)
+    {
+        generateKeyPair(session, mechanismType, keyName, bPrivate, 1024, hPublicKey, hPrivateKey);
+    }
+
+    /**
+     * Generate an asymetric key pair of a given size.
+     *
+     * @param session
+     *  handle to an open session
+     *
+     * @param mechanismType
+     *  mechanism to use to generate the key. One of :- <br>
+     *  CKM.RSA_PKCS_KEY_PAIR_GEN                       <br>
+     *
+     * @param keyName
+     *  name (label) to give the generated keys
+     *
+     * @param bPrivate
+     *  true if the Private key of the key pair is to be a private object
+     *
+     * @param modulusBits
+     *  size of the keys, for example 2048
+     *
+     * @param hPublicKey
+     *  upon completion, the handle of the generated public key
+     *
+     * @param hPrivateKey
+     *  upon completion, the handle of the generated private key
+     */
+    public static void generateKeyPair(CK_SESSION_HANDLE session,
+                                       CK_MECHANISM_TYPE mechanismType,
+                                       String keyName,
+                                       boolean bPrivate,
+                                       int modulusBits,
+                                       CK_OBJECT_HANDLE hPublicKey,
+                                       CK_OBJECT_HANDLE hPrivateKey)
     {
         CK_MECHANISM keyGenMech = new CK_MECHANISM(mechanismType);
 		byte bb = 03;
         Byte pubExponent = new Byte(bb);
-		long ll = 1024L;
-		Long modulusBits = new Long(ll);
+		Long lModulusBits = new Long(modulusBits);
         /*
          * Setup the template for the public key.
          *
@@ -290,7 +420,7 @@ public class GenerateKey
             new CK_ATTRIBUTE(CKA.CLASS,     		CKO.PUBLIC_KEY),
             new CK_ATTRIBUTE(CKA.TOKEN,     		CK_BBOOL.TRUE),
             new CK_ATTRIBUTE(CKA.LABEL,    		 	keyName.getBytes()),
-            new CK_ATTRIBUTE(CKA.MODULUS_BITS, 		modulusBits),
+            new CK_ATTRIBUTE(CKA.MODULUS_BITS, 		lModulusBits),
     		new CK_ATTRIBUTE(CKA.PUBLIC_EXPONENT,  	pubExponent),
             new CK_ATTRIBUTE(CKA.PRIVATE,           CK_BBOOL.FALSE),
     		new CK_ATTRIBUTE(CKA.ENCRYPT,		   	CK_BBOOL.TRUE)	
@@ -312,9 +442,183 @@ public class GenerateKey
         };
         
 
-        CryptokiEx.C_GenerateKeyPair(session, keyGenMech,
+        CryptokiBinding.ex().C_GenerateKeyPair(session, keyGenMech,
                                      publicTemplate, publicTemplate.length,
                                      privateTemplate, privateTemplate.length,
                                      hPublicKey, hPrivateKey);
+
+        /* a search for the label may now find a different key */
+        KeyCache.getInstance().invalidateLabel(keyName);
+    }
+
+    /**
+     * Generate RSA key pairs in bulk. The pairs are shared out between several threads,
+     * each with a session of its own, so that the HSM generates several at once.
+     *
+     * @param slotId
+     *  slot to generate the keys on
+     *
+     * @param keyName
+     *  the pairs are labelled keyName-1 to keyName-count
+     *
+     * @param count
+     *  number of key pairs to generate
+     *
+     * @param numThreads
+     *  number of threads generating the key pairs
+     *
+     * @param modulusBits
+     *  size of the keys
+     *
+     * @param bPrivate
+     *  true if the Private keys are to be private objects
+     */
+    public static void generateKeyPairs(final long slotId,
+                                        final String keyName,
+                                        final int count,
+                                        int numThreads,
+                                        final int modulusBits,
+                                        final boolean bPrivate) throws InterruptedException
+    {
+        final AtomicInteger next = new AtomicInteger(1);
+        final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        Thread[] threads = new Thread[Math.min(numThreads, count)];
+
+        for (int t = 0; t < threads.length; ++t)
+        {
+            threads[t] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
+
+                    try
+                    {
+                        CryptokiBinding.ex().C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+
+                        int i;
+
+                        /* stop early once any thread has failed */
+                        while (error.get() == null && (i = next.getAndIncrement()) <= count)
+                        {
+                            generateKeyPair(session, CKM.RSA_PKCS_KEY_PAIR_GEN, keyName + "-" + i,
+                                            bPrivate, modulusBits,
+                                            new CK_OBJECT_HANDLE(), new CK_OBJECT_HANDLE());
+                        }
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        error.compareAndSet(null, ex);
+                    }
+                    finally
+                    {
+                        /*
+                         * Note that we are not using CryptokiBinding.ex().
+                         */
+                        CryptokiBinding.get().C_CloseSession(session);
+                    }
+                }
+            }, "GenerateKey-" + t);
+
+            threads[t].start();
+        }
+
+        for (int t = 0; t < threads.length; ++t)
+        {
+            threads[t].join();
+        }
+
+        if (error.get() != null)
+        {
+            throw error.get();
+        }
+    }
+
+    /** how long to wait for the pool to fill, or for a key pair to be claimed */
+    static final long POOL_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Claim RSA key pairs from a pool of pre-generated pairs, and report how long the
+     * pool took to fill and how long each claim took.
+     *
+     * @param session
+     *  handle to an open read/write session
+     *
+     * @param slotId
+     *  slot to generate the keys on
+     *
+     * @param keyName
+     *  the claimed pairs are labelled keyName-1 to keyName-count
+     *
+     * @param count
+     *  number of key pairs to claim
+     *
+     * @param numThreads
+     *  number of threads generating the pool's key pairs
+     *
+     * @param poolSize
+     *  number of key pairs the pool keeps ready
+     *
+     * @param modulusBits
+     *  size of the keys
+     *
+     * @param bPrivate
+     *  true if the Private keys are to be private objects
+     */
+    static void claimKeyPairs(CK_SESSION_HANDLE session,
+                              long slotId,
+                              String keyName,
+                              int count,
+                              int numThreads,
+                              int poolSize,
+                              int modulusBits,
+                              boolean bPrivate) throws InterruptedException
+    {
+        KeyPairPool pool = new KeyPairPool(slotId, poolSize, numThreads, modulusBits, bPrivate);
+
+        try
+        {
+            long start = System.nanoTime();
+
+            /* a real application would accept requests while the pool fills */
+            if (!pool.awaitReady(Math.min(count, poolSize), POOL_TIMEOUT_MILLIS))
+            {
+                println("pool not filled within " + POOL_TIMEOUT_MILLIS + " ms");
+                return;
+            }
+
+            println("pool of " + pool.getReadyCount() + " rsa key pairs filled in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+
+            long totalNanos = 0;
+            long maxNanos = 0;
+
+            for (int i = 1; i <= count; ++i)
+            {
+                long claimStart = System.nanoTime();
+                KeyPairPool.KeyPair pair = pool.claim(session, keyName + "-" + i, POOL_TIMEOUT_MILLIS);
+                long nanos = System.nanoTime() - claimStart;
+
+                if (pair == null)
+                {
+                    println("no rsa key pair ready within " + POOL_TIMEOUT_MILLIS + " ms");
+                    return;
+                }
+
+                totalNanos += nanos;
+                maxNanos = Math.max(maxNanos, nanos);
+
+                println("rsa key pair (" + keyName + "-" + i + ") claimed, handles public("
+                        + pair.getPublicKey().longValue() + ") private(" + pair.getPrivateKey().longValue() + ")");
+            }
+
+            println(count + " claims took " + (totalNanos / count / 1000) + " us on average, "
+                    + (maxNanos / 1000) + " us at most");
+            println("pool : " + pool);
+        }
+        finally
+        {
+            pool.close();
+        }
     }
 }
@@ -6,10 +6,16 @@ import com.safenetinc.jcprov.constants.*;
 /**
  * The class demonstrates the retrieval of Slot and Token Information.
  * <p>
- * Usage : java ...GetInfo (-slot, -token) [&lt;slotId&gt;]
+ * Usage : java ...GetInfo (-slot, -token, -objects, -monitor &lt;interval&gt;, -capabilities &lt;file&gt;) [-pageSize &lt;pagesize&gt;] [-samples &lt;count&gt;] [-threads &lt;threads&gt;] [&lt;slotId&gt;]
  * <li>-info            retrieve the General information
  * <li>-slot            retrieve the Slot Information of the specified slot
  * <li>-token           retrieve the Token Information of the token in the specified slot
+ * <li>-objects         count the public objects of the token in the specified slot
+ * <li>-monitor         sample the sessions and memory of the token every <i>interval</i> seconds, and print them as metrics
+ * <li>-capabilities    load the capabilities of every slot from <i>file</i>, or gather and save them, then check them in the background
+ * <li><i>pagesize</i>  number of object handles fetched per C_FindObjects call, default (1000)
+ * <li><i>count</i>     number of samples to print when monitoring, default (until stopped)
+ * <li><i>threads</i>   number of threads gathering the capabilities, default (8)
  * <li><i>slotId</i>    the related slot Id of the slot or token information to retrieve, default (all)
  */
 public class GetInfo
@@ -25,11 +31,18 @@ public class GetInfo
     /** display runtime usage of the class */
     public static void usage()
     {
-        println("java ...GetInfo (-info, -slot, -token) [<slotId>]");
+        println("java ...GetInfo (-info, -slot, -token, -objects, -monitor <interval>, -capabilities <file>)");
+        println("                [-pageSize <pagesize>] [-samples <count>] [-threads <threads>] [<slotId>]");
         println("");
         println("-info          get the General information");
         println("-slot          get the Slot Information of the specified slot");
         println("-token         get the Token Information of the token in the specified slot");
+        println("-objects       count the public objects of the token in the specified slot");
+        println("-monitor       sample the sessions and memory of the token every <interval> seconds, and print them as metrics");
+        println("-capabilities  load the capabilities of every slot from <file>, or gather and save them, then check them in the background");
+        println("<pagesize>     number of object handles fetched per C_FindObjects call, default (1000)");
+        println("<count>        number of samples to print when monitoring, default (until stopped)");
+        println("<threads>      number of threads gathering the capabilities, default (8)");
         println("<slotId>       related slot Id of the slot or token information to retrieve, default (all)");
         println("");
 
@@ -43,6 +56,12 @@ public class GetInfo
         boolean bGetGeneralInfo = false;
         boolean bGetSlotInfo = false;
         boolean bGetTokenInfo = false;
+        boolean bGetObjectInfo = false;
+        int pageSize = ObjectEnumerator.DEFAULT_PAGE_SIZE;
+        long monitorMillis = 0;
+        int samples = 0;
+        String capabilitiesFile = null;
+        int numThreads = 8;
 
         /*
          * process command line arguments
@@ -62,6 +81,57 @@ public class GetInfo
             {
                 bGetTokenInfo = true;
             }
+            else if (args[i].equalsIgnoreCase("-objects"))
+            {
+                bGetObjectInfo = true;
+            }
+            else if (args[i].equalsIgnoreCase("-pageSize"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                pageSize = Integer.parseInt(args[i]);
+
+                if (pageSize <= 0)
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-monitor"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                monitorMillis = (long)(Double.parseDouble(args[i]) * 1000);
+
+                if (monitorMillis <= 0)
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-samples"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                samples = Integer.parseInt(args[i]);
+
+                if (samples <= 0)
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-capabilities"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                capabilitiesFile = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-threads"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                numThreads = Integer.parseInt(args[i]);
+
+                if (numThreads <= 0)
+                    usage();
+            }
             else if(args[i].startsWith("-"))
             {
                 usage();
@@ -84,7 +154,8 @@ public class GetInfo
         }
 
         /* no work to do - error */
-        if (!bGetGeneralInfo && !bGetSlotInfo && !bGetTokenInfo)
+        if (!bGetGeneralInfo && !bGetSlotInfo && !bGetTokenInfo && !bGetObjectInfo && monitorMillis == 0
+            && capabilitiesFile == null)
         {
             usage();
         }
@@ -99,6 +170,10 @@ public class GetInfo
             {
                 DisplayGeneralInformation();
             }
+            if (capabilitiesFile != null)
+            {
+                DisplayCapabilities(new java.io.File(capabilitiesFile), numThreads);
+            }
             if (slotId == -1)
             {
                 /* display information for all slots */
@@ -126,6 +201,11 @@ public class GetInfo
                     {
                         DisplayTokenInformation(slotList[i]);
                     }
+
+                    if (bGetObjectInfo)
+                    {
+                        DisplayObjectInformation(slotList[i], pageSize);
+                    }
                 }
             }
             else
@@ -139,6 +219,16 @@ public class GetInfo
                 {
                     DisplayTokenInformation(slotId);
                 }
+
+                if (bGetObjectInfo)
+                {
+                    DisplayObjectInformation(slotId, pageSize);
+                }
+            }
+
+            if (monitorMillis > 0)
+            {
+                Monitor(slotId, monitorMillis, samples);
             }
         }
         catch (CKR_Exception ex)
@@ -265,4 +355,107 @@ public class GetInfo
 
         println("");
     }
+
+    static void DisplayObjectInformation(long slotId, int pageSize)
+    {
+        CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
+
+        println("Objects for Slot ID " + slotId);
+
+        CryptokiEx.C_OpenSession(slotId, CKF.SERIAL_SESSION, null, null, session);
+
+        try
+        {
+            long start = System.nanoTime();
+            long count = 0;
+
+            /* an empty template matches every object we are allowed to see */
+            ObjectEnumerator objects = new ObjectEnumerator(session, new CK_ATTRIBUTE[0], pageSize);
+
+            try
+            {
+                while (objects.hasNext())
+                {
+                    objects.next();
+                    ++count;
+                }
+            }
+            finally
+            {
+                objects.close();
+            }
+
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            println("   Objects         :" + count);
+            println("   Enumerated in   :" + millis + " ms, " + pageSize + " handles per call");
+        }
+        finally
+        {
+            Cryptoki.C_CloseSession(session);
+        }
+
+        println("");
+    }
+
+    /**
+     * Load, or gather, the capabilities of every slot, then wait for them to be checked
+     * in the background.
+     */
+    static void DisplayCapabilities(java.io.File file, int numThreads) throws Exception
+    {
+        long start = System.nanoTime();
+        CapabilitySnapshot caps = CapabilitySnapshot.open(file, numThreads);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        println("Capabilities");
+        println("   Snapshot        :" + caps);
+        println("   Ready in        :" + millis + " ms, " + ((caps.getRevalidation() == null) ? "gathered" : "loaded from " + file));
+
+        long[] slots = caps.getSlots();
+
+        for (int i = 0; i < slots.length; ++i)
+        {
+            println("   Slot " + slots[i] + "          :" + new String(caps.getTokenInfo(slots[i]).label).trim()
+                    + ", " + caps.getMechanisms(slots[i]).length + " mechanisms");
+        }
+
+        if (caps.getRevalidation() != null)
+        {
+            CapabilitySnapshot fresh = caps.getRevalidation().get();
+            millis = (System.nanoTime() - start) / 1000000;
+
+            println("   Checked in      :" + millis + " ms, " + (fresh.sameAs(caps) ? "unchanged" : "changed, saved to " + file));
+        }
+
+        println("");
+    }
+
+    /**
+     * Sample the token in a slot, or in every slot, in the background, printing the
+     * metrics after each interval.
+     */
+    static void Monitor(long slotId, long intervalMillis, int samples) throws InterruptedException
+    {
+        long[] slots = (slotId == -1) ? null : new long[] { slotId };
+        TokenTelemetry telemetry = new TokenTelemetry(intervalMillis, TokenTelemetry.DEFAULT_CAPACITY, slots);
+
+        telemetry.start();
+
+        try
+        {
+            for (int i = 0; samples == 0 || i < samples; ++i)
+            {
+                /* half an interval behind the sampler, so that each print sees a new sample */
+                Thread.sleep((i == 0) ? intervalMillis / 2 : intervalMillis);
+
+                System.out.print(telemetry.metrics());
+                println("");
+            }
+        }
+        finally
+        {
+            telemetry.close();
+        }
+    }
 }
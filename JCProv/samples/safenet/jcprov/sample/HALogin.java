@@ -6,9 +6,9 @@ import com.safenetinc.jcprov.constants.*;
 /**
  * This class demonstrates using HALogin
  *<p>
- *usage: java ...HALogin -source &lt;sourceID&rt; -target &lt;targetID&rt; -keyName &lt;keyname&rt; [-password &lt;password&rt;]");
+ *usage: java ...HALogin -source &lt;sourceID&rt; -target &lt;targetID&rt;[,&lt;targetID&rt;...] -keyName &lt;keyname&rt; [-password &lt;password&rt;]");
  *<li><i>sourceID</i> primary slot ID (source of login key)
- *<li><i>targetID</i> slot to log into
+ *<li><i>targetID</i> slot to log into, several slots are logged into at once
  *<li><i>keyname</i>  label of the login key
  *<li><i>password</i> user password on source slot (omit for PED login)
  */
@@ -22,10 +22,10 @@ public class HALogin {
     /** display runtime usage of the class */
     public static void usage() {
         println("");
-        println("java ...HALogin -source <sourceID> -target <targetID> -keyName <keyname> [-password <password>]");
+        println("java ...HALogin -source <sourceID> -target <targetID>[,<targetID>...] -keyName <keyname> [-password <password>]");
         println("");
         println("<sourceID> primary slot ID (source of login key)");
-        println("<targetID> slot to log into");
+        println("<targetID> slot to log into, several slots are logged into at once");
         println("<keyname>  label of the login key");
         println("<password> user password on source slot (omit for PED login)");
         println("");
@@ -36,9 +36,8 @@ public class HALogin {
     /** main execution method */
     public static void main(String[] args) {
         long sourceSlotId = 1;
-        long targetSlotId = 2;
+        long[] targetSlotIds = { 2 };
         CK_SESSION_HANDLE sourceSession = new CK_SESSION_HANDLE();
-        CK_SESSION_HANDLE targetSession = new CK_SESSION_HANDLE();
 
         byte[] password = null;
         String keyLabel = "";
@@ -46,11 +45,6 @@ public class HALogin {
         CK_OBJECT_HANDLE sourcePrivateKey;
         CK_SESSION_INFO info = new CK_SESSION_INFO();
 
-        LongRef twcLen = new LongRef();
-        LongRef challengeBlobLen = new LongRef();
-        LongRef encryptedPinLen = new LongRef();
-        LongRef mOfNBlobLen = new LongRef();
-
         // Setup command line arguments
         for (int i = 0; i < args.length; ++i)
         {
@@ -68,7 +62,12 @@ public class HALogin {
                 {
                     usage();
                 }
-                targetSlotId = Integer.parseInt(args[i]);
+                String[] ids = args[i].split(",");
+                targetSlotIds = new long[ids.length];
+                for (int j = 0; j < ids.length; ++j)
+                {
+                    targetSlotIds[j] = Integer.parseInt(ids[j].trim());
+                }
             }
             else if(args[i].equalsIgnoreCase("-keyName"))
             {
@@ -94,75 +93,51 @@ public class HALogin {
 
         try 
         {
-            CryptokiEx.C_Initialize(new CK_C_INITIALIZE_ARGS(CKF.OS_LOCKING_OK));
+            CryptokiBinding.ex().C_Initialize(new CK_C_INITIALIZE_ARGS(CKF.OS_LOCKING_OK));
             
             // Login to source HSM and get the shared private key
-            CryptokiEx.C_OpenSession(sourceSlotId, 
-                                     CKF.RW_SESSION | CKF.SERIAL_SESSION | CKF.SO_SESSION, 
-                                     null, 
-                                     null,
-                                     sourceSession); 
-            CryptokiEx.C_Login(sourceSession, CKU.SO, password, (password == null ? 0 : password.length));
-            sourcePrivateKey = findObject(sourceSession, keyLabel);
-
-            // Get the Token Wrapping Certificate (TWC) from the source HSM
-            CryptokiEx.CA_HAGetMasterPublic(sourceSlotId, null, twcLen);
-            byte[] twc = new byte[(int)twcLen.value];
-            CryptokiEx.CA_HAGetMasterPublic(sourceSlotId, twc, twcLen);
-
-            // Get the target challenge
-            CryptokiEx.C_OpenSession(targetSlotId,
-                                     CKF.RW_SESSION | CKF.SERIAL_SESSION | CKF.SO_SESSION,
-                                     null,
-                                     null,
-                                     targetSession); 
-
-            CryptokiEx.CA_HAGetLoginChallenge(targetSession,
-                                              CKU.SO,
-                                              twc,
-                                              twcLen.value,
-                                              null,
-                                              challengeBlobLen);    
-            byte[] challengeBlob = new byte[(int)challengeBlobLen.value];
-            CryptokiEx.CA_HAGetLoginChallenge(targetSession,
-                                              CKU.SO,
-                                              twc,
-                                              twcLen.value,
-                                              challengeBlob,
-                                              challengeBlobLen);    
-
-            // Get the challenge response from the source HSM
-            CryptokiEx.CA_HAAnswerLoginChallenge(sourceSession,
-                                                 sourcePrivateKey,
-                                                 challengeBlob,
-                                                 challengeBlobLen.value,
-                                                 null,
-                                                 encryptedPinLen);
-            byte[] encryptedPin = new byte[(int)encryptedPinLen.value];
-            CryptokiEx.CA_HAAnswerLoginChallenge(sourceSession,
-                                                 sourcePrivateKey,
-                                                 challengeBlob,
-                                                 challengeBlobLen.value,
-                                                 encryptedPin,
-                                                 encryptedPinLen);
-
-            // Login to target HSM
-            CryptokiEx.CA_HALogin(targetSession,
-                                  encryptedPin,
-                                  encryptedPinLen.value,
-                                  null,
-                                  mOfNBlobLen);
-
-            // Session should be logged in as SO state == 4
-            CryptokiEx.C_GetSessionInfo(targetSession, info);
-            System.out.println("Target session state = " + info.state.longValue());
+            CryptokiBinding.ex().C_OpenSession(sourceSlotId, 
+                                               CKF.RW_SESSION | CKF.SERIAL_SESSION | CKF.SO_SESSION, 
+                                               null, 
+                                               null,
+                                               sourceSession); 
+            CryptokiBinding.ex().C_Login(sourceSession, CKU.SO, password, (password == null ? 0 : password.length));
+            sourcePrivateKey = findObject(sourceSession, sourceSlotId, keyLabel);
+
+            // Log into every target at once, the Token Wrapping Certificate (TWC) of the
+            // source is read once for all of them
+            HALoginOrchestrator orchestrator = new HALoginOrchestrator(sourceSlotId, sourcePrivateKey, CKU.SO);
+
+            long start = System.nanoTime();
+            HALoginOrchestrator.Result[] results = orchestrator.login(targetSlotIds);
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            for (int i = 0; i < results.length; ++i)
+            {
+                println(results[i].toString());
+
+                if (results[i].getSession() != null)
+                {
+                    // Session should be logged in as SO state == 4
+                    CryptokiBinding.ex().C_GetSessionInfo(results[i].getSession(), info);
+                    println("Target session state = " + info.state.longValue());
+                }
+            }
+
+            println(results.length + " targets in " + millis + " ms");
             
             // Cleanup
-            Cryptoki.C_Logout(targetSession);
-            Cryptoki.C_CloseSession(targetSession);
-            Cryptoki.C_CloseSession(sourceSession);
+            for (int i = 0; i < results.length; ++i)
+            {
+                if (results[i].getSession() != null)
+                {
+                    CryptokiBinding.get().C_Logout(results[i].getSession());
+                    CryptokiBinding.get().C_CloseSession(results[i].getSession());
+                }
+            }
+            CryptokiBinding.get().C_CloseSession(sourceSession);
             
-            Cryptoki.C_Finalize(null);
+            CryptokiBinding.get().C_Finalize(null);
 
         }
         catch (Exception ex)
@@ -173,33 +148,18 @@ public class HALogin {
     }
     
    /** 
-    * Locate the first occurence of the specified key
+    * Locate the first occurence of the specified key, through the shared {@link KeyCache}
     *
     * @param session
     *  handle to and open session
     *  
+    * @param slotId
+    *  slot of the session
+    *  
     * @param objLabel
     *  label of the key to locate
     */
-    static CK_OBJECT_HANDLE findObject(CK_SESSION_HANDLE session, String objLabel) {
-        byte[] label = objLabel.getBytes();
-        LongRef objCount = new LongRef ();
-        CK_OBJECT_HANDLE[] hKey = { new CK_OBJECT_HANDLE() };
-
-        CK_ATTRIBUTE[] template = { 
-            new CK_ATTRIBUTE(CKA.LABEL, label)
-        };
-
-        CryptokiEx.C_FindObjectsInit(session, template, template.length);
-        CryptokiEx.C_FindObjects(session, hKey, hKey.length, objCount);
-        CryptokiEx.C_FindObjectsFinal(session);
-        if(objCount.value == 1)
-        {
-            return hKey[0];
-        }
-        else
-        {
-            return new CK_OBJECT_HANDLE();
-        }
+    static CK_OBJECT_HANDLE findObject(CK_SESSION_HANDLE session, long slotId, String objLabel) {
+        return KeyCache.getInstance().findKey(session, slotId, null, null, objLabel, null);
     }
 }
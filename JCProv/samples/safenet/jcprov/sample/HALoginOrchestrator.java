@@ -0,0 +1,306 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.Arrays;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Logs into every member of an HA group at once, from a source slot which is logged in
+ * and holds the group's login key.
+ * <p>
+ * The HA login of a member takes a chain of calls : the Token Wrapping Certificate (TWC)
+ * of the source, a login challenge from the member for that certificate, the answer of
+ * the source to the challenge, and finally the login of the member with the answer.
+ * {@link HALogin} makes the chain for one member, calling each function twice, first for
+ * the length of its output. The orchestrator
+ * <li>reads the TWC of the source once, and keeps it for every later login
+ * <li>calls each function once, with a buffer large enough for its output, calling it
+ * again only if the buffer turns out to be too small
+ * <li>runs the chains of every member at once, each from a thread with its own session on
+ * the source, so that logging into the whole group takes about as long as one member
+ * <p>
+ * The sessions on the source share the login of the application on the source, which
+ * must stay logged in while the orchestrator is used. The sessions opened on the members
+ * are returned logged in, and belong to the caller.
+ * <p>
+ * Usage :
+ * <pre>
+ *     HALoginOrchestrator ha = new HALoginOrchestrator(sourceSlotId, loginKey, CKU.SO);
+ *
+ *     HALoginOrchestrator.Result[] results = ha.login(new long[] { 2, 3, 4 });
+ * </pre>
+ */
+public class HALoginOrchestrator
+{
+    /** size of the buffers of the certificate, challenge and answer, which are a few hundred bytes */
+    static final int BLOB_SIZE = 4096;
+
+    /** the slot holding the login key */
+    private final long sourceSlotId;
+
+    /** the login key, on the source */
+    private final CK_OBJECT_HANDLE loginKey;
+
+    /** the user to log the members in as */
+    private final CK_USER_TYPE userType;
+
+    /** the Token Wrapping Certificate of the source, or null until it is read */
+    private volatile byte[] twc;
+
+    /**
+     * The outcome of the login of one member.
+     */
+    public static class Result
+    {
+        private final long slotId;
+        private final CK_SESSION_HANDLE session;
+        private final long latencyNanos;
+        private final RuntimeException error;
+
+        Result(long slotId, CK_SESSION_HANDLE session, long latencyNanos, RuntimeException error)
+        {
+            this.slotId = slotId;
+            this.session = session;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+        }
+
+        /** the member */
+        public long getSlotId()
+        {
+            return slotId;
+        }
+
+        /** the logged in session on the member, or null if the login failed */
+        public CK_SESSION_HANDLE getSession()
+        {
+            return session;
+        }
+
+        /** how long the login of the member took, from opening its session */
+        public long getLatencyNanos()
+        {
+            return latencyNanos;
+        }
+
+        /** why the login failed, or null */
+        public RuntimeException getError()
+        {
+            return error;
+        }
+
+        public String toString()
+        {
+            return "slot " + slotId + " : " + ((error == null) ? "logged in" : "failed " + error)
+                    + " in " + (latencyNanos / 1000000) + " ms";
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sourceSlotId
+     *  slot holding the login key, on which the application is logged in
+     *
+     * @param loginKey
+     *  handle of the login key on the source
+     *
+     * @param userType
+     *  the user to log the members in as, for example CKU.SO
+     */
+    public HALoginOrchestrator(long sourceSlotId, CK_OBJECT_HANDLE loginKey, CK_USER_TYPE userType)
+    {
+        this.sourceSlotId = sourceSlotId;
+        this.loginKey = loginKey;
+        this.userType = userType;
+    }
+
+    /**
+     * The Token Wrapping Certificate of the source, read from the source on first use.
+     */
+    public byte[] getTokenWrappingCertificate()
+    {
+        byte[] certificate = twc;
+
+        if (certificate == null)
+        {
+            LongRef lRef = new LongRef();
+            byte[] buffer = new byte[BLOB_SIZE];
+
+            lRef.value = buffer.length;
+
+            /*
+             * Note that we are not using CryptokiBinding.ex() - a buffer which is too
+             * small is allocated again, at the size it needs to be.
+             */
+            CK_RV rv = CryptokiBinding.get().CA_HAGetMasterPublic(sourceSlotId, buffer, lRef);
+
+            if (CKR.BUFFER_TOO_SMALL.equals(rv))
+            {
+                buffer = new byte[(int)lRef.value];
+                CryptokiBinding.ex().CA_HAGetMasterPublic(sourceSlotId, buffer, lRef);
+            }
+            else if (!CKR.OK.equals(rv))
+            {
+                throw CheckedCryptoki.exception("CA_HAGetMasterPublic", rv);
+            }
+
+            /* two threads may read it at once, either copy will do */
+            certificate = Arrays.copyOf(buffer, (int)lRef.value);
+            twc = certificate;
+        }
+
+        return certificate;
+    }
+
+    /**
+     * Forget the Token Wrapping Certificate, so that it is read again by the next login,
+     * for example after the login key of the group was replaced.
+     */
+    public void invalidate()
+    {
+        twc = null;
+    }
+
+    /**
+     * Log into several members at once, waiting until every login has finished.
+     *
+     * @param targetSlotIds
+     *  the members
+     *
+     * @return the outcome of each login, in the order of the members
+     */
+    public Result[] login(final long[] targetSlotIds) throws InterruptedException
+    {
+        final Result[] results = new Result[targetSlotIds.length];
+        Thread[] threads = new Thread[targetSlotIds.length];
+        byte[] certificate;
+
+        try
+        {
+            certificate = getTokenWrappingCertificate();
+        }
+        catch (RuntimeException ex)
+        {
+            /* no member can be logged into */
+            for (int i = 0; i < results.length; ++i)
+            {
+                results[i] = new Result(targetSlotIds[i], null, 0, ex);
+            }
+
+            return results;
+        }
+
+        final byte[] twc = certificate;
+
+        for (int i = 0; i < threads.length; ++i)
+        {
+            final int index = i;
+
+            threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    results[index] = login(targetSlotIds[index], twc);
+                }
+            }, "HALogin-" + targetSlotIds[i]);
+
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; ++i)
+        {
+            threads[i].join();
+        }
+
+        return results;
+    }
+
+    /**
+     * Log into one member, from a session of its own on the source.
+     */
+    Result login(long targetSlotId, byte[] twc)
+    {
+        long start = System.nanoTime();
+        CK_SESSION_HANDLE sourceSession = new CK_SESSION_HANDLE();
+        CK_SESSION_HANDLE targetSession = new CK_SESSION_HANDLE();
+        boolean bSourceOpen = false;
+        boolean bTargetOpen = false;
+        long flags = CKF.RW_SESSION | CKF.SERIAL_SESSION;
+
+        if (CKU.SO.equals(userType))
+            flags |= CKF.SO_SESSION;
+
+        try
+        {
+            CryptokiBinding.ex().C_OpenSession(sourceSlotId, flags, null, null, sourceSession);
+            bSourceOpen = true;
+
+            CryptokiBinding.ex().C_OpenSession(targetSlotId, flags, null, null, targetSession);
+            bTargetOpen = true;
+
+            LongRef challengeLen = new LongRef();
+            byte[] challenge = new byte[BLOB_SIZE];
+
+            challengeLen.value = challenge.length;
+
+            /* Note that we are not using CryptokiBinding.ex(), as for the certificate */
+            CK_RV rv = CryptokiBinding.get().CA_HAGetLoginChallenge(targetSession, userType, twc, twc.length,
+                                                                    challenge, challengeLen);
+
+            if (CKR.BUFFER_TOO_SMALL.equals(rv))
+            {
+                challenge = new byte[(int)challengeLen.value];
+                CryptokiBinding.ex().CA_HAGetLoginChallenge(targetSession, userType, twc, twc.length,
+                                                            challenge, challengeLen);
+            }
+            else if (!CKR.OK.equals(rv))
+            {
+                throw CheckedCryptoki.exception("CA_HAGetLoginChallenge", rv);
+            }
+
+            LongRef pinLen = new LongRef();
+            byte[] encryptedPin = new byte[BLOB_SIZE];
+
+            pinLen.value = encryptedPin.length;
+
+            rv = CryptokiBinding.get().CA_HAAnswerLoginChallenge(sourceSession, loginKey,
+                                                                 challenge, challengeLen.value,
+                                                                 encryptedPin, pinLen);
+
+            if (CKR.BUFFER_TOO_SMALL.equals(rv))
+            {
+                encryptedPin = new byte[(int)pinLen.value];
+                CryptokiBinding.ex().CA_HAAnswerLoginChallenge(sourceSession, loginKey,
+                                                               challenge, challengeLen.value,
+                                                               encryptedPin, pinLen);
+            }
+            else if (!CKR.OK.equals(rv))
+            {
+                throw CheckedCryptoki.exception("CA_HAAnswerLoginChallenge", rv);
+            }
+
+            CryptokiBinding.ex().CA_HALogin(targetSession, encryptedPin, pinLen.value, null, new LongRef());
+
+            return new Result(targetSlotId, targetSession, System.nanoTime() - start, null);
+        }
+        catch (RuntimeException ex)
+        {
+            if (bTargetOpen)
+            {
+                /* Note that we are not using CryptokiBinding.ex() */
+                CryptokiBinding.get().C_CloseSession(targetSession);
+            }
+
+            return new Result(targetSlotId, null, System.nanoTime() - start, ex);
+        }
+        finally
+        {
+            if (bSourceOpen)
+            {
+                CryptokiBinding.get().C_CloseSession(sourceSession);
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Re-entrant mutex for the Cryptoki locking callbacks, which records how it is used.
+ * <p>
+ * The mutex is built on a {@link ReentrantLock}, either fair (waiting threads acquire
+ * the mutex in arrival order) or unfair (a thread arriving as the mutex is released may
+ * acquire it ahead of the waiting threads, which gives higher throughput). The spin
+ * variant is unfair, and retries the lock a number of times before it parks, which
+ * avoids a context switch when the mutex is only held briefly. The fair variant never
+ * spins, and its first attempt queues behind the waiting threads rather than barging.
+ * <p>
+ * For each mutex the number of acquisitions, the number of contended acquisitions
+ * (the mutex was held by another thread), and the total and longest wait and hold
+ * times are recorded. The statistics are only updated by the thread which holds the
+ * mutex, so recording needs no further synchronisation.
+ * <p>
+ * Cryptoki requires the mutex to be re-entrant: a thread may lock it several times, and
+ * must unlock it an equivalent number of times. It is held from the outermost lock to
+ * the matching unlock.
+ */
+public class InstrumentedMutex
+{
+    /** waiting threads may be overtaken */
+    public static final int UNFAIR = 0;
+
+    /** waiting threads acquire the mutex in arrival order */
+    public static final int FAIR = 1;
+
+    /** unfair, and retry the lock before parking */
+    public static final int SPIN = 2;
+
+    /** lock attempts made by the spin variant before it parks */
+    public static final int DEFAULT_SPIN_TRIES = 100;
+
+    /** the underlying lock */
+    private final ReentrantLock lock;
+
+    /** true if waiting threads acquire the mutex in arrival order */
+    private final boolean fair;
+
+    /** lock attempts to make before parking, 0 to park at once */
+    private final int spinTries;
+
+    /** time at which the current owner acquired the mutex */
+    private long acquiredNanos;
+
+    /** statistics, guarded by the mutex itself */
+    private final Stats stats = new Stats();
+
+    /**
+     * Usage statistics of one or more mutexes.
+     */
+    public static class Stats
+    {
+        /** number of outermost acquisitions */
+        public long locks;
+
+        /** number of acquisitions which found the mutex held by another thread */
+        public long contended;
+
+        /** total time spent waiting for the mutex */
+        public long waitNanos;
+
+        /** longest single wait */
+        public long maxWaitNanos;
+
+        /** total time the mutex was held */
+        public long holdNanos;
+
+        /** longest single hold */
+        public long maxHoldNanos;
+
+        /**
+         * Add the statistics of another mutex to these.
+         *
+         * @param other
+         *  statistics to add, they are not modified
+         */
+        public void add(Stats other)
+        {
+            locks += other.locks;
+            contended += other.contended;
+            waitNanos += other.waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, other.maxWaitNanos);
+            holdNanos += other.holdNanos;
+            maxHoldNanos = Math.max(maxHoldNanos, other.maxHoldNanos);
+        }
+
+        /** fraction of acquisitions which were contended */
+        public double getContentionRatio()
+        {
+            return (locks == 0) ? 0 : (double)contended / locks;
+        }
+
+        /** a one line description, times in microseconds */
+        public String toString()
+        {
+            return locks + " locks, " + contended + " contended"
+                + ", wait total " + BenchmarkReport.micros(waitNanos)
+                + " max " + BenchmarkReport.micros(maxWaitNanos)
+                + ", hold total " + BenchmarkReport.micros(holdNanos)
+                + " max " + BenchmarkReport.micros(maxHoldNanos);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param policy
+     *  one of UNFAIR, FAIR, SPIN
+     *
+     * @param spinTries
+     *  lock attempts to make before parking, used by the SPIN policy only
+     */
+    public InstrumentedMutex(int policy, int spinTries)
+    {
+        this.fair = (policy == FAIR);
+        this.lock = new ReentrantLock(fair);
+        this.spinTries = (policy == SPIN) ? spinTries : 0;
+    }
+
+    /**
+     * Lock the mutex, waiting if it is held by another thread. The wait is not
+     * interruptible, as Cryptoki has no way to abandon a guarded operation.
+     */
+    public void lock()
+    {
+        if (lock.isHeldByCurrentThread())
+        {
+            /* nested acquisition, the mutex is already held and timed */
+            lock.lock();
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean contended = !tryAcquire();
+
+        if (contended)
+        {
+            for (int i = 0; i < spinTries; ++i)
+            {
+                if (lock.tryLock())
+                {
+                    break;
+                }
+            }
+
+            if (!lock.isHeldByCurrentThread())
+            {
+                lock.lock();
+            }
+        }
+
+        /* the mutex is held, so the statistics may be updated */
+        long now = System.nanoTime();
+
+        acquiredNanos = now;
+        ++stats.locks;
+
+        if (contended)
+        {
+            long waited = now - start;
+
+            ++stats.contended;
+            stats.waitNanos += waited;
+
+            if (waited > stats.maxWaitNanos)
+                stats.maxWaitNanos = waited;
+        }
+    }
+
+    /**
+     * Try to lock the mutex without waiting. ReentrantLock.tryLock() takes a free lock
+     * even when threads are queued for it, so a fair lock is tried with a timeout, which
+     * respects the queue.
+     */
+    private boolean tryAcquire()
+    {
+        if (!fair)
+        {
+            return lock.tryLock();
+        }
+
+        try
+        {
+            return lock.tryLock(0, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            /* the wait which follows is not interruptible, keep the interrupt for the caller */
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Unlock the mutex.
+     *
+     * @return false if the mutex is not held by the calling thread
+     */
+    public boolean unlock()
+    {
+        if (!lock.isHeldByCurrentThread())
+        {
+            return false;
+        }
+
+        if (lock.getHoldCount() == 1)
+        {
+            long held = System.nanoTime() - acquiredNanos;
+
+            stats.holdNanos += held;
+
+            if (held > stats.maxHoldNanos)
+                stats.maxHoldNanos = held;
+        }
+
+        lock.unlock();
+
+        return true;
+    }
+
+    /**
+     * Copy the statistics of this mutex, optionally clearing them.
+     *
+     * @param reset
+     *  true to clear the statistics once they have been copied
+     *
+     * @return a copy of the statistics
+     */
+    public Stats getStats(boolean reset)
+    {
+        Stats copy = new Stats();
+
+        lock.lock();
+
+        try
+        {
+            copy.add(stats);
+
+            if (reset)
+            {
+                stats.locks = 0;
+                stats.contended = 0;
+                stats.waitNanos = 0;
+                stats.maxWaitNanos = 0;
+                stats.holdNanos = 0;
+                stats.maxHoldNanos = 0;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return copy;
+    }
+
+    /**
+     * Determine the policy with the given name.
+     *
+     * @param name
+     *  one of unfair, fair, spin
+     *
+     * @return the policy, or -1 if the name is not known
+     */
+    public static int policy(String name)
+    {
+        if (name.equalsIgnoreCase("unfair"))
+            return UNFAIR;
+        else if (name.equalsIgnoreCase("fair"))
+            return FAIR;
+        else if (name.equalsIgnoreCase("spin"))
+            return SPIN;
+        else
+            return -1;
+    }
+}
@@ -0,0 +1,289 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Cache of key handles, located by slot, object class, key type, label and private flag.
+ * <p>
+ * Locating a key takes three Cryptoki calls (C_FindObjectsInit, C_FindObjects and
+ * C_FindObjectsFinal), which can cost as much as the operation which uses the key.
+ * The cache remembers the handle found for a search, for a limited time, so that
+ * repeated searches need no Cryptoki calls at all. Optionally, a search which found
+ * nothing is also remembered, for a (normally shorter) time.
+ * <p>
+ * Only token objects are located, as the handle of a session object is not valid once
+ * its session is closed. Token object handles remain valid until the object is destroyed
+ * or Cryptoki is finalised, so the cache must be told:
+ * <ul>
+ * <li>when an object is destroyed - use {@link #destroyObject} or {@link #invalidateHandle}
+ * <li>when a key is generated or created, as it may match a search which previously
+ *     found nothing - use {@link #invalidateLabel}
+ * <li>when Cryptoki is finalised - use {@link #clear}
+ * </ul>
+ * Objects destroyed or created by another application are only noticed once the cached
+ * entry expires.
+ */
+public class KeyCache
+{
+    /** time for which a located handle is cached, by default */
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+
+    /** the cache used by the samples */
+    private static final KeyCache instance = new KeyCache(DEFAULT_TTL_MILLIS, 0);
+
+    /** time for which a located handle is cached */
+    private final long ttlNanos;
+
+    /** time for which a failed search is cached, 0 to not cache failed searches */
+    private final long negativeTtlNanos;
+
+    /** cached handles, by search */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** number of searches answered from the cache */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** number of searches which called Cryptoki */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cached search result.
+     */
+    static class Entry
+    {
+        /** label searched for */
+        final String label;
+
+        /** handle located, 0 if the search found nothing */
+        final long handle;
+
+        /** {@link System#nanoTime()} after which the entry is no longer used */
+        final long expiresNanos;
+
+        Entry(String label, long handle, long expiresNanos)
+        {
+            this.label = label;
+            this.handle = handle;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ttlMillis
+     *  time for which a located handle is cached
+     *
+     * @param negativeTtlMillis
+     *  time for which a search which found nothing is cached, 0 to not cache such searches
+     */
+    public KeyCache(long ttlMillis, long negativeTtlMillis)
+    {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    }
+
+    /** the cache shared by the samples */
+    public static KeyCache getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Locate a token object, using the cache if possible.
+     *
+     * @param session
+     *  handle to an open session of the slot
+     *
+     * @param slotId
+     *  id of the slot of the session
+     *
+     * @param keyClass
+     *  class of the object, or null to match any class
+     *
+     * @param keyType
+     *  type of the key, or null to match any type
+     *
+     * @param keyName
+     *  label of the object
+     *
+     * @param bPrivate
+     *  value of the private flag, or null to match either
+     *
+     * @return handle of the object, which is invalid if the object was not found
+     */
+    public CK_OBJECT_HANDLE findKey(CK_SESSION_HANDLE session,
+                                    long slotId,
+                                    CK_OBJECT_CLASS keyClass,
+                                    CK_KEY_TYPE keyType,
+                                    String keyName,
+                                    Boolean bPrivate)
+    {
+        String key = slotId + "|" + ((keyClass == null) ? "*" : String.valueOf(keyClass.longValue()))
+                   + "|" + ((keyType == null) ? "*" : String.valueOf(keyType.longValue()))
+                   + "|" + ((bPrivate == null) ? "*" : bPrivate.toString())
+                   + "|" + keyName;
+
+        Entry e = entries.get(key);
+
+        if (e != null && System.nanoTime() - e.expiresNanos < 0)
+        {
+            hits.incrementAndGet();
+
+            return (e.handle == 0) ? new CK_OBJECT_HANDLE() : new CK_OBJECT_HANDLE(e.handle);
+        }
+
+        misses.incrementAndGet();
+
+        CK_OBJECT_HANDLE hKey = find(session, keyClass, keyType, keyName, bPrivate);
+
+        if (hKey.isValidHandle())
+        {
+            entries.put(key, new Entry(keyName, hKey.longValue(), System.nanoTime() + ttlNanos));
+        }
+        else if (negativeTtlNanos > 0)
+        {
+            entries.put(key, new Entry(keyName, 0, System.nanoTime() + negativeTtlNanos));
+        }
+        else if (e != null)
+        {
+            entries.remove(key, e);
+        }
+
+        return hKey;
+    }
+
+    /**
+     * Destroy an object, and forget any search which located it.
+     *
+     * @param session
+     *  handle to an open session
+     *
+     * @param hObject
+     *  handle of the object to destroy
+     */
+    public void destroyObject(CK_SESSION_HANDLE session, CK_OBJECT_HANDLE hObject)
+    {
+        try
+        {
+            CryptokiBinding.ex().C_DestroyObject(session, hObject);
+        }
+        finally
+        {
+            /* forget the handle even if it was already invalid */
+            invalidateHandle(hObject);
+        }
+    }
+
+    /**
+     * Forget any search which located an object, for example because it has been destroyed.
+     * Handles are only unique within a slot, so the searches of all slots which located
+     * the handle are forgotten.
+     *
+     * @param hObject
+     *  handle of the object
+     */
+    public void invalidateHandle(CK_OBJECT_HANDLE hObject)
+    {
+        long handle = hObject.longValue();
+
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+        {
+            if (it.next().handle == handle)
+                it.remove();
+        }
+    }
+
+    /**
+     * Forget every search for a label, for example because a key with the label has been
+     * generated.
+     *
+     * @param keyName
+     *  label of the object
+     */
+    public void invalidateLabel(String keyName)
+    {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+        {
+            if (it.next().label.equals(keyName))
+                it.remove();
+        }
+    }
+
+    /** forget every search, for example because Cryptoki has been finalised */
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    /** number of searches answered from the cache */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /** number of searches which called Cryptoki */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /** search for a token object, returning the first object found */
+    static CK_OBJECT_HANDLE find(CK_SESSION_HANDLE session,
+                                 CK_OBJECT_CLASS keyClass,
+                                 CK_KEY_TYPE keyType,
+                                 String keyName,
+                                 Boolean bPrivate)
+    {
+        /* array of one object handles */
+        CK_OBJECT_HANDLE[] hObjects = {new CK_OBJECT_HANDLE()};
+
+        /* to receive the number of objects located */
+        LongRef objectCount = new LongRef();
+
+        /* setup the template of the object to search for, omitting the wildcards */
+        java.util.List<CK_ATTRIBUTE> template = new java.util.ArrayList<CK_ATTRIBUTE>();
+
+        if (keyClass != null)
+            template.add(new CK_ATTRIBUTE(CKA.CLASS, keyClass));
+
+        if (keyType != null)
+            template.add(new CK_ATTRIBUTE(CKA.KEY_TYPE, keyType));
+
+        template.add(new CK_ATTRIBUTE(CKA.TOKEN, CK_BBOOL.TRUE));
+        template.add(new CK_ATTRIBUTE(CKA.LABEL, keyName.getBytes()));
+
+        if (bPrivate != null)
+            template.add(new CK_ATTRIBUTE(CKA.PRIVATE, new CK_BBOOL(bPrivate.booleanValue())));
+
+        CK_ATTRIBUTE[] tpl = template.toArray(new CK_ATTRIBUTE[template.size()]);
+
+        CryptokiBinding.ex().C_FindObjectsInit(session, tpl, tpl.length);
+
+        try
+        {
+            CryptokiBinding.ex().C_FindObjects(session, hObjects, hObjects.length, objectCount);
+        }
+        finally
+        {
+            CryptokiBinding.ex().C_FindObjectsFinal(session);
+        }
+
+        if (objectCount.value == 1)
+        {
+            /* return the handle of the located object */
+            return hObjects[0];
+        }
+        else
+        {
+            /* return an object handle which is invalid */
+            return new CK_OBJECT_HANDLE();
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Pool of pre-generated RSA key pairs, so that a key pair can be issued without waiting
+ * for it to be generated.
+ * <p>
+ * Generating an RSA key pair on the HSM takes from hundreds of milliseconds to seconds.
+ * The pool's generator threads keep up to a given number of key pairs ready, each thread
+ * generating in a session of its own so that the HSM generates several pairs at once.
+ * The pairs are token objects with an empty label. A caller takes a pair with
+ * {@link #claim}, which gives both keys their label with C_SetAttributeValue, and the
+ * generators replace it in the background.
+ * <p>
+ * The pairs still in the pool when it is closed are destroyed, so that unlabelled keys
+ * are not left on the token. Private pairs require the application to be logged in
+ * while the pool is open.
+ * <p>
+ * Usage :
+ * <pre>
+ *     KeyPairPool pool = new KeyPairPool(slotId, 16, 4, 2048, true);
+ *
+ *     KeyPairPool.KeyPair pair = pool.claim(session, "customer-1234", 10000);
+ *     ...
+ *     pool.close();
+ * </pre>
+ */
+public class KeyPairPool
+{
+    /** how long a generator waits after a failure before generating again */
+    static final long RETRY_MILLIS = 1000;
+
+    /** id of the slot the keys are generated on */
+    private final long slotId;
+
+    /** size of the generated keys */
+    private final int modulusBits;
+
+    /** flag to generate the private keys as private objects */
+    private final boolean bPrivate;
+
+    /** one permit per key pair which may be generated without exceeding the pool size */
+    private final Semaphore space;
+
+    /** key pairs ready to be claimed, oldest first */
+    private final LinkedBlockingQueue<KeyPair> ready = new LinkedBlockingQueue<KeyPair>();
+
+    /** the generator threads */
+    private final Thread[] generators;
+
+    /** flag to indicate that the pool has been closed */
+    private volatile boolean closed;
+
+    /** the last generation failure, or null */
+    private volatile RuntimeException lastError;
+
+    /** number of key pairs generated */
+    private final AtomicLong generated = new AtomicLong();
+
+    /** number of key pairs claimed */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** number of claims which found the pool empty, and had to wait for a generator */
+    private final AtomicLong waited = new AtomicLong();
+
+    /** number of failed generations */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * A generated key pair.
+     */
+    public static class KeyPair
+    {
+        private final CK_OBJECT_HANDLE hPublicKey;
+        private final CK_OBJECT_HANDLE hPrivateKey;
+
+        /** how long the pair took to generate */
+        private final long generateNanos;
+
+        KeyPair(CK_OBJECT_HANDLE hPublicKey, CK_OBJECT_HANDLE hPrivateKey, long generateNanos)
+        {
+            this.hPublicKey = hPublicKey;
+            this.hPrivateKey = hPrivateKey;
+            this.generateNanos = generateNanos;
+        }
+
+        /** handle of the public key */
+        public CK_OBJECT_HANDLE getPublicKey()
+        {
+            return hPublicKey;
+        }
+
+        /** handle of the private key */
+        public CK_OBJECT_HANDLE getPrivateKey()
+        {
+            return hPrivateKey;
+        }
+
+        /** how long the pair took to generate, in nanoseconds */
+        public long getGenerateNanos()
+        {
+            return generateNanos;
+        }
+    }
+
+    /**
+     * Constructor - opens a session for each generator, and starts the generators.
+     *
+     * @param slotId
+     *  slot to generate the key pairs on
+     *
+     * @param size
+     *  number of key pairs to keep ready
+     *
+     * @param numThreads
+     *  number of generator threads, each generating one key pair at a time
+     *
+     * @param modulusBits
+     *  size of the keys, for example 2048
+     *
+     * @param bPrivate
+     *  true if the private keys are to be private objects
+     */
+    public KeyPairPool(long slotId, int size, int numThreads, int modulusBits, boolean bPrivate)
+    {
+        this.slotId = slotId;
+        this.modulusBits = modulusBits;
+        this.bPrivate = bPrivate;
+        this.space = new Semaphore(size);
+        this.generators = new Thread[numThreads];
+
+        int started = 0;
+
+        try
+        {
+            for (; started < numThreads; ++started)
+            {
+                CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
+
+                CryptokiBinding.ex().C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+
+                generators[started] = new Thread(new Generator(session), "KeyPairPool-" + started);
+                generators[started].setDaemon(true);
+                generators[started].start();
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            /* stop the generators already started, which close their sessions */
+            closed = true;
+
+            for (int i = 0; i < started; ++i)
+            {
+                generators[i].interrupt();
+            }
+
+            try
+            {
+                for (int i = 0; i < started; ++i)
+                {
+                    generators[i].join();
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Claim a key pair, and give both keys a label.
+     *
+     * @param session
+     *  handle to an open read/write session, used to set the label
+     *
+     * @param keyName
+     *  name (label) to give the keys
+     *
+     * @param timeoutMillis
+     *  how long to wait for a key pair when the pool is empty
+     *
+     * @return the key pair, or null if none was ready in time
+     *
+     * @throws RuntimeException
+     *  the last generation failure, if a generation fails while the pool is empty
+     */
+    public KeyPair claim(CK_SESSION_HANDLE session, String keyName, long timeoutMillis)
+        throws InterruptedException
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("pool is closed");
+        }
+
+        KeyPair pair = ready.poll();
+
+        if (pair == null)
+        {
+            waited.incrementAndGet();
+
+            pair = take(timeoutMillis);
+
+            if (pair == null)
+                return null;
+        }
+
+        CK_ATTRIBUTE[] template =
+        {
+            new CK_ATTRIBUTE(CKA.LABEL, keyName.getBytes())
+        };
+
+        try
+        {
+            CryptokiBinding.ex().C_SetAttributeValue(session, pair.hPublicKey, template, template.length);
+        }
+        catch (RuntimeException ex)
+        {
+            /* the pair is still usable, the next claim labels it again */
+            ready.add(pair);
+            throw ex;
+        }
+
+        try
+        {
+            CryptokiBinding.ex().C_SetAttributeValue(session, pair.hPrivateKey, template, template.length);
+        }
+        catch (RuntimeException ex)
+        {
+            unclaim(session, pair);
+            throw ex;
+        }
+
+        /* let a generator replace the pair */
+        space.release();
+        claimed.incrementAndGet();
+
+        /* a search for the label may now find a different key */
+        KeyCache.getInstance().invalidateLabel(keyName);
+
+        return pair;
+    }
+
+    /**
+     * Return a pair whose public key has been labelled but not its private key: the
+     * label of the public key is emptied again and the pair put back in the pool, or,
+     * if that fails too, the pair is destroyed and a generator replaces it.
+     */
+    private void unclaim(CK_SESSION_HANDLE session, KeyPair pair)
+    {
+        CK_ATTRIBUTE[] template =
+        {
+            new CK_ATTRIBUTE(CKA.LABEL, new byte[0])
+        };
+
+        /*
+         * Note that we are not using CryptokiBinding.ex() - the caller throws the error
+         * which got us here.
+         */
+        if (CKR.OK.equals(CryptokiBinding.get().C_SetAttributeValue(session, pair.hPublicKey, template, template.length)))
+        {
+            ready.add(pair);
+            return;
+        }
+
+        CryptokiBinding.get().C_DestroyObject(session, pair.hPublicKey);
+        CryptokiBinding.get().C_DestroyObject(session, pair.hPrivateKey);
+
+        space.release();
+    }
+
+    /**
+     * Wait until a number of key pairs are ready, for example to fill the pool before
+     * accepting requests.
+     *
+     * @param count
+     *  number of key pairs, no more than the size of the pool
+     *
+     * @param timeoutMillis
+     *  how long to wait
+     *
+     * @return true if the key pairs are ready
+     *
+     * @throws RuntimeException
+     *  the last generation failure, if a generation fails while the pool is empty
+     */
+    public boolean awaitReady(int count, long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long failuresBefore = failures.get();
+
+        synchronized (this)
+        {
+            while (ready.size() < count)
+            {
+                checkFailed(failuresBefore);
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0 || closed)
+                    return false;
+
+                wait(remaining);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait for a key pair, giving up when a generation fails while the pool is empty,
+     * rather than waiting for generations which may keep failing.
+     *
+     * @return the key pair, or null if none was ready in time
+     */
+    private KeyPair take(long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long failuresBefore = failures.get();
+
+        synchronized (this)
+        {
+            KeyPair pair;
+
+            while ((pair = ready.poll()) == null)
+            {
+                checkFailed(failuresBefore);
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (closed)
+                    throw new IllegalStateException("pool is closed");
+
+                if (remaining <= 0)
+                    return null;
+
+                wait(remaining);
+            }
+
+            return pair;
+        }
+    }
+
+    /** throw the last generation failure, if there has been one since a wait started and no pair is ready */
+    private void checkFailed(long failuresBefore)
+    {
+        RuntimeException error = lastError;
+
+        if (failures.get() > failuresBefore && ready.isEmpty() && error != null)
+        {
+            throw error;
+        }
+    }
+
+    /** number of key pairs ready to be claimed */
+    public int getReadyCount()
+    {
+        return ready.size();
+    }
+
+    /** number of key pairs generated */
+    public long getGeneratedCount()
+    {
+        return generated.get();
+    }
+
+    /** number of key pairs claimed */
+    public long getClaimedCount()
+    {
+        return claimed.get();
+    }
+
+    /** number of claims which had to wait for a key pair to be generated */
+    public long getWaitedCount()
+    {
+        return waited.get();
+    }
+
+    /** the last generation failure, or null if there has been none */
+    public RuntimeException getLastError()
+    {
+        return lastError;
+    }
+
+    public String toString()
+    {
+        return ready.size() + " ready, " + generated.get() + " generated, " + claimed.get()
+                + " claimed, " + waited.get() + " claims waited, " + failures.get() + " failures";
+    }
+
+    /**
+     * Stop the generators, close their sessions, and destroy the key pairs which were
+     * not claimed.
+     */
+    public void close() throws InterruptedException
+    {
+        closed = true;
+
+        for (int i = 0; i < generators.length; ++i)
+        {
+            generators[i].interrupt();
+        }
+
+        for (int i = 0; i < generators.length; ++i)
+        {
+            generators[i].join();
+        }
+
+        synchronized (this)
+        {
+            notifyAll();
+        }
+
+        if (ready.isEmpty())
+            return;
+
+        CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
+
+        CryptokiBinding.ex().C_OpenSession(slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+
+        try
+        {
+            KeyPair pair;
+
+            while ((pair = ready.poll()) != null)
+            {
+                /*
+                 * Note that we are not using CryptokiBinding.ex() - a key which can not
+                 * be destroyed should not stop the others being destroyed.
+                 */
+                CryptokiBinding.get().C_DestroyObject(session, pair.hPublicKey);
+                CryptokiBinding.get().C_DestroyObject(session, pair.hPrivateKey);
+            }
+        }
+        finally
+        {
+            CryptokiBinding.get().C_CloseSession(session);
+        }
+    }
+
+    /**
+     * A generator, keeping the pool full from its own session.
+     */
+    class Generator implements Runnable
+    {
+        private final CK_SESSION_HANDLE session;
+
+        Generator(CK_SESSION_HANDLE session)
+        {
+            this.session = session;
+        }
+
+        public void run()
+        {
+            try
+            {
+                while (!closed)
+                {
+                    /* wait until the pool has room for another pair */
+                    space.acquire();
+
+                    try
+                    {
+                        CK_OBJECT_HANDLE hPublicKey = new CK_OBJECT_HANDLE();
+                        CK_OBJECT_HANDLE hPrivateKey = new CK_OBJECT_HANDLE();
+                        long start = System.nanoTime();
+
+                        GenerateKey.generateKeyPair(session, CKM.RSA_PKCS_KEY_PAIR_GEN, "", bPrivate,
+                                                    modulusBits, hPublicKey, hPrivateKey);
+
+                        ready.add(new KeyPair(hPublicKey, hPrivateKey, System.nanoTime() - start));
+                        generated.incrementAndGet();
+
+                        synchronized (KeyPairPool.this)
+                        {
+                            KeyPairPool.this.notifyAll();
+                        }
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        space.release();
+                        lastError = ex;
+                        failures.incrementAndGet();
+
+                        /* let waiting claims fail rather than wait for the retry */
+                        synchronized (KeyPairPool.this)
+                        {
+                            KeyPairPool.this.notifyAll();
+                        }
+
+                        Thread.sleep(RETRY_MILLIS);
+                    }
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                /* closed */
+            }
+            finally
+            {
+                CryptokiBinding.get().C_CloseSession(session);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.safenetinc.jcprov.sample;
+
+/**
+ * Log-linear histogram of latency values, recorded in nanoseconds.
+ * <p>
+ * Values below 128 are counted exactly. Larger values are counted in buckets
+ * whose width is 1/64 of their power of two, so any reported percentile is
+ * within 1.6% of the true value. The bucket array has a fixed size, so recording
+ * never allocates.
+ * <p>
+ * A histogram is not thread safe. Each thread records into its own histogram,
+ * and the histograms are merged with {@link #add(LatencyHistogram)} once the
+ * threads have finished.
+ */
+public class LatencyHistogram
+{
+    /** number of buckets per power of two, above the exact range */
+    static final int SUB_BUCKETS = 64;
+
+    /** values below this limit are counted exactly */
+    static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+
+    /** enough buckets to cover every positive long value */
+    static final int BUCKET_COUNT = (63 - 7) * SUB_BUCKETS + EXACT_LIMIT;
+
+    /** count of values recorded in each bucket */
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    /** total number of values recorded */
+    private long totalCount;
+
+    /** sum of all recorded values, used for the mean */
+    private double totalValue;
+
+    /** smallest recorded value */
+    private long minValue = Long.MAX_VALUE;
+
+    /** largest recorded value */
+    private long maxValue;
+
+    /**
+     * Record a single latency value.
+     *
+     * @param nanos
+     *  latency in nanoseconds, negative values are recorded as zero
+     */
+    public void recordValue(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+
+        ++counts[bucketIndex(nanos)];
+        ++totalCount;
+        totalValue += nanos;
+
+        if (nanos < minValue)
+            minValue = nanos;
+
+        if (nanos > maxValue)
+            maxValue = nanos;
+    }
+
+    /**
+     * Add all values recorded in another histogram to this one.
+     *
+     * @param other
+     *  histogram to merge, it is not modified
+     */
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+        {
+            counts[i] += other.counts[i];
+        }
+
+        totalCount += other.totalCount;
+        totalValue += other.totalValue;
+
+        if (other.minValue < minValue)
+            minValue = other.minValue;
+
+        if (other.maxValue > maxValue)
+            maxValue = other.maxValue;
+    }
+
+    /** discard all recorded values */
+    public void reset()
+    {
+        java.util.Arrays.fill(counts, 0);
+        totalCount = 0;
+        totalValue = 0;
+        minValue = Long.MAX_VALUE;
+        maxValue = 0;
+    }
+
+    /** number of values recorded */
+    public long getTotalCount()
+    {
+        return totalCount;
+    }
+
+    /** smallest value recorded, or 0 if the histogram is empty */
+    public long getMinValue()
+    {
+        return (totalCount == 0) ? 0 : minValue;
+    }
+
+    /** largest value recorded, or 0 if the histogram is empty */
+    public long getMaxValue()
+    {
+        return maxValue;
+    }
+
+    /** mean of the recorded values, or 0 if the histogram is empty */
+    public double getMean()
+    {
+        return (totalCount == 0) ? 0 : totalValue / totalCount;
+    }
+
+    /**
+     * Determine the value at the given percentile.
+     *
+     * @param percentile
+     *  percentile to compute, in the range 0 to 100
+     *
+     * @return the upper bound of the bucket holding the percentile, capped at
+     *  the largest recorded value, or 0 if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if (totalCount == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil((percentile / 100.0) * totalCount);
+
+        if (rank < 1)
+            rank = 1;
+
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+        {
+            seen += counts[i];
+
+            if (seen >= rank)
+            {
+                return Math.min(highestValueInBucket(i), maxValue);
+            }
+        }
+
+        return maxValue;
+    }
+
+    /** bucket which counts the given (non negative) value */
+    static int bucketIndex(long value)
+    {
+        if (value < EXACT_LIMIT)
+        {
+            return (int)value;
+        }
+
+        /* keep the 7 most significant bits of the value */
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+
+        return shift * SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    /** smallest value counted by the given bucket */
+    static long lowestValueInBucket(int index)
+    {
+        if (index < EXACT_LIMIT)
+        {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+
+        return (long)(index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    /** largest value counted by the given bucket */
+    static long highestValueInBucket(int index)
+    {
+        if (index + 1 >= BUCKET_COUNT)
+        {
+            return Long.MAX_VALUE;
+        }
+
+        return lowestValueInBucket(index + 1) - 1;
+    }
+}
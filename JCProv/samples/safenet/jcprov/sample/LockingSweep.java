@@ -0,0 +1,430 @@
+package com.safenetinc.jcprov.sample;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Sample program to compare the Cryptoki locking models under increasing contention.
+ * <p>
+ * For each locking model (none, OS, functions) the Cryptoki library is initialised,
+ * and the {@link Threading} benchmark is run once for each thread count of a ladder
+ * (1, 2, 4 ... 256 by default). Cryptoki is finalised between models, so each model
+ * is measured in a freshly initialised library. When every run has completed, a table
+ * of the throughput and tail latency of each model at each thread count is displayed
+ * and, optionally, all runs are written to a JSON or CSV report.
+ * <p>
+ * Note that with the <i>none</i> model the application promises not to call Cryptoki
+ * concurrently, so its figures show the cost of the library's own internal locking only.
+ * <p>
+ * Usage : java ...LockingSweep -keyName &lt;keyname&gt; -duration &lt;duration&gt; [-userPin &lt;userpin&gt;] [-slot &lt;slotId&gt;] [-profile &lt;profile&gt;] [-models &lt;models&gt;] [-mutex &lt;policy&gt;] [-threads &lt;threads&gt;] [-maxThreads &lt;maxthreads&gt;] [-warmup &lt;warmup&gt;] [-soft &lt;latency&gt; [-softLimit &lt;limit&gt;]] [-report &lt;file&gt;] [-format &lt;format&gt;] [-v]
+ * <li><i>keyname</i>       name of the Triple DES key to use for encryption operation
+ * <li><i>duration</i>      execution time of each run, in seconds, excluding the warm-up
+ * <li><i>userpin</i>       user pin for the slot
+ * <li><i>slotId</i>        slot containing the keys, default (0)
+ * <li><i>profile</i>       workload profile file, replaces the Triple DES operation
+ * <li><i>models</i>        comma separated locking models to sweep, default (none,OS,functions)
+ * <li><i>policy</i>        mutex policy of the functions locking model, one of : unfair, fair, spin - default (unfair)
+ * <li><i>threads</i>       comma separated thread counts, replaces the ladder
+ * <li><i>maxthreads</i>    largest thread count of the ladder, default (256)
+ * <li><i>warmup</i>        warm-up time of each run, in seconds, default (0)
+ * <li><i>latency</i>       use a {@link SoftCryptoki} rather than the HSM, delaying each call by &lt;call&gt;[,&lt;crypto&gt;] microseconds
+ * <li><i>limit</i>         most calls the software token processes at once, default (no limit)
+ * <li><i>file</i>          file to write the report to
+ * <li><i>format</i>        report format, one of : json, csv - default (json)
+ * <li-v                    verbose mode
+ */
+public class LockingSweep
+{
+    final static String fileVersion = "FileVersion: $Source: src/com/safenetinc/jcprov/sample/LockingSweep.java $ $Revision: 1.1 $";
+
+    /** easy access to System.out.println */
+    static public void println(String s)
+    {
+        System.out.println(s);
+    }
+
+    /** display runtime usage of this sample */
+    public static void usage()
+    {
+        println("java ...LockingSweep -keyName <keyname> -duration <duration> [-userPin <userpin>] [-slot <slotId>] [-profile <profile>] [-models <models>] [-mutex <policy>] [-threads <threads>] [-maxThreads <maxthreads>] [-warmup <warmup>] [-soft <latency> [-softLimit <limit>]] [-report <file>] [-format <format>] [-v]");
+        println("");
+        println("<keyname>      name of the Triple DES key to use for encryption operation");
+        println("<duration>     execution time of each run, in seconds, excluding the warm-up");
+        println("<userpin>      user pin for the slot");
+        println("<slotId>       slot containing the keys - default (0)");
+        println("<profile>      workload profile file, replaces the Triple DES operation");
+        println("<models>       comma separated locking models to sweep - default (none,OS,functions)");
+        println("<policy>       mutex policy of the functions locking model, one of unfair, fair, spin - default (unfair)");
+        println("<threads>      comma separated thread counts, replaces the ladder");
+        println("<maxthreads>   largest thread count of the ladder 1, 2, 4 ... - default (256)");
+        println("<warmup>       warm-up time of each run, in seconds - default (0)");
+        println("<latency>      use a software token rather than the HSM, delaying each call by <call>[,<crypto>] microseconds");
+        println("<limit>        most calls the software token processes at once - default (no limit)");
+        println("<file>         file to write the report to");
+        println("<format>       report format, one of json, csv - default (json)");
+        println("-v             verbose mode");
+        println("");
+
+        System.exit(1);
+    }
+
+    /** main execution method */
+    public static void main(String[] args)
+    {
+        String userPin = "";
+        String keyName = "";
+        String profileFile = null;
+        String[] models = Threading.LOCKING_MODELS;
+        int[] threadCounts = null;
+        int maxThreads = 256;
+        int duration = 0;
+        int warmup = 0;
+        String reportFile = null;
+        String reportFormat = "json";
+        long[] softLatency = null;
+        int softLimit = 0;
+
+        /*
+         * process command line arguments
+         */
+
+        for (int i = 0; i < args.length; ++i)
+        {
+            if (args[i].equalsIgnoreCase("-keyName"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                keyName = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-userPin"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                userPin = args[i];
+
+                Threading._bLogin = true;
+            }
+            else if (args[i].equalsIgnoreCase("-slot"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                Threading._slotId = Long.parseLong(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-profile"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                profileFile = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-models"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                models = args[i].split(",");
+
+                for (int m = 0; m < models.length; ++m)
+                {
+                    if (!Threading.isLockingModel(models[m]))
+                        usage();
+                }
+            }
+            else if (args[i].equalsIgnoreCase("-mutex"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                Threading._mutexPolicy = args[i];
+
+                if (InstrumentedMutex.policy(args[i]) < 0)
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-threads"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                String[] counts = args[i].split(",");
+
+                threadCounts = new int[counts.length];
+
+                for (int t = 0; t < counts.length; ++t)
+                {
+                    threadCounts[t] = Integer.parseInt(counts[t].trim());
+
+                    if (threadCounts[t] <= 0)
+                        usage();
+                }
+            }
+            else if (args[i].equalsIgnoreCase("-maxThreads"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                maxThreads = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-duration"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                duration = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-warmup"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                warmup = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-soft"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                softLatency = Threading.parseLatency(args[i]);
+
+                if (softLatency == null)
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-softLimit"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                softLimit = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-report"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                reportFile = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-format"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                reportFormat = args[i];
+
+                if (!reportFormat.equalsIgnoreCase("json") && !reportFormat.equalsIgnoreCase("csv"))
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-v"))
+            {
+                Threading._bVerbose = true;
+            }
+            else
+            {
+                usage();
+            }
+        }
+
+        /* an unattended sweep needs a fixed duration for each run */
+        if ((keyName.length() == 0 && profileFile == null) || duration <= 0 || maxThreads <= 0)
+            usage();
+
+        if (threadCounts == null)
+        {
+            threadCounts = ladder(maxThreads);
+        }
+
+        java.util.List<BenchmarkReport> reports = new java.util.ArrayList<BenchmarkReport>();
+
+        try
+        {
+            if (profileFile != null)
+            {
+                Threading._profile = WorkloadProfile.load(profileFile);
+            }
+            else
+            {
+                /* the classic triple DES encryption of 16 bytes */
+                Threading._profile = WorkloadProfile.singleOperation("encrypt", "DES3_ECB", keyName, "16");
+            }
+
+            if (softLatency != null)
+            {
+                /* the token keeps its objects across initialisations, so it is shared by the models */
+                Threading.useSoftToken(userPin, softLatency, softLimit);
+            }
+
+            for (int m = 0; m < models.length; ++m)
+            {
+                for (int t = 0; t < threadCounts.length; ++t)
+                {
+                    println("");
+                    println("Locking model " + models[m] + ", " + threadCounts[t] + " threads");
+
+                    BenchmarkReport report = runModel(models[m], userPin, threadCounts[t], warmup, duration);
+
+                    if (report == null)
+                    {
+                        return;
+                    }
+
+                    Threading.describe(report, threadCounts[t], models[m], keyName, profileFile, warmup, 0);
+                    report.printSummary(System.out);
+                    reports.add(report);
+
+                    if (Threading._mutexStats != null)
+                    {
+                        println("Mutexes: " + Threading._mutexStats);
+                    }
+                }
+            }
+
+            printTable(models, threadCounts, reports);
+
+            if (reportFile != null)
+            {
+                Threading.writeReport(reports, reportFile, reportFormat);
+
+                println("Report written to " + reportFile);
+            }
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Run the benchmark once in a freshly initialised Cryptoki library.
+     * <p>
+     * The library is initialised with the locking model, a session is opened to locate
+     * the keys of the workload, and the library is finalised again when the run is over.
+     *
+     * @param locking
+     *  one of none, OS, functions
+     *
+     * @param userPin
+     *  user pin for the slot, used if a pin was provided
+     *
+     * @param numThreads
+     *  number of threads to run
+     *
+     * @param warmup
+     *  warm-up time, in seconds
+     *
+     * @param duration
+     *  execution time, in seconds, excluding the warm-up
+     *
+     * @return the report of the run, or null if a key of the workload was not found
+     */
+    static BenchmarkReport runModel(String locking, String userPin, int numThreads,
+                                    int warmup, int duration) throws Exception
+    {
+        CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
+
+        Threading.initialize(locking);
+
+        try
+        {
+            CryptokiBinding.ex().C_OpenSession(Threading._slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+
+            /* the login state is shared by every session of the application */
+            if (Threading._bLogin)
+            {
+                CryptokiBinding.ex().C_Login(session, CKU.USER, userPin.getBytes(), userPin.length());
+            }
+
+            /* key handles are not valid across initialisations, so locate them again */
+            String missing = Threading._profile.resolveKeys(session, Threading._slotId);
+
+            if (missing != null)
+            {
+                println("key (" + missing + ") not found");
+                return null;
+            }
+
+            return Threading.runBenchmark(numThreads, 0, warmup, duration);
+        }
+        finally
+        {
+            /*
+             * Note that we are not using CryptokiBinding.ex() and we are not checking the
+             * return value, as we are shutting down.
+             */
+            CryptokiBinding.get().C_CloseSession(session);
+            CryptokiBinding.get().C_Finalize(null);
+
+            /* the cached key handles died with the library */
+            KeyCache.getInstance().clear();
+        }
+    }
+
+    /** thread counts 1, 2, 4 ... up to and including the limit */
+    static int[] ladder(int maxThreads)
+    {
+        int steps = 0;
+
+        for (int n = 1; n <= maxThreads; n *= 2)
+        {
+            ++steps;
+        }
+
+        int[] counts = new int[steps];
+
+        for (int i = 0; i < steps; ++i)
+        {
+            counts[i] = 1 << i;
+        }
+
+        return counts;
+    }
+
+    /**
+     * Display the throughput and tail latency of each locking model, one line per
+     * thread count. The reports are in model order, then thread count order.
+     */
+    static void printTable(String[] models, int[] threadCounts, java.util.List<BenchmarkReport> reports)
+    {
+        StringBuilder header = new StringBuilder(Threading.pad("threads", 9));
+
+        for (int m = 0; m < models.length; ++m)
+        {
+            header.append(Threading.pad(models[m] + " ops/s", 18))
+                  .append(Threading.pad("p99 (us)", 11))
+                  .append(Threading.pad("p99.9 (us)", 13));
+        }
+
+        boolean anyFailed = false;
+
+        println("");
+        println(header.toString());
+
+        for (int t = 0; t < threadCounts.length; ++t)
+        {
+            StringBuilder line = new StringBuilder(Threading.pad(String.valueOf(threadCounts[t]), 9));
+
+            for (int m = 0; m < models.length; ++m)
+            {
+                BenchmarkReport report = reports.get(m * threadCounts.length + t);
+                LatencyHistogram h = report.getLatency();
+                String ops = BenchmarkReport.formatDouble(report.getThroughput());
+
+                /* flag runs in which threads failed, their figures are incomplete */
+                if (report.getFailedThreads() > 0)
+                {
+                    ops += "*";
+                    anyFailed = true;
+                }
+
+                line.append(Threading.pad(ops, 18))
+                    .append(Threading.pad(BenchmarkReport.micros(h.getValueAtPercentile(99.0)), 11))
+                    .append(Threading.pad(BenchmarkReport.micros(h.getValueAtPercentile(99.9)), 13));
+            }
+
+            println(line.toString());
+        }
+
+        if (anyFailed)
+            println("* one or more threads terminated with an error");
+    }
+}
@@ -0,0 +1,212 @@
+package com.safenetinc.jcprov.sample;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * The CreateMutex, DestroyMutex, LockMutex and UnlockMutex functions of
+ * CK_C_INITIALIZE_ARGS, implemented with {@link InstrumentedMutex}.
+ * <p>
+ * Cryptoki calls LockMutex and UnlockMutex around every operation it guards, so these
+ * callbacks do no more than lock or unlock the mutex. The mutexes are kept until they
+ * are destroyed, when their statistics are added to a running total, so that the
+ * statistics of each live mutex, and of all mutexes together, can be reported.
+ * <p>
+ * Usage :
+ * <pre>
+ *     MutexCallbacks callbacks = new MutexCallbacks(InstrumentedMutex.UNFAIR, 0);
+ *
+ *     CryptokiEx.C_Initialize(callbacks.getInitArgs());
+ * </pre>
+ */
+public class MutexCallbacks implements CK_C_INITIALIZE_ARGS.CK_CREATEMUTEX,
+                                       CK_C_INITIALIZE_ARGS.CK_DESTROYMUTEX,
+                                       CK_C_INITIALIZE_ARGS.CK_LOCKMUTEX,
+                                       CK_C_INITIALIZE_ARGS.CK_UNLOCKMUTEX
+{
+    /** policy of the mutexes created */
+    private final int policy;
+
+    /** lock attempts made by spinning mutexes before they park */
+    private final int spinTries;
+
+    /** every mutex not yet destroyed, in creation order */
+    private final java.util.List<InstrumentedMutex> mutexes = new java.util.ArrayList<InstrumentedMutex>();
+
+    /** statistics of the mutexes destroyed, guarded by mutexes */
+    private final InstrumentedMutex.Stats destroyedStats = new InstrumentedMutex.Stats();
+
+    /** number of mutexes destroyed, guarded by mutexes */
+    private long destroyed;
+
+    /**
+     * Constructor.
+     *
+     * @param policy
+     *  one of InstrumentedMutex.UNFAIR, InstrumentedMutex.FAIR, InstrumentedMutex.SPIN
+     *
+     * @param spinTries
+     *  lock attempts made by spinning mutexes before they park, 0 for the default
+     */
+    public MutexCallbacks(int policy, int spinTries)
+    {
+        this.policy = policy;
+        this.spinTries = (spinTries > 0) ? spinTries : InstrumentedMutex.DEFAULT_SPIN_TRIES;
+    }
+
+    /** initialisation arguments which use these callbacks */
+    public CK_C_INITIALIZE_ARGS getInitArgs()
+    {
+        return new CK_C_INITIALIZE_ARGS(this, this, this, this);
+    }
+
+    public Object CreateMutex()
+    {
+        InstrumentedMutex m = new InstrumentedMutex(policy, spinTries);
+
+        synchronized (mutexes)
+        {
+            mutexes.add(m);
+        }
+
+        return m;
+    }
+
+    public long DestroyMutex(Object mutex)
+    {
+        if (!(mutex instanceof InstrumentedMutex))
+        {
+            return CKR.MUTEX_BAD.longValue();
+        }
+
+        InstrumentedMutex m = (InstrumentedMutex)mutex;
+
+        synchronized (mutexes)
+        {
+            if (!mutexes.remove(m))
+            {
+                return CKR.MUTEX_BAD.longValue();
+            }
+        }
+
+        /* keep its statistics in the totals, reading them outside the list's lock */
+        InstrumentedMutex.Stats stats = m.getStats(false);
+
+        synchronized (mutexes)
+        {
+            destroyedStats.add(stats);
+            ++destroyed;
+        }
+
+        return CKR.OK.longValue();
+    }
+
+    public long LockMutex(Object mutex)
+    {
+        if (!(mutex instanceof InstrumentedMutex))
+        {
+            return CKR.MUTEX_BAD.longValue();
+        }
+
+        ((InstrumentedMutex)mutex).lock();
+
+        return CKR.OK.longValue();
+    }
+
+    public long UnlockMutex(Object mutex)
+    {
+        if (!(mutex instanceof InstrumentedMutex))
+        {
+            return CKR.MUTEX_BAD.longValue();
+        }
+
+        if (!((InstrumentedMutex)mutex).unlock())
+        {
+            return CKR.MUTEX_NOT_LOCKED.longValue();
+        }
+
+        return CKR.OK.longValue();
+    }
+
+    /** a copy of the list of mutexes not yet destroyed */
+    public java.util.List<InstrumentedMutex> getMutexes()
+    {
+        synchronized (mutexes)
+        {
+            return new java.util.ArrayList<InstrumentedMutex>(mutexes);
+        }
+    }
+
+    /**
+     * Clear the statistics of every mutex, for example at the end of a warm-up period.
+     */
+    public void resetStats()
+    {
+        for (InstrumentedMutex m : getMutexes())
+        {
+            m.getStats(true);
+        }
+
+        synchronized (mutexes)
+        {
+            destroyedStats.locks = 0;
+            destroyedStats.contended = 0;
+            destroyedStats.waitNanos = 0;
+            destroyedStats.maxWaitNanos = 0;
+            destroyedStats.holdNanos = 0;
+            destroyedStats.maxHoldNanos = 0;
+        }
+    }
+
+    /**
+     * Combine the statistics of every mutex, including those destroyed.
+     *
+     * @return the totals, with the longest wait and hold of any mutex
+     */
+    public InstrumentedMutex.Stats getTotalStats()
+    {
+        InstrumentedMutex.Stats total = new InstrumentedMutex.Stats();
+
+        synchronized (mutexes)
+        {
+            total.add(destroyedStats);
+        }
+
+        for (InstrumentedMutex m : getMutexes())
+        {
+            total.add(m.getStats(false));
+        }
+
+        return total;
+    }
+
+    /**
+     * Write the statistics of every mutex which was used, followed by the totals.
+     *
+     * @param out
+     *  stream to write to
+     */
+    public void printStats(java.io.PrintStream out)
+    {
+        java.util.List<InstrumentedMutex> list = getMutexes();
+
+        for (int i = 0; i < list.size(); ++i)
+        {
+            InstrumentedMutex.Stats s = list.get(i).getStats(false);
+
+            if (s.locks > 0)
+            {
+                out.println("  mutex " + i + ": " + s);
+            }
+        }
+
+        long gone;
+
+        synchronized (mutexes)
+        {
+            gone = destroyed;
+        }
+
+        out.println("Mutexes (" + list.size() + ", " + gone + " destroyed): " + getTotalStats());
+    }
+}
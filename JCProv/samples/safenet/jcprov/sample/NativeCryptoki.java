@@ -0,0 +1,281 @@
+package com.safenetinc.jcprov.sample;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * The Cryptoki functions of the HSM, called through jcprov.
+ * <p>
+ * The SafeNet extensions which only some versions of jcprov provide are found when the
+ * class is loaded, and report CKR.FUNCTION_NOT_SUPPORTED when they are missing.
+ */
+public class NativeCryptoki implements CryptokiApi
+{
+    /** CA_DestroyMultipleObjects, or null */
+    private static final Method destroyMultipleObjects =
+        lookup("CA_DestroyMultipleObjects", CK_SESSION_HANDLE.class, long.class, CK_OBJECT_HANDLE[].class, LongRef.class);
+
+    public CK_RV C_Initialize(CK_C_INITIALIZE_ARGS pInitArgs)
+    {
+        return Cryptoki.C_Initialize(pInitArgs);
+    }
+
+    public CK_RV C_Finalize(Object pReserved)
+    {
+        return Cryptoki.C_Finalize(pReserved);
+    }
+
+    public CK_RV C_GetSlotList(CK_BBOOL tokenPresent, long[] pSlotList, LongRef pulCount)
+    {
+        return Cryptoki.C_GetSlotList(tokenPresent, pSlotList, pulCount);
+    }
+
+    public CK_RV C_GetSlotInfo(long slotID, CK_SLOT_INFO pInfo)
+    {
+        return Cryptoki.C_GetSlotInfo(slotID, pInfo);
+    }
+
+    public CK_RV C_GetTokenInfo(long slotID, CK_TOKEN_INFO pInfo)
+    {
+        return Cryptoki.C_GetTokenInfo(slotID, pInfo);
+    }
+
+    public CK_RV C_GetMechanismList(long slotID, CK_MECHANISM_TYPE[] pMechanismList, LongRef pulCount)
+    {
+        return Cryptoki.C_GetMechanismList(slotID, pMechanismList, pulCount);
+    }
+
+    public CK_RV C_GetMechanismInfo(long slotID, CK_MECHANISM_TYPE type, CK_MECHANISM_INFO pInfo)
+    {
+        return Cryptoki.C_GetMechanismInfo(slotID, type, pInfo);
+    }
+
+    public CK_RV C_OpenSession(long slotID, long flags, Object pApplication, Object notify,
+                               CK_SESSION_HANDLE phSession)
+    {
+        return Cryptoki.C_OpenSession(slotID, flags, pApplication, notify, phSession);
+    }
+
+    public CK_RV C_CloseSession(CK_SESSION_HANDLE hSession)
+    {
+        return Cryptoki.C_CloseSession(hSession);
+    }
+
+    public CK_RV C_GetSessionInfo(CK_SESSION_HANDLE hSession, CK_SESSION_INFO pInfo)
+    {
+        return Cryptoki.C_GetSessionInfo(hSession, pInfo);
+    }
+
+    public CK_RV C_Login(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType, byte[] pPin, long ulPinLen)
+    {
+        return Cryptoki.C_Login(hSession, userType, pPin, ulPinLen);
+    }
+
+    public CK_RV C_Logout(CK_SESSION_HANDLE hSession)
+    {
+        return Cryptoki.C_Logout(hSession);
+    }
+
+    public CK_RV C_DestroyObject(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject)
+    {
+        return Cryptoki.C_DestroyObject(hSession, hObject);
+    }
+
+    public CK_RV C_GetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                                     CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        return Cryptoki.C_GetAttributeValue(hSession, hObject, pTemplate, ulCount);
+    }
+
+    public CK_RV C_SetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                                     CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        return Cryptoki.C_SetAttributeValue(hSession, hObject, pTemplate, ulCount);
+    }
+
+    public CK_RV C_FindObjectsInit(CK_SESSION_HANDLE hSession, CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        return Cryptoki.C_FindObjectsInit(hSession, pTemplate, ulCount);
+    }
+
+    public CK_RV C_FindObjects(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE[] phObject,
+                               long ulMaxObjectCount, LongRef pulObjectCount)
+    {
+        return Cryptoki.C_FindObjects(hSession, phObject, ulMaxObjectCount, pulObjectCount);
+    }
+
+    public CK_RV C_FindObjectsFinal(CK_SESSION_HANDLE hSession)
+    {
+        return Cryptoki.C_FindObjectsFinal(hSession);
+    }
+
+    public CK_RV C_EncryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return Cryptoki.C_EncryptInit(hSession, pMechanism, hKey);
+    }
+
+    public CK_RV C_Encrypt(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                           byte[] pEncryptedData, LongRef pulEncryptedDataLen)
+    {
+        return Cryptoki.C_Encrypt(hSession, pData, ulDataLen, pEncryptedData, pulEncryptedDataLen);
+    }
+
+    public CK_RV C_EncryptUpdate(CK_SESSION_HANDLE hSession, byte[] pPart, long ulPartLen,
+                                 byte[] pEncryptedPart, LongRef pulEncryptedPartLen)
+    {
+        return Cryptoki.C_EncryptUpdate(hSession, pPart, ulPartLen, pEncryptedPart,
+                                        pulEncryptedPartLen);
+    }
+
+    public CK_RV C_EncryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastEncryptedPart,
+                                LongRef pulLastEncryptedPartLen)
+    {
+        return Cryptoki.C_EncryptFinal(hSession, pLastEncryptedPart, pulLastEncryptedPartLen);
+    }
+
+    public CK_RV C_DecryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return Cryptoki.C_DecryptInit(hSession, pMechanism, hKey);
+    }
+
+    public CK_RV C_Decrypt(CK_SESSION_HANDLE hSession, byte[] pEncryptedData, long ulEncryptedDataLen,
+                           byte[] pData, LongRef pulDataLen)
+    {
+        return Cryptoki.C_Decrypt(hSession, pEncryptedData, ulEncryptedDataLen, pData, pulDataLen);
+    }
+
+    public CK_RV C_DecryptUpdate(CK_SESSION_HANDLE hSession, byte[] pEncryptedPart, long ulEncryptedPartLen,
+                                 byte[] pPart, LongRef pulPartLen)
+    {
+        return Cryptoki.C_DecryptUpdate(hSession, pEncryptedPart, ulEncryptedPartLen, pPart,
+                                        pulPartLen);
+    }
+
+    public CK_RV C_DecryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastPart, LongRef pulLastPartLen)
+    {
+        return Cryptoki.C_DecryptFinal(hSession, pLastPart, pulLastPartLen);
+    }
+
+    public CK_RV C_DigestInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism)
+    {
+        return Cryptoki.C_DigestInit(hSession, pMechanism);
+    }
+
+    public CK_RV C_Digest(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                          byte[] pDigest, LongRef pulDigestLen)
+    {
+        return Cryptoki.C_Digest(hSession, pData, ulDataLen, pDigest, pulDigestLen);
+    }
+
+    public CK_RV C_SignInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return Cryptoki.C_SignInit(hSession, pMechanism, hKey);
+    }
+
+    public CK_RV C_Sign(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                        byte[] pSignature, LongRef pulSignatureLen)
+    {
+        return Cryptoki.C_Sign(hSession, pData, ulDataLen, pSignature, pulSignatureLen);
+    }
+
+    public CK_RV C_VerifyInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return Cryptoki.C_VerifyInit(hSession, pMechanism, hKey);
+    }
+
+    public CK_RV C_Verify(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                          byte[] pSignature, long ulSignatureLen)
+    {
+        return Cryptoki.C_Verify(hSession, pData, ulDataLen, pSignature, ulSignatureLen);
+    }
+
+    public CK_RV C_GenerateKey(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                               CK_ATTRIBUTE[] pTemplate, long ulCount, CK_OBJECT_HANDLE phKey)
+    {
+        return Cryptoki.C_GenerateKey(hSession, pMechanism, pTemplate, ulCount, phKey);
+    }
+
+    public CK_RV C_GenerateKeyPair(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                                   CK_ATTRIBUTE[] pPublicKeyTemplate, long ulPublicKeyAttributeCount,
+                                   CK_ATTRIBUTE[] pPrivateKeyTemplate, long ulPrivateKeyAttributeCount,
+                                   CK_OBJECT_HANDLE phPublicKey, CK_OBJECT_HANDLE phPrivateKey)
+    {
+        return Cryptoki.C_GenerateKeyPair(hSession, pMechanism, pPublicKeyTemplate,
+                                          ulPublicKeyAttributeCount, pPrivateKeyTemplate,
+                                          ulPrivateKeyAttributeCount, phPublicKey, phPrivateKey);
+    }
+
+    public CK_RV C_GenerateRandom(CK_SESSION_HANDLE hSession, byte[] pRandomData, long ulRandomLen)
+    {
+        return Cryptoki.C_GenerateRandom(hSession, pRandomData, ulRandomLen);
+    }
+
+    public CK_RV CA_DestroyMultipleObjects(CK_SESSION_HANDLE hSession, long ulHandleCount,
+                                           CK_OBJECT_HANDLE[] phHandleList, LongRef pulIndex)
+    {
+        if (destroyMultipleObjects == null)
+        {
+            return CKR.FUNCTION_NOT_SUPPORTED;
+        }
+
+        try
+        {
+            return (CK_RV)destroyMultipleObjects.invoke(null, hSession, Long.valueOf(ulHandleCount),
+                                                        phHandleList, pulIndex);
+        }
+        catch (InvocationTargetException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException)ex.getCause();
+
+            throw new IllegalStateException(ex.getCause().toString());
+        }
+        catch (IllegalAccessException ex)
+        {
+            return CKR.FUNCTION_NOT_SUPPORTED;
+        }
+    }
+
+    public CK_RV CA_HAGetMasterPublic(long slotId, byte[] pCertificate, LongRef pulCertificateLen)
+    {
+        return Cryptoki.CA_HAGetMasterPublic(slotId, pCertificate, pulCertificateLen);
+    }
+
+    public CK_RV CA_HAGetLoginChallenge(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType,
+                                        byte[] pCertificate, long ulCertificateLen,
+                                        byte[] pChallengeBlob, LongRef pulChallengeBlobLen)
+    {
+        return Cryptoki.CA_HAGetLoginChallenge(hSession, userType, pCertificate, ulCertificateLen,
+                                               pChallengeBlob, pulChallengeBlobLen);
+    }
+
+    public CK_RV CA_HAAnswerLoginChallenge(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hPrivateKey,
+                                           byte[] pChallengeBlob, long ulChallengeBlobLen,
+                                           byte[] pEncryptedPin, LongRef pulEncryptedPinLen)
+    {
+        return Cryptoki.CA_HAAnswerLoginChallenge(hSession, hPrivateKey, pChallengeBlob, ulChallengeBlobLen,
+                                                  pEncryptedPin, pulEncryptedPinLen);
+    }
+
+    public CK_RV CA_HALogin(CK_SESSION_HANDLE hSession, byte[] pEncryptedPin, long ulEncryptedPinLen,
+                            byte[] pMofNBlob, LongRef pulMofNBlobLen)
+    {
+        return Cryptoki.CA_HALogin(hSession, pEncryptedPin, ulEncryptedPinLen, pMofNBlob, pulMofNBlobLen);
+    }
+
+    /** a function of the jcprov Cryptoki class, or null if this version does not have it */
+    private static Method lookup(String name, Class<?>... parameterTypes)
+    {
+        try
+        {
+            return Cryptoki.class.getMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.safenetinc.jcprov.*;
+
+/**
+ * Lazy enumeration of the objects which match a template.
+ * <p>
+ * The handles are fetched from C_FindObjects a page at a time, rather than one handle
+ * per call, so walking a partition with many objects takes few round trips to the HSM.
+ * The next page is only fetched once the consumer has taken every handle of the current
+ * page, so a slow consumer holds at most one page in memory.
+ * <p>
+ * The search occupies the session until it is finished: C_FindObjectsFinal is called
+ * once a C_FindObjects call returns no handles, which is one call after the page with
+ * the last handle, or when the enumerator is closed. A consumer which may stop early must close the enumerator, normally in a finally block,
+ * or close the stream returned by {@link #stream()}.
+ * <p>
+ * Usage :
+ * <pre>
+ *     ObjectEnumerator objects = new ObjectEnumerator(session, template, 1000);
+ *
+ *     try
+ *     {
+ *         while (objects.hasNext())
+ *         {
+ *             CK_OBJECT_HANDLE hObject = objects.next();
+ *             ...
+ *         }
+ *     }
+ *     finally
+ *     {
+ *         objects.close();
+ *     }
+ * </pre>
+ */
+public class ObjectEnumerator implements Iterator<CK_OBJECT_HANDLE>, java.io.Closeable
+{
+    /** number of handles fetched by each call to C_FindObjects, by default */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /** session of the search */
+    private final CK_SESSION_HANDLE session;
+
+    /** the current page of handles, reused for each page */
+    private final CK_OBJECT_HANDLE[] page;
+
+    /** to receive the number of handles in the current page */
+    private final LongRef pageCount = new LongRef();
+
+    /** index of the next handle of the current page */
+    private int position;
+
+    /** number of handles fetched so far */
+    private long fetched;
+
+    /** flag to indicate that the search has been finished */
+    private boolean finished;
+
+    /**
+     * Constructor - starts the search.
+     *
+     * @param session
+     *  handle to an open session, which must not be used for another search until
+     *  this one is finished
+     *
+     * @param template
+     *  attributes of the objects to enumerate, an empty template matches every object
+     *
+     * @param pageSize
+     *  number of handles to fetch from each call to C_FindObjects
+     */
+    public ObjectEnumerator(CK_SESSION_HANDLE session, CK_ATTRIBUTE[] template, int pageSize)
+    {
+        if (pageSize <= 0)
+        {
+            throw new IllegalArgumentException("page size must be positive");
+        }
+
+        this.session = session;
+        this.page = new CK_OBJECT_HANDLE[pageSize];
+
+        for (int i = 0; i < pageSize; ++i)
+        {
+            page[i] = new CK_OBJECT_HANDLE();
+        }
+
+        CryptokiBinding.ex().C_FindObjectsInit(session, template, (template == null) ? 0 : template.length);
+    }
+
+    /**
+     * Determine whether there is another object, fetching the next page if required.
+     */
+    public boolean hasNext()
+    {
+        if (position < pageCount.value)
+        {
+            return true;
+        }
+
+        if (finished)
+        {
+            return false;
+        }
+
+        position = 0;
+        pageCount.value = 0;
+
+        try
+        {
+            CryptokiBinding.ex().C_FindObjects(session, page, page.length, pageCount);
+        }
+        catch (RuntimeException ex)
+        {
+            finished = true;
+
+            /*
+             * Note that we are not using CryptokiBinding.ex(), so that a failure to finish
+             * the search does not hide the failure of C_FindObjects.
+             */
+            CryptokiBinding.get().C_FindObjectsFinal(session);
+
+            throw ex;
+        }
+
+        fetched += pageCount.value;
+
+        /* no more objects match */
+        if (pageCount.value == 0)
+        {
+            close();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the next object.
+     *
+     * @return a handle of its own, which remains valid when the next page is fetched
+     */
+    public CK_OBJECT_HANDLE next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+
+        return new CK_OBJECT_HANDLE(page[position++].longValue());
+    }
+
+    /** number of handles fetched from Cryptoki so far */
+    public long getFetchedCount()
+    {
+        return fetched;
+    }
+
+    /**
+     * Finish the search, if it is not already finished. Any handles not yet taken are
+     * discarded.
+     */
+    public void close()
+    {
+        if (finished)
+        {
+            return;
+        }
+
+        finished = true;
+        position = 0;
+        pageCount.value = 0;
+
+        CryptokiBinding.ex().C_FindObjectsFinal(session);
+    }
+
+    /**
+     * A sequential stream of the remaining objects. Closing the stream finishes the search.
+     */
+    public Stream<CK_OBJECT_HANDLE> stream()
+    {
+        Spliterator<CK_OBJECT_HANDLE> spliterator =
+            Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false).onClose(new Runnable()
+        {
+            public void run()
+            {
+                close();
+            }
+        });
+    }
+}
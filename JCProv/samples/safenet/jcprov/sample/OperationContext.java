@@ -0,0 +1,263 @@
+package com.safenetinc.jcprov.sample;
+
+import java.lang.management.ManagementFactory;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Per-thread state for performing single part operations without allocating.
+ * <p>
+ * A thread which performs operations in a loop would otherwise create a new output
+ * buffer and length reference for every operation. At high rates that garbage causes
+ * frequent young generation collections. A context owns one of each and reuses them :
+ * the output buffer only grows, when an operation needs more room than any before it.
+ * The mechanisms are the caller's, a {@link WorkloadProfile} creates each once.
+ * <p>
+ * The output of the last operation is in {@link #getOutput()}, and is overwritten by the
+ * next operation. A context must only be used by one thread.
+ * <p>
+ * {@link #allocatedBytes()} reports the bytes allocated by the calling thread, so that
+ * a benchmark can confirm that its steady state allocates nothing. The bytes allocated
+ * by the jcprov native layer itself are included.
+ */
+public class OperationContext
+{
+    /** to receive the output length */
+    private final LongRef lRef = new LongRef();
+
+    /** output of the last operation */
+    private byte[] output;
+
+    /** flag to ask Cryptoki for the output length of every operation, rather than predict it */
+    private final boolean bProbe;
+
+    /** number of times the output buffer was grown */
+    private long growCount;
+
+    /**
+     * Constructor.
+     *
+     * @param outputSize
+     *  initial size of the output buffer, the largest output expected avoids growing it
+     *
+     * @param bProbe
+     *  true to ask Cryptoki for the output length of every operation, which costs an
+     *  extra call, rather than predict it with the {@link OutputSizeOracle}
+     */
+    public OperationContext(int outputSize, boolean bProbe)
+    {
+        this.output = new byte[Math.max(1, outputSize)];
+        this.bProbe = bProbe;
+    }
+
+    /** output of the last operation, valid for {@link #getOutputLength()} bytes */
+    public byte[] getOutput()
+    {
+        return output;
+    }
+
+    /** length of the output of the last operation */
+    public int getOutputLength()
+    {
+        return (int)lRef.value;
+    }
+
+    /** number of times the output buffer had to be grown */
+    public long getGrowCount()
+    {
+        return growCount;
+    }
+
+    /**
+     * Encrypt data in a single part.
+     *
+     * @param session
+     *  handle to an open session, owned by the calling thread
+     *
+     * @param mechanism
+     *  the encryption mechanism
+     *
+     * @param hKey
+     *  handle of the key
+     *
+     * @param data
+     *  the plain text
+     *
+     * @param len
+     *  number of bytes of data to encrypt
+     *
+     * @return length of the cipher text in {@link #getOutput()}
+     */
+    public int encrypt(CK_SESSION_HANDLE session, CK_MECHANISM mechanism, CK_OBJECT_HANDLE hKey,
+                       byte[] data, int len)
+    {
+        CryptokiBinding.ex().C_EncryptInit(session, mechanism, hKey);
+
+        int size = bProbe ? -1 : OutputSizeOracle.encryptLength(mechanism.mechanism, len, 0);
+
+        if (size < 0)
+        {
+            lRef.value = 0;
+            CryptokiBinding.ex().C_Encrypt(session, data, len, null, lRef);
+            size = (int)lRef.value;
+        }
+
+        lRef.value = reserve(size);
+        CryptokiBinding.ex().C_Encrypt(session, data, len, output, lRef);
+
+        return (int)lRef.value;
+    }
+
+    /**
+     * Decrypt data in a single part.
+     *
+     * @param session
+     *  handle to an open session, owned by the calling thread
+     *
+     * @param mechanism
+     *  the decryption mechanism
+     *
+     * @param hKey
+     *  handle of the key
+     *
+     * @param data
+     *  the cipher text
+     *
+     * @param len
+     *  number of bytes of data to decrypt
+     *
+     * @return length of the plain text in {@link #getOutput()}
+     */
+    public int decrypt(CK_SESSION_HANDLE session, CK_MECHANISM mechanism, CK_OBJECT_HANDLE hKey,
+                       byte[] data, int len)
+    {
+        CryptokiBinding.ex().C_DecryptInit(session, mechanism, hKey);
+
+        int size = bProbe ? -1 : OutputSizeOracle.decryptLength(mechanism.mechanism, len, 0);
+
+        if (size < 0)
+        {
+            lRef.value = 0;
+            CryptokiBinding.ex().C_Decrypt(session, data, len, null, lRef);
+            size = (int)lRef.value;
+        }
+
+        lRef.value = reserve(size);
+        CryptokiBinding.ex().C_Decrypt(session, data, len, output, lRef);
+
+        return (int)lRef.value;
+    }
+
+    /**
+     * Sign (or MAC) data in a single part.
+     *
+     * @param session
+     *  handle to an open session, owned by the calling thread
+     *
+     * @param mechanism
+     *  the signing mechanism
+     *
+     * @param hKey
+     *  handle of the key
+     *
+     * @param data
+     *  the data to sign
+     *
+     * @param len
+     *  number of bytes of data to sign
+     *
+     * @return length of the signature in {@link #getOutput()}
+     */
+    public int sign(CK_SESSION_HANDLE session, CK_MECHANISM mechanism, CK_OBJECT_HANDLE hKey,
+                    byte[] data, int len)
+    {
+        CryptokiBinding.ex().C_SignInit(session, mechanism, hKey);
+
+        int size = bProbe ? -1 : OutputSizeOracle.signLength(mechanism.mechanism, 0);
+
+        if (size < 0)
+        {
+            lRef.value = 0;
+            CryptokiBinding.ex().C_Sign(session, data, len, null, lRef);
+            size = (int)lRef.value;
+        }
+
+        lRef.value = reserve(size);
+        CryptokiBinding.ex().C_Sign(session, data, len, output, lRef);
+
+        return (int)lRef.value;
+    }
+
+    /**
+     * Digest data in a single part.
+     *
+     * @param session
+     *  handle to an open session, owned by the calling thread
+     *
+     * @param mechanism
+     *  the digest mechanism
+     *
+     * @param data
+     *  the data to digest
+     *
+     * @param len
+     *  number of bytes of data to digest
+     *
+     * @return length of the digest in {@link #getOutput()}
+     */
+    public int digest(CK_SESSION_HANDLE session, CK_MECHANISM mechanism, byte[] data, int len)
+    {
+        CryptokiBinding.ex().C_DigestInit(session, mechanism);
+
+        int size = bProbe ? -1 : OutputSizeOracle.digestLength(mechanism.mechanism);
+
+        if (size < 0)
+        {
+            lRef.value = 0;
+            CryptokiBinding.ex().C_Digest(session, data, len, null, lRef);
+            size = (int)lRef.value;
+        }
+
+        lRef.value = reserve(size);
+        CryptokiBinding.ex().C_Digest(session, data, len, output, lRef);
+
+        return (int)lRef.value;
+    }
+
+    /** make sure the output buffer holds at least size bytes, return its length */
+    private int reserve(int size)
+    {
+        if (output.length < size)
+        {
+            output = new byte[size];
+            ++growCount;
+        }
+
+        return output.length;
+    }
+
+    /**
+     * Bytes allocated by the calling thread since it started.
+     *
+     * @return the number of bytes, or -1 if the JVM can not measure it
+     */
+    public static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+        {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+        {
+            return -1;
+        }
+
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,252 @@
+package com.safenetinc.jcprov.sample;
+
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Predicts the output length of single part operations, so that the output buffer can be
+ * allocated before the operation rather than learnt by calling the operation with a null
+ * buffer first, which costs an extra round trip to the HSM.
+ * <p>
+ * The prediction is exact for digests, HMACs, unpadded block ciphers and padded
+ * encryption. It is an upper bound for padded decryption (the padding is only known once
+ * the data has been decrypted), and for RSA and ECDSA when the size of the key is not
+ * given. The actual output length is still returned by the operation, and must be used
+ * rather than the length of the buffer.
+ * <p>
+ * Mechanisms which are not in the table return -1, and the caller should fall back to
+ * asking Cryptoki for the length.
+ */
+public class OutputSizeOracle
+{
+    /** RSA keys larger than this are not expected, used when the modulus length is not known */
+    public static final int MAX_MODULUS_BYTES = 8192 / 8;
+
+    /** largest ECDSA signature, two values on the P-521 curve */
+    public static final int MAX_ECDSA_SIGNATURE = 2 * 66;
+
+    /** output length is the input length */
+    static final int BLOCK = 0;
+
+    /** the input is padded to the next whole block */
+    static final int PADDED = 1;
+
+    /** output length is the modulus length */
+    static final int RSA = 2;
+
+    /** output length is at most twice the length of the curve order */
+    static final int ECDSA = 3;
+
+    /** output length is fixed */
+    static final int FIXED = 4;
+
+    /** types of the known mechanisms */
+    private static long[] types = new long[0];
+
+    /**
+     * family and block size (or fixed length) of each known mechanism. The table is
+     * searched linearly, rather than kept in a map, so that a lookup allocates nothing.
+     */
+    private static int[][] mechanisms = new int[0][];
+
+    static
+    {
+        add(CKM.DES_ECB, BLOCK, 8);
+        add(CKM.DES_CBC, BLOCK, 8);
+        add(CKM.DES3_ECB, BLOCK, 8);
+        add(CKM.DES3_CBC, BLOCK, 8);
+        add(CKM.AES_ECB, BLOCK, 16);
+        add(CKM.AES_CBC, BLOCK, 16);
+        add(CKM.ARIA_ECB, BLOCK, 16);
+        add(CKM.ARIA_CBC, BLOCK, 16);
+        add(CKM.SEED_ECB, BLOCK, 16);
+        add(CKM.SEED_CBC, BLOCK, 16);
+
+        add(CKM.DES_CBC_PAD, PADDED, 8);
+        add(CKM.DES3_CBC_PAD, PADDED, 8);
+        add(CKM.AES_CBC_PAD, PADDED, 16);
+        add(CKM.ARIA_CBC_PAD, PADDED, 16);
+        add(CKM.SEED_CBC_PAD, PADDED, 16);
+
+        add(CKM.RSA_PKCS, RSA, 0);
+        add(CKM.RSA_X_509, RSA, 0);
+        add(CKM.RSA_PKCS_OAEP, RSA, 0);
+        add(CKM.MD5_RSA_PKCS, RSA, 0);
+        add(CKM.SHA1_RSA_PKCS, RSA, 0);
+        add(CKM.SHA224_RSA_PKCS, RSA, 0);
+        add(CKM.SHA256_RSA_PKCS, RSA, 0);
+        add(CKM.SHA384_RSA_PKCS, RSA, 0);
+        add(CKM.SHA512_RSA_PKCS, RSA, 0);
+
+        add(CKM.ECDSA, ECDSA, 0);
+        add(CKM.ECDSA_SHA1, ECDSA, 0);
+        add(CKM.ECDSA_SHA224, ECDSA, 0);
+        add(CKM.ECDSA_SHA256, ECDSA, 0);
+        add(CKM.ECDSA_SHA384, ECDSA, 0);
+        add(CKM.ECDSA_SHA512, ECDSA, 0);
+
+        add(CKM.MD5, FIXED, 16);
+        add(CKM.SHA_1, FIXED, 20);
+        add(CKM.SHA224, FIXED, 28);
+        add(CKM.SHA256, FIXED, 32);
+        add(CKM.SHA384, FIXED, 48);
+        add(CKM.SHA512, FIXED, 64);
+        add(CKM.MD5_HMAC, FIXED, 16);
+        add(CKM.SHA_1_HMAC, FIXED, 20);
+        add(CKM.SHA224_HMAC, FIXED, 28);
+        add(CKM.SHA256_HMAC, FIXED, 32);
+        add(CKM.SHA384_HMAC, FIXED, 48);
+        add(CKM.SHA512_HMAC, FIXED, 64);
+    }
+
+    private static void add(CK_MECHANISM_TYPE type, int family, int size)
+    {
+        int n = types.length;
+
+        types = java.util.Arrays.copyOf(types, n + 1);
+        mechanisms = java.util.Arrays.copyOf(mechanisms, n + 1);
+
+        types[n] = type.longValue();
+        mechanisms[n] = new int[] { family, size };
+    }
+
+    /** the entry of a mechanism, or null if it is not known */
+    private static int[] lookup(CK_MECHANISM_TYPE type)
+    {
+        long value = type.longValue();
+
+        for (int i = 0; i < types.length; ++i)
+        {
+            if (types[i] == value)
+                return mechanisms[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * Output length of C_Encrypt.
+     *
+     * @param type
+     *  the encryption mechanism
+     *
+     * @param inputLen
+     *  length of the plain text
+     *
+     * @param modulusBytes
+     *  length of the RSA modulus in bytes, 0 if not known
+     *
+     * @return the length of the cipher text, or -1 if the mechanism is not known
+     */
+    public static int encryptLength(CK_MECHANISM_TYPE type, int inputLen, int modulusBytes)
+    {
+        int[] m = lookup(type);
+
+        if (m == null)
+            return -1;
+
+        switch (m[0])
+        {
+            case BLOCK:
+                return inputLen;
+
+            case PADDED:
+                /* there is always at least one byte of padding */
+                return (inputLen / m[1] + 1) * m[1];
+
+            case RSA:
+                return (modulusBytes > 0) ? modulusBytes : MAX_MODULUS_BYTES;
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Output length of C_Decrypt.
+     *
+     * @param type
+     *  the decryption mechanism
+     *
+     * @param inputLen
+     *  length of the cipher text
+     *
+     * @param modulusBytes
+     *  length of the RSA modulus in bytes, 0 if not known
+     *
+     * @return an upper bound of the length of the plain text, or -1 if the mechanism
+     *  is not known
+     */
+    public static int decryptLength(CK_MECHANISM_TYPE type, int inputLen, int modulusBytes)
+    {
+        int[] m = lookup(type);
+
+        if (m == null)
+            return -1;
+
+        switch (m[0])
+        {
+            case BLOCK:
+            case PADDED:
+                return inputLen;
+
+            case RSA:
+                return (modulusBytes > 0) ? modulusBytes : MAX_MODULUS_BYTES;
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Output length of C_Sign.
+     *
+     * @param type
+     *  the signing or MAC mechanism
+     *
+     * @param modulusBytes
+     *  length of the RSA modulus in bytes, 0 if not known
+     *
+     * @return the length, or an upper bound of the length, of the signature, or -1 if
+     *  the mechanism is not known
+     */
+    public static int signLength(CK_MECHANISM_TYPE type, int modulusBytes)
+    {
+        int[] m = lookup(type);
+
+        if (m == null)
+            return -1;
+
+        switch (m[0])
+        {
+            case RSA:
+                return (modulusBytes > 0) ? modulusBytes : MAX_MODULUS_BYTES;
+
+            case ECDSA:
+                return MAX_ECDSA_SIGNATURE;
+
+            case FIXED:
+                return m[1];
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Output length of C_Digest.
+     *
+     * @param type
+     *  the digest mechanism
+     *
+     * @return the length of the digest, or -1 if the mechanism is not known
+     */
+    public static int digestLength(CK_MECHANISM_TYPE type)
+    {
+        int[] m = lookup(type);
+
+        if (m == null || m[0] != FIXED)
+            return -1;
+
+        return m[1];
+    }
+}
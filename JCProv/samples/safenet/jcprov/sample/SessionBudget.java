@@ -0,0 +1,525 @@
+package com.safenetinc.jcprov.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Shares the session limit of a partition between the processes of a host, through a
+ * memory mapped file.
+ * <p>
+ * The partition allows CK_TOKEN_INFO.maxSessionCount sessions. Processes which each open
+ * sessions without regard to the others, such as the parent and child processes of
+ * {@link ApplicationID}, can use them all up, and C_OpenSession then fails in whichever
+ * process is unlucky. A process which reserves a session in the budget before opening it,
+ * and releases it after closing it, either gets a session or waits for one, within the
+ * limit for the host.
+ * <p>
+ * There is no daemon. The file holds the limit and an entry per process, with the number
+ * of sessions the process has reserved. The counters are read and updated while holding
+ * a lock on the header of the file, so an update is atomic for every process. Each
+ * process also holds a lock on its own entry for as long as it runs. The operating
+ * system releases the locks of a process which exits, however it exits, so an entry
+ * whose lock can be taken belongs to a process which has crashed without releasing its
+ * sessions, and is cleared.
+ * <p>
+ * For fairness, a process which wants more sessions than its share of the limit - the
+ * limit divided by the number of processes - only gets them while no other process is
+ * waiting. A process waiting for a session records the fact in its entry, so that the
+ * processes above their share leave the sessions they release to it.
+ * <p>
+ * Every process must open the file with the same limit; the first one creates it. The
+ * file must be on a local file system. Only one SessionBudget is kept per file in a JVM,
+ * so {@link #open} returns the same budget each time a file is opened.
+ * <p>
+ * Usage :
+ * <pre>
+ *     SessionBudget budget = SessionBudget.forSlot(new File("/var/run/hsm-slot1.budget"), slotId, 10);
+ *
+ *     if (budget.reserve(1, 5000))
+ *     {
+ *         try
+ *         {
+ *             ... open, use, close a session ...
+ *         }
+ *         finally
+ *         {
+ *             budget.release(1);
+ *         }
+ *     }
+ * </pre>
+ */
+public class SessionBudget
+{
+    /** start of the file, "SBDG" */
+    static final int MAGIC = 0x53424447;
+
+    /** version of the file layout */
+    static final int VERSION = 1;
+
+    /** number of processes the file has room for */
+    public static final int MAX_PROCESSES = 256;
+
+    /** size of the header, which holds magic, version, limit and number of entries */
+    static final int HEADER_SIZE = 64;
+
+    /** size of an entry : id, reserved, waiting and time of registration */
+    static final int ENTRY_SIZE = 32;
+
+    /** longest pause between two attempts to reserve, when waiting */
+    static final long MAX_BACKOFF_MILLIS = 50;
+
+    /** the budget of each file opened in this JVM, by canonical path */
+    private static final Map<String, SessionBudget> budgets = new HashMap<String, SessionBudget>();
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+
+    /** the lock of this process's entry, held until the budget is closed */
+    private final FileLock entryLock;
+
+    /** position of this process's entry */
+    private final int entry;
+
+    /** id of this process in its entry */
+    private final long id;
+
+    /** the limit of sessions, for every process together */
+    private final int limit;
+
+    /** number of entries of crashed processes which were cleared */
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    /** number of reservations which had to wait */
+    private final AtomicLong waits = new AtomicLong();
+
+    private boolean closed;
+
+    private SessionBudget(File file, int limit) throws IOException
+    {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            this.channel = raf.getChannel();
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + MAX_PROCESSES * ENTRY_SIZE);
+
+            FileLock header = channel.lock(0, HEADER_SIZE, false);
+
+            try
+            {
+                if (map.getInt(0) == 0)
+                {
+                    map.putInt(0, MAGIC);
+                    map.putInt(4, VERSION);
+                    map.putInt(8, limit);
+                    map.putInt(12, MAX_PROCESSES);
+                }
+                else if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(12) != MAX_PROCESSES)
+                {
+                    throw new IOException(file + " is not a session budget of this version");
+                }
+
+                this.limit = map.getInt(8);
+
+                reap();
+
+                /* take the first free entry */
+                int free = -1;
+
+                for (int i = 0; i < MAX_PROCESSES && free < 0; ++i)
+                {
+                    if (map.getLong(position(i)) == 0)
+                        free = i;
+                }
+
+                if (free < 0)
+                {
+                    throw new IOException(file + " has no room for another process");
+                }
+
+                long value;
+
+                do
+                {
+                    value = new SecureRandom().nextLong();
+                }
+                while (value == 0);
+
+                this.entry = position(free);
+                this.id = value;
+                this.entryLock = channel.lock(entry, ENTRY_SIZE, false);
+
+                map.putLong(entry, id);
+                map.putLong(entry + 8, 0);
+                map.putLong(entry + 16, 0);
+                map.putLong(entry + 24, System.currentTimeMillis());
+            }
+            finally
+            {
+                header.release();
+            }
+        }
+        catch (IOException ex)
+        {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Open the budget kept in a file, creating the file if it does not exist.
+     *
+     * @param file
+     *  the file, on a local file system
+     *
+     * @param limit
+     *  the limit of sessions of every process together, used if the file is created
+     */
+    public static SessionBudget open(File file, int limit) throws IOException
+    {
+        String path = file.getCanonicalPath();
+
+        synchronized (budgets)
+        {
+            SessionBudget budget = budgets.get(path);
+
+            if (budget == null)
+            {
+                budget = new SessionBudget(file, limit);
+                budgets.put(path, budget);
+            }
+
+            return budget;
+        }
+    }
+
+    /**
+     * Open the budget of a slot, limited to the maximum sessions of its token, less a
+     * margin for processes which do not use the budget.
+     *
+     * @param file
+     *  the file, on a local file system
+     *
+     * @param slotId
+     *  the slot, whose maxSessionCount is the limit
+     *
+     * @param margin
+     *  number of sessions to leave out of the budget
+     */
+    public static SessionBudget forSlot(File file, long slotId, int margin) throws IOException
+    {
+        CK_TOKEN_INFO info = new CK_TOKEN_INFO();
+
+        CryptokiBinding.ex().C_GetTokenInfo(slotId, info);
+
+        /* 0 means no limit, and ~0 that the token does not say */
+        if (info.maxSessionCount <= 0 || info.maxSessionCount > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("slot " + slotId + " does not report a session limit");
+        }
+
+        return open(file, (int)Math.max(1, info.maxSessionCount - margin));
+    }
+
+    private static int position(int index)
+    {
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    /**
+     * Clear the entries of processes which have exited without closing the budget. The
+     * header must be locked.
+     */
+    private void reap() throws IOException
+    {
+        for (int i = 0; i < MAX_PROCESSES; ++i)
+        {
+            int p = position(i);
+
+            if (map.getLong(p) == 0 || p == entryPosition())
+                continue;
+
+            /* the lock is free only if its process has gone */
+            FileLock lock = channel.tryLock(p, ENTRY_SIZE, false);
+
+            if (lock != null)
+            {
+                map.putLong(p, 0);
+                map.putLong(p + 8, 0);
+                map.putLong(p + 16, 0);
+                lock.release();
+                reclaimed.incrementAndGet();
+            }
+        }
+    }
+
+    /** position of this process's entry, -1 while it is being registered */
+    private int entryPosition()
+    {
+        return (entryLock == null) ? -1 : entry;
+    }
+
+    /**
+     * Try to reserve sessions, without waiting.
+     *
+     * @param count
+     *  number of sessions
+     *
+     * @return true if they were reserved
+     */
+    public boolean tryReserve(int count) throws IOException
+    {
+        return reserve(count, false);
+    }
+
+    /**
+     * Reserve sessions, waiting for them if the budget is used up.
+     *
+     * @param count
+     *  number of sessions
+     *
+     * @param timeoutMillis
+     *  how long to wait, negative to wait forever
+     *
+     * @return true if they were reserved, false if the time ran out
+     */
+    public boolean reserve(int count, long timeoutMillis) throws IOException, InterruptedException
+    {
+        if (reserve(count, false))
+            return true;
+
+        waits.incrementAndGet();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long backoff = 1;
+
+        try
+        {
+            /* marks this process as waiting, until it is done waiting one way or the other */
+            while (!reserve(count, true))
+            {
+                if (timeoutMillis >= 0 && System.nanoTime() - deadline >= 0)
+                    return false;
+
+                /* polled, there is no way to be woken by another process */
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+
+            return true;
+        }
+        finally
+        {
+            setWaiting(0);
+        }
+    }
+
+    /**
+     * Reserve sessions if the limit, and fairness, allow.
+     *
+     * @param bWaiting
+     *  true if the caller waits for the sessions, in which case this process is marked
+     *  as waiting if they can not be reserved; the caller clears the mark when it stops
+     *  waiting. A caller which does not wait leaves the mark as it is.
+     */
+    private synchronized boolean reserve(int count, boolean bWaiting) throws IOException
+    {
+        checkOpen();
+
+        FileLock header = channel.lock(0, HEADER_SIZE, false);
+
+        try
+        {
+            reap();
+
+            long total = 0;
+            int processes = 0;
+            boolean othersWaiting = false;
+
+            for (int i = 0; i < MAX_PROCESSES; ++i)
+            {
+                int p = position(i);
+
+                if (map.getLong(p) == 0)
+                    continue;
+
+                total += map.getLong(p + 8);
+                ++processes;
+
+                if (p != entry && map.getLong(p + 16) > 0)
+                    othersWaiting = true;
+            }
+
+            long mine = map.getLong(entry + 8);
+            long share = Math.max(1, limit / Math.max(1, processes));
+            boolean bAllowed = total + count <= limit && (!othersWaiting || mine + count <= share);
+
+            if (bAllowed)
+            {
+                map.putLong(entry + 8, mine + count);
+                map.putLong(entry + 16, 0);
+            }
+            else if (bWaiting)
+            {
+                map.putLong(entry + 16, count);
+            }
+
+            return bAllowed;
+        }
+        finally
+        {
+            header.release();
+        }
+    }
+
+    private synchronized void setWaiting(long count) throws IOException
+    {
+        if (closed)
+            return;
+
+        FileLock header = channel.lock(0, HEADER_SIZE, false);
+
+        try
+        {
+            map.putLong(entry + 16, count);
+        }
+        finally
+        {
+            header.release();
+        }
+    }
+
+    /**
+     * Release sessions reserved by this process.
+     *
+     * @param count
+     *  number of sessions
+     */
+    public synchronized void release(int count) throws IOException
+    {
+        checkOpen();
+
+        FileLock header = channel.lock(0, HEADER_SIZE, false);
+
+        try
+        {
+            map.putLong(entry + 8, Math.max(0, map.getLong(entry + 8) - count));
+        }
+        finally
+        {
+            header.release();
+        }
+    }
+
+    /** number of sessions reserved by this process */
+    public synchronized long getReserved()
+    {
+        return closed ? 0 : map.getLong(entry + 8);
+    }
+
+    /** number of sessions reserved by every process */
+    public synchronized long getTotalReserved() throws IOException
+    {
+        checkOpen();
+
+        FileLock header = channel.lock(0, HEADER_SIZE, true);
+
+        try
+        {
+            long total = 0;
+
+            for (int i = 0; i < MAX_PROCESSES; ++i)
+            {
+                if (map.getLong(position(i)) != 0)
+                    total += map.getLong(position(i) + 8);
+            }
+
+            return total;
+        }
+        finally
+        {
+            header.release();
+        }
+    }
+
+    /** the limit of sessions of every process together */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    /** number of entries of crashed processes which this process has cleared */
+    public long getReclaimedCount()
+    {
+        return reclaimed.get();
+    }
+
+    /** number of reservations which had to wait */
+    public long getWaitCount()
+    {
+        return waits.get();
+    }
+
+    public String toString()
+    {
+        return getReserved() + " reserved of " + limit + ", " + waits.get() + " waits, "
+                + reclaimed.get() + " reclaimed";
+    }
+
+    /**
+     * Remove this process from the budget, releasing the sessions it still has reserved.
+     */
+    public void close() throws IOException
+    {
+        synchronized (budgets)
+        {
+            budgets.remove(file.getCanonicalPath());
+        }
+
+        synchronized (this)
+        {
+            if (closed)
+                return;
+
+            FileLock header = channel.lock(0, HEADER_SIZE, false);
+
+            try
+            {
+                map.putLong(entry, 0);
+                map.putLong(entry + 8, 0);
+                map.putLong(entry + 16, 0);
+            }
+            finally
+            {
+                header.release();
+            }
+
+            closed = true;
+            entryLock.release();
+            raf.close();
+        }
+    }
+
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("session budget is closed");
+        }
+    }
+}
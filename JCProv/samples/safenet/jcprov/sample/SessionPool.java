@@ -0,0 +1,600 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Pool of open Cryptoki sessions, so that short lived tasks need not open and close
+ * a session of their own.
+ * <p>
+ * Sessions are pooled by slot and session flags. A task leases a session, uses it,
+ * and returns it with {@link Lease#close()}, normally in a finally block. The number
+ * of sessions of each slot and flags is bounded; when every session is leased,
+ * {@link #lease(long, long)} waits for one to be returned.
+ * <p>
+ * Idle sessions are reused most recently used first, so that the least recently used
+ * sessions stay idle and are closed once they have been idle for longer than the idle
+ * timeout. A session which has been idle for a while is checked with C_GetSessionInfo
+ * before it is leased again, and discarded if it is no longer valid, for example
+ * because the HSM was restarted.
+ * <p>
+ * When a user pin is registered for a slot, sessions of that slot are leased logged
+ * in as the user. The login state is shared by all sessions of the application, so
+ * the pool logs in once, and again only when validation finds the slot logged out.
+ * <p>
+ * A session must not be returned with an operation in progress, as the next task to
+ * lease it would be unable to start its own operation. PKCS#11 has no call to abandon
+ * an operation, so a task which starts a multi-part operation (or a find) brackets it
+ * with {@link Lease#operationStarted()} and {@link Lease#operationEnded()}; a session
+ * returned between the two, for example because of an error, is closed rather than
+ * pooled. A single part operation needs no brackets, but it does not always end when it
+ * fails : C_Encrypt or C_Sign failing with CKR_BUFFER_TOO_SMALL leaves the operation
+ * active, to be called again with a larger buffer. A task whose operation fails calls
+ * {@link Lease#invalidate()} before returning the session, so that it is closed.
+ * <p>
+ * When a {@link SessionBudget} is registered for a slot, each session of the slot is
+ * reserved in the budget before it is opened, and released once it is closed, so that
+ * the pools of several processes stay within the session limit of the partition.
+ */
+public class SessionPool
+{
+    /** how long an idle session may go unchecked before it is validated again */
+    public static final long DEFAULT_VALIDATE_AFTER_MILLIS = 1000;
+
+    /** maximum number of sessions of each slot and flags */
+    private final int maxSessions;
+
+    /** idle sessions are closed after this time */
+    private final long idleTimeoutNanos;
+
+    /** idle sessions are validated before they are leased after this time */
+    private long validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_VALIDATE_AFTER_MILLIS);
+
+    /** how long to wait for a session when all are leased, negative to wait forever */
+    private long leaseTimeoutMillis = -1;
+
+    /** pooled sessions, by slot and flags */
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+
+    /** user pins, by slot id */
+    private final ConcurrentHashMap<Long, byte[]> userPins = new ConcurrentHashMap<Long, byte[]>();
+
+    /** budgets shared with other processes, by slot id */
+    private final ConcurrentHashMap<Long, SessionBudget> budgets = new ConcurrentHashMap<Long, SessionBudget>();
+
+    /** flag to indicate that the pool has been closed */
+    private volatile boolean closed;
+
+    /** number of sessions opened */
+    private final AtomicLong opened = new AtomicLong();
+
+    /** number of leases satisfied by an idle session */
+    private final AtomicLong reused = new AtomicLong();
+
+    /** number of sessions closed because they were invalid, idle, or returned with an operation in progress */
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * The sessions of one slot and set of flags.
+     */
+    static class Partition
+    {
+        final long slotId;
+        final long flags;
+
+        /** one permit per session which may be leased */
+        final Semaphore permits;
+
+        /** idle sessions, most recently returned first */
+        final ConcurrentLinkedDeque<Lease> idle = new ConcurrentLinkedDeque<Lease>();
+
+        Partition(long slotId, long flags, int maxSessions)
+        {
+            this.slotId = slotId;
+            this.flags = flags;
+            this.permits = new Semaphore(maxSessions, true);
+        }
+    }
+
+    /**
+     * A pooled session. The lease is returned to the pool when it is closed.
+     */
+    public static class Lease
+    {
+        private final SessionPool pool;
+        private final Partition partition;
+        private final CK_SESSION_HANDLE session;
+
+        /** time at which the session was last returned or validated */
+        long lastUsedNanos;
+
+        /** flag to indicate that the session is leased */
+        boolean leased;
+
+        /** number of operations started but not yet ended */
+        private int activeOperations;
+
+        /** flag to indicate that the session should be closed when it is returned */
+        private boolean invalid;
+
+        /** the budget the session is reserved in, or null */
+        SessionBudget budget;
+
+        Lease(SessionPool pool, Partition partition, CK_SESSION_HANDLE session)
+        {
+            this.pool = pool;
+            this.partition = partition;
+            this.session = session;
+        }
+
+        /** the session handle */
+        public CK_SESSION_HANDLE getSession()
+        {
+            return session;
+        }
+
+        /** id of the slot of the session */
+        public long getSlotId()
+        {
+            return partition.slotId;
+        }
+
+        /** record that a multi-part operation or find has been started on the session */
+        public void operationStarted()
+        {
+            ++activeOperations;
+        }
+
+        /** record that an operation started with {@link #operationStarted()} has ended */
+        public void operationEnded()
+        {
+            if (activeOperations > 0)
+                --activeOperations;
+        }
+
+        /** close the session when it is returned, rather than pooling it */
+        public void invalidate()
+        {
+            invalid = true;
+        }
+
+        /** return the session to the pool, the lease must not be used afterwards */
+        public void close()
+        {
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxSessions
+     *  maximum number of sessions of each slot and set of flags, leased or idle
+     *
+     * @param idleTimeoutMillis
+     *  idle sessions are closed after this time, 0 to keep them open
+     */
+    public SessionPool(int maxSessions, long idleTimeoutMillis)
+    {
+        this.maxSessions = maxSessions;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * Set how long an idle session may go unchecked before it is validated again.
+     *
+     * @param millis
+     *  time in milliseconds, 0 to validate every session as it is leased
+     */
+    public void setValidateAfter(long millis)
+    {
+        validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Set how long to wait for a session when every session is leased.
+     *
+     * @param millis
+     *  time in milliseconds, negative to wait forever
+     */
+    public void setLeaseTimeout(long millis)
+    {
+        leaseTimeoutMillis = millis;
+    }
+
+    /**
+     * Register the user pin of a slot, so that its sessions are leased logged in.
+     *
+     * @param slotId
+     *  id of the slot
+     *
+     * @param userPin
+     *  user pin of the slot
+     */
+    public void setUserPin(long slotId, String userPin)
+    {
+        userPins.put(Long.valueOf(slotId), userPin.getBytes());
+    }
+
+    /**
+     * Register the session budget of a slot, shared with the other processes using the
+     * slot. Sessions opened before the budget was registered are not counted in it.
+     *
+     * @param slotId
+     *  id of the slot
+     *
+     * @param budget
+     *  the budget of the slot
+     */
+    public void setBudget(long slotId, SessionBudget budget)
+    {
+        budgets.put(Long.valueOf(slotId), budget);
+    }
+
+    /**
+     * Lease a session, opening one if there is no idle session.
+     *
+     * @param slotId
+     *  id of the slot
+     *
+     * @param flags
+     *  session flags, for example CKF.RW_SESSION | CKF.SERIAL_SESSION
+     *
+     * @return the lease, to be closed when the session is no longer needed
+     *
+     * @throws RuntimeException
+     *  with CKR.SESSION_COUNT if the lease timeout expires, in the pool or in the budget
+     *  of the slot, or the error of C_OpenSession or C_Login
+     */
+    public Lease lease(long slotId, long flags) throws InterruptedException
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("session pool is closed");
+        }
+
+        Partition p = partition(slotId, flags);
+
+        if (leaseTimeoutMillis < 0)
+        {
+            p.permits.acquire();
+        }
+        else if (!p.permits.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS))
+        {
+            throw CheckedCryptoki.exception("SessionPool.lease", CKR.SESSION_COUNT);
+        }
+
+        try
+        {
+            long now = System.nanoTime();
+
+            evictIdle(p, now);
+
+            Lease l;
+
+            while ((l = p.idle.pollFirst()) != null)
+            {
+                if (now - l.lastUsedNanos < validateAfterNanos || validate(l))
+                {
+                    reused.incrementAndGet();
+                    break;
+                }
+
+                discard(l);
+            }
+
+            if (l == null)
+            {
+                l = open(p);
+            }
+
+            l.leased = true;
+
+            return l;
+        }
+        catch (RuntimeException ex)
+        {
+            p.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Return a leased session to the pool. A session returned with an operation in
+     * progress, or which has been invalidated, is closed.
+     *
+     * @param l
+     *  the lease, returning it more than once has no effect
+     */
+    void release(Lease l)
+    {
+        Partition p = l.partition;
+
+        synchronized (l)
+        {
+            if (!l.leased)
+            {
+                return;
+            }
+
+            l.leased = false;
+        }
+
+        if (closed || l.invalid || l.activeOperations != 0)
+        {
+            discard(l);
+        }
+        else
+        {
+            l.lastUsedNanos = System.nanoTime();
+            p.idle.offerFirst(l);
+
+            /* close() may have emptied the idle sessions since closed was checked */
+            if (closed && p.idle.removeFirstOccurrence(l))
+            {
+                discard(l);
+            }
+        }
+
+        p.permits.release();
+    }
+
+    /**
+     * Close every session which has been idle for longer than the idle timeout. Idle
+     * sessions are also closed as sessions are leased, so this need only be called to
+     * release the sessions of a pool which is not being used.
+     */
+    public void evictIdle()
+    {
+        long now = System.nanoTime();
+
+        for (Partition p : partitions.values())
+        {
+            evictIdle(p, now);
+        }
+    }
+
+    /**
+     * Close all idle sessions. Leased sessions are closed as they are returned.
+     */
+    public void close()
+    {
+        closed = true;
+
+        for (Partition p : partitions.values())
+        {
+            Lease l;
+
+            while ((l = p.idle.pollLast()) != null)
+            {
+                discard(l);
+            }
+        }
+    }
+
+    /** number of sessions opened */
+    public long getOpenedCount()
+    {
+        return opened.get();
+    }
+
+    /** number of leases satisfied by an idle session */
+    public long getReusedCount()
+    {
+        return reused.get();
+    }
+
+    /** number of sessions closed by the pool */
+    public long getDiscardedCount()
+    {
+        return discarded.get();
+    }
+
+    public String toString()
+    {
+        return "opened " + opened.get() + ", reused " + reused.get() + ", discarded " + discarded.get();
+    }
+
+    /** find or create the partition of a slot and set of flags */
+    private Partition partition(long slotId, long flags)
+    {
+        String key = slotId + "/" + flags;
+        Partition p = partitions.get(key);
+
+        if (p == null)
+        {
+            Partition created = new Partition(slotId, flags, maxSessions);
+
+            p = partitions.putIfAbsent(key, created);
+
+            if (p == null)
+                p = created;
+        }
+
+        return p;
+    }
+
+    /** open a session, logged in if a pin is registered for the slot */
+    private Lease open(Partition p) throws InterruptedException
+    {
+        CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
+        SessionBudget budget = budgets.get(Long.valueOf(p.slotId));
+
+        if (budget != null)
+        {
+            reserve(budget);
+        }
+
+        try
+        {
+            CryptokiBinding.ex().C_OpenSession(p.slotId, p.flags, null, null, session);
+        }
+        catch (RuntimeException ex)
+        {
+            unreserve(budget);
+            throw ex;
+        }
+
+        opened.incrementAndGet();
+
+        Lease l = new Lease(this, p, session);
+        l.budget = budget;
+
+        try
+        {
+            login(l);
+        }
+        catch (RuntimeException ex)
+        {
+            discard(l);
+            throw ex;
+        }
+
+        l.lastUsedNanos = System.nanoTime();
+
+        return l;
+    }
+
+    /**
+     * Log in as the user, if a pin is registered for the slot. A slot which is already
+     * logged in, through this or any other session, is not an error.
+     */
+    private void login(Lease l)
+    {
+        byte[] pin = userPins.get(Long.valueOf(l.getSlotId()));
+
+        if (pin == null)
+        {
+            return;
+        }
+
+        CK_RV rv = CryptokiBinding.get().C_Login(l.getSession(), CKU.USER, pin, pin.length);
+
+        if (!rv.equals(CKR.OK) && !rv.equals(CKR.USER_ALREADY_LOGGED_IN))
+        {
+            throw CheckedCryptoki.exception("C_Login", rv);
+        }
+    }
+
+    /**
+     * Check that an idle session is still open on the right slot, and logged in if
+     * required.
+     *
+     * @return false if the session should be discarded
+     */
+    private boolean validate(Lease l)
+    {
+        CK_SESSION_INFO info = new CK_SESSION_INFO();
+
+        if (!CryptokiBinding.get().C_GetSessionInfo(l.getSession(), info).equals(CKR.OK)
+            || info.slotID != l.getSlotId())
+        {
+            return false;
+        }
+
+        boolean loggedIn = info.state.equals(CKS.RO_USER_FUNCTIONS)
+                        || info.state.equals(CKS.RW_USER_FUNCTIONS);
+
+        if (!loggedIn && userPins.containsKey(Long.valueOf(l.getSlotId())))
+        {
+            try
+            {
+                login(l);
+            }
+            catch (RuntimeException ex)
+            {
+                /* the failure of C_Login, see CheckedCryptoki.exception */
+                return false;
+            }
+        }
+
+        l.lastUsedNanos = System.nanoTime();
+
+        return true;
+    }
+
+    /** close the idle sessions of a partition which have exceeded the idle timeout */
+    private void evictIdle(Partition p, long now)
+    {
+        if (idleTimeoutNanos <= 0)
+        {
+            return;
+        }
+
+        Lease l;
+
+        /* the least recently used sessions are at the end */
+        while ((l = p.idle.peekLast()) != null && now - l.lastUsedNanos > idleTimeoutNanos)
+        {
+            if (!p.idle.removeLastOccurrence(l))
+            {
+                continue;
+            }
+
+            /* the session may have been leased and returned since it was examined */
+            if (now - l.lastUsedNanos > idleTimeoutNanos)
+            {
+                discard(l);
+            }
+            else
+            {
+                p.idle.offerFirst(l);
+                break;
+            }
+        }
+    }
+
+    /** close a session which is not to be pooled */
+    private void discard(Lease l)
+    {
+        discarded.incrementAndGet();
+
+        /*
+         * Note that we are not using CryptokiBinding.ex() and we are not checking the
+         * return value, as the session may already be invalid.
+         */
+        CryptokiBinding.get().C_CloseSession(l.getSession());
+
+        unreserve(l.budget);
+    }
+
+    /** reserve a session in the budget of a slot, within the lease timeout */
+    private void reserve(SessionBudget budget) throws InterruptedException
+    {
+        try
+        {
+            if (!budget.reserve(1, leaseTimeoutMillis))
+            {
+                throw CheckedCryptoki.exception("SessionPool.lease", CKR.SESSION_COUNT);
+            }
+        }
+        catch (java.io.IOException ex)
+        {
+            throw new IllegalStateException("session budget : " + ex);
+        }
+    }
+
+    /** release a session reserved in a budget, if any */
+    private void unreserve(SessionBudget budget)
+    {
+        if (budget == null)
+        {
+            return;
+        }
+
+        try
+        {
+            budget.release(1);
+        }
+        catch (java.io.IOException ex)
+        {
+            /* the entry of a process is cleared when it exits, so nothing is lost for good */
+        }
+    }
+}
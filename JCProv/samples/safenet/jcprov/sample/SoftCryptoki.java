@@ -0,0 +1,2177 @@
+package com.safenetinc.jcprov.sample;
+
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * A software token with a single slot, performing the Cryptoki functions with the
+ * JDK's JCE providers.
+ * <p>
+ * It allows the benchmark, session pool and key cache samples to be run, and compared
+ * from one change to the next, on a machine without an HSM. It supports sessions, user
+ * login, object searches, attribute reads, generation, relabelling and destruction
+ * (singly, or with CA_DestroyMultipleObjects) of DES, DES2, DES3, AES, generic secret and
+ * RSA keys, DES, DES3, AES and RSA encryption and decryption, RSA signatures, HMACs and
+ * digests. It reports its session counts and memory use in C_GetTokenInfo, and its
+ * mechanisms in C_GetMechanismList and C_GetMechanismInfo. Objects are kept in memory,
+ * token objects until the SoftCryptoki is discarded, session objects until their session
+ * is closed.
+ * <p>
+ * To resemble an HSM, each call can be delayed by a fixed time, with a longer delay for
+ * the calls which process data, and the number of calls in progress at once can be
+ * limited. A call waiting for its turn is not delayed further. The number of sessions open
+ * at once can be limited too, as it is on a partition.
+ * <p>
+ * The locking model of C_Initialize is honoured : with the mutex functions, the token's
+ * tables are locked with a mutex from those functions, with CKF.OS_LOCKING_OK with an
+ * internal lock, and otherwise not at all.
+ * <p>
+ * Usage :
+ * <pre>
+ *     SoftCryptoki soft = new SoftCryptoki(1, "userpin");
+ *
+ *     soft.setLatency(200, 1000);
+ *     soft.provisionKey("mykey", CKM.DES3_ECB);
+ *
+ *     CryptokiBinding.set(soft);
+ * </pre>
+ */
+public class SoftCryptoki implements CryptokiApi
+{
+    /** output is produced by a Cipher */
+    static final int CIPHER = 0;
+
+    /** output is produced by a Signature */
+    static final int SIGNATURE = 1;
+
+    /** output is produced by a Mac */
+    static final int MAC = 2;
+
+    /** output is produced by a MessageDigest */
+    static final int DIGEST = 3;
+
+    /** the supported mechanisms, by type */
+    private static final Map<Long, Mechanism> mechanisms = new HashMap<Long, Mechanism>();
+
+    static
+    {
+        add(CKM.DES_ECB, CIPHER, "DES/ECB/NoPadding", 0);
+        add(CKM.DES_CBC, CIPHER, "DES/CBC/NoPadding", 8);
+        add(CKM.DES_CBC_PAD, CIPHER, "DES/CBC/PKCS5Padding", 8);
+        add(CKM.DES3_ECB, CIPHER, "DESede/ECB/NoPadding", 0);
+        add(CKM.DES3_CBC, CIPHER, "DESede/CBC/NoPadding", 8);
+        add(CKM.DES3_CBC_PAD, CIPHER, "DESede/CBC/PKCS5Padding", 8);
+        add(CKM.AES_ECB, CIPHER, "AES/ECB/NoPadding", 0);
+        add(CKM.AES_CBC, CIPHER, "AES/CBC/NoPadding", 16);
+        add(CKM.AES_CBC_PAD, CIPHER, "AES/CBC/PKCS5Padding", 16);
+        add(CKM.RSA_PKCS, CIPHER, "RSA/ECB/PKCS1Padding", 0);
+        add(CKM.RSA_X_509, CIPHER, "RSA/ECB/NoPadding", 0);
+        add(CKM.RSA_PKCS_OAEP, CIPHER, "RSA/ECB/OAEPWithSHA-1AndMGF1Padding", 0);
+
+        add(CKM.MD5_RSA_PKCS, SIGNATURE, "MD5withRSA", 0);
+        add(CKM.SHA1_RSA_PKCS, SIGNATURE, "SHA1withRSA", 0);
+        add(CKM.SHA224_RSA_PKCS, SIGNATURE, "SHA224withRSA", 0);
+        add(CKM.SHA256_RSA_PKCS, SIGNATURE, "SHA256withRSA", 0);
+        add(CKM.SHA384_RSA_PKCS, SIGNATURE, "SHA384withRSA", 0);
+        add(CKM.SHA512_RSA_PKCS, SIGNATURE, "SHA512withRSA", 0);
+
+        add(CKM.MD5_HMAC, MAC, "HmacMD5", 0);
+        add(CKM.SHA_1_HMAC, MAC, "HmacSHA1", 0);
+        add(CKM.SHA224_HMAC, MAC, "HmacSHA224", 0);
+        add(CKM.SHA256_HMAC, MAC, "HmacSHA256", 0);
+        add(CKM.SHA384_HMAC, MAC, "HmacSHA384", 0);
+        add(CKM.SHA512_HMAC, MAC, "HmacSHA512", 0);
+
+        add(CKM.MD5, DIGEST, "MD5", 0);
+        add(CKM.SHA_1, DIGEST, "SHA-1", 0);
+        add(CKM.SHA224, DIGEST, "SHA-224", 0);
+        add(CKM.SHA256, DIGEST, "SHA-256", 0);
+        add(CKM.SHA384, DIGEST, "SHA-384", 0);
+        add(CKM.SHA512, DIGEST, "SHA-512", 0);
+    }
+
+    /** the key generation mechanisms, for C_GetMechanismList */
+    private static final CK_MECHANISM_TYPE[] keyGenMechanisms =
+    {
+        CKM.DES_KEY_GEN,
+        CKM.DES2_KEY_GEN,
+        CKM.DES3_KEY_GEN,
+        CKM.AES_KEY_GEN,
+        CKM.GENERIC_SECRET_KEY_GEN,
+        CKM.RSA_PKCS_KEY_PAIR_GEN
+    };
+
+    /** the attributes which C_SetAttributeValue may not change */
+    private static final Set<Long> readOnly = new HashSet<Long>();
+
+    static
+    {
+        readOnly.add(Long.valueOf(CKA.CLASS.longValue()));
+        readOnly.add(Long.valueOf(CKA.KEY_TYPE.longValue()));
+        readOnly.add(Long.valueOf(CKA.TOKEN.longValue()));
+        readOnly.add(Long.valueOf(CKA.PRIVATE.longValue()));
+        readOnly.add(Long.valueOf(CKA.VALUE_LEN.longValue()));
+        readOnly.add(Long.valueOf(CKA.MODULUS_BITS.longValue()));
+        readOnly.add(Long.valueOf(CKA.PUBLIC_EXPONENT.longValue()));
+    }
+
+    /** the value of a CK_SESSION_HANDLE, which jcprov only sets from native code */
+    private static final Field sessionValue = handleField(CK_SESSION_HANDLE.class);
+
+    /** the value of a CK_OBJECT_HANDLE */
+    private static final Field objectValue = handleField(CK_OBJECT_HANDLE.class);
+
+    /** the only slot */
+    private final long slotId;
+
+    /** memory of the token for public, and for private, objects */
+    static final long TOKEN_MEMORY = 1024 * 1024;
+
+    /** the user pin */
+    private final byte[] userPin;
+
+    /** delay of every call */
+    private volatile long callLatencyNanos;
+
+    /** further delay of the calls which process data or generate keys */
+    private volatile long cryptoLatencyNanos;
+
+    /** limit of the sessions open at once, 0 for no limit */
+    private volatile int maxSessions;
+
+    /** limit of the calls in progress at once, or null for no limit */
+    private volatile Semaphore concurrency;
+
+    /** flag to indicate that C_Initialize has been called */
+    private volatile boolean initialized;
+
+    /** flag to indicate that the user is logged in */
+    private volatile boolean loggedIn;
+
+    /** the mutex functions of the application, or null */
+    private CK_C_INITIALIZE_ARGS mutexArgs;
+
+    /** the mutex created with the application's functions */
+    private Object mutex;
+
+    /** the lock used with CKF.OS_LOCKING_OK */
+    private ReentrantLock osLock;
+
+    /** the open sessions, by handle */
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+
+    /** the objects, by handle */
+    private final ConcurrentHashMap<Long, SoftObject> objects = new ConcurrentHashMap<Long, SoftObject>();
+
+    /** the next session or object handle */
+    private final AtomicLong nextHandle = new AtomicLong(1);
+
+    /** number of calls made */
+    private final AtomicLong calls = new AtomicLong();
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * A supported mechanism.
+     */
+    static class Mechanism
+    {
+        final int family;
+        final String algorithm;
+
+        /** length of the IV parameter, 0 if it has no parameter */
+        final int ivLength;
+
+        Mechanism(int family, String algorithm, int ivLength)
+        {
+            this.family = family;
+            this.algorithm = algorithm;
+            this.ivLength = ivLength;
+        }
+    }
+
+    /**
+     * An object of the token, or of a session.
+     */
+    static class SoftObject
+    {
+        /** attribute values, by type, as given by {@link SoftCryptoki#normalize} */
+        final Map<Long, Object> attributes = new HashMap<Long, Object>();
+
+        /** the key material */
+        final Key key;
+
+        /** the session which owns a session object, 0 for a token object */
+        final long session;
+
+        SoftObject(Key key, long session)
+        {
+            this.key = key;
+            this.session = session;
+        }
+
+        boolean isPrivate()
+        {
+            return Boolean.TRUE.equals(attributes.get(Long.valueOf(CKA.PRIVATE.longValue())));
+        }
+    }
+
+    /**
+     * A cryptographic operation in progress.
+     */
+    static class Operation
+    {
+        /** one of CKF.ENCRYPT, CKF.DECRYPT, CKF.SIGN, CKF.VERIFY or CKF.DIGEST */
+        final long function;
+
+        Cipher cipher;
+        Signature signature;
+        Mac mac;
+        MessageDigest digest;
+
+        /** output computed by a call whose buffer was missing or too small */
+        byte[] pending;
+
+        Operation(long function)
+        {
+            this.function = function;
+        }
+    }
+
+    /**
+     * An open session.
+     */
+    static class Session
+    {
+        final long handle;
+        final long flags;
+
+        /** the active cryptographic operation, or null */
+        Operation operation;
+
+        /** handles found by the active search, or null if there is no search */
+        List<Long> found;
+
+        /** index of the next handle of the search */
+        int foundPosition;
+
+        Session(long handle, long flags)
+        {
+            this.handle = handle;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param slotId
+     *  id of the only slot
+     *
+     * @param userPin
+     *  the user pin, required by C_Login
+     */
+    public SoftCryptoki(long slotId, String userPin)
+    {
+        this.slotId = slotId;
+        this.userPin = userPin.getBytes();
+    }
+
+    /**
+     * Delay each call, to resemble the round trip to an HSM.
+     *
+     * @param callMicros
+     *  delay of every call, in microseconds
+     *
+     * @param cryptoMicros
+     *  further delay of the calls which process data or generate keys, in microseconds
+     */
+    public void setLatency(long callMicros, long cryptoMicros)
+    {
+        callLatencyNanos = callMicros * 1000;
+        cryptoLatencyNanos = cryptoMicros * 1000;
+    }
+
+    /**
+     * Limit the number of calls in progress at once, to resemble the number of requests
+     * an HSM processes in parallel. Further calls wait, in order, for their turn.
+     *
+     * @param maxCalls
+     *  limit, 0 for no limit
+     */
+    public void setMaxConcurrency(int maxCalls)
+    {
+        concurrency = (maxCalls > 0) ? new Semaphore(maxCalls, true) : null;
+    }
+
+    /**
+     * Limit the number of sessions open at once, as a partition does. Further sessions
+     * fail with CKR.SESSION_COUNT.
+     *
+     * @param maxSessions
+     *  limit, 0 for no limit
+     */
+    public void setMaxSessions(int maxSessions)
+    {
+        this.maxSessions = maxSessions;
+    }
+
+    /** number of calls made */
+    public long getCallCount()
+    {
+        return calls.get();
+    }
+
+    public String toString()
+    {
+        return "slot " + slotId + ", " + objects.size() + " objects, " + sessions.size()
+                + " sessions, " + calls.get() + " calls";
+    }
+
+    /**
+     * Create a public token key, or key pair, usable with a mechanism, unless the token
+     * already has an object with the label. A benchmark uses this to create the keys its
+     * operations need.
+     *
+     * @param label
+     *  label of the key
+     *
+     * @param type
+     *  the mechanism the key is for
+     *
+     * @return true if a key was created
+     */
+    public boolean provisionKey(String label, CK_MECHANISM_TYPE type)
+    {
+        Mechanism m = mechanisms.get(Long.valueOf(type.longValue()));
+
+        if (m == null || m.family == DIGEST)
+        {
+            return false;
+        }
+
+        Map<Long, Object> match = new HashMap<Long, Object>();
+
+        match.put(Long.valueOf(CKA.LABEL.longValue()), label.getBytes());
+
+        synchronized (objects)
+        {
+            for (SoftObject o : objects.values())
+            {
+                if (matches(o, match))
+                    return false;
+            }
+
+            try
+            {
+                if (m.algorithm.contains("RSA"))
+                {
+                    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+
+                    generator.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4), random);
+
+                    KeyPair pair = generator.generateKeyPair();
+
+                    store(pair.getPublic(), CKO.PUBLIC_KEY, CKK.RSA, label, 0);
+                    store(pair.getPrivate(), CKO.PRIVATE_KEY, CKK.RSA, label, 0);
+                }
+                else if (m.algorithm.startsWith("DESede"))
+                {
+                    store(secret(CKK.DES3, 24), CKO.SECRET_KEY, CKK.DES3, label, 0);
+                }
+                else if (m.algorithm.startsWith("DES"))
+                {
+                    store(secret(CKK.DES, 8), CKO.SECRET_KEY, CKK.DES, label, 0);
+                }
+                else if (m.algorithm.startsWith("AES"))
+                {
+                    store(secret(CKK.AES, 32), CKO.SECRET_KEY, CKK.AES, label, 0);
+                }
+                else
+                {
+                    store(secret(CKK.GENERIC_SECRET, 32), CKO.SECRET_KEY, CKK.GENERIC_SECRET, label, 0);
+                }
+            }
+            catch (GeneralSecurityException ex)
+            {
+                throw new IllegalStateException(ex.toString());
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * General purpose and session management functions
+     */
+
+    public CK_RV C_Initialize(CK_C_INITIALIZE_ARGS pInitArgs)
+    {
+        enter(false);
+
+        try
+        {
+            synchronized (this)
+            {
+                if (initialized)
+                    return CKR.CRYPTOKI_ALREADY_INITIALIZED;
+
+                mutexArgs = null;
+                mutex = null;
+                osLock = null;
+
+                if (pInitArgs != null && pInitArgs.createMutex != null)
+                {
+                    mutexArgs = pInitArgs;
+                    mutex = pInitArgs.createMutex.CreateMutex();
+                }
+                else if (pInitArgs != null && (pInitArgs.flags & CKF.OS_LOCKING_OK) != 0)
+                {
+                    osLock = new ReentrantLock();
+                }
+
+                initialized = true;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_Finalize(Object pReserved)
+    {
+        enter(false);
+
+        try
+        {
+            synchronized (this)
+            {
+                if (!initialized)
+                    return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+                lockTables();
+
+                try
+                {
+                    for (Session s : sessions.values())
+                    {
+                        closeSession(s);
+                    }
+
+                    loggedIn = false;
+                }
+                finally
+                {
+                    unlockTables();
+                }
+
+                if (mutexArgs != null && mutexArgs.destroyMutex != null)
+                {
+                    mutexArgs.destroyMutex.DestroyMutex(mutex);
+                }
+
+                initialized = false;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GetSlotList(CK_BBOOL tokenPresent, long[] pSlotList, LongRef pulCount)
+    {
+        enter(false);
+
+        try
+        {
+            if (!initialized)
+                return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            pulCount.value = 1;
+
+            /* only the length was asked for */
+            if (pSlotList == null)
+                return CKR.OK;
+
+            if (pSlotList.length < 1)
+                return CKR.BUFFER_TOO_SMALL;
+
+            pSlotList[0] = slotId;
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GetSlotInfo(long slotID, CK_SLOT_INFO pInfo)
+    {
+        enter(false);
+
+        try
+        {
+            if (!initialized)
+                return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            if (slotID != slotId)
+                return CKR.SLOT_ID_INVALID;
+
+            pInfo.slotDescription = pad("SoftCryptoki", 64);
+            pInfo.manufacturerID = pad("SafeNet sample", 32);
+            pInfo.flags = CKF.TOKEN_PRESENT;
+            pInfo.hardwareVersion = new CK_VERSION();
+            pInfo.firmwareVersion = new CK_VERSION();
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GetTokenInfo(long slotID, CK_TOKEN_INFO pInfo)
+    {
+        enter(false);
+
+        try
+        {
+            if (!initialized)
+                return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            if (slotID != slotId)
+                return CKR.SLOT_ID_INVALID;
+
+            long rwSessions = 0;
+            long publicUsed = 0;
+            long privateUsed = 0;
+
+            lockTables();
+
+            try
+            {
+                for (Session s : sessions.values())
+                {
+                    if ((s.flags & CKF.RW_SESSION) != 0)
+                        ++rwSessions;
+                }
+
+                for (SoftObject o : objects.values())
+                {
+                    if (o.session != 0)
+                        continue;
+
+                    /* an estimate of the object's size on a token */
+                    long size = 64 + ((o.key.getEncoded() == null) ? 0 : o.key.getEncoded().length);
+
+                    if (o.isPrivate())
+                        privateUsed += size;
+                    else
+                        publicUsed += size;
+                }
+
+                pInfo.sessionCount = sessions.size();
+            }
+            finally
+            {
+                unlockTables();
+            }
+
+            pInfo.label = pad("SoftCryptoki", 32);
+            pInfo.manufacturerID = pad("SafeNet sample", 32);
+            pInfo.model = pad("JCE", 16);
+            pInfo.serialNumber = pad(Long.toString(slotId), 16);
+            pInfo.flags = CKF.RNG | CKF.LOGIN_REQUIRED | CKF.USER_PIN_INITIALIZED | CKF.TOKEN_INITIALIZED;
+            pInfo.maxSessionCount = maxSessions;
+            pInfo.rwSessionCount = rwSessions;
+            pInfo.maxRwSessionCount = maxSessions;
+            pInfo.maxPinLen = 255;
+            pInfo.minPinLen = 1;
+            pInfo.totalPublicMemory = TOKEN_MEMORY;
+            pInfo.freePublicMemory = Math.max(0, TOKEN_MEMORY - publicUsed);
+            pInfo.totalPrivateMemory = TOKEN_MEMORY;
+            pInfo.freePrivateMemory = Math.max(0, TOKEN_MEMORY - privateUsed);
+            pInfo.hardwareVersion = new CK_VERSION();
+            pInfo.firmwareVersion = new CK_VERSION();
+            pInfo.utcTime = pad(new java.text.SimpleDateFormat("yyyyMMddHHmmss00").format(new java.util.Date()), 16);
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GetMechanismList(long slotID, CK_MECHANISM_TYPE[] pMechanismList, LongRef pulCount)
+    {
+        enter(false);
+
+        try
+        {
+            if (!initialized)
+                return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            if (slotID != slotId)
+                return CKR.SLOT_ID_INVALID;
+
+            List<Long> types = new ArrayList<Long>(mechanisms.keySet());
+
+            for (CK_MECHANISM_TYPE type : keyGenMechanisms)
+            {
+                types.add(Long.valueOf(type.longValue()));
+            }
+
+            Collections.sort(types);
+
+            pulCount.value = types.size();
+
+            /* only the length was asked for */
+            if (pMechanismList == null)
+                return CKR.OK;
+
+            if (pMechanismList.length < types.size())
+                return CKR.BUFFER_TOO_SMALL;
+
+            for (int i = 0; i < types.size(); ++i)
+            {
+                pMechanismList[i] = new CK_MECHANISM_TYPE(types.get(i).longValue());
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GetMechanismInfo(long slotID, CK_MECHANISM_TYPE type, CK_MECHANISM_INFO pInfo)
+    {
+        enter(false);
+
+        try
+        {
+            if (!initialized)
+                return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            if (slotID != slotId)
+                return CKR.SLOT_ID_INVALID;
+
+            Mechanism m = mechanisms.get(Long.valueOf(type.longValue()));
+
+            pInfo.minKeySize = 0;
+            pInfo.maxKeySize = 0;
+
+            if (m != null)
+            {
+                if (m.family == CIPHER)
+                    pInfo.flags = CKF.ENCRYPT | CKF.DECRYPT;
+                else if (m.family == DIGEST)
+                    pInfo.flags = CKF.DIGEST;
+                else
+                    pInfo.flags = CKF.SIGN | CKF.VERIFY;
+
+                if (m.algorithm.indexOf("RSA") >= 0)
+                {
+                    /* in bits */
+                    pInfo.minKeySize = 512;
+                    pInfo.maxKeySize = 4096;
+                }
+                else if (m.algorithm.startsWith("AES"))
+                {
+                    /* in bytes */
+                    pInfo.minKeySize = 16;
+                    pInfo.maxKeySize = 32;
+                }
+            }
+            else if (CKM.RSA_PKCS_KEY_PAIR_GEN.equals(type))
+            {
+                pInfo.flags = CKF.GENERATE_KEY_PAIR;
+                pInfo.minKeySize = 512;
+                pInfo.maxKeySize = 4096;
+            }
+            else if (Arrays.asList(keyGenMechanisms).contains(type))
+            {
+                pInfo.flags = CKF.GENERATE;
+            }
+            else
+            {
+                return CKR.MECHANISM_INVALID;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_OpenSession(long slotID, long flags, Object pApplication, Object notify,
+                               CK_SESSION_HANDLE phSession)
+    {
+        enter(false);
+
+        try
+        {
+            if (!initialized)
+                return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            if (slotID != slotId)
+                return CKR.SLOT_ID_INVALID;
+
+            if ((flags & CKF.SERIAL_SESSION) == 0)
+                return CKR.SESSION_PARALLEL_NOT_SUPPORTED;
+
+            Session s = new Session(nextHandle.getAndIncrement(), flags);
+
+            lockTables();
+
+            try
+            {
+                if (maxSessions > 0 && sessions.size() >= maxSessions)
+                    return CKR.SESSION_COUNT;
+
+                sessions.put(Long.valueOf(s.handle), s);
+            }
+            finally
+            {
+                unlockTables();
+            }
+
+            setHandle(sessionValue, phSession, s.handle);
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_CloseSession(CK_SESSION_HANDLE hSession)
+    {
+        enter(false);
+
+        try
+        {
+            if (!initialized)
+                return CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            lockTables();
+
+            try
+            {
+                Session s = sessions.get(Long.valueOf(hSession.longValue()));
+
+                if (s == null)
+                    return CKR.SESSION_HANDLE_INVALID;
+
+                closeSession(s);
+
+                /* the user is logged out when the last session closes */
+                if (sessions.isEmpty())
+                    loggedIn = false;
+            }
+            finally
+            {
+                unlockTables();
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GetSessionInfo(CK_SESSION_HANDLE hSession, CK_SESSION_INFO pInfo)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            boolean rw = (s.flags & CKF.RW_SESSION) != 0;
+
+            pInfo.slotID = slotId;
+            pInfo.flags = s.flags;
+            pInfo.deviceError = 0;
+
+            if (loggedIn)
+                pInfo.state = rw ? CKS.RW_USER_FUNCTIONS : CKS.RO_USER_FUNCTIONS;
+            else
+                pInfo.state = rw ? CKS.RW_PUBLIC_SESSION : CKS.RO_PUBLIC_SESSION;
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_Login(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType, byte[] pPin, long ulPinLen)
+    {
+        enter(false);
+
+        try
+        {
+            if (session(hSession) == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            if (!CKU.USER.equals(userType))
+                return CKR.USER_TYPE_INVALID;
+
+            synchronized (this)
+            {
+                if (loggedIn)
+                    return CKR.USER_ALREADY_LOGGED_IN;
+
+                if (pPin == null || !Arrays.equals(Arrays.copyOf(pPin, (int)ulPinLen), userPin))
+                    return CKR.PIN_INCORRECT;
+
+                loggedIn = true;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_Logout(CK_SESSION_HANDLE hSession)
+    {
+        enter(false);
+
+        try
+        {
+            if (session(hSession) == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            synchronized (this)
+            {
+                if (!loggedIn)
+                    return CKR.USER_NOT_LOGGED_IN;
+
+                loggedIn = false;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /*
+     * Object management functions
+     */
+
+    public CK_RV C_DestroyObject(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            SoftObject o = object(hObject);
+
+            if (o == null)
+                return CKR.OBJECT_HANDLE_INVALID;
+
+            if (o.session == 0 && (s.flags & CKF.RW_SESSION) == 0)
+                return CKR.SESSION_READ_ONLY;
+
+            lockTables();
+
+            try
+            {
+                objects.remove(Long.valueOf(hObject.longValue()));
+            }
+            finally
+            {
+                unlockTables();
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                                     CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        enter(false);
+
+        try
+        {
+            if (session(hSession) == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            SoftObject o = object(hObject);
+
+            if (o == null)
+                return CKR.OBJECT_HANDLE_INVALID;
+
+            CK_RV rv = CKR.OK;
+
+            lockTables();
+
+            try
+            {
+                /* as PKCS#11 requires, every attribute is processed even if one fails */
+                for (int i = 0; i < ulCount; ++i)
+                {
+                    byte[] value = encode(o.attributes.get(Long.valueOf(pTemplate[i].type.longValue())));
+
+                    if (value == null)
+                    {
+                        pTemplate[i].valueLen = -1;
+                        rv = CKR.ATTRIBUTE_TYPE_INVALID;
+                    }
+                    else if (pTemplate[i].pValue == null)
+                    {
+                        pTemplate[i].valueLen = value.length;
+                    }
+                    else if (!(pTemplate[i].pValue instanceof byte[]) || ((byte[])pTemplate[i].pValue).length < value.length)
+                    {
+                        pTemplate[i].valueLen = -1;
+                        rv = CKR.BUFFER_TOO_SMALL;
+                    }
+                    else
+                    {
+                        System.arraycopy(value, 0, (byte[])pTemplate[i].pValue, 0, value.length);
+                        pTemplate[i].valueLen = value.length;
+                    }
+                }
+            }
+            finally
+            {
+                unlockTables();
+            }
+
+            return rv;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_SetAttributeValue(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hObject,
+                                     CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            SoftObject o = object(hObject);
+
+            if (o == null)
+                return CKR.OBJECT_HANDLE_INVALID;
+
+            if (o.session == 0 && (s.flags & CKF.RW_SESSION) == 0)
+                return CKR.SESSION_READ_ONLY;
+
+            Map<Long, Object> values = new HashMap<Long, Object>();
+
+            for (int i = 0; i < ulCount; ++i)
+            {
+                Long type = Long.valueOf(pTemplate[i].type.longValue());
+                Object value = normalize(pTemplate[i].pValue);
+
+                if (value == null)
+                    return CKR.ATTRIBUTE_VALUE_INVALID;
+
+                if (readOnly.contains(type))
+                    return CKR.ATTRIBUTE_READ_ONLY;
+
+                values.put(type, value);
+            }
+
+            lockTables();
+
+            try
+            {
+                /* all of the template is applied, or none of it */
+                o.attributes.putAll(values);
+            }
+            finally
+            {
+                unlockTables();
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_FindObjectsInit(CK_SESSION_HANDLE hSession, CK_ATTRIBUTE[] pTemplate, long ulCount)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            Map<Long, Object> match = new HashMap<Long, Object>();
+
+            for (int i = 0; i < ulCount; ++i)
+            {
+                Object value = normalize(pTemplate[i].pValue);
+
+                if (value == null)
+                    return CKR.ATTRIBUTE_VALUE_INVALID;
+
+                match.put(Long.valueOf(pTemplate[i].type.longValue()), value);
+            }
+
+            synchronized (s)
+            {
+                if (s.found != null)
+                    return CKR.OPERATION_ACTIVE;
+
+                List<Long> found = new ArrayList<Long>();
+
+                lockTables();
+
+                try
+                {
+                    for (Map.Entry<Long, SoftObject> e : objects.entrySet())
+                    {
+                        if (visible(e.getValue()) && matches(e.getValue(), match))
+                            found.add(e.getKey());
+                    }
+                }
+                finally
+                {
+                    unlockTables();
+                }
+
+                /* in order of creation, as a token would */
+                Collections.sort(found);
+
+                s.found = found;
+                s.foundPosition = 0;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_FindObjects(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE[] phObject,
+                               long ulMaxObjectCount, LongRef pulObjectCount)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            synchronized (s)
+            {
+                if (s.found == null)
+                    return CKR.OPERATION_NOT_INITIALIZED;
+
+                int count = 0;
+                int max = (int)Math.min(ulMaxObjectCount, phObject.length);
+
+                while (count < max && s.foundPosition < s.found.size())
+                {
+                    setHandle(objectValue, phObject[count++], s.found.get(s.foundPosition++).longValue());
+                }
+
+                pulObjectCount.value = count;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_FindObjectsFinal(CK_SESSION_HANDLE hSession)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            synchronized (s)
+            {
+                if (s.found == null)
+                    return CKR.OPERATION_NOT_INITIALIZED;
+
+                s.found = null;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /*
+     * Cryptographic functions
+     */
+
+    public CK_RV C_EncryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return init(hSession, CKF.ENCRYPT, pMechanism, hKey);
+    }
+
+    public CK_RV C_Encrypt(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                           byte[] pEncryptedData, LongRef pulEncryptedDataLen)
+    {
+        return process(hSession, CKF.ENCRYPT, pData, ulDataLen, pEncryptedData, pulEncryptedDataLen, true, true);
+    }
+
+    public CK_RV C_EncryptUpdate(CK_SESSION_HANDLE hSession, byte[] pPart, long ulPartLen,
+                                 byte[] pEncryptedPart, LongRef pulEncryptedPartLen)
+    {
+        return process(hSession, CKF.ENCRYPT, pPart, ulPartLen, pEncryptedPart, pulEncryptedPartLen, true, false);
+    }
+
+    public CK_RV C_EncryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastEncryptedPart,
+                                LongRef pulLastEncryptedPartLen)
+    {
+        return process(hSession, CKF.ENCRYPT, null, 0, pLastEncryptedPart, pulLastEncryptedPartLen, false, true);
+    }
+
+    public CK_RV C_DecryptInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return init(hSession, CKF.DECRYPT, pMechanism, hKey);
+    }
+
+    public CK_RV C_Decrypt(CK_SESSION_HANDLE hSession, byte[] pEncryptedData, long ulEncryptedDataLen,
+                           byte[] pData, LongRef pulDataLen)
+    {
+        return process(hSession, CKF.DECRYPT, pEncryptedData, ulEncryptedDataLen, pData, pulDataLen, true, true);
+    }
+
+    public CK_RV C_DecryptUpdate(CK_SESSION_HANDLE hSession, byte[] pEncryptedPart, long ulEncryptedPartLen,
+                                 byte[] pPart, LongRef pulPartLen)
+    {
+        return process(hSession, CKF.DECRYPT, pEncryptedPart, ulEncryptedPartLen, pPart, pulPartLen, true, false);
+    }
+
+    public CK_RV C_DecryptFinal(CK_SESSION_HANDLE hSession, byte[] pLastPart, LongRef pulLastPartLen)
+    {
+        return process(hSession, CKF.DECRYPT, null, 0, pLastPart, pulLastPartLen, false, true);
+    }
+
+    public CK_RV C_DigestInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism)
+    {
+        return init(hSession, CKF.DIGEST, pMechanism, null);
+    }
+
+    public CK_RV C_Digest(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                          byte[] pDigest, LongRef pulDigestLen)
+    {
+        return process(hSession, CKF.DIGEST, pData, ulDataLen, pDigest, pulDigestLen, true, true);
+    }
+
+    public CK_RV C_SignInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return init(hSession, CKF.SIGN, pMechanism, hKey);
+    }
+
+    public CK_RV C_Sign(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                        byte[] pSignature, LongRef pulSignatureLen)
+    {
+        return process(hSession, CKF.SIGN, pData, ulDataLen, pSignature, pulSignatureLen, true, true);
+    }
+
+    public CK_RV C_VerifyInit(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        return init(hSession, CKF.VERIFY, pMechanism, hKey);
+    }
+
+    public CK_RV C_Verify(CK_SESSION_HANDLE hSession, byte[] pData, long ulDataLen,
+                          byte[] pSignature, long ulSignatureLen)
+    {
+        enter(true);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            synchronized (s)
+            {
+                Operation op = s.operation;
+
+                if (op == null || op.function != CKF.VERIFY)
+                    return CKR.OPERATION_NOT_INITIALIZED;
+
+                /* verification always ends the operation */
+                s.operation = null;
+
+                try
+                {
+                    boolean valid;
+
+                    if (op.signature != null)
+                    {
+                        op.signature.update(pData, 0, (int)ulDataLen);
+                        valid = op.signature.verify(pSignature, 0, (int)ulSignatureLen);
+                    }
+                    else
+                    {
+                        op.mac.update(pData, 0, (int)ulDataLen);
+                        valid = MessageDigest.isEqual(op.mac.doFinal(),
+                                                      Arrays.copyOf(pSignature, (int)ulSignatureLen));
+                    }
+
+                    return valid ? CKR.OK : CKR.SIGNATURE_INVALID;
+                }
+                catch (GeneralSecurityException ex)
+                {
+                    return CKR.SIGNATURE_INVALID;
+                }
+            }
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /*
+     * Key management functions
+     */
+
+    public CK_RV C_GenerateKey(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                               CK_ATTRIBUTE[] pTemplate, long ulCount, CK_OBJECT_HANDLE phKey)
+    {
+        enter(true);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            Map<Long, Object> attributes = new HashMap<Long, Object>();
+            CK_RV rv = template(s, pTemplate, ulCount, attributes);
+
+            if (!CKR.OK.equals(rv))
+                return rv;
+
+            long type = pMechanism.mechanism.longValue();
+            CK_KEY_TYPE keyType;
+            int length;
+
+            if (type == CKM.DES_KEY_GEN.longValue())
+            {
+                keyType = CKK.DES;
+                length = 8;
+            }
+            else if (type == CKM.DES2_KEY_GEN.longValue())
+            {
+                keyType = CKK.DES2;
+                length = 16;
+            }
+            else if (type == CKM.DES3_KEY_GEN.longValue())
+            {
+                keyType = CKK.DES3;
+                length = 24;
+            }
+            else if (type == CKM.AES_KEY_GEN.longValue() || type == CKM.GENERIC_SECRET_KEY_GEN.longValue())
+            {
+                keyType = (type == CKM.AES_KEY_GEN.longValue()) ? CKK.AES : CKK.GENERIC_SECRET;
+
+                Object valueLen = attributes.get(Long.valueOf(CKA.VALUE_LEN.longValue()));
+
+                if (!(valueLen instanceof Long))
+                    return CKR.TEMPLATE_INCOMPLETE;
+
+                length = ((Long)valueLen).intValue();
+
+                if (CKK.AES.equals(keyType) && length != 16 && length != 24 && length != 32)
+                    return CKR.KEY_SIZE_RANGE;
+            }
+            else
+            {
+                return CKR.MECHANISM_INVALID;
+            }
+
+            SoftObject o = new SoftObject(secret(keyType, length), isToken(attributes) ? 0 : s.handle);
+
+            o.attributes.putAll(attributes);
+            o.attributes.put(Long.valueOf(CKA.CLASS.longValue()), Long.valueOf(CKO.SECRET_KEY.longValue()));
+            o.attributes.put(Long.valueOf(CKA.KEY_TYPE.longValue()), Long.valueOf(keyType.longValue()));
+
+            setHandle(objectValue, phKey, add(o));
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GenerateKeyPair(CK_SESSION_HANDLE hSession, CK_MECHANISM pMechanism,
+                                   CK_ATTRIBUTE[] pPublicKeyTemplate, long ulPublicKeyAttributeCount,
+                                   CK_ATTRIBUTE[] pPrivateKeyTemplate, long ulPrivateKeyAttributeCount,
+                                   CK_OBJECT_HANDLE phPublicKey, CK_OBJECT_HANDLE phPrivateKey)
+    {
+        enter(true);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            if (!CKM.RSA_PKCS_KEY_PAIR_GEN.equals(pMechanism.mechanism))
+                return CKR.MECHANISM_INVALID;
+
+            Map<Long, Object> publicAttributes = new HashMap<Long, Object>();
+            Map<Long, Object> privateAttributes = new HashMap<Long, Object>();
+
+            CK_RV rv = template(s, pPublicKeyTemplate, ulPublicKeyAttributeCount, publicAttributes);
+
+            if (CKR.OK.equals(rv))
+                rv = template(s, pPrivateKeyTemplate, ulPrivateKeyAttributeCount, privateAttributes);
+
+            if (!CKR.OK.equals(rv))
+                return rv;
+
+            Object bits = publicAttributes.get(Long.valueOf(CKA.MODULUS_BITS.longValue()));
+            Object exponent = publicAttributes.get(Long.valueOf(CKA.PUBLIC_EXPONENT.longValue()));
+
+            if (!(bits instanceof Long))
+                return CKR.TEMPLATE_INCOMPLETE;
+
+            KeyPair pair;
+
+            try
+            {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+
+                generator.initialize(new RSAKeyGenParameterSpec(((Long)bits).intValue(),
+                        (exponent instanceof byte[]) ? new BigInteger(1, (byte[])exponent) : RSAKeyGenParameterSpec.F4),
+                        random);
+
+                pair = generator.generateKeyPair();
+            }
+            catch (GeneralSecurityException ex)
+            {
+                return CKR.KEY_SIZE_RANGE;
+            }
+
+            SoftObject pub = new SoftObject(pair.getPublic(), isToken(publicAttributes) ? 0 : s.handle);
+            SoftObject priv = new SoftObject(pair.getPrivate(), isToken(privateAttributes) ? 0 : s.handle);
+
+            pub.attributes.putAll(publicAttributes);
+            pub.attributes.put(Long.valueOf(CKA.CLASS.longValue()), Long.valueOf(CKO.PUBLIC_KEY.longValue()));
+            pub.attributes.put(Long.valueOf(CKA.KEY_TYPE.longValue()), Long.valueOf(CKK.RSA.longValue()));
+
+            priv.attributes.putAll(privateAttributes);
+            priv.attributes.put(Long.valueOf(CKA.CLASS.longValue()), Long.valueOf(CKO.PRIVATE_KEY.longValue()));
+            priv.attributes.put(Long.valueOf(CKA.KEY_TYPE.longValue()), Long.valueOf(CKK.RSA.longValue()));
+
+            setHandle(objectValue, phPublicKey, add(pub));
+            setHandle(objectValue, phPrivateKey, add(priv));
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    public CK_RV C_GenerateRandom(CK_SESSION_HANDLE hSession, byte[] pRandomData, long ulRandomLen)
+    {
+        enter(true);
+
+        try
+        {
+            if (session(hSession) == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            byte[] bytes = new byte[(int)ulRandomLen];
+
+            random.nextBytes(bytes);
+            System.arraycopy(bytes, 0, pRandomData, 0, bytes.length);
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /*
+     * SafeNet extensions
+     */
+
+    public CK_RV CA_DestroyMultipleObjects(CK_SESSION_HANDLE hSession, long ulHandleCount,
+                                           CK_OBJECT_HANDLE[] phHandleList, LongRef pulIndex)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            lockTables();
+
+            try
+            {
+                /* destroy in order, stopping at the first object which can not be */
+                for (int i = 0; i < ulHandleCount; ++i)
+                {
+                    /* the tables are already locked, so do not use object() */
+                    SoftObject o = objects.get(Long.valueOf(phHandleList[i].longValue()));
+                    CK_RV rv = CKR.OK;
+
+                    if (o == null || !visible(o))
+                        rv = CKR.OBJECT_HANDLE_INVALID;
+                    else if (o.session == 0 && (s.flags & CKF.RW_SESSION) == 0)
+                        rv = CKR.SESSION_READ_ONLY;
+
+                    if (!CKR.OK.equals(rv))
+                    {
+                        pulIndex.value = i;
+                        return rv;
+                    }
+
+                    objects.remove(Long.valueOf(phHandleList[i].longValue()));
+                }
+            }
+            finally
+            {
+                unlockTables();
+            }
+
+            pulIndex.value = ulHandleCount;
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /*
+     * The HA login functions need a group of HSMs sharing a login key, which a token with
+     * a single slot can not be.
+     */
+
+    public CK_RV CA_HAGetMasterPublic(long slotId, byte[] pCertificate, LongRef pulCertificateLen)
+    {
+        return CKR.FUNCTION_NOT_SUPPORTED;
+    }
+
+    public CK_RV CA_HAGetLoginChallenge(CK_SESSION_HANDLE hSession, CK_USER_TYPE userType,
+                                        byte[] pCertificate, long ulCertificateLen,
+                                        byte[] pChallengeBlob, LongRef pulChallengeBlobLen)
+    {
+        return CKR.FUNCTION_NOT_SUPPORTED;
+    }
+
+    public CK_RV CA_HAAnswerLoginChallenge(CK_SESSION_HANDLE hSession, CK_OBJECT_HANDLE hPrivateKey,
+                                           byte[] pChallengeBlob, long ulChallengeBlobLen,
+                                           byte[] pEncryptedPin, LongRef pulEncryptedPinLen)
+    {
+        return CKR.FUNCTION_NOT_SUPPORTED;
+    }
+
+    public CK_RV CA_HALogin(CK_SESSION_HANDLE hSession, byte[] pEncryptedPin, long ulEncryptedPinLen,
+                            byte[] pMofNBlob, LongRef pulMofNBlobLen)
+    {
+        return CKR.FUNCTION_NOT_SUPPORTED;
+    }
+
+    /*
+     * Implementation
+     */
+
+    private static void add(CK_MECHANISM_TYPE type, int family, String algorithm, int ivLength)
+    {
+        mechanisms.put(Long.valueOf(type.longValue()), new Mechanism(family, algorithm, ivLength));
+    }
+
+    /** start a call : wait for a turn, then for the latency */
+    private void enter(boolean crypto)
+    {
+        calls.incrementAndGet();
+
+        Semaphore limit = concurrency;
+
+        if (limit != null)
+        {
+            limit.acquireUninterruptibly();
+        }
+
+        long delay = callLatencyNanos + (crypto ? cryptoLatencyNanos : 0);
+
+        if (delay > 0)
+        {
+            long deadline = System.nanoTime() + delay;
+            long remaining;
+
+            /* parking may end early */
+            while ((remaining = deadline - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+
+    /** end a call, letting the next one take its turn */
+    private void exit()
+    {
+        Semaphore limit = concurrency;
+
+        if (limit != null)
+        {
+            limit.release();
+        }
+    }
+
+    /** lock the tables of sessions and objects, as the locking model requires */
+    private void lockTables()
+    {
+        if (mutexArgs != null)
+            mutexArgs.lockMutex.LockMutex(mutex);
+        else if (osLock != null)
+            osLock.lock();
+    }
+
+    private void unlockTables()
+    {
+        if (mutexArgs != null)
+            mutexArgs.unlockMutex.UnlockMutex(mutex);
+        else if (osLock != null)
+            osLock.unlock();
+    }
+
+    /** look up a session, null if the handle is invalid or Cryptoki is not initialised */
+    private Session session(CK_SESSION_HANDLE hSession)
+    {
+        if (!initialized)
+            return null;
+
+        lockTables();
+
+        try
+        {
+            return sessions.get(Long.valueOf(hSession.longValue()));
+        }
+        finally
+        {
+            unlockTables();
+        }
+    }
+
+    /** look up an object, null if the handle is invalid or the object is not visible */
+    private SoftObject object(CK_OBJECT_HANDLE hObject)
+    {
+        SoftObject o;
+
+        lockTables();
+
+        try
+        {
+            o = objects.get(Long.valueOf(hObject.longValue()));
+        }
+        finally
+        {
+            unlockTables();
+        }
+
+        return (o != null && visible(o)) ? o : null;
+    }
+
+    /** private objects are only visible when the user is logged in */
+    private boolean visible(SoftObject o)
+    {
+        return !o.isPrivate() || loggedIn;
+    }
+
+    /** close a session, the tables must be locked */
+    private void closeSession(Session s)
+    {
+        sessions.remove(Long.valueOf(s.handle));
+
+        for (java.util.Iterator<SoftObject> it = objects.values().iterator(); it.hasNext(); )
+        {
+            if (it.next().session == s.handle)
+                it.remove();
+        }
+    }
+
+    /** store a new object, returning its handle */
+    private long add(SoftObject o)
+    {
+        long handle = nextHandle.getAndIncrement();
+
+        lockTables();
+
+        try
+        {
+            objects.put(Long.valueOf(handle), o);
+        }
+        finally
+        {
+            unlockTables();
+        }
+
+        return handle;
+    }
+
+    /** store a public token object, for {@link #provisionKey} */
+    private void store(Key key, CK_OBJECT_CLASS keyClass, CK_KEY_TYPE keyType, String label, long session)
+    {
+        SoftObject o = new SoftObject(key, session);
+
+        o.attributes.put(Long.valueOf(CKA.CLASS.longValue()), Long.valueOf(keyClass.longValue()));
+        o.attributes.put(Long.valueOf(CKA.KEY_TYPE.longValue()), Long.valueOf(keyType.longValue()));
+        o.attributes.put(Long.valueOf(CKA.TOKEN.longValue()), Boolean.TRUE);
+        o.attributes.put(Long.valueOf(CKA.PRIVATE.longValue()), Boolean.FALSE);
+        o.attributes.put(Long.valueOf(CKA.LABEL.longValue()), label.getBytes());
+
+        add(o);
+    }
+
+    /** a string as a blank padded Cryptoki character field */
+    private static byte[] pad(String s, int length)
+    {
+        byte[] field = new byte[length];
+
+        Arrays.fill(field, (byte)' ');
+        System.arraycopy(s.getBytes(), 0, field, 0, Math.min(length, s.length()));
+
+        return field;
+    }
+
+    /** random secret key material for a key type */
+    private SecretKeySpec secret(CK_KEY_TYPE keyType, int length)
+    {
+        byte[] value = new byte[length];
+
+        random.nextBytes(value);
+
+        if (CKK.DES.equals(keyType))
+        {
+            return new SecretKeySpec(value, "DES");
+        }
+        else if (CKK.DES2.equals(keyType))
+        {
+            /* the JCE only takes three key triple DES, so repeat the first key */
+            byte[] k1k2k1 = Arrays.copyOf(value, 24);
+
+            System.arraycopy(value, 0, k1k2k1, 16, 8);
+
+            return new SecretKeySpec(k1k2k1, "DESede");
+        }
+        else if (CKK.DES3.equals(keyType))
+        {
+            return new SecretKeySpec(value, "DESede");
+        }
+        else if (CKK.AES.equals(keyType))
+        {
+            return new SecretKeySpec(value, "AES");
+        }
+        else
+        {
+            return new SecretKeySpec(value, "GenericSecret");
+        }
+    }
+
+    /**
+     * Read the template of a new object into a map, and check that the session may
+     * create it.
+     */
+    private CK_RV template(Session s, CK_ATTRIBUTE[] pTemplate, long ulCount, Map<Long, Object> attributes)
+    {
+        for (int i = 0; i < ulCount; ++i)
+        {
+            Object value = normalize(pTemplate[i].pValue);
+
+            if (value == null)
+                return CKR.ATTRIBUTE_VALUE_INVALID;
+
+            attributes.put(Long.valueOf(pTemplate[i].type.longValue()), value);
+        }
+
+        /* keys are private unless stated otherwise */
+        Long privateType = Long.valueOf(CKA.PRIVATE.longValue());
+
+        if (!attributes.containsKey(privateType))
+            attributes.put(privateType, Boolean.TRUE);
+
+        if (isToken(attributes) && (s.flags & CKF.RW_SESSION) == 0)
+            return CKR.SESSION_READ_ONLY;
+
+        if (Boolean.TRUE.equals(attributes.get(privateType)) && !loggedIn)
+            return CKR.USER_NOT_LOGGED_IN;
+
+        return CKR.OK;
+    }
+
+    private static boolean isToken(Map<Long, Object> attributes)
+    {
+        return Boolean.TRUE.equals(attributes.get(Long.valueOf(CKA.TOKEN.longValue())));
+    }
+
+    /** determine whether an object has every attribute value of a search */
+    private static boolean matches(SoftObject o, Map<Long, Object> match)
+    {
+        for (Map.Entry<Long, Object> e : match.entrySet())
+        {
+            Object value = o.attributes.get(e.getKey());
+
+            /* an object without the attribute only matches a search for false */
+            if (value == null && Boolean.FALSE.equals(e.getValue()))
+                continue;
+
+            if (value == null)
+                return false;
+
+            if (value instanceof byte[] && e.getValue() instanceof byte[])
+            {
+                if (!Arrays.equals((byte[])value, (byte[])e.getValue()))
+                    return false;
+            }
+            else if (!value.equals(e.getValue()))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Convert an attribute value to a Boolean, Long or byte array so that values can be
+     * compared.
+     *
+     * @return the value, or null if its type is not supported
+     */
+    static Object normalize(Object value)
+    {
+        if (value instanceof CK_BBOOL)
+            return Boolean.valueOf(((CK_BBOOL)value).booleanValue());
+
+        if (value instanceof Boolean)
+            return value;
+
+        if (value instanceof byte[])
+            return ((byte[])value).clone();
+
+        if (value instanceof String)
+            return ((String)value).getBytes();
+
+        if (value instanceof Number)
+            return Long.valueOf(((Number)value).longValue());
+
+        if (value instanceof CK_OBJECT_CLASS)
+            return Long.valueOf(((CK_OBJECT_CLASS)value).longValue());
+
+        if (value instanceof CK_KEY_TYPE)
+            return Long.valueOf(((CK_KEY_TYPE)value).longValue());
+
+        if (value instanceof CK_DATE)
+        {
+            CK_DATE date = (CK_DATE)value;
+
+            return (new String(date.year) + new String(date.month) + new String(date.day)).getBytes();
+        }
+
+        return null;
+    }
+
+    /**
+     * Convert a normalised attribute value to the bytes returned by C_GetAttributeValue.
+     * CK_BBOOL values are one byte, CK_ULONG values eight bytes, as on a 64 bit little
+     * endian host.
+     *
+     * @return the bytes, or null if there is no value
+     */
+    static byte[] encode(Object value)
+    {
+        if (value instanceof byte[])
+            return ((byte[])value).clone();
+
+        if (value instanceof Boolean)
+            return new byte[] { (byte)(((Boolean)value).booleanValue() ? 1 : 0) };
+
+        if (value instanceof Long)
+        {
+            byte[] bytes = new byte[8];
+            long v = ((Long)value).longValue();
+
+            for (int i = 0; i < bytes.length; ++i)
+            {
+                bytes[i] = (byte)(v >>> (8 * i));
+            }
+
+            return bytes;
+        }
+
+        return null;
+    }
+
+    /** start a cryptographic operation */
+    private CK_RV init(CK_SESSION_HANDLE hSession, long function, CK_MECHANISM pMechanism, CK_OBJECT_HANDLE hKey)
+    {
+        enter(false);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            Mechanism m = mechanisms.get(Long.valueOf(pMechanism.mechanism.longValue()));
+
+            if (m == null)
+                return CKR.MECHANISM_INVALID;
+
+            boolean cipher = (function == CKF.ENCRYPT || function == CKF.DECRYPT);
+            boolean sign = (function == CKF.SIGN || function == CKF.VERIFY);
+
+            if ((cipher && m.family != CIPHER) || (sign && m.family != SIGNATURE && m.family != MAC)
+                    || (function == CKF.DIGEST && m.family != DIGEST))
+            {
+                return CKR.MECHANISM_INVALID;
+            }
+
+            Key key = null;
+
+            if (hKey != null)
+            {
+                SoftObject o = object(hKey);
+
+                if (o == null)
+                    return CKR.KEY_HANDLE_INVALID;
+
+                key = o.key;
+            }
+
+            Operation op = new Operation(function);
+
+            try
+            {
+                switch (m.family)
+                {
+                    case CIPHER:
+                        op.cipher = Cipher.getInstance(m.algorithm);
+
+                        int mode = (function == CKF.ENCRYPT) ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+
+                        if (m.ivLength > 0)
+                        {
+                            if (!(pMechanism.pParameter instanceof byte[])
+                                    || ((byte[])pMechanism.pParameter).length != m.ivLength)
+                            {
+                                return CKR.MECHANISM_PARAM_INVALID;
+                            }
+
+                            op.cipher.init(mode, key, new IvParameterSpec((byte[])pMechanism.pParameter));
+                        }
+                        else
+                        {
+                            op.cipher.init(mode, key);
+                        }
+                        break;
+
+                    case SIGNATURE:
+                        op.signature = Signature.getInstance(m.algorithm);
+
+                        if (function == CKF.SIGN)
+                        {
+                            if (!(key instanceof PrivateKey))
+                                return CKR.KEY_TYPE_INCONSISTENT;
+
+                            op.signature.initSign((PrivateKey)key);
+                        }
+                        else
+                        {
+                            if (!(key instanceof PublicKey))
+                                return CKR.KEY_TYPE_INCONSISTENT;
+
+                            op.signature.initVerify((PublicKey)key);
+                        }
+                        break;
+
+                    case MAC:
+                        op.mac = Mac.getInstance(m.algorithm);
+                        op.mac.init(key);
+                        break;
+
+                    default:
+                        op.digest = MessageDigest.getInstance(m.algorithm);
+                        break;
+                }
+            }
+            catch (java.security.InvalidKeyException ex)
+            {
+                return CKR.KEY_TYPE_INCONSISTENT;
+            }
+            catch (GeneralSecurityException ex)
+            {
+                return CKR.MECHANISM_INVALID;
+            }
+
+            synchronized (s)
+            {
+                if (s.operation != null)
+                    return CKR.OPERATION_ACTIVE;
+
+                s.operation = op;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /**
+     * Pass data to the active operation, and return its output.
+     * <p>
+     * The output is computed once, and kept while the caller is asked for a larger
+     * buffer, as a token would.
+     *
+     * @param update
+     *  true if there is input data
+     *
+     * @param last
+     *  true if the call completes the operation
+     */
+    private CK_RV process(CK_SESSION_HANDLE hSession, long function, byte[] in, long inLen,
+                          byte[] out, LongRef outLen, boolean update, boolean last)
+    {
+        enter(true);
+
+        try
+        {
+            Session s = session(hSession);
+
+            if (s == null)
+                return initialized ? CKR.SESSION_HANDLE_INVALID : CKR.CRYPTOKI_NOT_INITIALIZED;
+
+            synchronized (s)
+            {
+                Operation op = s.operation;
+
+                if (op == null || op.function != function)
+                    return CKR.OPERATION_NOT_INITIALIZED;
+
+                if (op.pending == null)
+                {
+                    try
+                    {
+                        op.pending = compute(op, in, (int)inLen, update, last);
+                    }
+                    catch (IllegalBlockSizeException ex)
+                    {
+                        s.operation = null;
+                        return (function == CKF.DECRYPT) ? CKR.ENCRYPTED_DATA_LEN_RANGE : CKR.DATA_LEN_RANGE;
+                    }
+                    catch (BadPaddingException ex)
+                    {
+                        s.operation = null;
+                        return CKR.ENCRYPTED_DATA_INVALID;
+                    }
+                    catch (GeneralSecurityException ex)
+                    {
+                        s.operation = null;
+                        return CKR.FUNCTION_FAILED;
+                    }
+                }
+
+                byte[] result = op.pending;
+
+                outLen.value = result.length;
+
+                /* only the length was asked for */
+                if (out == null)
+                    return CKR.OK;
+
+                if (out.length < result.length)
+                    return CKR.BUFFER_TOO_SMALL;
+
+                System.arraycopy(result, 0, out, 0, result.length);
+                op.pending = null;
+
+                if (last)
+                    s.operation = null;
+            }
+
+            return CKR.OK;
+        }
+        finally
+        {
+            exit();
+        }
+    }
+
+    /** the output of an update, final or single part call */
+    private static byte[] compute(Operation op, byte[] in, int inLen, boolean update, boolean last)
+            throws GeneralSecurityException
+    {
+        if (op.cipher != null)
+        {
+            byte[] result;
+
+            if (last)
+                result = update ? op.cipher.doFinal(in, 0, inLen) : op.cipher.doFinal();
+            else
+                result = op.cipher.update(in, 0, inLen);
+
+            return (result == null) ? new byte[0] : result;
+        }
+
+        if (op.signature != null)
+        {
+            op.signature.update(in, 0, inLen);
+
+            return op.signature.sign();
+        }
+
+        if (op.mac != null)
+        {
+            op.mac.update(in, 0, inLen);
+
+            return op.mac.doFinal();
+        }
+
+        op.digest.update(in, 0, inLen);
+
+        return op.digest.digest();
+    }
+
+    /** the private value field of a jcprov handle class */
+    private static Field handleField(Class<?> c)
+    {
+        try
+        {
+            Field f = c.getDeclaredField("m_value");
+
+            f.setAccessible(true);
+
+            return f;
+        }
+        catch (NoSuchFieldException ex)
+        {
+            throw new IllegalStateException("unsupported jcprov version : " + ex);
+        }
+    }
+
+    /** set the value of a handle, as the native functions do */
+    private static void setHandle(Field f, Object handle, long value)
+    {
+        try
+        {
+            f.setLong(handle, value);
+        }
+        catch (IllegalAccessException ex)
+        {
+            throw new IllegalStateException("unsupported jcprov version : " + ex);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.safenetinc.jcprov.sample;
 
+import java.util.concurrent.locks.LockSupport;
+
 import com.safenetinc.jcprov.*;
 import com.safenetinc.jcprov.constants.*;
 
@@ -11,14 +13,49 @@ import com.safenetinc.jcprov.constants.*;
  * of threads are started, where each thread opens a session and then enters a loop which
  * does a triple DES encryption operation using the shared key handle.
  * <p>
+ * With the functions locking model Cryptoki uses the {@link MutexCallbacks}, and the
+ * wait time, hold time and contention of its mutexes are reported with the results.
+ * <p>
+ * Alternatively a {@link WorkloadProfile} file describes a weighted mix of operations,
+ * mechanisms, keys and payload sizes. Each thread then picks its next operation at
+ * random from the profile, and the report includes the results of each operation.
+ * <p>
+ * By default each thread issues its next operation as soon as the previous one completes
+ * (closed loop), so a slow HSM also slows the offered load. With a target rate the threads
+ * instead issue operations on a fixed schedule (open loop), and latency is measured from the
+ * time each operation was scheduled to start, so stalls show up in the latency figures. The
+ * target rate can be stepped upward, stage by stage, until the achieved throughput falls
+ * below 95% of the target, which locates the saturation point of the slot.
+ * <p>
  * It is assumed that the key exists in slot 1, and is a Public Token object.
  * <p>
- * Usage : java ...Threading -numThreads &lt;numthreads&gt; -keyName &lt;keyname&gt; -locking &lt;lockingmodel&gt; -duration &gt;duration&lt; -userPin &gt;userpin&lt; -slot &gt;slotId&lt; [-v]
+ * Each thread counts the operations it completes and records their latency. Operations
+ * started during the warm-up period are not counted. When the threads have terminated
+ * the results are merged, a summary is displayed and, optionally, a JSON or CSV report
+ * is written.
+ * <p>
+ * Usage : java ...Threading -numThreads &lt;numthreads&gt; -keyName &lt;keyname&gt; -locking &lt;lockingmodel&gt; [-mutex &lt;policy&gt;] -duration &gt;duration&lt; -userPin &gt;userpin&lt; -slot &gt;slotId&lt; [-profile &lt;profile&gt;] [-warmup &lt;warmup&gt;] [-rate &lt;rate&gt; [-rateStep &lt;step&gt;] [-maxRate &lt;maxrate&gt;]] [-pooled [-budget &lt;budget&gt;]] [-coalesce &lt;window&gt; [-batch &lt;batch&gt;]] [-soft &lt;latency&gt; [-softLimit &lt;limit&gt;] [-softSessions &lt;sessions&gt;]] [-probe] [-report &lt;file&gt;] [-format &lt;format&gt;] [-v]
  * <li><i>numthreads</i>    number of threads to start
  * <li><i>keyname</i>       name of the Triple DES key to use for encryption operation
+ * <li><i>profile</i>       workload profile file, replaces the Triple DES operation
  * <li><i>lockingmodel</i>  locking model, one of : none, OS, functions
- * <li><i>duration</i>      execution time, in seconds
+ * <li><i>policy</i>        mutex policy of the functions locking model, one of : unfair, fair, spin - default (unfair)
+ * <li><i>duration</i>      execution time, in seconds, excluding the warm-up
  * <li><i>userpin</i>       user pin for slot 1
+ * <li><i>warmup</i>        warm-up time, in seconds, default (0)
+ * <li><i>rate</i>          target rate in operations per second over all threads, enables open-loop mode
+ * <li><i>step</i>          increase the target rate by this amount after each stage of duration seconds
+ * <li><i>maxrate</i>       highest target rate to step to, default (until saturated)
+ * <li>-pooled            lease a session from a {@link SessionPool} for each operation
+ * <li><i>budget</i>        file of a {@link SessionBudget}, sharing the session limit of the slot with other processes
+ * <li><i>window</i>        coalesce concurrent ECB encryptions, waiting up to this many microseconds for a batch, see {@link CoalescingDispatcher}
+ * <li><i>batch</i>         most encryptions in one coalesced call, default (64)
+ * <li><i>latency</i>       use a {@link SoftCryptoki} rather than the HSM, delaying each call by &lt;call&gt;[,&lt;crypto&gt;] microseconds
+ * <li><i>limit</i>         most calls the software token processes at once, default (no limit)
+ * <li><i>sessions</i>      most sessions the software token has open at once, as a partition limits them, default (no limit)
+ * <li>-probe             ask Cryptoki for the output length of each operation, rather than use the {@link OutputSizeOracle}
+ * <li><i>file</i>          file to write the report to
+ * <li><i>format</i>        report format, one of : json, csv - default (json)
  * <li-v                    verbose mode
  */
 public class Threading implements Runnable
@@ -28,11 +65,50 @@ public class Threading implements Runnable
     /** shared slot id of the key to use */
     static long _slotId = 0;
 
-    /** shared key handle */
-    static CK_OBJECT_HANDLE _hKey;
+    /** shared workload, including the key handles */
+    static WorkloadProfile _profile;
 
     /** flag to indicate termination of tests */
-    static boolean _die;
+    static volatile boolean _die;
+
+    /** operations started before this time are part of the warm-up, and are not recorded */
+    static volatile long _measureStartNanos;
+
+    /** operations completing after this time are not recorded */
+    static volatile long _measureEndNanos = Long.MAX_VALUE;
+
+    /** interval between the operations of one thread in open-loop mode, 0 for closed-loop mode */
+    static volatile long _intervalNanos;
+
+    /** time at which the open-loop schedule starts */
+    static volatile long _scheduleStartNanos;
+
+    /** a stage whose throughput is below this fraction of its target rate is saturated */
+    static final double SATURATION_RATIO = 0.95;
+
+    /** waits shorter than this are spun rather than parked, for accurate scheduling */
+    static final long SPIN_NANOS = 50000;
+
+    /** policy of the mutexes used by the functions locking model */
+    static String _mutexPolicy = "unfair";
+
+    /** the locking callbacks, when Cryptoki has been initialised with the functions locking model */
+    static MutexCallbacks _mutexCallbacks;
+
+    /** mutex statistics of the last run, or null if the callbacks were not used */
+    static InstrumentedMutex.Stats _mutexStats;
+
+    /** pool from which a session is leased for each operation, or null for a session per thread */
+    static SessionPool _sessionPool;
+
+    /** dispatcher which coalesces the ECB encryptions of the threads, or null to encrypt directly */
+    static CoalescingDispatcher _dispatcher;
+
+    /** flag to ask Cryptoki for the output length of every operation, rather than predict it */
+    static boolean _bProbe;
+
+    /** bytes allocated per operation by the threads of the last run, -1 if not measured */
+    static double _allocatedBytesPerOp = -1;
 
     /** flag to indicate verbose mode of operation */
     static boolean _bVerbose;
@@ -40,159 +116,79 @@ public class Threading implements Runnable
     /** flag to indicate that the user pin has been provided */
     static boolean _bLogin;
 
-    /** easy access to System.out.println */
-    static public void println(String s)
-    {
-        System.out.println(s);
-    }
-
-    /**
-     * Simple little re-entrant Mutex for testing purposes - not to be used in production code.
-     *
-     * Note the user supplied Mutex MUST BE re-entrant - otherwise the application will lock up.
-     *
-     * Re-entrant means that a thread may acquire the lock several times - it must also
-     * releases the lock an equivalent number of times.
-     */
-    static class Mutex
-    {
-        /** thread which has the mutex locked */
-        protected Thread m_owner = null;
-
-        /** number of times the mutex is locked */
-        protected long m_holds = 0;
+    /** number of operations completed by this thread within the measurement period */
+    long _opCount;
 
-        /**
-         * Lock the mutex.
-         */
-        public void lock() throws InterruptedException
-        {
-            if (Thread.interrupted())
-            {
-                throw new InterruptedException();
-            }
+    /** latency of the operations completed by this thread within the measurement period */
+    final LatencyHistogram _histogram = new LatencyHistogram();
 
-            Thread caller = Thread.currentThread();
+    /** flag to indicate that this thread terminated because of an error */
+    boolean _failed;
 
-            synchronized(this)
-            {
-                if (caller == m_owner)
-                {
-                    ++m_holds;
-                }
-                else
-                {
-                    try
-                    {
-                        while (m_owner != null)
-                        {
-                            wait();
-                        }
-
-                        m_owner = caller;
-                        m_holds = 1;
-                    }
-                    catch (InterruptedException ex)
-                    {
-                        notify();
-                        throw ex;
-                    }
-                }
-            }
-        }
+    /** bytes allocated by this thread after its first measured operation, -1 if not measured */
+    long _allocatedBytes = -1;
 
-        /**
-         * Unlock the mutex.
-         */
-        public synchronized void unlock()
-        {
-            if (Thread.currentThread() != m_owner)
-            {
-                throw new Error("Illegal Lock usage");
-            }
+    /** number of times each operation of the profile was completed within the measurement period */
+    final long[] _opCounts = new long[_profile.getOperations().size()];
 
-            if (--m_holds == 0)
-            {
-                m_owner = null;
-                notify();
-            }
-        }
-    }
+    /** latency of each operation of the profile */
+    final LatencyHistogram[] _opHistograms = new LatencyHistogram[_opCounts.length];
 
-    /**
-     * Class to provide the CreateMutex function
-     */
-    static class CreateMutex implements CK_C_INITIALIZE_ARGS.CK_CREATEMUTEX
-    {
-        public Object CreateMutex()
-        {
-            return new Mutex();
-        }
-    }
+    /** offset of this thread's schedule, so that the threads do not all fire at once */
+    final long _phaseNanos;
 
     /**
-     * Class to provide the DestroyMutex function
+     * Constructor - the profile and the schedule must be set.
+     *
+     * @param index
+     *  index of this thread
+     *
+     * @param numThreads
+     *  total number of threads
      */
-    static class DestroyMutex implements CK_C_INITIALIZE_ARGS.CK_DESTROYMUTEX
+    Threading(int index, int numThreads)
     {
-        public long DestroyMutex(Object mutex)
-        {
-            return CKR.OK.longValue();
-        }
-    }
+        _phaseNanos = _intervalNanos * index / numThreads;
 
-    /**
-     * Class to provide the LockMutex function
-     */
-    static class LockMutex implements CK_C_INITIALIZE_ARGS.CK_LOCKMUTEX
-    {
-        public long LockMutex(Object mutex)
+        for (int i = 0; i < _opHistograms.length; ++i)
         {
-            CK_RV rv = CKR.OK;
-
-            try
-            {
-                Mutex m = (Mutex)mutex;
-
-                m.lock();
-            }
-            catch (Exception ex)
-            {
-                rv = CKR.CANT_LOCK;
-            }
-            finally
-            {
-                return rv.longValue();
-            }
+            _opHistograms[i] = new LatencyHistogram();
         }
     }
 
-    /**
-     * Class to provide the UnlockMutex function
-     */
-    static class UnlockMutex implements CK_C_INITIALIZE_ARGS.CK_UNLOCKMUTEX
+    /** easy access to System.out.println */
+    static public void println(String s)
     {
-        public long UnlockMutex(Object mutex)
-        {
-            Mutex m = (Mutex)mutex;
-
-            m.unlock();
-
-            return CKR.OK.longValue();
-        }
+        System.out.println(s);
     }
 
     /** display runtime usage of the class */
     public static void usage()
     {
-        println("java ...Threading -numThreads <numthreads> -keyName <keyname> -locking <lockingmodel> -duration <duration> -userPin <userpin> -slot <slotId> [-v]");
+        println("java ...Threading -numThreads <numthreads> -keyName <keyname> -locking <lockingmodel> [-mutex <policy>] -duration <duration> -userPin <userpin> -slot <slotId> [-profile <profile>] [-warmup <warmup>] [-rate <rate> [-rateStep <step>] [-maxRate <maxrate>]] [-pooled [-budget <budget>]] [-coalesce <window> [-batch <batch>]] [-soft <latency> [-softLimit <limit>] [-softSessions <sessions>]] [-probe] [-report <file>] [-format <format>] [-v]");
         println("");
         println("<numthreads>   number of threads to start");
         println("<keyname>      name of the Triple DES key to use");
+        println("<profile>      workload profile file, replaces the Triple DES operation");
         println("<lockingmodel> locking model, one of none, OS, functions");
-        println("<duration>     execution time, in seconds");
+        println("<policy>       mutex policy of the functions locking model, one of unfair, fair, spin - default (unfair)");
+        println("<duration>     execution time, in seconds, excluding the warm-up");
         println("<userPin>      the user pin for the slot");
         println("<slotId>       the slot id to use");
+        println("<warmup>       warm-up time, in seconds, default (0)");
+        println("<rate>         target rate in ops/s over all threads, enables open-loop mode");
+        println("<step>         increase the target rate by this amount after each stage of <duration> seconds");
+        println("<maxrate>      highest target rate to step to - default (until saturated)");
+        println("-pooled        lease a session from a pool for each operation");
+        println("<budget>       file sharing the session limit of the slot with other processes using it");
+        println("<window>       coalesce concurrent ECB encryptions, waiting up to <window> microseconds for a batch");
+        println("<batch>        most encryptions in one coalesced call - default (64)");
+        println("<latency>      use a software token rather than the HSM, delaying each call by <call>[,<crypto>] microseconds");
+        println("<limit>        most calls the software token processes at once - default (no limit)");
+        println("<sessions>     most sessions the software token has open at once - default (no limit)");
+        println("-probe         ask Cryptoki for the output length of each operation, rather than predict it");
+        println("<file>         file to write the report to");
+        println("<format>       report format, one of json, csv - default (json)");
         println("-v             verbose mode");
         println("");
 
@@ -205,9 +201,17 @@ public class Threading implements Runnable
         int numThreads = 0;
         String userPin = "";
         String keyName = "";
-        boolean bNone = false;
-        boolean bOSLocking = false;
-        boolean bFunctions = false;
+        String profileFile = null;
+        String locking = "";
+        String reportFile = null;
+        String reportFormat = "json";
+        boolean bPooled = false;
+        String budgetFile = null;
+        long coalesceMicros = -1;
+        int batch = 64;
+        long[] softLatency = null;
+        int softLimit = 0;
+        int softSessions = 0;
         CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
         
         /*
@@ -215,6 +219,10 @@ public class Threading implements Runnable
          */
 
         int duration = -1;
+        int warmup = 0;
+        double rate = 0;
+        double rateStep = 0;
+        double maxRate = 0;
 
         for (int i = 0; i < args.length; ++i)
         {
@@ -241,17 +249,32 @@ public class Threading implements Runnable
 
                 keyName = args[i];
             }
+            else if (args[i].equalsIgnoreCase("-profile"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                profileFile = args[i];
+            }
             else if(args[i].equalsIgnoreCase("-locking"))
             {
                 if (++i >= args.length)
                     usage();
 
-                if (args[i].equalsIgnoreCase("none"))
-                    bNone = true;
-                if (args[i].equalsIgnoreCase("OS"))
-                    bOSLocking = true;
-                if (args[i].equalsIgnoreCase("functions"))
-                    bFunctions = true;
+                locking = args[i];
+
+                if (!isLockingModel(locking))
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-mutex"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                _mutexPolicy = args[i];
+
+                if (InstrumentedMutex.policy(_mutexPolicy) < 0)
+                    usage();
             }
             else if (args[i].equalsIgnoreCase("-duration"))
             {
@@ -260,6 +283,107 @@ public class Threading implements Runnable
                     
                 duration = Integer.parseInt(args[i]);
             }
+            else if (args[i].equalsIgnoreCase("-warmup"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                warmup = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-rate"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                rate = Double.parseDouble(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-rateStep"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                rateStep = Double.parseDouble(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-maxRate"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                maxRate = Double.parseDouble(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-pooled"))
+            {
+                bPooled = true;
+            }
+            else if (args[i].equalsIgnoreCase("-budget"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                budgetFile = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-coalesce"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                coalesceMicros = Long.parseLong(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-batch"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                batch = Integer.parseInt(args[i]);
+
+                if (batch <= 0)
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-soft"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                softLatency = parseLatency(args[i]);
+
+                if (softLatency == null)
+                    usage();
+            }
+            else if (args[i].equalsIgnoreCase("-softLimit"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                softLimit = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-softSessions"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                softSessions = Integer.parseInt(args[i]);
+            }
+            else if (args[i].equalsIgnoreCase("-probe"))
+            {
+                _bProbe = true;
+            }
+            else if (args[i].equalsIgnoreCase("-report"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                reportFile = args[i];
+            }
+            else if (args[i].equalsIgnoreCase("-format"))
+            {
+                if (++i >= args.length)
+                    usage();
+
+                reportFormat = args[i];
+
+                if (!reportFormat.equalsIgnoreCase("json") && !reportFormat.equalsIgnoreCase("csv"))
+                    usage();
+            }
             else if (args[i].equalsIgnoreCase("-slot"))
             {
                 if (++i >= args.length)
@@ -277,97 +401,150 @@ public class Threading implements Runnable
             }
         }
 
-        if (numThreads == 0 || keyName.length() == 0)
+        if (numThreads == 0 || (keyName.length() == 0 && profileFile == null))
+            usage();
+
+        /* stepping needs a starting rate and a fixed stage duration */
+        if (rateStep > 0 && (rate <= 0 || duration <= 0))
             usage();
 
         try
         {
-            if (bNone)
+            if (profileFile != null)
             {
-                /* initialise Cryptoki to do no locking */
-                CryptokiEx.C_Initialize(null);
+                _profile = WorkloadProfile.load(profileFile);
             }
-            else if (bOSLocking)
+            else
             {
-                /* initialise Cryptoki to provide it's own locking */
-                CryptokiEx.C_Initialize(new CK_C_INITIALIZE_ARGS(CKF.OS_LOCKING_OK));
+                /* the classic triple DES encryption of 16 bytes */
+                _profile = WorkloadProfile.singleOperation("encrypt", "DES3_ECB", keyName, "16");
             }
-            else if (bFunctions)
+
+            if (softLatency != null)
             {
-                /* initialise Cryptoki to use the provided locking mechanism */
-                CryptokiEx.C_Initialize(
-                        new CK_C_INITIALIZE_ARGS(new CreateMutex(),
-                                                 new DestroyMutex(),
-                                                 new LockMutex(),
-                                                 new UnlockMutex())
-                );
+                useSoftToken(userPin, softLatency, softLimit).setMaxSessions(softSessions);
             }
-            else
+
+            if (!initialize(locking))
             {
                 usage();
             }
 
             /* Open a session */
-            CryptokiEx.C_OpenSession(_slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+            CryptokiBinding.ex().C_OpenSession(_slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
 
             /* Login to the session if a user pin has been provided */
             if (_bLogin)
             {
-                CryptokiEx.C_Login(session, CKU.USER, userPin.getBytes(), userPin.length());
+                CryptokiBinding.ex().C_Login(session, CKU.USER, userPin.getBytes(), userPin.length());
             }
 
-            /* Locate the key to use */
-            _hKey = findKey(session, keyName);
-            
-            /*
-             * Start the threads
-             */
+            /* Locate the keys to use */
+            String missing = _profile.resolveKeys(session, _slotId);
+
+            if (missing != null)
+            {
+                println("key (" + missing + ") not found");
+                return;
+            }
 
-            /* let threads live */
-            _die = false;
+            if (bPooled)
+            {
+                /* one session per thread is enough, they are only idle between operations */
+                _sessionPool = new SessionPool(numThreads, 0);
 
-            Thread[] threads = new Thread[numThreads];
+                if (_bLogin)
+                {
+                    _sessionPool.setUserPin(_slotId, userPin);
+                }
 
-            println("Starting " + numThreads + " threads");
+                if (budgetFile != null)
+                {
+                    _sessionPool.setBudget(_slotId, SessionBudget.forSlot(new java.io.File(budgetFile), _slotId, 0));
+                }
+            }
 
-            /* Create and start the thread objects */
-            for (int i = 0; i < numThreads; ++i)
+            if (coalesceMicros >= 0)
             {
-                threads[i] = new Thread(new Threading());
-                threads[i].start();
+                /* enough workers that a full batch can be collected while another is processed */
+                int workers = Math.max(1, numThreads / batch);
+
+                _dispatcher = new CoalescingDispatcher(_slotId, workers, batch,
+                                                       batch * Math.max(1, _profile.getMaxPayload()),
+                                                       coalesceMicros);
             }
 
-            if (duration < 0)
+            java.util.List<BenchmarkReport> reports = new java.util.ArrayList<BenchmarkReport>();
+
+            if (rateStep <= 0)
             {
-                println("Press enter key to end.");
-                
-                /* wait for the enter key */
-                int ch = System.in.read();
+                BenchmarkReport report = runBenchmark(numThreads, rate, warmup, duration);
+
+                describe(report, numThreads, locking, keyName, profileFile, warmup, rate);
+                report.printSummary(System.out);
+                reports.add(report);
+
+                if (_mutexCallbacks != null)
+                {
+                    _mutexCallbacks.printStats(System.out);
+                }
+
+                if (_sessionPool != null)
+                {
+                    println("Session pool: " + _sessionPool);
+                }
+
+                if (_dispatcher != null)
+                {
+                    println("Coalesced: " + _dispatcher);
+                }
+
+                if (_allocatedBytesPerOp >= 0)
+                {
+                    println("Allocated " + BenchmarkReport.formatDouble(_allocatedBytesPerOp) + " bytes/op");
+                }
             }
             else
             {
-                if (duration != 1)
+                /* step the offered load upward until the slot can no longer keep up */
+                for (double target = rate; maxRate <= 0 || target <= maxRate; target += rateStep)
                 {
-                    println("Running for " + duration + " seconds.");
+                    println("");
+                    println("Target rate " + BenchmarkReport.formatDouble(target) + " ops/s");
+
+                    BenchmarkReport report = runBenchmark(numThreads, target, warmup, duration);
+
+                    describe(report, numThreads, locking, keyName, profileFile, warmup, target);
+                    report.printSummary(System.out);
+                    reports.add(report);
+
+                    if (report.getThroughput() < SATURATION_RATIO * target)
+                    {
+                        println("Saturated at a target rate of " + BenchmarkReport.formatDouble(target) + " ops/s");
+                        break;
+                    }
                 }
-                else
+
+                println("");
+                println("target ops/s   achieved ops/s   p50 (us)   p99 (us)   p99.9 (us)");
+
+                for (BenchmarkReport report : reports)
                 {
-                    println("Running for one second.");
+                    LatencyHistogram h = report.getLatency();
+
+                    println(pad(report.getParameter("targetRate"), 15)
+                            + pad(BenchmarkReport.formatDouble(report.getThroughput()), 17)
+                            + pad(BenchmarkReport.micros(h.getValueAtPercentile(50.0)), 11)
+                            + pad(BenchmarkReport.micros(h.getValueAtPercentile(99.0)), 11)
+                            + BenchmarkReport.micros(h.getValueAtPercentile(99.9)));
                 }
-                
-                /* Block for the specified duration. */
-                Thread.sleep(1000*duration);
             }
-            
-            /* tell threads to end */
-            _die = true;
-
-            println("Waiting for threads to terminate");
 
-            /* wait for threads to die */
-            for (int i = 0; i < numThreads; ++i)
+            if (reportFile != null)
             {
-                threads[i].join();
+                writeReport(reports, reportFile, reportFormat);
+
+                println("Report written to " + reportFile);
             }
 
             /* all done */
@@ -378,21 +555,38 @@ public class Threading implements Runnable
         }
         finally
         {
+            if (_dispatcher != null)
+            {
+                try
+                {
+                    _dispatcher.close();
+                }
+                catch (InterruptedException ex)
+                {
+                    /* shutting down anyway */
+                }
+            }
+
+            if (_sessionPool != null)
+            {
+                _sessionPool.close();
+            }
+
             /*
              * Close the session.
              *
-             * Note that we are not using CryptokiEx and we are not checking the
+             * Note that we are not using CryptokiBinding.ex() and we are not checking the
              * return value. This is because if the session is not currently open then an
              * error will be reported - and we don't really care because we are shutting down.
              */
-            Cryptoki.C_CloseSession(session);
+            CryptokiBinding.get().C_CloseSession(session);
 
             /*
              * All done with Cryptoki
              *
-             * Note that we are not using CryptokiEx.
+             * Note that we are not using CryptokiBinding.ex().
              */
-             Cryptoki.C_Finalize(null);
+             CryptokiBinding.get().C_Finalize(null);
         }
     }
 
@@ -409,48 +603,124 @@ public class Threading implements Runnable
         String name = Thread.currentThread().getName();
 
         CK_SESSION_HANDLE session = new CK_SESSION_HANDLE();
-        CK_MECHANISM mechanism = new CK_MECHANISM(CKM.DES3_ECB);
+        java.util.List<WorkloadProfile.Operation> operations = _profile.getOperations();
+        java.util.Random rng = new java.util.Random(System.nanoTime() ^ Thread.currentThread().getId());
 
-        byte[] data = "This is 16 Bytes".getBytes();
-        byte[] cipher = null;
-        LongRef lRef = new LongRef();
+        /* random input, large enough for every payload of the profile */
+        byte[] data = new byte[Math.max(1, _profile.getMaxPayload())];
 
-        try
-        {
-            if (_bVerbose) println(name + " openSession");
-            CryptokiEx.C_OpenSession(_slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+        /* output buffer and mechanisms, reused by every operation of this thread */
+        OperationContext context = new OperationContext(_profile.getMaxOutput(), _bProbe);
+
+        /* bytes allocated by this thread when its first measured operation completed */
+        long allocatedStart = -1;
 
+        rng.nextBytes(data);
 
+        long interval = _intervalNanos;
+        long intendedStart = _scheduleStartNanos + _phaseNanos;
+
+        try
+        {
+            /* with a pool, a session is leased for each operation instead */
+            if (_sessionPool == null)
+            {
+                if (_bVerbose) println(name + " openSession");
+                CryptokiBinding.ex().C_OpenSession(_slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION, null, null, session);
+            }
 
             while (!_die)
             {
-                if (_bVerbose) println(name + " encryptInit");
+                /* choose the operation and payload before starting the clock */
+                int opIndex = _profile.nextOperation(rng);
+                WorkloadProfile.Operation op = operations.get(opIndex);
+                int len = op.nextPayloadSize(rng);
 
-                CryptokiEx.C_EncryptInit(session, mechanism, _hKey);
+                long start;
 
-                /* do a length prediction */
-                lRef.value = 0;
+                if (interval > 0)
+                {
+                    /*
+                     * Open loop : wait for the scheduled start time. If we are behind schedule
+                     * the operation is issued at once, and the time it spent waiting for an
+                     * earlier operation to complete counts toward its latency.
+                     */
+                    waitUntil(intendedStart);
+
+                    if (_die)
+                        break;
+
+                    start = intendedStart;
+                    intendedStart += interval;
+                }
+                else
+                {
+                    start = System.nanoTime();
+                }
+
+                if (_bVerbose) println(name + " " + op.getName() + " (" + len + " bytes)");
+
+                if (_dispatcher != null && op.kind == WorkloadProfile.ENCRYPT
+                        && CoalescingDispatcher.blockSize(op.mechanism.mechanism) > 0
+                        && len % CoalescingDispatcher.blockSize(op.mechanism.mechanism) == 0)
+                {
+                    /* wait for the batch which includes this encryption */
+                    _dispatcher.encrypt(op.hKey, op.mechanism, data, 0, len).get();
+                }
+                else if (_sessionPool == null)
+                {
+                    op.execute(session, data, len, context);
+                }
+                else
+                {
+                    SessionPool.Lease lease = _sessionPool.lease(_slotId, CKF.RW_SESSION | CKF.SERIAL_SESSION);
+
+                    try
+                    {
+                        op.execute(lease.getSession(), data, len, context);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        /* the operation may still be active, for example after CKR_BUFFER_TOO_SMALL */
+                        lease.invalidate();
+                        throw ex;
+                    }
+                    finally
+                    {
+                        lease.close();
+                    }
+                }
 
-                CryptokiEx.C_Encrypt(session, data, data.length, null, lRef);
+                long end = System.nanoTime();
 
-                /* allocate space */
-                cipher = new byte[(int)lRef.value];
+                /* only record operations which lie entirely within the measurement period */
+                if (start >= _measureStartNanos && end <= _measureEndNanos)
+                {
+                    _histogram.recordValue(end - start);
+                    ++_opCount;
 
-                /* do the encryption */
-                if (_bVerbose) println(name + " encrypt");
+                    _opHistograms[opIndex].recordValue(end - start);
+                    ++_opCounts[opIndex];
 
-                CryptokiEx.C_Encrypt(session, data, data.length, cipher, lRef);
+                    /* the steady state starts once the first measured operation is done */
+                    if (_opCount == 1)
+                        allocatedStart = OperationContext.allocatedBytes();
+                }
+            }
 
-                /* we don't actually want to do anything with the result */
-                cipher = null;
+            if (allocatedStart >= 0 && _opCount > 1)
+            {
+                _allocatedBytes = OperationContext.allocatedBytes() - allocatedStart;
             }
         }
         catch(CKR_Exception ex)
         {
+            _failed = true;
             ex.printStackTrace();
         }
         catch (Exception ex)
         {
+            _failed = true;
             ex.printStackTrace();
         }
         finally
@@ -458,42 +728,345 @@ public class Threading implements Runnable
             /*
              * Close the session.
              *
-             * Note that we are not using CryptokiEx and we are not checking the
+             * Note that we are not using CryptokiBinding.ex() and we are not checking the
              * return value. This is because if the session is not currently open then an
              * error will be reported - and we don't really care because we are shutting down.
              */
-            Cryptoki.C_CloseSession(session);
+            CryptokiBinding.get().C_CloseSession(session);
         }
 
         println(name + " terminated");
     }
     
-    /** 
-     * find a key given the label
+    /**
+     * Run the worker threads once, and merge their results.
+     * <p>
+     * Cryptoki must be initialised and the keys of the profile resolved.
+     *
+     * @param numThreads
+     *  number of threads to start
+     *
+     * @param rate
+     *  target rate of operations per second over all threads, or 0 to let each
+     *  thread run as fast as it can
+     *
+     * @param warmup
+     *  warm-up time in seconds, during which nothing is recorded
+     *
+     * @param duration
+     *  measured time in seconds, or -1 to wait for the enter key
      */
-    static CK_OBJECT_HANDLE findKey(CK_SESSION_HANDLE session, String keyName)
+    static BenchmarkReport runBenchmark(int numThreads, double rate, int warmup, int duration) throws Exception
     {
-        CK_ATTRIBUTE[] tpl =
+        /* let threads live */
+        _die = false;
+
+        /* nothing is recorded until the warm-up is over */
+        _measureStartNanos = System.nanoTime() + warmup * 1000000000L;
+        _measureEndNanos = Long.MAX_VALUE;
+
+        /* with a target rate, each thread issues its share of the operations at fixed intervals */
+        _intervalNanos = (rate > 0) ? (long)(numThreads * 1e9 / rate) : 0;
+        _scheduleStartNanos = System.nanoTime();
+
+        Thread[] threads = new Thread[numThreads];
+        Threading[] workers = new Threading[numThreads];
+
+        println("Starting " + numThreads + " threads");
+
+        /* Create and start the thread objects */
+        for (int i = 0; i < numThreads; ++i)
+        {
+            workers[i] = new Threading(i, numThreads);
+            threads[i] = new Thread(workers[i]);
+            threads[i].start();
+        }
+
+        if (warmup > 0)
         {
-            new CK_ATTRIBUTE(CKA.LABEL, keyName.getBytes())
-        };
+            println("Warming up for " + warmup + " seconds.");
 
-        CK_OBJECT_HANDLE[] hObjects = {new CK_OBJECT_HANDLE()};
-        LongRef objectCount = new LongRef();
+            Thread.sleep(1000L*warmup);
+        }
 
-        CryptokiEx.C_FindObjectsInit(session, tpl, tpl.length);
+        /* only the locking of the measurement period is of interest */
+        if (_mutexCallbacks != null)
+        {
+            _mutexCallbacks.resetStats();
+        }
 
-        CryptokiEx.C_FindObjects(session, hObjects, hObjects.length, objectCount);
+        if (duration < 0)
+        {
+            println("Press enter key to end.");
 
-        CryptokiEx.C_FindObjectsFinal(session);
+            /* wait for the enter key */
+            int ch = System.in.read();
+        }
+        else
+        {
+            if (duration != 1)
+            {
+                println("Running for " + duration + " seconds.");
+            }
+            else
+            {
+                println("Running for one second.");
+            }
 
-        if (objectCount.value == 1)
+            /* Block for the specified duration. */
+            Thread.sleep(1000L*duration);
+        }
+
+        /* stop recording, then tell threads to end */
+        _measureEndNanos = System.nanoTime();
+        _die = true;
+
+        println("Waiting for threads to terminate");
+
+        /* wait for threads to die */
+        for (int i = 0; i < numThreads; ++i)
         {
-            return hObjects[0];
+            threads[i].join();
+        }
+
+        /*
+         * Merge the results of the threads
+         */
+
+        _mutexStats = (_mutexCallbacks == null) ? null : _mutexCallbacks.getTotalStats();
+
+        BenchmarkReport report = new BenchmarkReport("Threading");
+
+        report.setMeasuredNanos(Math.max(0, _measureEndNanos - _measureStartNanos));
+
+        long allocated = 0;
+        long allocatedOps = 0;
+
+        for (int i = 0; i < numThreads; ++i)
+        {
+            report.addThread(workers[i]._opCount, workers[i]._histogram, workers[i]._failed);
+
+            if (workers[i]._allocatedBytes >= 0)
+            {
+                allocated += workers[i]._allocatedBytes;
+                allocatedOps += workers[i]._opCount - 1;
+            }
+
+            for (int op = 0; op < workers[i]._opCounts.length; ++op)
+            {
+                report.addOperation(_profile.getOperations().get(op).getName(),
+                                    workers[i]._opCounts[op],
+                                    workers[i]._opHistograms[op]);
+            }
+        }
+
+        _allocatedBytesPerOp = (allocatedOps > 0) ? (double)allocated / allocatedOps : -1;
+
+        return report;
+    }
+
+    /**
+     * Parse a latency of the form &lt;call&gt;[,&lt;crypto&gt;], in microseconds.
+     *
+     * @return the call and crypto latencies, or null if the latency is not valid
+     */
+    static long[] parseLatency(String latency)
+    {
+        String[] parts = latency.split(",");
+
+        if (parts.length > 2)
+            return null;
+
+        try
+        {
+            long[] micros = { Long.parseLong(parts[0].trim()), 0 };
+
+            if (parts.length == 2)
+                micros[1] = Long.parseLong(parts[1].trim());
+
+            return (micros[0] < 0 || micros[1] < 0) ? null : micros;
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Use a {@link SoftCryptoki} in place of the HSM, holding the keys of the profile.
+     * Must be called before Cryptoki is initialised.
+     *
+     * @param userPin
+     *  the user pin of the software token
+     *
+     * @param latency
+     *  delay of every call, and further delay of the calls which process data, in microseconds
+     *
+     * @param limit
+     *  most calls processed at once, 0 for no limit
+     */
+    static SoftCryptoki useSoftToken(String userPin, long[] latency, int limit)
+    {
+        SoftCryptoki soft = new SoftCryptoki(_slotId, userPin);
+
+        soft.setLatency(latency[0], latency[1]);
+        soft.setMaxConcurrency(limit);
+
+        _profile.provisionKeys(soft);
+
+        CryptokiBinding.set(soft);
+
+        return soft;
+    }
+
+    /** the supported locking models, in the order they are swept */
+    static final String[] LOCKING_MODELS = { "none", "OS", "functions" };
+
+    /** determine whether a name is one of the supported locking models */
+    static boolean isLockingModel(String locking)
+    {
+        for (int i = 0; i < LOCKING_MODELS.length; ++i)
+        {
+            if (LOCKING_MODELS[i].equalsIgnoreCase(locking))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Initialise Cryptoki according to a locking model.
+     *
+     * @param locking
+     *  one of none, OS, functions
+     *
+     * @return false if the locking model is not known, in which case Cryptoki
+     *  has not been initialised
+     */
+    static boolean initialize(String locking)
+    {
+        _mutexCallbacks = null;
+
+        if (locking.equalsIgnoreCase("none"))
+        {
+            /* initialise Cryptoki to do no locking */
+            CryptokiBinding.ex().C_Initialize(null);
+        }
+        else if (locking.equalsIgnoreCase("OS"))
+        {
+            /* initialise Cryptoki to provide it's own locking */
+            CryptokiBinding.ex().C_Initialize(new CK_C_INITIALIZE_ARGS(CKF.OS_LOCKING_OK));
+        }
+        else if (locking.equalsIgnoreCase("functions"))
+        {
+            /* initialise Cryptoki to use the provided locking mechanism */
+            _mutexCallbacks = new MutexCallbacks(InstrumentedMutex.policy(_mutexPolicy), 0);
+
+            CryptokiBinding.ex().C_Initialize(_mutexCallbacks.getInitArgs());
         }
         else
         {
-            return new CK_OBJECT_HANDLE();
+            return false;
+        }
+
+        return true;
+    }
+
+    /** record the parameters of a run in its report */
+    static void describe(BenchmarkReport report, int numThreads, String locking, String keyName,
+                         String profileFile, int warmup, double rate)
+    {
+        report.setParameter("numThreads", Integer.valueOf(numThreads));
+        report.setParameter("locking", locking);
+        report.setParameter("keyName", keyName);
+        report.setParameter("profile", (profileFile == null) ? "" : profileFile);
+        report.setParameter("slot", Long.valueOf(_slotId));
+        report.setParameter("warmupSeconds", Integer.valueOf(warmup));
+        report.setParameter("mode", (rate > 0) ? "open" : "closed");
+        report.setParameter("targetRate", BenchmarkReport.formatDouble(rate));
+        report.setParameter("outputSizing", _bProbe ? "probe" : "oracle");
+        report.setParameter("cryptoki", (CryptokiBinding.get() instanceof SoftCryptoki) ? "soft" : "native");
+        report.setParameter("coalesce", (_dispatcher == null) ? "" : _dispatcher.toString());
+        report.setParameter("allocatedBytesPerOp",
+                            (_allocatedBytesPerOp < 0) ? "" : BenchmarkReport.formatDouble(_allocatedBytesPerOp));
+
+        /* always present, so that the reports of a locking sweep have the same columns */
+        InstrumentedMutex.Stats m = _mutexStats;
+
+        report.setParameter("mutex", (m == null) ? "" : _mutexPolicy);
+        report.setParameter("mutexLocks", (m == null) ? "" : String.valueOf(m.locks));
+        report.setParameter("mutexContended", (m == null) ? "" : String.valueOf(m.contended));
+        report.setParameter("mutexWaitMicros", (m == null) ? "" : BenchmarkReport.micros(m.waitNanos));
+        report.setParameter("mutexMaxWaitMicros", (m == null) ? "" : BenchmarkReport.micros(m.maxWaitNanos));
+        report.setParameter("mutexHoldMicros", (m == null) ? "" : BenchmarkReport.micros(m.holdNanos));
+        report.setParameter("mutexMaxHoldMicros", (m == null) ? "" : BenchmarkReport.micros(m.maxHoldNanos));
+    }
+
+    /** pad a string with spaces to the given width */
+    static String pad(String s, int width)
+    {
+        StringBuilder sb = new StringBuilder(s);
+
+        while (sb.length() < width)
+        {
+            sb.append(' ');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Wait until the given time, or until the threads are told to end.
+     *
+     * @param deadline
+     *  {@link System#nanoTime()} value to wait for
+     */
+    static void waitUntil(long deadline)
+    {
+        long remaining;
+
+        while (!_die && (remaining = deadline - System.nanoTime()) > 0)
+        {
+            if (remaining > SPIN_NANOS)
+            {
+                /* park in short slices so that termination is noticed at low rates */
+                LockSupport.parkNanos(Math.min(remaining - SPIN_NANOS, 10000000L));
+            }
+            else
+            {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Write benchmark reports to a file.
+     *
+     * @param reports
+     *  the reports to write, one per run
+     *
+     * @param fileName
+     *  name of the file to write, it is replaced if it exists
+     *
+     * @param format
+     *  one of json, csv
+     */
+    static void writeReport(java.util.List<BenchmarkReport> reports, String fileName, String format) throws java.io.IOException
+    {
+        java.io.PrintStream out = new java.io.PrintStream(new java.io.FileOutputStream(fileName));
+
+        try
+        {
+            if (format.equalsIgnoreCase("csv"))
+                BenchmarkReport.writeCsv(out, reports);
+            else if (reports.size() == 1)
+                reports.get(0).writeJson(out);
+            else
+                BenchmarkReport.writeJson(out, reports);
+        }
+        finally
+        {
+            out.close();
         }
     }
 }
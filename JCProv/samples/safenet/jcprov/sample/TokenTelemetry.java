@@ -0,0 +1,608 @@
+package com.safenetinc.jcprov.sample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * Background sampler of the session counts and memory of every token, so that session
+ * exhaustion and partition memory pressure can be seen coming before requests fail.
+ * <p>
+ * On each interval the sampler reads C_GetTokenInfo for every slot with a token, and
+ * records the session, read/write session and free/total memory fields as a
+ * {@link Sample}. The samples of each slot are kept in a ring buffer of fixed capacity,
+ * the oldest being overwritten. The buffer has a single writer, the sampler thread, and
+ * is read without locks, so reading the metrics never delays the sampler.
+ * <p>
+ * The SafeNet CA_GetHSMStats extension is not part of jcprov. Where an application has
+ * another way to call it, it can supply the statistics with a {@link StatsSource}, and
+ * they are recorded with each sample.
+ * <p>
+ * {@link #metrics()} formats the latest sample of each slot as text in the Prometheus
+ * exposition format, together with the time left before the sessions or memory of the
+ * slot run out if the trend of the recent samples continues.
+ * <p>
+ * Usage :
+ * <pre>
+ *     TokenTelemetry telemetry = new TokenTelemetry(5000, TokenTelemetry.DEFAULT_CAPACITY);
+ *
+ *     telemetry.start();
+ *     ...
+ *     System.out.print(telemetry.metrics());
+ *     ...
+ *     telemetry.close();
+ * </pre>
+ */
+public class TokenTelemetry
+{
+    /** number of samples kept for each slot, by default - an hour at one sample every 5 seconds */
+    public static final int DEFAULT_CAPACITY = 720;
+
+    /** number of recent samples the trends are computed from */
+    public static final int TREND_SAMPLES = 12;
+
+    /** time between samples */
+    private final long intervalMillis;
+
+    /** number of samples kept for each slot */
+    private final int capacity;
+
+    /** the slots to sample, or null for every slot with a token */
+    private final long[] slots;
+
+    /** the samples, by slot id */
+    private final ConcurrentHashMap<Long, Series> series = new ConcurrentHashMap<Long, Series>();
+
+    /** further statistics to record, or null */
+    private volatile StatsSource statsSource;
+
+    /** the sampler thread, or null if not started */
+    private Thread sampler;
+
+    /** flag to indicate that the sampler has been closed */
+    private volatile boolean closed;
+
+    /** the slot list, reused by each sample, grown when there are more slots */
+    private long[] slotList = new long[8];
+
+    private final LongRef lRef = new LongRef();
+
+    /** number of samples recorded */
+    private final AtomicLong samples = new AtomicLong();
+
+    /** number of samples which failed */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * A source of further statistics of a slot, such as those of CA_GetHSMStats.
+     */
+    public interface StatsSource
+    {
+        /**
+         * Read the statistics of a slot.
+         *
+         * @param slotId
+         *  the slot
+         *
+         * @param stats
+         *  to receive the statistics, by name
+         */
+        void read(long slotId, Map<String, Long> stats);
+    }
+
+    /**
+     * The token information of a slot at a point in time. Samples do not change once
+     * recorded.
+     */
+    public static class Sample
+    {
+        /** position of the sample in its series, counting from 0 */
+        final long sequence;
+
+        public final long timeMillis;
+        public final long sessionCount;
+        public final long maxSessionCount;
+        public final long rwSessionCount;
+        public final long maxRwSessionCount;
+        public final long freePublicMemory;
+        public final long totalPublicMemory;
+        public final long freePrivateMemory;
+        public final long totalPrivateMemory;
+
+        /** statistics from the StatsSource, by name */
+        public final Map<String, Long> stats;
+
+        Sample(long sequence, long timeMillis, CK_TOKEN_INFO info, Map<String, Long> stats)
+        {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.sessionCount = info.sessionCount;
+            this.maxSessionCount = info.maxSessionCount;
+            this.rwSessionCount = info.rwSessionCount;
+            this.maxRwSessionCount = info.maxRwSessionCount;
+            this.freePublicMemory = info.freePublicMemory;
+            this.totalPublicMemory = info.totalPublicMemory;
+            this.freePrivateMemory = info.freePrivateMemory;
+            this.totalPrivateMemory = info.totalPrivateMemory;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * The samples of one slot, in a ring buffer with a single writer.
+     */
+    static class Series
+    {
+        final AtomicReferenceArray<Sample> ring;
+
+        /** number of samples written so far */
+        final AtomicLong written = new AtomicLong();
+
+        Series(int capacity)
+        {
+            ring = new AtomicReferenceArray<Sample>(capacity);
+        }
+
+        /** only called by the sampler thread */
+        void add(long timeMillis, CK_TOKEN_INFO info, Map<String, Long> stats)
+        {
+            long n = written.get();
+
+            ring.set((int)(n % ring.length()), new Sample(n, timeMillis, info, stats));
+            written.set(n + 1);
+        }
+
+        /** the latest samples, oldest first, at most count of them */
+        List<Sample> latest(int count)
+        {
+            long end = written.get();
+            long start = Math.max(0, end - Math.min(count, ring.length()));
+            List<Sample> list = new ArrayList<Sample>((int)(end - start));
+
+            for (long i = start; i < end; ++i)
+            {
+                Sample s = ring.get((int)(i % ring.length()));
+
+                /* skip a sample overwritten since the count was read */
+                if (s != null && s.sequence == i)
+                    list.add(s);
+            }
+
+            return list;
+        }
+    }
+
+    /**
+     * Constructor - sampling every slot with a token.
+     *
+     * @param intervalMillis
+     *  time between samples
+     *
+     * @param capacity
+     *  number of samples to keep for each slot
+     */
+    public TokenTelemetry(long intervalMillis, int capacity)
+    {
+        this(intervalMillis, capacity, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param intervalMillis
+     *  time between samples
+     *
+     * @param capacity
+     *  number of samples to keep for each slot
+     *
+     * @param slots
+     *  the slots to sample, or null for every slot with a token
+     */
+    public TokenTelemetry(long intervalMillis, int capacity, long[] slots)
+    {
+        if (intervalMillis <= 0 || capacity <= 0)
+        {
+            throw new IllegalArgumentException("interval and capacity must be positive");
+        }
+
+        this.intervalMillis = intervalMillis;
+        this.capacity = capacity;
+        this.slots = (slots == null) ? null : slots.clone();
+    }
+
+    /** record further statistics with each sample, null for none */
+    public void setStatsSource(StatsSource source)
+    {
+        this.statsSource = source;
+    }
+
+    /**
+     * Start sampling in a background thread. The first sample is taken at once.
+     */
+    public synchronized void start()
+    {
+        if (sampler != null)
+        {
+            throw new IllegalStateException("already started");
+        }
+
+        sampler = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                long next = System.currentTimeMillis();
+
+                try
+                {
+                    while (!closed)
+                    {
+                        sample();
+
+                        /* at a fixed rate, so that a slow sample does not shift the next ones */
+                        next += intervalMillis;
+
+                        long delay = next - System.currentTimeMillis();
+
+                        if (delay > 0)
+                            Thread.sleep(delay);
+                        else
+                            next = System.currentTimeMillis();
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    /* closed */
+                }
+            }
+        }, "TokenTelemetry");
+
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /** stop sampling, the samples already taken can still be read */
+    public void close() throws InterruptedException
+    {
+        Thread t;
+
+        synchronized (this)
+        {
+            closed = true;
+            t = sampler;
+        }
+
+        if (t != null)
+        {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    /**
+     * Take one sample of each slot. Called by the sampler thread, or by an application
+     * which samples on a schedule of its own rather than calling {@link #start()}; it
+     * must not be called by more than one thread.
+     */
+    public void sample()
+    {
+        long[] list = slots;
+        int count;
+
+        if (list == null)
+        {
+            /*
+             * Note that we are not using CryptokiBinding.ex() - a failed sample is
+             * counted, and the next is taken as usual.
+             */
+            lRef.value = slotList.length;
+
+            CK_RV rv = CryptokiBinding.get().C_GetSlotList(CK_BBOOL.TRUE, slotList, lRef);
+
+            if (CKR.BUFFER_TOO_SMALL.equals(rv))
+            {
+                /* more slots than before, lRef holds the number */
+                slotList = new long[(int)lRef.value];
+                rv = CryptokiBinding.get().C_GetSlotList(CK_BBOOL.TRUE, slotList, lRef);
+            }
+
+            if (!CKR.OK.equals(rv))
+            {
+                errors.incrementAndGet();
+                return;
+            }
+
+            list = slotList;
+            count = (int)lRef.value;
+        }
+        else
+        {
+            count = list.length;
+        }
+
+        for (int i = 0; i < count; ++i)
+        {
+            sample(list[i]);
+        }
+    }
+
+    /** sample one slot */
+    private void sample(long slotId)
+    {
+        CK_TOKEN_INFO info = new CK_TOKEN_INFO();
+        long now = System.currentTimeMillis();
+
+        if (!CKR.OK.equals(CryptokiBinding.get().C_GetTokenInfo(slotId, info)))
+        {
+            errors.incrementAndGet();
+            return;
+        }
+
+        Map<String, Long> stats = Collections.emptyMap();
+        StatsSource source = statsSource;
+
+        if (source != null)
+        {
+            Map<String, Long> read = new HashMap<String, Long>();
+
+            try
+            {
+                source.read(slotId, read);
+                stats = Collections.unmodifiableMap(read);
+            }
+            catch (RuntimeException ex)
+            {
+                /* record the token information anyway */
+                errors.incrementAndGet();
+            }
+        }
+
+        Series s = series.get(Long.valueOf(slotId));
+
+        if (s == null)
+        {
+            s = new Series(capacity);
+            series.put(Long.valueOf(slotId), s);
+        }
+
+        s.add(now, info, stats);
+        samples.incrementAndGet();
+    }
+
+    /** the slots which have been sampled, in order */
+    public long[] getSlots()
+    {
+        List<Long> ids = new ArrayList<Long>(series.keySet());
+
+        Collections.sort(ids);
+
+        long[] result = new long[ids.size()];
+
+        for (int i = 0; i < result.length; ++i)
+        {
+            result[i] = ids.get(i).longValue();
+        }
+
+        return result;
+    }
+
+    /**
+     * The samples of a slot still in the ring buffer, oldest first.
+     */
+    public List<Sample> history(long slotId)
+    {
+        Series s = series.get(Long.valueOf(slotId));
+
+        return (s == null) ? new ArrayList<Sample>() : s.latest(capacity);
+    }
+
+    /**
+     * The latest sample of a slot, or null if it has not been sampled.
+     */
+    public Sample latest(long slotId)
+    {
+        Series s = series.get(Long.valueOf(slotId));
+        List<Sample> list = (s == null) ? null : s.latest(1);
+
+        return (list == null || list.isEmpty()) ? null : list.get(0);
+    }
+
+    /**
+     * Estimate the time before every session of a slot is in use, from the trend of the
+     * recent samples.
+     *
+     * @return the seconds, or -1 if the session count is not rising or has no limit
+     */
+    public double secondsUntilSessionsExhausted(long slotId)
+    {
+        Series s = series.get(Long.valueOf(slotId));
+        List<Sample> list = (s == null) ? null : s.latest(TREND_SAMPLES);
+
+        if (list == null || list.size() < 2)
+            return -1;
+
+        Sample first = list.get(0);
+        Sample last = list.get(list.size() - 1);
+
+        /* 0 means no limit, and ~0 that the token does not say */
+        if (last.maxSessionCount <= 0)
+            return -1;
+
+        return secondsUntilZero(first.timeMillis, first.maxSessionCount - first.sessionCount,
+                                last.timeMillis, last.maxSessionCount - last.sessionCount);
+    }
+
+    /**
+     * Estimate the time before the public or private memory of a slot is used up,
+     * whichever is sooner, from the trend of the recent samples.
+     *
+     * @return the seconds, or -1 if the free memory is not falling
+     */
+    public double secondsUntilMemoryExhausted(long slotId)
+    {
+        Series s = series.get(Long.valueOf(slotId));
+        List<Sample> list = (s == null) ? null : s.latest(TREND_SAMPLES);
+
+        if (list == null || list.size() < 2)
+            return -1;
+
+        Sample first = list.get(0);
+        Sample last = list.get(list.size() - 1);
+
+        double publicSeconds = secondsUntilZero(first.timeMillis, first.freePublicMemory,
+                                                last.timeMillis, last.freePublicMemory);
+        double privateSeconds = secondsUntilZero(first.timeMillis, first.freePrivateMemory,
+                                                 last.timeMillis, last.freePrivateMemory);
+
+        if (publicSeconds < 0)
+            return privateSeconds;
+
+        if (privateSeconds < 0)
+            return publicSeconds;
+
+        return Math.min(publicSeconds, privateSeconds);
+    }
+
+    /**
+     * Time until a falling value reaches zero, continuing the line between two points.
+     *
+     * @return the seconds, or -1 if the value is not falling
+     */
+    static double secondsUntilZero(long t0, long v0, long t1, long v1)
+    {
+        if (t1 <= t0 || v1 >= v0)
+            return -1;
+
+        double perSecond = (v0 - v1) * 1000.0 / (t1 - t0);
+
+        return Math.max(0, v1) / perSecond;
+    }
+
+    /** number of samples recorded */
+    public long getSampleCount()
+    {
+        return samples.get();
+    }
+
+    /** number of samples which failed */
+    public long getErrorCount()
+    {
+        return errors.get();
+    }
+
+    /**
+     * The latest sample of each slot, in the Prometheus text exposition format.
+     */
+    public String metrics()
+    {
+        StringBuilder sb = new StringBuilder();
+        long[] ids = getSlots();
+        Sample[] latest = new Sample[ids.length];
+
+        for (int i = 0; i < ids.length; ++i)
+        {
+            latest[i] = latest(ids[i]);
+        }
+
+        gauge(sb, "hsm_token_sessions", "Sessions open on the token", ids, latest, 0);
+        gauge(sb, "hsm_token_sessions_max", "Most sessions the token allows, 0 for no limit", ids, latest, 1);
+        gauge(sb, "hsm_token_rw_sessions", "Read/write sessions open on the token", ids, latest, 2);
+        gauge(sb, "hsm_token_rw_sessions_max", "Most read/write sessions the token allows, 0 for no limit", ids, latest, 3);
+        gauge(sb, "hsm_token_public_memory_free_bytes", "Free public memory of the token", ids, latest, 4);
+        gauge(sb, "hsm_token_public_memory_total_bytes", "Total public memory of the token", ids, latest, 5);
+        gauge(sb, "hsm_token_private_memory_free_bytes", "Free private memory of the token", ids, latest, 6);
+        gauge(sb, "hsm_token_private_memory_total_bytes", "Total private memory of the token", ids, latest, 7);
+
+        sb.append("# HELP hsm_token_sessions_exhausted_seconds Estimated time until every session is in use, -1 if not rising\n");
+        sb.append("# TYPE hsm_token_sessions_exhausted_seconds gauge\n");
+
+        for (int i = 0; i < ids.length; ++i)
+        {
+            sb.append("hsm_token_sessions_exhausted_seconds{slot=\"").append(ids[i]).append("\"} ")
+              .append(format(secondsUntilSessionsExhausted(ids[i]))).append('\n');
+        }
+
+        sb.append("# HELP hsm_token_memory_exhausted_seconds Estimated time until public or private memory is used up, -1 if not falling\n");
+        sb.append("# TYPE hsm_token_memory_exhausted_seconds gauge\n");
+
+        for (int i = 0; i < ids.length; ++i)
+        {
+            sb.append("hsm_token_memory_exhausted_seconds{slot=\"").append(ids[i]).append("\"} ")
+              .append(format(secondsUntilMemoryExhausted(ids[i]))).append('\n');
+        }
+
+        boolean bStats = false;
+
+        for (int i = 0; i < ids.length; ++i)
+        {
+            if (latest[i] == null)
+                continue;
+
+            for (Map.Entry<String, Long> e : latest[i].stats.entrySet())
+            {
+                if (!bStats)
+                {
+                    sb.append("# HELP hsm_stat Statistics of the HSM\n");
+                    sb.append("# TYPE hsm_stat gauge\n");
+                    bStats = true;
+                }
+
+                sb.append("hsm_stat{slot=\"").append(ids[i]).append("\",name=\"").append(e.getKey())
+                  .append("\"} ").append(e.getValue()).append('\n');
+            }
+        }
+
+        sb.append("# HELP hsm_telemetry_samples_total Samples recorded\n");
+        sb.append("# TYPE hsm_telemetry_samples_total counter\n");
+        sb.append("hsm_telemetry_samples_total ").append(samples.get()).append('\n');
+        sb.append("# HELP hsm_telemetry_errors_total Samples which failed\n");
+        sb.append("# TYPE hsm_telemetry_errors_total counter\n");
+        sb.append("hsm_telemetry_errors_total ").append(errors.get()).append('\n');
+
+        return sb.toString();
+    }
+
+    /** append a gauge of one field of the latest samples */
+    private static void gauge(StringBuilder sb, String name, String help, long[] ids, Sample[] latest, int field)
+    {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+
+        for (int i = 0; i < ids.length; ++i)
+        {
+            Sample s = latest[i];
+
+            if (s == null)
+                continue;
+
+            long value;
+
+            switch (field)
+            {
+                case 0:  value = s.sessionCount; break;
+                case 1:  value = s.maxSessionCount; break;
+                case 2:  value = s.rwSessionCount; break;
+                case 3:  value = s.maxRwSessionCount; break;
+                case 4:  value = s.freePublicMemory; break;
+                case 5:  value = s.totalPublicMemory; break;
+                case 6:  value = s.freePrivateMemory; break;
+                default: value = s.totalPrivateMemory; break;
+            }
+
+            sb.append(name).append("{slot=\"").append(ids[i]).append("\"} ").append(value).append('\n');
+        }
+    }
+
+    private static String format(double seconds)
+    {
+        return (seconds < 0) ? "-1" : String.format(Locale.ROOT, "%.1f", seconds);
+    }
+}
@@ -0,0 +1,548 @@
+package com.safenetinc.jcprov.sample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long lived worker processes, which take requests over their standard input and
+ * answer on their standard output.
+ * <p>
+ * Starting a JVM, and initializing Cryptoki in it, takes seconds. {@link ApplicationID}
+ * shows a child process sharing the login of its parent through an application ID, but
+ * starts a new child for every job. The pool starts its workers once, and gives each job
+ * to an idle worker, so a job costs a round trip over a pipe.
+ * <p>
+ * The protocol is a line of text each way. A worker writes <code>READY</code> once it is
+ * set up, then reads a request per line and writes one line in reply, starting with
+ * <code>OK</code> or <code>ERR</code>. It must answer <code>PING</code>, and exit on
+ * <code>QUIT</code>. Anything a worker writes on its standard error is copied to
+ * System.err. {@link ChildApplicationID} run with <code>-worker</code> is such a worker.
+ * <p>
+ * The idle workers are pinged at an interval. A worker which does not answer in time, or
+ * whose process has exited, is destroyed and a new one started in its place. A
+ * replacement which fails to start is retried; see {@link #getLastStartFailure()}.
+ * <p>
+ * Usage :
+ * <pre>
+ *     WorkerPool pool = WorkerPool.forApplicationID(slotId, majorId, minorId, 4);
+ *
+ *     String state = pool.call("STATE", 10000);
+ *     ...
+ *     pool.close();
+ * </pre>
+ */
+public class WorkerPool
+{
+    /** how long a worker has to get ready, by default */
+    public static final long START_MILLIS = 60000;
+
+    /** time between health checks, by default */
+    public static final long HEALTH_INTERVAL_MILLIS = 10000;
+
+    /** how long a worker has to answer a health check */
+    static final long PING_MILLIS = 5000;
+
+    /** how long to wait before starting a worker again, after a failed start */
+    static final long RETRY_MILLIS = 1000;
+
+    /** put in the replies of a worker when its standard output closes, so that a caller need not wait */
+    static final String GONE = new String("GONE");
+
+    /** the command line of a worker */
+    private final List<String> command;
+
+    /** how long a worker has to get ready */
+    private final long startMillis;
+
+    /** the workers waiting for a request */
+    private final LinkedBlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+
+    /** every worker, busy or idle */
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    /** the thread checking the idle workers */
+    private final Thread checker;
+
+    /** flag to indicate that the pool has been closed */
+    private volatile boolean closed;
+
+    /** number of workers started, numbering their names */
+    private final AtomicInteger started = new AtomicInteger();
+
+    /** number of requests answered */
+    private final AtomicLong calls = new AtomicLong();
+
+    /** number of workers replaced */
+    private final AtomicLong restarts = new AtomicLong();
+
+    /** number of replacement workers which failed to start */
+    private final AtomicLong startFailures = new AtomicLong();
+
+    /** the last failure to start a replacement worker, or null */
+    private volatile IOException lastStartFailure;
+
+    /**
+     * A worker process and its pipes.
+     */
+    class Worker
+    {
+        final String name;
+        final Process process;
+        final Writer requests;
+
+        /** the replies, read by a thread of the worker so that a reply can be waited for with a timeout */
+        final LinkedBlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+
+        Worker(String name, Process process)
+        {
+            this.name = name;
+            this.process = process;
+            this.requests = new OutputStreamWriter(process.getOutputStream());
+
+            final BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            final BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+
+            daemon(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        String line;
+
+                        while ((line = out.readLine()) != null)
+                        {
+                            replies.add(line);
+                        }
+                    }
+                    catch (IOException ex)
+                    {
+                        /* the worker has gone */
+                    }
+
+                    replies.add(GONE);
+                }
+            }, name + "-out");
+
+            daemon(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        String line;
+
+                        while ((line = err.readLine()) != null)
+                        {
+                            System.err.println(Worker.this.name + ":: " + line);
+                        }
+                    }
+                    catch (IOException ex)
+                    {
+                        /* the worker has gone */
+                    }
+                }
+            }, name + "-err");
+        }
+
+        /**
+         * Send a request and wait for the reply.
+         *
+         * @return the reply, or null if there was none in time, or the worker has exited
+         */
+        String send(String request, long timeoutMillis) throws IOException, InterruptedException
+        {
+            requests.write(request);
+            requests.write('\n');
+            requests.flush();
+
+            String reply = replies.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            return (reply == GONE) ? null : reply;
+        }
+
+        void destroy()
+        {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Constructor - starts the workers, and waits until they are all ready.
+     *
+     * @param command
+     *  the command line of a worker
+     *
+     * @param size
+     *  number of workers
+     *
+     * @param startMillis
+     *  how long a worker has to get ready
+     *
+     * @param healthIntervalMillis
+     *  time between health checks of the idle workers
+     */
+    public WorkerPool(List<String> command, int size, long startMillis, final long healthIntervalMillis)
+        throws IOException, InterruptedException
+    {
+        this.command = new ArrayList<String>(command);
+        this.startMillis = startMillis;
+
+        /* start every process before waiting for any, so that they get ready together */
+        List<Worker> starting = new ArrayList<Worker>();
+
+        try
+        {
+            for (int i = 0; i < size; ++i)
+            {
+                starting.add(launch());
+            }
+
+            for (Worker w : starting)
+            {
+                awaitReady(w);
+            }
+        }
+        catch (IOException ex)
+        {
+            for (Worker w : starting)
+            {
+                w.destroy();
+            }
+
+            throw ex;
+        }
+
+        synchronized (workers)
+        {
+            workers.addAll(starting);
+        }
+
+        idle.addAll(starting);
+
+        checker = daemon(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    while (!closed)
+                    {
+                        Thread.sleep(healthIntervalMillis);
+                        check();
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    /* closed */
+                }
+            }
+        }, "WorkerPool-check");
+    }
+
+    /**
+     * A pool of {@link ChildApplicationID} workers, sharing the login of an application ID
+     * which the caller has opened and logged in.
+     *
+     * @param slotId
+     *  slot of the login
+     *
+     * @param majorId
+     *  major application ID value
+     *
+     * @param minorId
+     *  minor application ID value
+     *
+     * @param size
+     *  number of workers
+     */
+    public static WorkerPool forApplicationID(long slotId, long majorId, long minorId, int size)
+        throws IOException, InterruptedException
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<String> command = Arrays.asList(java,
+                                             "-cp", System.getProperty("java.class.path"),
+                                             ChildApplicationID.class.getName(),
+                                             "-slot", Long.toString(slotId),
+                                             "-major", Long.toString(majorId),
+                                             "-minor", Long.toString(minorId),
+                                             "-worker");
+
+        return new WorkerPool(command, size, START_MILLIS, HEALTH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Give a request to an idle worker, and wait for its reply.
+     *
+     * @param request
+     *  the request, a single line
+     *
+     * @param timeoutMillis
+     *  how long to wait for an idle worker, and then for the reply
+     *
+     * @return the reply, without its leading OK
+     *
+     * @throws IOException
+     *  if no worker was idle in time, with the last failure to start a replacement as
+     *  its cause, or the worker failed to reply, in which case it is replaced
+     *
+     * @throws IllegalStateException
+     *  if the worker replied with an error
+     */
+    public String call(String request, long timeoutMillis) throws IOException, InterruptedException
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("pool is closed");
+        }
+
+        Worker w = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        if (w == null)
+        {
+            throw new IOException("no worker idle within " + timeoutMillis + " ms", lastStartFailure);
+        }
+
+        String reply;
+
+        try
+        {
+            reply = w.send(request, timeoutMillis);
+        }
+        catch (IOException ex)
+        {
+            replace(w);
+            throw ex;
+        }
+
+        if (reply == null)
+        {
+            replace(w);
+            throw new IOException(w.name + " did not reply within " + timeoutMillis + " ms, or exited");
+        }
+
+        idle.add(w);
+        calls.incrementAndGet();
+
+        if (reply.startsWith("ERR"))
+        {
+            throw new IllegalStateException(w.name + ": " + reply.substring(3).trim());
+        }
+
+        return reply.startsWith("OK") ? reply.substring(2).trim() : reply;
+    }
+
+    /** number of requests answered */
+    public long getCallCount()
+    {
+        return calls.get();
+    }
+
+    /** number of workers replaced */
+    public long getRestartCount()
+    {
+        return restarts.get();
+    }
+
+    /** number of replacement workers which failed to start, and were retried */
+    public long getStartFailureCount()
+    {
+        return startFailures.get();
+    }
+
+    /** the last failure to start a replacement worker, or null */
+    public IOException getLastStartFailure()
+    {
+        return lastStartFailure;
+    }
+
+    public String toString()
+    {
+        int size;
+
+        synchronized (workers)
+        {
+            size = workers.size();
+        }
+
+        return size + " workers, " + idle.size() + " idle, " + calls.get() + " calls, "
+                + restarts.get() + " restarts, " + startFailures.get() + " start failures";
+    }
+
+    /**
+     * Stop the workers, asking the idle ones to exit first.
+     */
+    public void close() throws InterruptedException
+    {
+        closed = true;
+        checker.interrupt();
+        checker.join();
+
+        List<Worker> all;
+
+        synchronized (workers)
+        {
+            all = new ArrayList<Worker>(workers);
+            workers.clear();
+        }
+
+        for (Worker w : all)
+        {
+            try
+            {
+                if (idle.remove(w))
+                {
+                    w.requests.write("QUIT\n");
+                    w.requests.flush();
+                }
+            }
+            catch (IOException ex)
+            {
+                /* it is destroyed below */
+            }
+        }
+
+        for (Worker w : all)
+        {
+            if (!w.process.waitFor(PING_MILLIS, TimeUnit.MILLISECONDS))
+                w.destroy();
+        }
+    }
+
+    /** ping each idle worker, replacing those which do not answer */
+    void check() throws InterruptedException
+    {
+        List<Worker> list = new ArrayList<Worker>();
+
+        /* take the idle workers, so that no request is given to them during the check */
+        idle.drainTo(list);
+
+        for (Worker w : list)
+        {
+            String reply = null;
+
+            if (w.process.isAlive())
+            {
+                try
+                {
+                    reply = w.send("PING", PING_MILLIS);
+                }
+                catch (IOException ex)
+                {
+                    /* replaced below */
+                }
+            }
+
+            if (reply != null && reply.startsWith("OK"))
+                idle.add(w);
+            else
+                replace(w);
+        }
+    }
+
+    /** destroy a worker, and start another in the background */
+    void replace(final Worker w)
+    {
+        w.destroy();
+
+        synchronized (workers)
+        {
+            workers.remove(w);
+        }
+
+        if (closed)
+            return;
+
+        restarts.incrementAndGet();
+
+        daemon(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    while (!closed)
+                    {
+                        Worker next = null;
+
+                        try
+                        {
+                            next = launch();
+                            awaitReady(next);
+
+                            synchronized (workers)
+                            {
+                                if (closed)
+                                {
+                                    next.destroy();
+                                    return;
+                                }
+
+                                workers.add(next);
+                            }
+
+                            idle.add(next);
+                            return;
+                        }
+                        catch (IOException ex)
+                        {
+                            lastStartFailure = ex;
+                            startFailures.incrementAndGet();
+
+                            if (next != null)
+                                next.destroy();
+
+                            Thread.sleep(RETRY_MILLIS);
+                        }
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    /* give up */
+                }
+            }
+        }, "WorkerPool-restart");
+    }
+
+    /** start a worker process */
+    private Worker launch() throws IOException
+    {
+        String name = "Worker-" + started.incrementAndGet();
+
+        return new Worker(name, new ProcessBuilder(command).start());
+    }
+
+    /** wait for a worker to say that it is ready */
+    private void awaitReady(Worker w) throws IOException, InterruptedException
+    {
+        String line = w.replies.poll(startMillis, TimeUnit.MILLISECONDS);
+
+        if (line == null || line == GONE || !line.startsWith("READY"))
+        {
+            w.destroy();
+            throw new IOException(w.name + " did not get ready" + ((line == null || line == GONE) ? "" : " : " + line));
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name)
+    {
+        Thread t = new Thread(r, name);
+
+        t.setDaemon(true);
+        t.start();
+
+        return t;
+    }
+}
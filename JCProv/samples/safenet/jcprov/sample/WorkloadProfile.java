@@ -0,0 +1,603 @@
+package com.safenetinc.jcprov.sample;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+import com.safenetinc.jcprov.*;
+import com.safenetinc.jcprov.constants.*;
+
+/**
+ * A weighted mix of operations for the {@link Threading} benchmark.
+ * <p>
+ * Each operation names a kind (encrypt, sign or digest), a mechanism, the label
+ * of the key to use and a distribution of payload sizes. Worker threads pick
+ * the next operation at random according to the weights, so a single run
+ * reproduces the shape of real traffic.
+ * <p>
+ * A profile file has one operation per line, blank lines and lines starting
+ * with # are ignored :-
+ * <pre>
+ * # weight  kind     mechanism        key       payload
+ *   60      encrypt  AES_CBC_PAD      aesKey    64:40,1024:50,16384:10
+ *   20      sign     SHA256_RSA_PKCS  rsaKey    256
+ *   10      sign     SHA256_HMAC      hmacKey   32-4096
+ *   10      digest   SHA256           -         1024
+ * </pre>
+ * <li><i>weight</i>    relative frequency of the operation
+ * <li><i>kind</i>      one of encrypt, sign, digest
+ * <li><i>mechanism</i> name of a {@link CKM} constant, or a numeric mechanism type (e.g. 0x1082)
+ * <li><i>key</i>       label of the key to use, - for digests
+ * <li><i>payload</i>   a fixed size, a range min-max, or a list of size:weight pairs
+ * <p>
+ * CBC mechanisms are given an all zero IV. For unpadded block mechanisms (ECB, CBC)
+ * the payload size is rounded down to a whole number of blocks, and a size below one
+ * block is rounded up to one block.
+ */
+public class WorkloadProfile
+{
+    /** kind of operation to perform */
+    public static final int ENCRYPT = 0;
+    public static final int SIGN    = 1;
+    public static final int DIGEST  = 2;
+
+    /** operations of the profile */
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    /** running total of the operation weights, used to select an operation */
+    private long[] cumulativeWeights = new long[0];
+
+    /**
+     * A single operation of the profile.
+     */
+    public static class Operation
+    {
+        /** descriptive name, used in reports */
+        final String name;
+
+        /** one of ENCRYPT, SIGN, DIGEST */
+        final int kind;
+
+        /** the mechanism, including any parameter */
+        final CK_MECHANISM mechanism;
+
+        /** label of the key to use, null for digests */
+        final String keyLabel;
+
+        /** distribution of payload sizes */
+        final PayloadSize payload;
+
+        /** block size of an unpadded block mechanism, otherwise 1 */
+        final int blockSize;
+
+        /** relative frequency of the operation */
+        final long weight;
+
+        /** predicted output length for the largest payload, -1 if it can not be predicted */
+        final int maxOutput;
+
+        /** handle of the key, set by {@link WorkloadProfile#resolveKeys} */
+        CK_OBJECT_HANDLE hKey = new CK_OBJECT_HANDLE();
+
+        Operation(String name, int kind, CK_MECHANISM mechanism, String keyLabel,
+                  PayloadSize payload, int blockSize, long weight)
+        {
+            this.name = name;
+            this.kind = kind;
+            this.mechanism = mechanism;
+            this.keyLabel = keyLabel;
+            this.payload = payload;
+            this.blockSize = blockSize;
+            this.weight = weight;
+
+            /* the size of RSA keys is not known, so assume the largest */
+            if (kind == ENCRYPT)
+                this.maxOutput = OutputSizeOracle.encryptLength(mechanism.mechanism, getMaxPayload(), 0);
+            else if (kind == SIGN)
+                this.maxOutput = OutputSizeOracle.signLength(mechanism.mechanism, 0);
+            else
+                this.maxOutput = OutputSizeOracle.digestLength(mechanism.mechanism);
+        }
+
+        /** descriptive name of the operation */
+        public String getName()
+        {
+            return name;
+        }
+
+        /** largest payload this operation uses */
+        public int getMaxPayload()
+        {
+            return toBlocks(payload.getMax());
+        }
+
+        /** predicted output length for the largest payload, -1 if it can not be predicted */
+        public int getMaxOutput()
+        {
+            return maxOutput;
+        }
+
+        /**
+         * Pick a payload size for the next execution of this operation.
+         *
+         * @param rng
+         *  random number generator of the calling thread
+         */
+        public int nextPayloadSize(Random rng)
+        {
+            return toBlocks(payload.sample(rng));
+        }
+
+        /**
+         * A payload size an unpadded block mechanism accepts : a whole number of blocks,
+         * and at least one. Sizes only grow when below a block, so the largest payload
+         * stays the largest.
+         */
+        private int toBlocks(int size)
+        {
+            if (blockSize > 1)
+            {
+                size = Math.max(blockSize, size - size % blockSize);
+            }
+
+            return size;
+        }
+
+        /**
+         * Perform the operation once.
+         * <p>
+         * The output is written into the buffer of the context, which is reused from one
+         * operation to the next, so a steady state execution allocates nothing.
+         *
+         * @param session
+         *  handle to an open session, owned by the calling thread
+         *
+         * @param data
+         *  input data, at least len bytes long
+         *
+         * @param len
+         *  number of bytes of data to process
+         *
+         * @param context
+         *  the calling thread's context, holding the output buffer
+         *
+         * @return the output length
+         */
+        public int execute(CK_SESSION_HANDLE session, byte[] data, int len, OperationContext context)
+        {
+            switch (kind)
+            {
+                case ENCRYPT:
+                    return context.encrypt(session, mechanism, hKey, data, len);
+
+                case SIGN:
+                    return context.sign(session, mechanism, hKey, data, len);
+
+                default:
+                    return context.digest(session, mechanism, data, len);
+            }
+        }
+    }
+
+    /**
+     * Distribution of payload sizes : a fixed size, a uniform range, or a
+     * weighted list of sizes.
+     */
+    static class PayloadSize
+    {
+        /** sizes to choose from, or the bounds of a range */
+        final int[] sizes;
+
+        /** running total of the weights of the sizes, null for a range */
+        final long[] cumulativeWeights;
+
+        /**
+         * @throws IllegalArgumentException
+         *  if a size has a weight which is not positive
+         */
+        PayloadSize(int[] sizes, long[] cumulativeWeights)
+        {
+            if (cumulativeWeights != null)
+            {
+                for (int i = 0; i < cumulativeWeights.length; ++i)
+                {
+                    long previous = (i == 0) ? 0 : cumulativeWeights[i - 1];
+
+                    if (cumulativeWeights[i] <= previous)
+                        throw new IllegalArgumentException("payload weight of size " + sizes[i] + " must be positive");
+                }
+            }
+
+            this.sizes = sizes;
+            this.cumulativeWeights = cumulativeWeights;
+        }
+
+        /**
+         * Parse a payload specification.
+         *
+         * @param spec
+         *  one of "size", "min-max" or "size:weight,size:weight,..."
+         */
+        static PayloadSize parse(String spec)
+        {
+            int dash = spec.indexOf('-');
+
+            /* a dash in a list of sizes is the sign of a weight */
+            if (dash > 0 && spec.indexOf(':') < 0)
+            {
+                int min = Integer.parseInt(spec.substring(0, dash));
+                int max = Integer.parseInt(spec.substring(dash + 1));
+
+                if (min < 0 || max < min)
+                    throw new IllegalArgumentException("invalid payload range " + spec);
+
+                return new PayloadSize(new int[] { min, max }, null);
+            }
+
+            StringTokenizer st = new StringTokenizer(spec, ",");
+            int[] sizes = new int[st.countTokens()];
+            long[] weights = new long[sizes.length];
+            long total = 0;
+
+            for (int i = 0; i < sizes.length; ++i)
+            {
+                String item = st.nextToken();
+                int colon = item.indexOf(':');
+
+                if (colon < 0)
+                {
+                    sizes[i] = Integer.parseInt(item);
+                    total += 1;
+                }
+                else
+                {
+                    sizes[i] = Integer.parseInt(item.substring(0, colon));
+                    total += Long.parseLong(item.substring(colon + 1));
+                }
+
+                if (sizes[i] < 0)
+                    throw new IllegalArgumentException("invalid payload size " + item);
+
+                weights[i] = total;
+            }
+
+            return new PayloadSize(sizes, weights);
+        }
+
+        /** choose a size */
+        int sample(Random rng)
+        {
+            if (cumulativeWeights == null)
+            {
+                return sizes[0] + rng.nextInt(sizes[1] - sizes[0] + 1);
+            }
+
+            return sizes[pick(cumulativeWeights, rng)];
+        }
+
+        /** largest size of the distribution */
+        int getMax()
+        {
+            int max = 0;
+
+            for (int i = 0; i < sizes.length; ++i)
+            {
+                max = Math.max(max, sizes[i]);
+            }
+
+            return max;
+        }
+    }
+
+    /**
+     * Create a profile consisting of a single operation.
+     *
+     * @param kind
+     *  one of encrypt, sign, digest
+     *
+     * @param mechanism
+     *  name of the mechanism
+     *
+     * @param keyLabel
+     *  label of the key
+     *
+     * @param payload
+     *  payload size specification
+     */
+    public static WorkloadProfile singleOperation(String kind, String mechanism, String keyLabel, String payload)
+    {
+        WorkloadProfile profile = new WorkloadProfile();
+
+        profile.addOperation(1, kind, mechanism, keyLabel, payload);
+
+        return profile;
+    }
+
+    /**
+     * Load a profile from a file.
+     *
+     * @param fileName
+     *  name of the profile file
+     */
+    public static WorkloadProfile load(String fileName) throws IOException
+    {
+        WorkloadProfile profile = new WorkloadProfile();
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+
+        try
+        {
+            String line;
+            int lineNo = 0;
+
+            while ((line = in.readLine()) != null)
+            {
+                ++lineNo;
+                line = line.trim();
+
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+
+                StringTokenizer st = new StringTokenizer(line);
+
+                if (st.countTokens() != 5)
+                    throw new IOException(fileName + ":" + lineNo + ": expected 5 fields");
+
+                try
+                {
+                    long weight = Long.parseLong(st.nextToken());
+
+                    profile.addOperation(weight, st.nextToken(), st.nextToken(), st.nextToken(), st.nextToken());
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    throw new IOException(fileName + ":" + lineNo + ": " + ex.getMessage());
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (profile.operations.isEmpty())
+            throw new IOException(fileName + ": no operations");
+
+        return profile;
+    }
+
+    /**
+     * Add an operation to the profile.
+     *
+     * @param weight
+     *  relative frequency of the operation
+     *
+     * @param kind
+     *  one of encrypt, sign, digest
+     *
+     * @param mechanism
+     *  name of a CKM constant, or a numeric mechanism type
+     *
+     * @param keyLabel
+     *  label of the key, ignored for digests
+     *
+     * @param payload
+     *  payload size specification
+     */
+    public void addOperation(long weight, String kind, String mechanism, String keyLabel, String payload)
+    {
+        int k;
+
+        if (kind.equalsIgnoreCase("encrypt"))
+            k = ENCRYPT;
+        else if (kind.equalsIgnoreCase("sign"))
+            k = SIGN;
+        else if (kind.equalsIgnoreCase("digest"))
+            k = DIGEST;
+        else
+            throw new IllegalArgumentException("unknown operation " + kind);
+
+        if (weight <= 0)
+            throw new IllegalArgumentException("weight must be positive");
+
+        CK_MECHANISM_TYPE type = mechanismType(mechanism);
+        String mechName = mechanism.toUpperCase();
+        int blockSize = blockSize(mechName);
+        CK_MECHANISM mech;
+
+        if (mechName.indexOf("_CBC") >= 0)
+        {
+            /* CBC modes need an IV - an all zero one is fine for benchmarking */
+            mech = new CK_MECHANISM(type, new byte[blockSize], blockSize);
+        }
+        else
+        {
+            mech = new CK_MECHANISM(type);
+        }
+
+        /* only unpadded block modes need whole blocks of input */
+        boolean unpadded = (k == ENCRYPT)
+                && (mechName.endsWith("_ECB") || mechName.endsWith("_CBC"));
+
+        operations.add(new Operation(kind.toLowerCase() + " " + mechanism + " " + keyLabel,
+                                     k,
+                                     mech,
+                                     (k == DIGEST) ? null : keyLabel,
+                                     PayloadSize.parse(payload),
+                                     unpadded ? blockSize : 1,
+                                     weight));
+
+        long[] cw = new long[operations.size()];
+        long total = 0;
+
+        for (int i = 0; i < cw.length; ++i)
+        {
+            total += operations.get(i).weight;
+            cw[i] = total;
+        }
+
+        cumulativeWeights = cw;
+    }
+
+    /**
+     * Locate the keys used by the operations.
+     *
+     * @param session
+     *  handle to an open session, logged in if private keys are used
+     *
+     * @param slotId
+     *  slot of the session
+     *
+     * @return the label of the first key which could not be found, or null if
+     *  all keys were found
+     */
+    public String resolveKeys(CK_SESSION_HANDLE session, long slotId)
+    {
+        for (Operation op : operations)
+        {
+            if (op.keyLabel == null)
+                continue;
+
+            /* encryption uses a secret or public key, signing a private or secret key */
+            CK_OBJECT_CLASS first = (op.kind == ENCRYPT) ? CKO.SECRET_KEY : CKO.PRIVATE_KEY;
+            CK_OBJECT_CLASS second = (op.kind == ENCRYPT) ? CKO.PUBLIC_KEY : CKO.SECRET_KEY;
+
+            op.hKey = findKey(session, slotId, first, op.keyLabel);
+
+            if (!op.hKey.isValidHandle())
+                op.hKey = findKey(session, slotId, second, op.keyLabel);
+
+            if (!op.hKey.isValidHandle())
+                return op.keyLabel;
+        }
+
+        return null;
+    }
+
+    /**
+     * Create the keys used by the operations in a software token, unless it already has
+     * them.
+     *
+     * @param soft
+     *  the software token
+     */
+    public void provisionKeys(SoftCryptoki soft)
+    {
+        for (Operation op : operations)
+        {
+            if (op.keyLabel != null)
+                soft.provisionKey(op.keyLabel, op.mechanism.mechanism);
+        }
+    }
+
+    /** the operations of the profile */
+    public List<Operation> getOperations()
+    {
+        return operations;
+    }
+
+    /** largest payload used by any operation */
+    public int getMaxPayload()
+    {
+        int max = 0;
+
+        for (Operation op : operations)
+        {
+            max = Math.max(max, op.getMaxPayload());
+        }
+
+        return max;
+    }
+
+    /** largest predicted output length of the operations, 0 if none can be predicted */
+    public int getMaxOutput()
+    {
+        int max = 0;
+
+        for (Operation op : operations)
+        {
+            max = Math.max(max, op.getMaxOutput());
+        }
+
+        return max;
+    }
+
+    /**
+     * Choose the next operation to perform.
+     *
+     * @param rng
+     *  random number generator of the calling thread
+     *
+     * @return index of the operation in {@link #getOperations()}
+     */
+    public int nextOperation(Random rng)
+    {
+        return pick(cumulativeWeights, rng);
+    }
+
+    /** pick an index at random according to a table of cumulative weights */
+    static int pick(long[] cumulativeWeights, Random rng)
+    {
+        long total = cumulativeWeights[cumulativeWeights.length - 1];
+        long r = (long)(rng.nextDouble() * total);
+
+        int lo = 0;
+        int hi = cumulativeWeights.length - 1;
+
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+
+            if (r < cumulativeWeights[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Determine a mechanism type from its name.
+     *
+     * @param name
+     *  name of a CKM constant (e.g. AES_CBC_PAD), or a numeric value
+     */
+    static CK_MECHANISM_TYPE mechanismType(String name)
+    {
+        try
+        {
+            if (name.startsWith("0x") || name.startsWith("0X"))
+                return new CK_MECHANISM_TYPE(Long.parseLong(name.substring(2), 16));
+
+            if (Character.isDigit(name.charAt(0)))
+                return new CK_MECHANISM_TYPE(Long.parseLong(name));
+
+            return (CK_MECHANISM_TYPE)CKM.class.getField(name.toUpperCase()).get(null);
+        }
+        catch (Exception ex)
+        {
+            throw new IllegalArgumentException("unknown mechanism " + name);
+        }
+    }
+
+    /** block size of the cipher used by a mechanism */
+    static int blockSize(String mechName)
+    {
+        if (mechName.startsWith("AES") || mechName.startsWith("ARIA") || mechName.startsWith("SEED"))
+            return 16;
+
+        return 8;
+    }
+
+    /**
+     * Locate a token key given its class and label, through the shared {@link KeyCache}.
+     */
+    static CK_OBJECT_HANDLE findKey(CK_SESSION_HANDLE session, long slotId, CK_OBJECT_CLASS keyClass, String keyName)
+    {
+        return KeyCache.getInstance().findKey(session, slotId, keyClass, null, keyName, null);
+    }
+}
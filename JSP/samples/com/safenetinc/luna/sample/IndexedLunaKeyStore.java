@@ -0,0 +1,550 @@
+// ****************************************************************************
+// Copyright (c) 2010 SafeNet, Inc. All rights reserved.
+//
+// All rights reserved.  This file contains information that is
+// proprietary to SafeNet, Inc. and may not be distributed
+// or copied without written consent from SafeNet, Inc.
+// ****************************************************************************
+
+
+import com.safenetinc.luna.LunaSlotManager;
+import com.safenetinc.luna.LunaTokenObject;
+import com.safenetinc.luna.provider.LunaKeyStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Luna KeyStore which keeps an index of the aliases on the partition in memory.
+ * <p>
+ * Each call to aliases(), size() or containsAlias() on the Luna KeyStore walks the
+ * objects of the partition, which takes seconds on a partition holding tens of thousands
+ * of keys. This KeyStore reads the aliases once when it is loaded, and looks up the
+ * handle, class and creation date of each object from several threads at once. After
+ * that
+ * <ul>
+ * <li>aliases(), size(), containsAlias(), isKeyEntry(), isCertificateEntry() and
+ * getCreationDate() are answered from the index
+ * <li>setKeyEntry(), setCertificateEntry() and deleteEntry() update the index
+ * <li>a background thread compares the index with the partition at an interval, to pick
+ * up objects created, destroyed or replaced by other applications
+ * </ul>
+ * A reconcile reads the aliases of the partition, which is one walk of its objects, but
+ * only looks up the aliases new since the last one; aliases gone from the partition are
+ * dropped without any lookup. An object replaced under the same alias is only told apart
+ * by its handle or creation date, so each reconcile looks up again a few of the aliases
+ * already indexed, in turn, and a replacement is picked up within a number of intervals.
+ * Usage :
+ * <pre>
+ *     IndexedLunaKeyStore index = new IndexedLunaKeyStore(8, 60000);
+ *     KeyStore myStore = index.asKeyStore();
+ *     myStore.load(new ByteArrayInputStream("slot:1".getBytes()), passwd.toCharArray());
+ *     ...
+ *     index.stop();
+ * </pre>
+ */
+public class IndexedLunaKeyStore extends LunaKeyStore {
+
+    // PKCS#11 object class of a certificate
+    private static final long CKO_CERTIFICATE = 1;
+
+    // number of indexed aliases looked up again by each reconcile, to find replaced objects
+    private static final int VERIFY_PER_RECONCILE = 256;
+
+    // the prefixes of the load stream, as parsed by LunaKeyStore
+    private static final String SLOT_PREFIX = "slot:";
+    private static final String LABEL_PREFIX = "tokenlabel:";
+
+    /**
+     * What the index knows about an alias.
+     */
+    public static class Entry {
+        private final int handle;
+        private final long objectClass;
+        private final Date created;
+
+        Entry(int handle, long objectClass, Date created) {
+            this.handle = handle;
+            this.objectClass = objectClass;
+            this.created = created;
+        }
+
+        public int getHandle() {
+            return handle;
+        }
+
+        public long getObjectClass() {
+            return objectClass;
+        }
+
+        public Date getCreationDate() {
+            return (created == null) ? null : new Date(created.getTime());
+        }
+
+        // true if both entries describe the same object on the partition
+        boolean sameObject(Entry other) {
+            return handle == other.handle && objectClass == other.objectClass
+                    && (created == null ? other.created == null : created.equals(other.created));
+        }
+    }
+
+    private final int threads;
+    private final long reconcileMillis;
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+    // the stamp of the last change made through this KeyStore to each alias, so that a
+    // reconcile which read the partition before the change does not undo it
+    private final Map<String, Long> changed = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong stamp = new AtomicLong();
+
+    private volatile int slot = -1;
+    private volatile boolean stopped = false;
+    private Thread reconciler = null;
+
+    // the last indexed alias looked up again, the next reconcile carries on after it
+    private volatile String verified = "";
+
+    private volatile RuntimeException lastFailure = null;
+
+    private final AtomicLong reconciles = new AtomicLong();
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param threads number of threads looking up the objects when the index is built
+     * @param reconcileMillis time between reconciles with the partition, 0 for none
+     */
+    public IndexedLunaKeyStore(int threads, long reconcileMillis) {
+        this.threads = Math.max(1, threads);
+        this.reconcileMillis = reconcileMillis;
+    }
+
+    /**
+     * @return a KeyStore backed by this index
+     */
+    public KeyStore asKeyStore() {
+        return new KeyStore(this, Security.getProvider("LunaProvider"), "Luna") { };
+    }
+
+    public void engineLoad(InputStream stream, char[] password)
+            throws IOException, NoSuchAlgorithmException, CertificateException {
+        // the slot is named in the stream, which the Luna KeyStore reads as well
+        byte[] spec = null;
+        if (stream != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int n;
+            while ((n = stream.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+            spec = bytes.toByteArray();
+            stream = new ByteArrayInputStream(spec);
+        }
+
+        super.engineLoad(stream, password);
+
+        slot = slotOf((spec == null) ? null : new String(spec).trim());
+        rebuild();
+
+        synchronized (this) {
+            if (reconcileMillis > 0 && reconciler == null) {
+                startReconciler();
+            }
+        }
+    }
+
+    // the slot named by the load stream, or the default slot
+    private static int slotOf(String spec) {
+        LunaSlotManager manager = LunaSlotManager.getInstance();
+        if (spec != null && spec.startsWith(SLOT_PREFIX)) {
+            return Integer.parseInt(spec.substring(SLOT_PREFIX.length()).trim());
+        }
+        if (spec != null && spec.startsWith(LABEL_PREFIX)) {
+            return manager.findSlotFromLabel(spec.substring(LABEL_PREFIX.length()).trim());
+        }
+        return manager.getDefaultSlot();
+    }
+
+    /**
+     * Reads every alias on the partition, and looks them up in parallel.
+     */
+    public void rebuild() {
+        long start = stamp.incrementAndGet();
+        List<String> aliases = Collections.list(super.engineAliases());
+
+        Map<String, Entry> found = lookup(aliases);
+        for (String alias : new ArrayList<String>(index.keySet())) {
+            if (!found.containsKey(alias) && !changedSince(alias, start)) {
+                index.remove(alias);
+            }
+        }
+        for (Map.Entry<String, Entry> e : found.entrySet()) {
+            if (!changedSince(e.getKey(), start)) {
+                index.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Brings the index in line with the partition. The aliases not yet indexed are looked
+     * up, the ones gone from the partition are removed, and the next few indexed aliases
+     * are looked up again, so that an object destroyed and created again under the same
+     * alias by another application, with a new handle or creation date, replaces the old
+     * entry.
+     */
+    public void reconcile() {
+        long start = stamp.incrementAndGet();
+        Set<String> current = new HashSet<String>(Collections.list(super.engineAliases()));
+
+        List<String> wanted = new ArrayList<String>();
+        for (String alias : current) {
+            if (!index.containsKey(alias)) {
+                wanted.add(alias);
+            }
+        }
+        wanted.addAll(nextToVerify(current));
+
+        for (Map.Entry<String, Entry> e : lookup(wanted).entrySet()) {
+            if (changedSince(e.getKey(), start)) {
+                continue;
+            }
+            Entry old = index.put(e.getKey(), e.getValue());
+            if (old == null) {
+                added.incrementAndGet();
+            } else if (!old.sameObject(e.getValue())) {
+                replaced.incrementAndGet();
+            }
+        }
+
+        for (String alias : new ArrayList<String>(index.keySet())) {
+            if (!current.contains(alias) && !changedSince(alias, start) && index.remove(alias) != null) {
+                removed.incrementAndGet();
+            }
+        }
+
+        // changes older than this reconcile are now reflected on the partition
+        for (Map.Entry<String, Long> e : changed.entrySet()) {
+            if (e.getValue().longValue() < start) {
+                changed.remove(e.getKey(), e.getValue());
+            }
+        }
+        reconciles.incrementAndGet();
+    }
+
+    // the indexed aliases, still on the partition, to look up again in this reconcile
+    private List<String> nextToVerify(Set<String> current) {
+        TreeSet<String> indexed = new TreeSet<String>(index.keySet());
+        indexed.retainAll(current);
+
+        List<String> next = new ArrayList<String>();
+        for (String alias : indexed.tailSet(verified, false)) {
+            if (next.size() >= VERIFY_PER_RECONCILE) {
+                break;
+            }
+            next.add(alias);
+        }
+        // start again from the first alias once the last has been looked up
+        for (String alias : indexed) {
+            if (next.size() >= Math.min(VERIFY_PER_RECONCILE, indexed.size()) || next.contains(alias)) {
+                break;
+            }
+            next.add(alias);
+        }
+        if (!next.isEmpty()) {
+            verified = next.get(next.size() - 1);
+        }
+        return next;
+    }
+
+    private boolean changedSince(String alias, long start) {
+        Long last = changed.get(alias);
+        return last != null && last.longValue() >= start;
+    }
+
+    // look up each alias on the partition, several at once
+    private Map<String, Entry> lookup(final List<String> aliases) {
+        final Map<String, Entry> found = new ConcurrentHashMap<String, Entry>();
+        final AtomicInteger next = new AtomicInteger();
+
+        Runnable task = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < aliases.size()) {
+                    String alias = aliases.get(i);
+                    Entry entry = locate(alias);
+                    if (entry != null) {
+                        found.put(alias, entry);
+                    }
+                }
+            }
+        };
+
+        int n = Math.min(threads, aliases.size());
+        Thread workers[] = new Thread[Math.max(0, n - 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(task, "IndexedLunaKeyStore-" + i);
+            workers[i].start();
+        }
+        // the calling thread takes its share too
+        task.run();
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return found;
+    }
+
+    // the handle, class and creation date of an alias, or null if it is not on the partition
+    private Entry locate(String alias) {
+        try {
+            LunaTokenObject obj = LunaTokenObject.LocateObjectByAlias(alias, slot);
+            if (obj == null) {
+                return null;
+            }
+            return new Entry(obj.GetHandle(), obj.GetClassAndType()[0], obj.GetDateMadePersistent());
+        } catch (RuntimeException e) {
+            // destroyed since the aliases were read
+            return null;
+        }
+    }
+
+    // record a change being made through this KeyStore, so that no reconcile touches the
+    // alias until it is done
+    private void changing(String alias) {
+        changed.put(alias, Long.valueOf(Long.MAX_VALUE));
+    }
+
+    // record a change made through this KeyStore, newer than any reconcile started so far
+    private void changed(String alias) {
+        changed.put(alias, Long.valueOf(stamp.incrementAndGet()));
+    }
+
+    private void startReconciler() {
+        reconciler = new Thread(new Runnable() {
+            public void run() {
+                while (!stopped) {
+                    try {
+                        Thread.sleep(reconcileMillis);
+                        reconcile();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        // kept for the application, and tried again at the next interval
+                        lastFailure = e;
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        }, "IndexedLunaKeyStore-reconcile");
+        reconciler.setDaemon(true);
+        reconciler.start();
+    }
+
+    /**
+     * Stops reconciling with the partition.
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            t = reconciler;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    /**
+     * @return the index entry of an alias, or null
+     */
+    public Entry getEntry(String alias) {
+        return index.get(alias);
+    }
+
+    /**
+     * @return the number of reconciles done
+     */
+    public long getReconcileCount() {
+        return reconciles.get();
+    }
+
+    /**
+     * @return the number of aliases found by reconciles which were not in the index
+     */
+    public long getAddedCount() {
+        return added.get();
+    }
+
+    /**
+     * @return the number of aliases in the index found missing from the partition by reconciles
+     */
+    public long getRemovedCount() {
+        return removed.get();
+    }
+
+    /**
+     * @return the number of aliases found by reconciles to name a different object than the index had
+     */
+    public long getReplacedCount() {
+        return replaced.get();
+    }
+
+    /**
+     * @return the number of background reconciles which failed
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return the failure of the last background reconcile which failed, or null
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    public Enumeration<String> engineAliases() {
+        return Collections.enumeration(new ArrayList<String>(index.keySet()));
+    }
+
+    public boolean engineContainsAlias(String alias) {
+        return index.containsKey(alias);
+    }
+
+    public int engineSize() {
+        return index.size();
+    }
+
+    public Date engineGetCreationDate(String alias) {
+        Entry entry = index.get(alias);
+        return (entry == null) ? null : entry.getCreationDate();
+    }
+
+    public boolean engineIsKeyEntry(String alias) {
+        Entry entry = index.get(alias);
+        return entry != null && entry.objectClass != CKO_CERTIFICATE;
+    }
+
+    public boolean engineIsCertificateEntry(String alias) {
+        Entry entry = index.get(alias);
+        return entry != null && entry.objectClass == CKO_CERTIFICATE;
+    }
+
+    public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain)
+            throws KeyStoreException {
+        changing(alias);
+        try {
+            super.engineSetKeyEntry(alias, key, password, chain);
+            put(alias);
+        } finally {
+            changed(alias);
+        }
+    }
+
+    public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) throws KeyStoreException {
+        changing(alias);
+        try {
+            super.engineSetKeyEntry(alias, key, chain);
+            put(alias);
+        } finally {
+            changed(alias);
+        }
+    }
+
+    public void engineSetCertificateEntry(String alias, Certificate cert) throws KeyStoreException {
+        changing(alias);
+        try {
+            super.engineSetCertificateEntry(alias, cert);
+            put(alias);
+        } finally {
+            changed(alias);
+        }
+    }
+
+    public void engineDeleteEntry(String alias) throws KeyStoreException {
+        changing(alias);
+        try {
+            super.engineDeleteEntry(alias);
+            index.remove(alias);
+        } finally {
+            changed(alias);
+        }
+    }
+
+    // index an alias just stored on the partition
+    private void put(String alias) {
+        Entry entry = locate(alias);
+        if (entry != null) {
+            index.put(alias, entry);
+        } else {
+            index.remove(alias);
+        }
+    }
+
+    // Configure as required.
+    private static final String passwd = "userpin";
+
+    /*
+     * Compares the time taken by aliases() and containsAlias() with and without the index.
+     */
+    public static void main(String[] args) throws Exception {
+        int slot = LunaSlotManager.getInstance().getDefaultSlot();
+
+        KeyStore plain = KeyStore.getInstance("Luna");
+        plain.load(new ByteArrayInputStream(("slot:" + slot).getBytes()), passwd.toCharArray());
+
+        long start = System.currentTimeMillis();
+        IndexedLunaKeyStore index = new IndexedLunaKeyStore(8, 60000);
+        KeyStore indexed = index.asKeyStore();
+        indexed.load(new ByteArrayInputStream(("slot:" + slot).getBytes()), passwd.toCharArray());
+        System.out.println("Index of " + indexed.size() + " objects built in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        int count = Collections.list(plain.aliases()).size();
+        boolean present = plain.containsAlias("DES Demo Key");
+        System.out.println("Luna KeyStore: " + count + " aliases, containsAlias " + present + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        count = Collections.list(indexed.aliases()).size();
+        present = indexed.containsAlias("DES Demo Key");
+        System.out.println("Indexed KeyStore: " + count + " aliases, containsAlias " + present + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        index.stop();
+        if (index.getLastFailure() != null) {
+            System.out.println(index.getFailureCount() + " reconciles failed, the last with "
+                    + index.getLastFailure().getMessage());
+        }
+    }
+}
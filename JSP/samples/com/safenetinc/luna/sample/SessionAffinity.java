@@ -0,0 +1,339 @@
+// ****************************************************************************
+// Copyright (c) 2010 SafeNet, Inc. All rights reserved.
+//
+// All rights reserved.  This file contains information that is
+// proprietary to SafeNet, Inc. and may not be distributed
+// or copied without written consent from SafeNet, Inc.
+// ****************************************************************************
+
+
+import com.safenetinc.luna.LunaSession;
+import com.safenetinc.luna.LunaSessionManager;
+import com.safenetinc.luna.LunaSlotManager;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out LunaSessions either from the shared LunaSessionManager pool or with an
+ * affinity to the calling thread, and reclaims the sessions which are never freed.
+ * <p>
+ * A session from LunaSessionManager.getSession() must be freed by the caller, and
+ * SessionTest shows how easily they pile up. Closing them all with closeAllSessions()
+ * breaks any operation still using one. Here
+ * <ul>
+ * <li>with the SHARED strategy each acquire() takes a session from the pool, and
+ * release() frees it
+ * <li>with the THREAD_LOCAL strategy each thread keeps one session for as long as it
+ * lives, acquire() returns it and release() leaves it with the thread
+ * </ul>
+ * Either way the owner of a session, the Lease for SHARED and the thread for
+ * THREAD_LOCAL, is tracked through a weak reference. When the owner is garbage collected
+ * while it still holds the session, the session is freed and counted as a leak. The
+ * stack of every n-th acquire is recorded, and printed if that session leaks.
+ * <p>
+ * The Lease is the only handle on the session, so that it stays reachable for as long
+ * as the session is used: a caller holding the session without its Lease would have it
+ * freed under them. Leases are AutoCloseable, for use in a try-with-resources block.
+ */
+public class SessionAffinity {
+
+    public enum Strategy { SHARED, THREAD_LOCAL }
+
+    /**
+     * A session acquired from a SessionAffinity, to be released when done. The Lease must
+     * be held for as long as the session handle is used.
+     */
+    public class Lease implements AutoCloseable {
+        private final LunaSession session;
+        private Tracked tracked;
+
+        Lease(LunaSession session) {
+            this.session = session;
+        }
+
+        /**
+         * @return the handle of the session, valid until the Lease is released or dropped
+         */
+        public int getSessionHandle() {
+            return session.GetSessionHandle();
+        }
+
+        public int getSlot() {
+            return session.getSlot();
+        }
+
+        public boolean isValid() {
+            return session.StillValid();
+        }
+
+        public void close() {
+            release();
+        }
+
+        public void release() {
+            if (tracked == null) {
+                // a thread-local session stays with its thread
+                return;
+            }
+            if (owners.remove(tracked)) {
+                tracked.clear();
+                session.Free();
+                released.incrementAndGet();
+            }
+        }
+    }
+
+    // a session with a weak reference to its owner
+    private static class Tracked extends WeakReference<Object> {
+        final LunaSession session;
+        final Throwable trace;
+
+        Tracked(Object owner, LunaSession session, Throwable trace, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.session = session;
+            this.trace = trace;
+        }
+    }
+
+    private final int slot;
+    private final Strategy strategy;
+    private final int traceEvery;
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private final Set<Tracked> owners = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Tracked> local = new ThreadLocal<Tracked>();
+    private final Thread reaper;
+    private volatile boolean closed = false;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong traced = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    /**
+     * @param slot the slot to take sessions on
+     * @param strategy SHARED or THREAD_LOCAL
+     * @param traceEvery record the stack of every traceEvery-th acquire, 0 for none
+     */
+    public SessionAffinity(int slot, Strategy strategy, int traceEvery) {
+        this.slot = slot;
+        this.strategy = strategy;
+        this.traceEvery = traceEvery;
+
+        reaper = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        reclaim(queue.remove());
+                    }
+                } catch (InterruptedException e) {
+                    // closed
+                }
+            }
+        }, "SessionAffinity-" + slot);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * @return a session, from the pool or of the calling thread
+     * @throws IllegalStateException if the SessionAffinity is closed
+     */
+    public Lease acquire() {
+        if (closed) {
+            throw new IllegalStateException("SessionAffinity is closed");
+        }
+        long n = acquired.incrementAndGet();
+
+        if (strategy == Strategy.THREAD_LOCAL) {
+            Tracked tracked = local.get();
+            // a session no longer held has been freed by close()
+            if (tracked == null || !owners.contains(tracked) || !tracked.session.StillValid()) {
+                if (tracked != null) {
+                    releaseThreadSession();
+                }
+                tracked = new Tracked(Thread.currentThread(), LunaSessionManager.getSession(slot), trace(n), queue);
+                local.set(tracked);
+                owners.add(tracked);
+            }
+            return new Lease(tracked.session);
+        }
+
+        Lease lease = new Lease(LunaSessionManager.getSession(slot));
+        lease.tracked = new Tracked(lease, lease.session, trace(n), queue);
+        owners.add(lease.tracked);
+        return lease;
+    }
+
+    // the stack of the caller, if this acquire is sampled
+    private Throwable trace(long n) {
+        if (traceEvery <= 0 || n % traceEvery != 0) {
+            return null;
+        }
+        traced.incrementAndGet();
+        return new Throwable("session acquired by " + Thread.currentThread().getName());
+    }
+
+    // free the session of an owner which has been garbage collected
+    private void reclaim(Reference<?> ref) {
+        Tracked tracked = (Tracked) ref;
+        if (!owners.remove(tracked)) {
+            return;
+        }
+        tracked.session.Free();
+        leaked.incrementAndGet();
+
+        if (tracked.trace != null) {
+            System.out.println("SessionAffinity: reclaimed a session which was never released");
+            tracked.trace.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Frees the session of the calling thread, with the THREAD_LOCAL strategy.
+     */
+    public void releaseThreadSession() {
+        Tracked tracked = local.get();
+        if (tracked == null) {
+            return;
+        }
+        local.remove();
+        if (owners.remove(tracked)) {
+            tracked.clear();
+            tracked.session.Free();
+            released.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops the reaper and frees every session still held, including those of other
+     * threads with THREAD_LOCAL. Further acquires fail.
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        reaper.interrupt();
+        reaper.join();
+        for (Tracked t : owners) {
+            if (owners.remove(t)) {
+                t.session.Free();
+            }
+        }
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return the number of sessions handed out, with THREAD_LOCAL including the ones reused
+     */
+    public long getAcquireCount() {
+        return acquired.get();
+    }
+
+    /**
+     * @return the number of sessions released by their owner
+     */
+    public long getReleaseCount() {
+        return released.get();
+    }
+
+    /**
+     * @return the number of acquires whose stack was recorded
+     */
+    public long getTracedCount() {
+        return traced.get();
+    }
+
+    /**
+     * @return the number of sessions reclaimed after their owner was garbage collected
+     */
+    public long getLeakCount() {
+        return leaked.get();
+    }
+
+    /**
+     * @return the number of sessions currently held
+     */
+    public int getHeldCount() {
+        return owners.size();
+    }
+
+    public String toString() {
+        return strategy + " on slot " + slot + ": " + acquired.get() + " acquired, "
+                + released.get() + " released, " + owners.size() + " held, "
+                + leaked.get() + " leaked, " + traced.get() + " traced";
+    }
+
+    // Configure as required.
+    private static final String passwd = "userpin";
+
+    /*
+     * Leaks sessions with both strategies, and shows them being reclaimed.
+     */
+    public static void main(String args[]) throws Exception {
+        LunaSlotManager manager = LunaSlotManager.getInstance();
+        int slot = -1;
+
+        try {
+            manager.login(passwd);               // log in to the first slot
+            slot = manager.getDefaultSlot();
+
+        } catch (Exception e) {
+            System.out.println("Exception during login");
+            System.exit(-1);
+        }
+
+        // shared pool: 100 sessions taken, 50 released, the rest dropped
+        SessionAffinity shared = new SessionAffinity(slot, Strategy.SHARED, 10);
+        Lease leases[] = new Lease[100];
+        for (int i = 0; i < 100; i++) {
+            leases[i] = shared.acquire();
+        }
+        for (int i = 50; i < 100; i++) {
+            leases[i].release();
+        }
+        leases = null;
+        collect();
+        System.out.println(shared);
+        shared.close();
+
+        // thread-local: 8 threads each use their session 100 times, and exit without releasing it
+        final SessionAffinity affinity = new SessionAffinity(slot, Strategy.THREAD_LOCAL, 1);
+        Thread threads[] = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        affinity.acquire().release();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        System.out.println(affinity);
+        threads = null;
+        collect();
+        System.out.println(affinity);
+        affinity.close();
+
+        System.out.println("There are " + LunaSessionManager.getActiveSessionCount(slot) + " active sessions and "
+                + LunaSessionManager.getCachedSessionCount(slot) + " cached sessions");
+    }
+
+    // give the garbage collector and the reaper a chance to run
+    private static void collect() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+// ****************************************************************************
+// Copyright (c) 2010 SafeNet, Inc. All rights reserved.
+//
+// All rights reserved.  This file contains information that is
+// proprietary to SafeNet, Inc. and may not be distributed
+// or copied without written consent from SafeNet, Inc.
+// ****************************************************************************
+
+
+import com.safenetinc.luna.LunaException;
+import com.safenetinc.luna.LunaSession;
+import com.safenetinc.luna.LunaSessionManager;
+import com.safenetinc.luna.LunaSlotManager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the session cache of the LunaSessionManager filled for the demand on a slot.
+ * <p>
+ * The LunaSessionManager caches the sessions which are freed, but only opens a session
+ * when one is asked for, so the first requests after an idle period, or at the start of a
+ * burst, wait for sessions to be opened. The policy
+ * <ul>
+ * <li>opens a minimum number of sessions at startup, leaving them in the cache
+ * <li>samples the number of active sessions at an interval, and keeps enough sessions
+ * cached for the largest swing in demand seen over the last samples, within a minimum
+ * and a maximum
+ * <li>only trims the cache once it holds more than the target plus a margin, so that
+ * the cache does not shrink and grow again on every sample
+ * </ul>
+ * The LunaSessionManager can only close every cached session of a slot at once, so a
+ * trim closes the cache and fills it again to the target.
+ */
+public class SessionCachePolicy {
+
+    private final int slot;
+    private final int minCached;
+    private final int maxCached;
+    private final int hysteresis;
+
+    // the active session count of the last samples
+    private final int[] demand;
+    private int samples = 0;
+
+    private volatile int target;
+    private volatile boolean stopped = false;
+    private Thread sampler = null;
+
+    private volatile LunaException lastFailure = null;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong grows = new AtomicLong();
+    private final AtomicLong trims = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param slot the slot whose sessions are cached
+     * @param minCached fewest sessions to keep cached
+     * @param maxCached most sessions to keep cached
+     * @param hysteresis how many sessions over the target the cache may hold before it is trimmed
+     * @param window number of samples the swing in demand is measured over
+     */
+    public SessionCachePolicy(int slot, int minCached, int maxCached, int hysteresis, int window) {
+        if (minCached < 0 || maxCached < minCached || hysteresis < 0 || window < 1) {
+            throw new IllegalArgumentException("invalid cache bounds");
+        }
+        this.slot = slot;
+        this.minCached = minCached;
+        this.maxCached = maxCached;
+        this.hysteresis = hysteresis;
+        this.demand = new int[window];
+        this.target = minCached;
+    }
+
+    /**
+     * Opens sessions until the minimum are cached.
+     */
+    public synchronized void prewarm() {
+        fill(minCached);
+    }
+
+    /**
+     * Starts sampling the demand in a background thread.
+     *
+     * @param intervalMillis time between samples
+     */
+    public synchronized void start(final long intervalMillis) {
+        if (sampler != null) {
+            return;
+        }
+        sampler = new Thread(new Runnable() {
+            public void run() {
+                while (!stopped) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                        adjust();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (LunaException e) {
+                        // the slot may be logged out for a moment, try again on the next sample
+                        lastFailure = e;
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        }, "SessionCachePolicy-" + slot);
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Stops sampling. The sessions already cached are left in the cache.
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            t = sampler;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    /**
+     * Takes one sample of the demand and grows or trims the cache to match it.
+     */
+    public synchronized void adjust() {
+        int active = LunaSessionManager.getActiveSessionCount(slot);
+        demand[samples++ % demand.length] = active;
+
+        int n = Math.min(samples, demand.length);
+        int low = Integer.MAX_VALUE;
+        int high = 0;
+        for (int i = 0; i < n; i++) {
+            low = Math.min(low, demand[i]);
+            high = Math.max(high, demand[i]);
+        }
+
+        // enough sessions cached to absorb the largest burst seen lately
+        target = Math.max(minCached, Math.min(maxCached, high - low));
+
+        int cached = LunaSessionManager.getCachedSessionCount(slot);
+        if (cached < target) {
+            grows.incrementAndGet();
+            fill(target);
+        } else if (cached > target + hysteresis) {
+            trims.incrementAndGet();
+            LunaSessionManager.closeCachedSessions(slot);
+            fill(target);
+        }
+    }
+
+    // opens sessions and frees them straight away, so that they are left in the cache
+    private void fill(int count) {
+        int cached = LunaSessionManager.getCachedSessionCount(slot);
+        if (cached >= count) {
+            return;
+        }
+
+        // getSession() takes the cached sessions first, so take count sessions, holding every
+        // one until all are taken, to have count - cached of them opened
+        LunaSession[] sessions = new LunaSession[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sessions[i] = LunaSessionManager.getSession(slot);
+            }
+        } finally {
+            int taken = 0;
+            for (int i = 0; i < count; i++) {
+                if (sessions[i] != null) {
+                    sessions[i].Free();
+                    taken++;
+                }
+            }
+            opened.addAndGet(Math.max(0, taken - cached));
+        }
+    }
+
+    /**
+     * @return the number of sessions the cache is being kept at
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the number of sessions opened by the policy to fill the cache
+     */
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of times the cache was grown
+     */
+    public long getGrowCount() {
+        return grows.get();
+    }
+
+    /**
+     * @return the number of times the cache was trimmed
+     */
+    public long getTrimCount() {
+        return trims.get();
+    }
+
+    /**
+     * @return the number of background samples which failed
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return the failure of the last background sample which failed, or null
+     */
+    public LunaException getLastFailure() {
+        return lastFailure;
+    }
+
+    public String toString() {
+        return "slot " + slot + ": target " + target + " (" + minCached + ".." + maxCached + "), "
+                + LunaSessionManager.getActiveSessionCount(slot) + " active, "
+                + LunaSessionManager.getCachedSessionCount(slot) + " cached, "
+                + grows.get() + " grows, " + trims.get() + " trims, " + opened.get() + " opened, "
+                + failures.get() + " failed samples";
+    }
+
+    // Configure as required.
+    private static final String passwd = "userpin";
+
+    /*
+     * Shows the cache following a burst of demand, and shrinking back once it has passed.
+     */
+    public static void main(String args[]) throws Exception {
+        LunaSlotManager manager = LunaSlotManager.getInstance();
+        int slot = -1;
+
+        try {
+            manager.login(passwd);               // log in to the first slot
+            slot = manager.getDefaultSlot();
+
+        } catch (Exception e) {
+            System.out.println("Exception during login");
+            System.exit(-1);
+        }
+
+        // keep 4 to 64 sessions cached, measuring the demand over the last 10 samples
+        SessionCachePolicy policy = new SessionCachePolicy(slot, 4, 64, 8, 10);
+        policy.prewarm();
+        System.out.println("Pre-warmed: " + policy);
+        policy.start(500);
+
+        System.out.println("Burst of 40 sessions.");
+        LunaSession sessions[] = new LunaSession[40];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = LunaSessionManager.getSession(slot);
+        }
+        Thread.sleep(1000);
+        System.out.println(policy);
+
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i].Free();
+        }
+        System.out.println("Burst over: " + policy);
+
+        // once the burst has left the window the cache is trimmed back
+        Thread.sleep(6000);
+        System.out.println("Idle: " + policy);
+
+        policy.stop();
+        if (policy.getLastFailure() != null) {
+            System.out.println(policy.getFailureCount() + " samples failed, the last with "
+                    + policy.getLastFailure().getMessage());
+        }
+    }
+}
@@ -0,0 +1,436 @@
+// ****************************************************************************
+// Copyright (c) 2010 SafeNet, Inc. All rights reserved.
+//
+// All rights reserved.  This file contains information that is
+// proprietary to SafeNet, Inc. and may not be distributed
+// or copied without written consent from SafeNet, Inc.
+// ****************************************************************************
+
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs data on a fixed set of worker threads, and returns the signatures through
+ * CompletableFutures.
+ * <p>
+ * RSADemo and SIMExample.signTest sign on the calling thread, creating and initializing
+ * a Signature each time. With many application threads signing at once, every one of
+ * them takes a session from the LunaSessionManager, so the number of sessions, and the
+ * contention on the HSM, follow the number of application threads. Here
+ * <ul>
+ * <li>the requests for each key go to a bounded queue of their own
+ * <li>a fixed number of workers take turns over the keys with requests waiting, one
+ * request at a time, so a busy key does not hold up the others
+ * <li>each worker keeps a Signature initialized with each of the keys it used last, which
+ * is reused for every request it takes for that key
+ * <li>when the queue of a key is full, sign() waits up to the offer timeout for room, and
+ * then fails the request, so callers are slowed down rather than the queue growing
+ * <li>the queue of a key left idle is dropped, so that keys used once do not pile up
+ * </ul>
+ * The LunaProvider takes a session for each signature from the LunaSessionManager, so no
+ * more sessions are signing at once than there are workers; see SessionCachePolicy to
+ * keep that many sessions cached.
+ */
+public class SigningService {
+
+    // how long the queue of a key stays once it is idle
+    private static final long IDLE_MILLIS = 60000;
+
+    // most Signatures each worker keeps initialized
+    private static final int SIGNATURES_PER_WORKER = 16;
+
+    private final String algorithm;
+    private final String provider;
+    private final int workers;
+    private final int queueCapacity;
+    private final long offerTimeoutMillis;
+
+    private final Map<PrivateKey, KeyQueue> keys = new ConcurrentHashMap<PrivateKey, KeyQueue>();
+    // the keys with requests for a worker, once for every worker they may use
+    private final BlockingQueue<KeyQueue> ready = new LinkedBlockingQueue<KeyQueue>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private long lastSweep = System.currentTimeMillis();
+    private volatile boolean closed = false;
+
+    // requests accepted and not yet completed
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong signed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong retired = new AtomicLong();
+
+    // a request to sign
+    private static class Request {
+        final byte[] data;
+        final CompletableFuture<byte[]> result;
+
+        Request(byte[] data, CompletableFuture<byte[]> result) {
+            this.data = data;
+            this.result = result;
+        }
+    }
+
+    // the requests waiting for one key
+    private class KeyQueue {
+        final PrivateKey key;
+        final BlockingQueue<Request> queue;
+
+        // workers taking or about to take requests of the key, guarded by this
+        int active = 0;
+        long lastUsed = System.currentTimeMillis();
+
+        KeyQueue(PrivateKey key) {
+            this.key = key;
+            this.queue = new ArrayBlockingQueue<Request>(queueCapacity);
+        }
+
+        // hand the key to another worker, if it has more requests waiting than workers
+        synchronized void schedule() {
+            if (active < workers && active < queue.size()) {
+                active++;
+                ready.add(this);
+            }
+        }
+
+        // after a worker took one request: keep the key in turn, or let it go idle
+        synchronized void done() {
+            if (queue.isEmpty()) {
+                active--;
+                lastUsed = System.currentTimeMillis();
+            } else {
+                ready.add(this);
+            }
+        }
+
+        synchronized boolean isIdle(long now) {
+            return active == 0 && queue.isEmpty() && now - lastUsed >= IDLE_MILLIS;
+        }
+    }
+
+    // the end of a worker's work
+    private final KeyQueue stop;
+
+    /**
+     * @param algorithm signature algorithm, such as SHA256withRSA
+     * @param provider the provider, normally LunaProvider
+     * @param workers number of threads signing, over every key
+     * @param queueCapacity most requests waiting for each key
+     * @param offerTimeoutMillis how long sign() waits for room in a full queue
+     */
+    public SigningService(String algorithm, String provider, int workers, int queueCapacity,
+            long offerTimeoutMillis) {
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("need at least one worker and one queue entry per key");
+        }
+        this.algorithm = algorithm;
+        this.provider = provider;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.stop = new KeyQueue(null);
+
+        for (int i = 0; i < workers; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "SigningService-" + i);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+    }
+
+    private void work() {
+        // the Signatures of the keys this worker used last, least recently used first
+        Map<PrivateKey, Signature> signatures = new LinkedHashMap<PrivateKey, Signature>(16, 0.75f, true);
+
+        while (true) {
+            KeyQueue keyQueue;
+            try {
+                keyQueue = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (keyQueue == stop) {
+                return;
+            }
+
+            // another worker may have taken the request this turn was for
+            Request request = keyQueue.queue.poll();
+            if (request != null) {
+                try {
+                    Signature signature = signatures.get(keyQueue.key);
+                    if (signature == null) {
+                        signature = newSignature(keyQueue.key);
+                        signatures.put(keyQueue.key, signature);
+                        if (signatures.size() > SIGNATURES_PER_WORKER) {
+                            Iterator<PrivateKey> eldest = signatures.keySet().iterator();
+                            eldest.next();
+                            eldest.remove();
+                        }
+                    }
+                    // sign() leaves the Signature initialized with the key, ready for the next request
+                    signature.update(request.data);
+                    byte[] result = signature.sign();
+                    signed.incrementAndGet();
+                    request.result.complete(result);
+
+                } catch (Exception e) {
+                    // start again with a new Signature, in case this one was left mid-operation
+                    signatures.remove(keyQueue.key);
+                    failed.incrementAndGet();
+                    request.result.completeExceptionally(e);
+                }
+                completed();
+            }
+            keyQueue.done();
+        }
+    }
+
+    private Signature newSignature(PrivateKey key)
+            throws NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        Signature signature = Signature.getInstance(algorithm, provider);
+        signature.initSign(key);
+        return signature;
+    }
+
+    // a request accepted by sign() has completed
+    private void completed() {
+        if (pending.decrementAndGet() == 0 && closed) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues data to be signed with a key.
+     *
+     * @param key the key
+     * @param data the data, which must not be changed until the result is complete
+     * @return the signature, or a RejectedExecutionException if the queue of the key
+     *         stayed full for the offer timeout, or the service is closed
+     */
+    public CompletableFuture<byte[]> sign(PrivateKey key, byte[] data) {
+        CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+        if (closed) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new RejectedExecutionException("signing service is closed"));
+            return result;
+        }
+
+        KeyQueue keyQueue = keys.get(key);
+        if (keyQueue == null) {
+            synchronized (keys) {
+                keyQueue = keys.get(key);
+                if (keyQueue == null) {
+                    retireIdle();
+                    keyQueue = new KeyQueue(key);
+                    keys.put(key, keyQueue);
+                }
+            }
+        }
+
+        submitted.incrementAndGet();
+        Request request = new Request(data, result);
+
+        // counted before it is queued, so that close() waits for it
+        pending.incrementAndGet();
+        try {
+            if (!keyQueue.queue.offer(request, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                result.completeExceptionally(new RejectedExecutionException(
+                        "signing queue full for " + offerTimeoutMillis + " ms"));
+                completed();
+                return result;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            result.completeExceptionally(e);
+            completed();
+            return result;
+        }
+        keyQueue.schedule();
+
+        // closed while queueing, and possibly after the workers stopped: take it back unless a worker has it
+        if (closed && keyQueue.queue.remove(request)) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new RejectedExecutionException("signing service is closed"));
+            completed();
+        }
+        return result;
+    }
+
+    // drop the queues of the keys left idle, at most once every IDLE_MILLIS
+    private void retireIdle() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < IDLE_MILLIS) {
+            return;
+        }
+        lastSweep = now;
+
+        for (KeyQueue keyQueue : keys.values()) {
+            // a request queued to a retired queue is still signed, the next one makes a new queue
+            if (keyQueue.isIdle(now) && keys.remove(keyQueue.key, keyQueue)) {
+                retired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stops taking requests, and waits for the queued ones to be signed.
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+
+        synchronized (this) {
+            while (pending.get() > 0) {
+                wait();
+            }
+        }
+
+        for (int i = 0; i < threads.size(); i++) {
+            ready.put(stop);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * @return the number of requests waiting, over every key
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (KeyQueue keyQueue : keys.values()) {
+            queued += keyQueue.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * @return the number of keys with a queue
+     */
+    public int getKeyCount() {
+        return keys.size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getSignedCount() {
+        return signed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of key queues dropped after being idle
+     */
+    public long getRetiredCount() {
+        return retired.get();
+    }
+
+    public String toString() {
+        return keys.size() + " keys, " + workers + " workers, " + submitted.get() + " submitted, "
+                + signed.get() + " signed, " + failed.get() + " failed, " + rejected.get() + " rejected, "
+                + getQueuedCount() + " queued, " + retired.get() + " retired";
+    }
+
+    /*
+     * Signs from many application threads at once through a few workers, and checks a
+     * signature.
+     */
+    public static void main(String[] args) throws Exception {
+        // Login to the HSM
+        HSM_Manager.hsmLogin();
+
+        KeyPair pair = null;
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", "LunaProvider");
+            keyGen.initialize(2048);
+            pair = keyGen.generateKeyPair();
+        } catch (Exception e) {
+            System.out.println("Exception during Key Generation - " + e.getMessage());
+            System.exit(1);
+        }
+
+        final PrivateKey key = pair.getPrivate();
+        final byte[] document = "Some Text to Sign as an Example".getBytes();
+
+        // 4 workers, with up to 256 requests waiting for the key
+        final SigningService service = new SigningService("SHA256withRSA", "LunaProvider", 4, 256, 1000);
+
+        // 32 application threads, each signing 100 times
+        final List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>>();
+        Thread threads[] = new Thread[32];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        CompletableFuture<byte[]> result = service.sign(key, document);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        for (CompletableFuture<byte[]> result : results) {
+            try {
+                result.join();
+            } catch (Exception e) {
+                // counted as failed or rejected
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.out.println(service);
+        System.out.println(service.getSignedCount() * 1000 / Math.max(1, elapsed) + " signatures per second");
+
+        Signature verifier = Signature.getInstance("SHA256withRSA", "LunaProvider");
+        verifier.initVerify(pair.getPublic());
+        verifier.update(document);
+        System.out.println("First signature verifies: " + verifier.verify(results.get(0).get()));
+
+        service.close();
+        HSM_Manager.hsmLogout();
+    }
+}
@@ -22,6 +22,10 @@
 #include "cryptoki_v2.h"
 
 #define		PLAIN_SZ	512
+#define		DES3_BLOCK_SZ	8
+
+/* size of data padded to the next whole block, there is always at least one byte of padding */
+#define		CBC_PAD_SZ( len, block )	( ( (len) / (block) + 1 ) * (block) )
 
 #ifdef OS_WIN32
 HINSTANCE						LibHandle = 0;
@@ -231,14 +235,14 @@ CK_RV DecryptData( CK_SESSION_HANDLE hSession )
 	if( rv != CKR_OK )
 		goto doneDec;
 
-	rv = P11Functions->C_Decrypt( hSession, P_EncText, EncSz, NULL, &PlainSz );
-	if( rv != CKR_OK )
-		goto doneDec;
+	/* the plain text is never longer than the cipher text, so there is no need to ask for its size */
+	PlainSz = EncSz;
 
 	P_DecText = (CK_BYTE*)calloc( PlainSz, 1 );
 	if( P_DecText == NULL )
 		goto doneDec;
 
+	/* PlainSz is set to the actual size of the plain text */
 	rv = P11Functions->C_Decrypt( hSession, P_EncText, EncSz, P_DecText, &PlainSz );
 	if( rv != CKR_OK )
 		goto doneDec;
@@ -265,15 +269,25 @@ CK_RV EncryptData( CK_SESSION_HANDLE hSession )
 	if( rv != CKR_OK )
 		goto doneEnc;
 
-	rv = P11Functions->C_Encrypt( hSession, PlainText, sizeof(PlainText), NULL, &EncSz );
-	if( rv != CKR_OK )
-		goto doneEnc;
+	/* predict the size of the cipher text, rather than ask for it with a NULL buffer */
+	EncSz = CBC_PAD_SZ( sizeof(PlainText), DES3_BLOCK_SZ );
 
 	P_EncText = (CK_BYTE*)calloc( EncSz, 1 );
 	if( P_EncText == NULL )
 		goto doneEnc;
 
 	rv = P11Functions->C_Encrypt( hSession, PlainText, sizeof(PlainText), P_EncText, &EncSz );
+	if( rv == CKR_BUFFER_TOO_SMALL )
+	{
+		/* the prediction was wrong - EncSz now holds the size needed, and the operation is still active */
+		free( P_EncText );
+
+		P_EncText = (CK_BYTE*)calloc( EncSz, 1 );
+		if( P_EncText == NULL )
+			goto doneEnc;
+
+		rv = P11Functions->C_Encrypt( hSession, PlainText, sizeof(PlainText), P_EncText, &EncSz );
+	}
 	if( rv != CKR_OK )
 		goto doneEnc;
 